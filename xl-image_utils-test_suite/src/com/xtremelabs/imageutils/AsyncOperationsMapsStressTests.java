@@ -0,0 +1,213 @@
+/*
+ * Copyright 2013 Xtreme Labs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xtremelabs.imageutils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.test.AndroidTestCase;
+
+import com.xtremelabs.imageutils.ImageCacher.ImageCacherListener;
+import com.xtremelabs.imageutils.ImageRequest.RequestType;
+
+/**
+ * Registers, cancels and completes requests from several threads at once, and checks that every listener is notified exactly once unless it was cancelled, in which case it is never notified.
+ */
+public class AsyncOperationsMapsStressTests extends AndroidTestCase {
+	private static final int NUM_THREADS = 4;
+	private static final int NUM_LISTENERS_PER_THREAD = 500;
+	private static final int NUM_URIS = 5;
+
+	private AsyncOperationsMaps mMaps;
+	private final AtomicBoolean mRunning = new AtomicBoolean();
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		mMaps = new AsyncOperationsMaps(new AsyncOperationsObserver() {
+			@Override
+			public void onImageDecodeRequired(DecodeSignature decodeSignature, RequestType requestType) {
+			}
+
+			@Override
+			public boolean isDecodeRequestPending(DecodeSignature decodeSignature) {
+				return true;
+			}
+
+			@Override
+			public int getSampleSize(ImageRequest imageRequest) {
+				return 1;
+			}
+
+			@Override
+			public void onImageDetailsRequired(String uri) {
+			}
+
+			@Override
+			public boolean isNetworkRequestPending(String uri) {
+				return true;
+			}
+
+			@Override
+			public void onNetworkRequestAbandoned(String uri) {
+			}
+
+			@Override
+			public void onDecodeRequestAbandoned(DecodeSignature decodeSignature) {
+			}
+
+			@Override
+			public void onNetworkRequestPriorityChanged(String uri, RequestType requestType) {
+			}
+
+			@Override
+			public void onDecodeRequestPriorityChanged(DecodeSignature decodeSignature, RequestType requestType) {
+			}
+		});
+		mRunning.set(true);
+	}
+
+	public void testConcurrentDecodes() throws InterruptedException {
+		runStressTest(false, false);
+	}
+
+	public void testConcurrentDecodesWithCancellation() throws InterruptedException {
+		runStressTest(false, true);
+	}
+
+	public void testConcurrentDownloads() throws InterruptedException {
+		runStressTest(true, false);
+	}
+
+	public void testConcurrentDownloadsWithCancellation() throws InterruptedException {
+		runStressTest(true, true);
+	}
+
+	private void runStressTest(final boolean download, final boolean cancel) throws InterruptedException {
+		final List<CountingListener> listeners = new ArrayList<CountingListener>();
+		final CountDownLatch startLatch = new CountDownLatch(1);
+		final CountDownLatch registrationLatch = new CountDownLatch(NUM_THREADS);
+
+		for (int i = 0; i < NUM_THREADS; i++) {
+			final List<CountingListener> threadListeners = new ArrayList<CountingListener>();
+			for (int j = 0; j < NUM_LISTENERS_PER_THREAD; j++) {
+				threadListeners.add(new CountingListener());
+			}
+			listeners.addAll(threadListeners);
+
+			new Thread() {
+				@Override
+				public void run() {
+					Random random = new Random();
+					awaitUninterruptibly(startLatch);
+					for (CountingListener listener : threadListeners) {
+						register(getUri(random.nextInt(NUM_URIS)), listener, download);
+						if (cancel && random.nextBoolean()) {
+							listener.mCancelled = mMaps.cancelPendingRequest(listener);
+						}
+					}
+					registrationLatch.countDown();
+				}
+			}.start();
+		}
+
+		Thread completionThread = new Thread() {
+			@Override
+			public void run() {
+				Random random = new Random();
+				awaitUninterruptibly(startLatch);
+				while (mRunning.get()) {
+					complete(getUri(random.nextInt(NUM_URIS)));
+				}
+			}
+		};
+		completionThread.start();
+
+		startLatch.countDown();
+		assertTrue(registrationLatch.await(30, TimeUnit.SECONDS));
+		mRunning.set(false);
+		completionThread.join();
+
+		for (int i = 0; i < NUM_URIS; i++) {
+			complete(getUri(i));
+		}
+
+		for (CountingListener listener : listeners) {
+			if (listener.mCancelled) {
+				assertEquals("A cancelled listener was notified.", 0, listener.mNumNotifications.get());
+			} else {
+				assertEquals("A listener was lost or notified more than once.", 1, listener.mNumNotifications.get());
+			}
+		}
+		assertTrue(mMaps.areMapsEmpty());
+	}
+
+	private void register(String uri, CountingListener listener, boolean download) {
+		ImageRequest imageRequest = new ImageRequest(uri);
+		if (mMaps.queueListenerIfRequestPending(imageRequest, listener) != AsyncOperationsMaps.AsyncOperationState.NOT_QUEUED) {
+			return;
+		}
+
+		if (download) {
+			mMaps.registerListenerForNetworkRequest(imageRequest, listener);
+		} else {
+			mMaps.registerListenerForDecode(getDecodeSignature(uri), listener);
+		}
+	}
+
+	private void complete(String uri) {
+		mMaps.onDownloadComplete(uri);
+		mMaps.onDetailsRequestComplete(uri);
+		mMaps.onDecodeSuccess(null, ImageReturnedFrom.DISK, getDecodeSignature(uri));
+	}
+
+	private static String getUri(int index) {
+		return "uri" + index;
+	}
+
+	private static DecodeSignature getDecodeSignature(String uri) {
+		return new DecodeSignature(uri, 1, null);
+	}
+
+	private static void awaitUninterruptibly(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+		}
+	}
+
+	private static class CountingListener extends ImageCacherListener {
+		final AtomicInteger mNumNotifications = new AtomicInteger();
+		volatile boolean mCancelled = false;
+
+		@Override
+		public void onImageAvailable(ImageResponse imageResponse) {
+			mNumNotifications.incrementAndGet();
+		}
+
+		@Override
+		public void onFailure(String message) {
+			mNumNotifications.incrementAndGet();
+		}
+	}
+}
@@ -30,6 +30,10 @@ public class AsyncOperationsMapsTests extends ActivityInstrumentationTestCase2<M
 	private boolean mAsyncPassed;
 	private boolean mAsyncFailed;
 	private boolean mDecodeRequiredCalled;
+	private String mAbandonedUri;
+	private DecodeSignature mAbandonedDecodeSignature;
+	private RequestType mNetworkRequestType;
+	private RequestType mDecodeRequestType;
 
 	public AsyncOperationsMapsTests() {
 		super(MainActivity.class);
@@ -40,7 +44,7 @@ public class AsyncOperationsMapsTests extends ActivityInstrumentationTestCase2<M
 		super.setUp();
 		mObserver = new AsyncOperationsObserver() {
 			@Override
-			public void onImageDecodeRequired(DecodeSignature decodeSignature) {
+			public void onImageDecodeRequired(DecodeSignature decodeSignature, RequestType requestType) {
 				mDecodeRequiredCalled = true;
 			}
 
@@ -66,12 +70,36 @@ public class AsyncOperationsMapsTests extends ActivityInstrumentationTestCase2<M
 			public boolean isNetworkRequestPending(String uri) {
 				return true;
 			}
+
+			@Override
+			public void onNetworkRequestAbandoned(String uri) {
+				mAbandonedUri = uri;
+			}
+
+			@Override
+			public void onDecodeRequestAbandoned(DecodeSignature decodeSignature) {
+				mAbandonedDecodeSignature = decodeSignature;
+			}
+
+			@Override
+			public void onNetworkRequestPriorityChanged(String uri, RequestType requestType) {
+				mNetworkRequestType = requestType;
+			}
+
+			@Override
+			public void onDecodeRequestPriorityChanged(DecodeSignature decodeSignature, RequestType requestType) {
+				mDecodeRequestType = requestType;
+			}
 		};
 		mMaps = new AsyncOperationsMaps(mObserver);
 
 		mAsyncPassed = false;
 		mAsyncFailed = false;
 		mDecodeRequiredCalled = false;
+		mAbandonedUri = null;
+		mAbandonedDecodeSignature = null;
+		mNetworkRequestType = null;
+		mDecodeRequestType = null;
 
 		assertEquals(mMaps.getNumPendingDownloads(), 0);
 		assertEquals(mMaps.getNumPendingDecodes(), 0);
@@ -199,6 +227,8 @@ public class AsyncOperationsMapsTests extends ActivityInstrumentationTestCase2<M
 	}
 
 	public void testNetworkCancel() {
+		mMaps.setCancelAbandonedRequests(false);
+
 		String uri = "blah";
 		ImageCacherListener imageCacherListener = getPassingImageCacherListener();
 		ScalingInfo scalingInfo = new ScalingInfo();
@@ -333,6 +363,8 @@ public class AsyncOperationsMapsTests extends ActivityInstrumentationTestCase2<M
 	}
 
 	public void testDecodeCancel() {
+		mMaps.setCancelAbandonedRequests(false);
+
 		String uri = "blah";
 		ImageCacherListener imageCacherListener = getFailingImageCacherListener();
 		ScalingInfo scalingInfo = new ScalingInfo();
@@ -429,6 +461,174 @@ public class AsyncOperationsMapsTests extends ActivityInstrumentationTestCase2<M
 		assertFalse(mDecodeRequiredCalled);
 	}
 
+	public void testAbandonedNetworkRequestIsCancelled() {
+		String uri = "blah";
+		ImageCacherListener imageCacherListener1 = getFailingImageCacherListener();
+		ImageCacherListener imageCacherListener2 = getFailingImageCacherListener();
+		ScalingInfo scalingInfo = new ScalingInfo();
+		scalingInfo.sampleSize = 1;
+
+		generateAndValidateNetworkRequest(uri, imageCacherListener1, scalingInfo);
+		mMaps.registerListenerForNetworkRequest(new ImageRequest(uri, scalingInfo), imageCacherListener2);
+
+		mMaps.cancelPendingRequest(imageCacherListener1);
+		assertTrue(mMaps.isNetworkRequestPending(uri));
+		assertNull(mAbandonedUri);
+
+		mMaps.cancelPendingRequest(imageCacherListener2);
+		assertFalse(mMaps.isNetworkRequestPending(uri));
+		assertEquals(uri, mAbandonedUri);
+		assertTrue(mMaps.areMapsEmpty());
+
+		mMaps.onDownloadFailed(uri, "Late failure for a cancelled download.");
+		assertFalse(mAsyncPassed);
+	}
+
+	public void testAbandonedDecodeRequestIsCancelled() {
+		String uri = "blah";
+		ImageCacherListener imageCacherListener = getFailingImageCacherListener();
+		ScalingInfo scalingInfo = new ScalingInfo();
+		scalingInfo.sampleSize = 1;
+
+		generateAndValidateDecodeRequest(uri, imageCacherListener, scalingInfo);
+		mMaps.cancelPendingRequest(imageCacherListener);
+
+		assertFalse(mMaps.isDecodeRequestPending(uri, scalingInfo, null));
+		assertEquals(new DecodeSignature(uri, scalingInfo.sampleSize, null), mAbandonedDecodeSignature);
+		assertTrue(mMaps.areMapsEmpty());
+
+		mMaps.onDecodeSuccess(null, ImageReturnedFrom.DISK, mAbandonedDecodeSignature);
+		assertFalse(mAsyncFailed);
+	}
+
+	public void testAbandonedPrecacheIsCompleted() {
+		String uri = "blah";
+		ImageCacherListener imageCacherListener = getBlankImageCacherListener();
+		ImageRequest imageRequest = new ImageRequest(uri);
+		imageRequest.setRequestType(RequestType.CACHE_TO_DISK_AND_MEMORY);
+
+		mMaps.registerListenerForNetworkRequest(imageRequest, imageCacherListener);
+		mMaps.cancelPendingRequest(imageCacherListener);
+		assertTrue(mMaps.isNetworkRequestPending(uri));
+		assertNull(mAbandonedUri);
+		mMaps.onDownloadFailed(uri, "Forced download failure");
+
+		mMaps.setCompletePrecacheRequests(false);
+		mMaps.registerListenerForNetworkRequest(imageRequest, imageCacherListener);
+		mMaps.cancelPendingRequest(imageCacherListener);
+		assertFalse(mMaps.isNetworkRequestPending(uri));
+		assertEquals(uri, mAbandonedUri);
+	}
+
+	public void testWithdrawnPrecacheIsAbandoned() {
+		String uri = "blah";
+		ImageCacherListener imageCacherListener = getBlankImageCacherListener();
+		ImageRequest imageRequest = new ImageRequest(uri);
+		imageRequest.setRequestType(RequestType.CACHE_TO_DISK);
+
+		mMaps.registerListenerForNetworkRequest(imageRequest, imageCacherListener);
+		mMaps.cancelPendingRequest(imageCacherListener, false);
+		assertFalse(mMaps.isNetworkRequestPending(uri));
+		assertEquals(uri, mAbandonedUri);
+		assertTrue(mMaps.areMapsEmpty());
+	}
+
+	public void testDiskPrecacheListenerIsNotified() {
+		String uri = "blah";
+		ImageRequest imageRequest = new ImageRequest(uri);
+		imageRequest.setRequestType(RequestType.CACHE_TO_DISK);
+
+		mMaps.registerListenerForNetworkRequest(imageRequest, getPassingImageCacherListener());
+		mMaps.onDownloadComplete(uri);
+		mMaps.onDetailsRequestComplete(uri);
+
+		assertTrue(mAsyncPassed);
+		assertFalse(mDecodeRequiredCalled);
+		assertTrue(mMaps.areMapsEmpty());
+	}
+
+	public void testDemotedNetworkRequest() {
+		String uri = "blah";
+		ImageCacherListener imageCacherListener1 = getBlankImageCacherListener();
+		ImageCacherListener imageCacherListener2 = getBlankImageCacherListener();
+		ScalingInfo scalingInfo = new ScalingInfo();
+		scalingInfo.sampleSize = 1;
+
+		mMaps.registerListenerForNetworkRequest(new ImageRequest(uri, scalingInfo), imageCacherListener1);
+		mMaps.registerListenerForNetworkRequest(new ImageRequest(uri, scalingInfo), imageCacherListener2);
+
+		mMaps.setRequestDemoted(imageCacherListener1, true);
+		assertEquals(RequestType.FULL_REQUEST, mNetworkRequestType);
+
+		mMaps.setRequestDemoted(imageCacherListener2, true);
+		assertEquals(RequestType.CACHE_TO_DISK_AND_MEMORY, mNetworkRequestType);
+
+		mMaps.setRequestDemoted(imageCacherListener1, false);
+		assertEquals(RequestType.FULL_REQUEST, mNetworkRequestType);
+	}
+
+	public void testDemotedDecodeRequest() {
+		String uri = "blah";
+		ImageCacherListener imageCacherListener = getBlankImageCacherListener();
+		DecodeSignature decodeSignature = new DecodeSignature(uri, 1, null);
+
+		mMaps.registerListenerForDecode(decodeSignature, imageCacherListener);
+		mMaps.setRequestDemoted(imageCacherListener, true);
+		assertEquals(RequestType.CACHE_TO_DISK_AND_MEMORY, mDecodeRequestType);
+		assertNull(mNetworkRequestType);
+
+		mMaps.onDecodeSuccess(null, ImageReturnedFrom.DISK, decodeSignature);
+		mDecodeRequestType = null;
+		mMaps.setRequestDemoted(imageCacherListener, false);
+		assertNull(mDecodeRequestType);
+	}
+
+	public void testPendingRequestTypes() {
+		String uri = "blah";
+		ImageCacherListener imageCacherListener1 = getBlankImageCacherListener();
+		ImageCacherListener imageCacherListener2 = getBlankImageCacherListener();
+		ImageRequest precacheRequest = new ImageRequest(uri);
+		precacheRequest.setRequestType(RequestType.CACHE_TO_DISK);
+		DecodeSignature decodeSignature = new DecodeSignature(uri, 1, null);
+
+		assertNull(mMaps.getPendingNetworkRequestType(uri));
+		mMaps.registerListenerForNetworkRequest(precacheRequest, imageCacherListener1);
+		assertEquals(RequestType.CACHE_TO_DISK, mMaps.getPendingNetworkRequestType(uri));
+		mMaps.registerListenerForNetworkRequest(new ImageRequest(uri), imageCacherListener2);
+		assertEquals(RequestType.FULL_REQUEST, mMaps.getPendingNetworkRequestType(uri));
+		mMaps.setRequestDemoted(imageCacherListener2, true);
+		assertEquals(RequestType.CACHE_TO_DISK_AND_MEMORY, mMaps.getPendingNetworkRequestType(uri));
+		mMaps.cancelPendingRequest(imageCacherListener2);
+		assertEquals(RequestType.CACHE_TO_DISK, mMaps.getPendingNetworkRequestType(uri));
+
+		assertNull(mMaps.getPendingDecodeRequestType(decodeSignature));
+		mMaps.registerListenerForDecode(decodeSignature, RequestType.CACHE_TO_DISK_AND_MEMORY, getBlankImageCacherListener());
+		assertEquals(RequestType.CACHE_TO_DISK_AND_MEMORY, mMaps.getPendingDecodeRequestType(decodeSignature));
+	}
+
+	public void testMissingImageIsDownloadedAgain() {
+		String uri = "blah";
+		ScalingInfo scalingInfo = new ScalingInfo();
+		scalingInfo.sampleSize = 1;
+		DecodeSignature decodeSignature = new DecodeSignature(uri, 1, null);
+		ImageRequest precacheRequest = new ImageRequest(uri, scalingInfo);
+		precacheRequest.setRequestType(RequestType.CACHE_TO_DISK_AND_MEMORY);
+		ImageCacherListener directListener = getFailingImageCacherListener();
+		ImageCacherListener requestListener = getBlankImageCacherListener();
+
+		mMaps.registerListenerForDecode(decodeSignature, precacheRequest, requestListener);
+		mMaps.registerListenerForDecode(decodeSignature, directListener);
+
+		assertEquals(RequestType.CACHE_TO_DISK_AND_MEMORY, mMaps.onDecodeImageMissing(decodeSignature));
+		assertTrue(mAsyncPassed);
+		assertFalse(mMaps.isDecodeRequestPending(decodeSignature));
+		assertTrue(mMaps.isNetworkRequestPending(uri));
+		assertTrue(mMaps.isListenerWaitingOnNetwork(requestListener));
+		assertFalse(mMaps.isListenerWaitingOnNetwork(directListener));
+
+		assertNull(mMaps.onDecodeImageMissing(decodeSignature));
+	}
+
 	private ImageCacherListener getBlankImageCacherListener() {
 		return new ImageCacherListener() {
 			@Override
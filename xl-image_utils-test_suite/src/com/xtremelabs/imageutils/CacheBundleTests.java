@@ -0,0 +1,106 @@
+/*
+ * Copyright 2013 Xtreme Labs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xtremelabs.imageutils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import android.test.ActivityInstrumentationTestCase2;
+
+import com.xtremelabs.testactivity.MainActivity;
+
+public class CacheBundleTests extends ActivityInstrumentationTestCase2<MainActivity> {
+	private DiskManager mDiskManager;
+
+	public CacheBundleTests() {
+		super(MainActivity.class);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		mDiskManager = new DiskManager("bundletestdir", getActivity().getApplicationContext());
+		mDiskManager.clearDirectory();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mDiskManager.clearDirectory();
+
+		super.tearDown();
+	}
+
+	public void testWriteAndOpen() throws IOException {
+		byte[] data1 = generateData(100, (byte) 1);
+		byte[] data2 = generateData(2000, (byte) 2);
+
+		File file = mDiskManager.getFile("bundle");
+		CacheBundle.Writer writer = new CacheBundle.Writer(file);
+		writer.add("http://www.example.com/1.jpg", new ByteArrayInputStream(data1), 10, 20);
+		writer.add("http://www.example.com/2.jpg", new ByteArrayInputStream(data2), 30, 40);
+		writer.finish();
+
+		CacheBundle cacheBundle = CacheBundle.open(file);
+		assertTrue(cacheBundle.contains("http://www.example.com/1.jpg"));
+		assertTrue(cacheBundle.contains("http://www.example.com/2.jpg"));
+		assertFalse(cacheBundle.contains("http://www.example.com/3.jpg"));
+
+		assertTrue(Arrays.equals(data1, cacheBundle.read("http://www.example.com/1.jpg")));
+		assertTrue(Arrays.equals(data2, cacheBundle.read("http://www.example.com/2.jpg")));
+		assertNull(cacheBundle.read("http://www.example.com/3.jpg"));
+
+		Dimensions dimensions = cacheBundle.getDimensions("http://www.example.com/2.jpg");
+		assertEquals(30, dimensions.width.intValue());
+		assertEquals(40, dimensions.height.intValue());
+		assertFalse(mDiskManager.getFile("bundle.data").exists());
+	}
+
+	public void testRemove() throws IOException {
+		File file = mDiskManager.getFile("bundle");
+		CacheBundle.Writer writer = new CacheBundle.Writer(file);
+		writer.add("key", new ByteArrayInputStream(generateData(10, (byte) 1)), 1, 1);
+		writer.finish();
+
+		CacheBundle cacheBundle = CacheBundle.open(file);
+		cacheBundle.remove("key");
+		assertFalse(cacheBundle.contains("key"));
+		assertNull(cacheBundle.read("key"));
+	}
+
+	public void testInvalidFileIsRejected() throws IOException {
+		File file = mDiskManager.getFile("notabundle");
+		FileOutputStream outputStream = new FileOutputStream(file);
+		outputStream.write(generateData(64, (byte) 9));
+		outputStream.close();
+
+		try {
+			CacheBundle.open(file);
+			fail();
+		} catch (IOException e) {
+		}
+	}
+
+	private static byte[] generateData(int length, byte value) {
+		byte[] data = new byte[length];
+		Arrays.fill(data, value);
+		return data;
+	}
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2013 Xtreme Labs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xtremelabs.imageutils;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.graphics.Bitmap;
+import android.test.AndroidTestCase;
+
+import com.xtremelabs.imageutils.DecodeScheduler.Lane;
+
+public class DecodeSchedulerTests extends AndroidTestCase {
+	private static final int MAXIMUM_THREADS = 4;
+
+	private DecodeScheduler mScheduler;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		mScheduler = new DecodeScheduler(MAXIMUM_THREADS);
+	}
+
+	public void testOneSmallDecodeRunsAtFirst() {
+		mScheduler.onQueued("details", Lane.DETAILS);
+		mScheduler.onQueued("large", Lane.LARGE_DECODE);
+		assertTrue(tryStart("1", Lane.SMALL_DECODE));
+		assertFalse(tryStart("2", Lane.SMALL_DECODE));
+		assertEquals(1, mScheduler.getStatistics().activeDecodes);
+	}
+
+	public void testLanesRunIndependently() {
+		mScheduler.onQueued("small", Lane.SMALL_DECODE);
+		mScheduler.onQueued("details", Lane.DETAILS);
+		assertTrue(tryStart("large", Lane.LARGE_DECODE));
+		assertFalse(tryStart("large2", Lane.LARGE_DECODE));
+
+		assertTrue(mScheduler.tryStart("small"));
+		assertTrue(mScheduler.tryStart("details"));
+	}
+
+	public void testIdleLanesLendThreads() {
+		assertTrue(tryStart("large1", Lane.LARGE_DECODE));
+		assertTrue(tryStart("large2", Lane.LARGE_DECODE));
+		assertTrue(tryStart("large3", Lane.LARGE_DECODE));
+		assertFalse(tryStart("large4", Lane.LARGE_DECODE));
+
+		mScheduler.onDecodeFinished(Lane.LARGE_DECODE, 0, 10, 10);
+		mScheduler.onQueued("small", Lane.SMALL_DECODE);
+		assertFalse(tryStart("large5", Lane.LARGE_DECODE));
+		assertTrue(mScheduler.tryStart("small"));
+	}
+
+	public void testGetDecodeLane() {
+		Dimensions dimensions = new Dimensions(4000, 3000);
+		assertEquals(Lane.LARGE_DECODE, DecodeScheduler.getDecodeLane(dimensions, new DecodeSignature("uri", 1, Bitmap.Config.ARGB_8888)));
+		assertEquals(Lane.SMALL_DECODE, DecodeScheduler.getDecodeLane(dimensions, new DecodeSignature("uri", 8, Bitmap.Config.ARGB_8888)));
+		assertEquals(Lane.SMALL_DECODE, DecodeScheduler.getDecodeLane(new Dimensions(600, 600), new DecodeSignature("uri", 1, Bitmap.Config.RGB_565)));
+		assertEquals(Lane.LARGE_DECODE, DecodeScheduler.getDecodeLane(null, new DecodeSignature("uri", 8, null)));
+	}
+
+	public void testLimitGrowsWhileDecodesAreHealthy() {
+		growLimitToMaximum();
+
+		assertEquals(MAXIMUM_THREADS, mScheduler.getStatistics().threadLimit);
+		for (int i = 0; i < MAXIMUM_THREADS; i++) {
+			assertTrue(tryStart(i, Lane.SMALL_DECODE));
+		}
+		mScheduler.onQueued("details", Lane.DETAILS);
+		mScheduler.onQueued("large", Lane.LARGE_DECODE);
+		assertFalse(tryStart(MAXIMUM_THREADS, Lane.SMALL_DECODE));
+	}
+
+	public void testLimitIsHalvedOnFrameOverrun() {
+		growLimitToMaximum();
+		mScheduler.onFrameOverrun();
+
+		DecodeStatistics statistics = mScheduler.getStatistics();
+		assertEquals(MAXIMUM_THREADS / 2, statistics.threadLimit);
+		assertEquals(1, statistics.frameOverruns);
+		assertEquals(1, statistics.backOffs);
+	}
+
+	public void testLimitIsHalvedWhenDecodesAreStarvedOfCpu() {
+		growLimitToMaximum();
+		assertTrue(tryStart("starved", Lane.SMALL_DECODE));
+		mScheduler.onDecodeFinished(Lane.SMALL_DECODE, 0, 100, 10);
+
+		assertEquals(MAXIMUM_THREADS / 2, mScheduler.getStatistics().threadLimit);
+	}
+
+	public void testStatistics() {
+		assertTrue(tryStart("1", Lane.SMALL_DECODE));
+		mScheduler.onDecodeFinished(Lane.SMALL_DECODE, 30, 50, 50);
+
+		DecodeStatistics statistics = mScheduler.getStatistics();
+		assertEquals(1, statistics.decodesCompleted);
+		assertEquals(0, statistics.activeDecodes);
+		assertEquals(30.0, statistics.averageQueueWaitMillis);
+		assertEquals(50.0, statistics.averageDecodeMillis);
+		assertEquals(MAXIMUM_THREADS, statistics.maximumThreads);
+	}
+
+	public void testExecute() throws InterruptedException {
+		final CountDownLatch latch = new CountDownLatch(2);
+		Runnable runnable = new Runnable() {
+			@Override
+			public void run() {
+				latch.countDown();
+			}
+		};
+		mScheduler.execute("details", runnable, Lane.DETAILS);
+		mScheduler.execute("decode", runnable, Lane.LARGE_DECODE);
+
+		assertTrue(latch.await(2, TimeUnit.SECONDS));
+		Thread.sleep(100);
+		assertEquals(1, mScheduler.getStatistics().decodesCompleted);
+	}
+
+	private boolean tryStart(Object key, Lane lane) {
+		mScheduler.onQueued(key, lane);
+		return mScheduler.tryStart(key);
+	}
+
+	private void growLimitToMaximum() {
+		for (int i = 0; i < 20; i++) {
+			assertTrue(tryStart(i, Lane.SMALL_DECODE));
+			mScheduler.onDecodeFinished(Lane.SMALL_DECODE, 0, 10, 10);
+		}
+	}
+}
@@ -16,9 +16,12 @@
 
 package com.xtremelabs.imageutils;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 
+import com.xtremelabs.imageutils.ImageRequest.RequestType;
+
 public class DiskCacheStub implements ImageDiskCacherInterface {
 	@Override
 	public void downloadImageFromInputStream(String uri, InputStream inputStream) throws IOException {
@@ -42,11 +45,20 @@ public class DiskCacheStub implements ImageDiskCacherInterface {
 	public void setDiskCacheSize(long sizeInBytes) {
 	}
 
+	@Override
+	public void setMaximumPackedImageSize(int sizeInBytes) {
+	}
+
 	@Override
 	public Dimensions getImageDimensions(String uri) {
 		return null;
 	}
 
+	@Override
+	public DecodeStatistics getDecodeStatistics() {
+		return null;
+	}
+
 	@Override
 	public boolean isDecodeRequestPending(DecodeSignature decodeSignature) {
 		return false;
@@ -57,14 +69,34 @@ public class DiskCacheStub implements ImageDiskCacherInterface {
 	}
 
 	@Override
-	public void getBitmapAsynchronouslyFromDisk(DecodeSignature decodeSignature, ImageReturnedFrom returnedFrom, boolean noPreviousNetworkRequest) {
+	public void getBitmapAsynchronouslyFromDisk(DecodeSignature decodeSignature, ImageReturnedFrom returnedFrom, boolean noPreviousNetworkRequest, RequestType requestType) {
+	}
+
+	@Override
+	public void bumpInQueue(DecodeSignature decodeSignature, RequestType requestType) {
 	}
 
 	@Override
-	public void bumpInQueue(DecodeSignature decodeSignature) {
+	public void setPriorityInQueue(DecodeSignature decodeSignature, RequestType requestType) {
+	}
+
+	@Override
+	public void cancelDecode(DecodeSignature decodeSignature) {
 	}
 
 	@Override
 	public void invalidateFileSystemUri(String uri) {
 	}
+
+	@Override
+	public void addCacheBundle(File file) throws IOException {
+	}
+
+	@Override
+	public void addCacheBundleFromAsset(String assetName) throws IOException {
+	}
+
+	@Override
+	public void exportCacheBundle(File destination, int maxNumberOfImages) throws IOException {
+	}
 }
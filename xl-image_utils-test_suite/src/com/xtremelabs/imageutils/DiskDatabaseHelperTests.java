@@ -16,8 +16,12 @@
 
 package com.xtremelabs.imageutils;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
 import android.test.ActivityInstrumentationTestCase2;
 
 import com.xtremelabs.imageutils.DiskDatabaseHelper.DiskDatabaseHelperObserver;
@@ -26,6 +30,8 @@ import com.xtremelabs.testactivity.MainActivity;
 
 public class DiskDatabaseHelperTests extends ActivityInstrumentationTestCase2<MainActivity> {
 	private DiskDatabaseHelper mDatabaseHelper;
+	private final List<FileEntry> mEntriesOnDisk = new ArrayList<FileEntry>();
+	private boolean mIsRebuildBlocked = false;
 
 	public DiskDatabaseHelperTests() {
 		super(MainActivity.class);
@@ -43,6 +49,20 @@ public class DiskDatabaseHelperTests extends ActivityInstrumentationTestCase2<Ma
 			@Override
 			public void onImageEvicted(String uri) {
 			}
+
+			@Override
+			public List<FileEntry> rebuildEntriesFromDisk() {
+				synchronized (mEntriesOnDisk) {
+					while (mIsRebuildBlocked) {
+						try {
+							mEntriesOnDisk.wait();
+						} catch (InterruptedException e) {
+							return new ArrayList<FileEntry>();
+						}
+					}
+					return new ArrayList<FileEntry>(mEntriesOnDisk);
+				}
+			}
 		});
 		mDatabaseHelper.resetTable(mDatabaseHelper.getWritableDatabase());
 	}
@@ -116,6 +136,131 @@ public class DiskDatabaseHelperTests extends ActivityInstrumentationTestCase2<Ma
 		assertEquals("url4", entry);
 	}
 
+	public void testMigrationPreservesEntries() {
+		addOrUpdateAndVerifyEntry("url1", 100, 10, 20);
+
+		mDatabaseHelper.onUpgrade(mDatabaseHelper.getWritableDatabase(), 2, 3);
+
+		FileEntry entry = mDatabaseHelper.getFileEntryFromDatabase("url1");
+		assertNotNull(entry);
+		assertEquals(100, entry.getSize());
+	}
+
+	public void testUnmigratableVersionIsRebuiltFromDisk() {
+		addOrUpdateAndVerifyEntry("url1", 100, 10, 20);
+		mEntriesOnDisk.add(new FileEntry("url2", 200, 30, 40, System.currentTimeMillis()));
+		mIsRebuildBlocked = true;
+
+		// The schema is replaced right away, but the files are read in the background. Until then, the images are misses.
+		mDatabaseHelper.onUpgrade(mDatabaseHelper.getWritableDatabase(), 1, 3);
+		assertNull(mDatabaseHelper.getFileEntryFromDatabase("url1"));
+		assertFalse(mDatabaseHelper.isCached("url2"));
+
+		synchronized (mEntriesOnDisk) {
+			mIsRebuildBlocked = false;
+			mEntriesOnDisk.notifyAll();
+		}
+		for (int i = 0; i < 100 && !mDatabaseHelper.isCached("url2"); i++) {
+			sleep(20);
+		}
+		assertTrue(mDatabaseHelper.isCached("url2"));
+		FileEntry entry = mDatabaseHelper.getFileEntryFromDatabase("url2");
+		assertNotNull(entry);
+		assertEquals(200, entry.getSize());
+		assertEquals(30, entry.getDimensions().width.intValue());
+		assertEquals(40, entry.getDimensions().height.intValue());
+	}
+
+	public void testEntriesAddedByAnotherProcessAreSynced() {
+		ContentValues values = new ContentValues();
+		values.put("url", "url1");
+		values.put("sizeondisk", 100L);
+		values.put("width", 10);
+		values.put("height", 20);
+		values.put("lastaccess", System.currentTimeMillis());
+		mDatabaseHelper.getWritableDatabase().insertWithOnConflict("img_cache", null, values, SQLiteDatabase.CONFLICT_REPLACE);
+		assertFalse(mDatabaseHelper.isCached("url1"));
+
+		mDatabaseHelper.syncWithDatabase();
+
+		assertTrue(mDatabaseHelper.isCached("url1"));
+		assertEquals(100, mDatabaseHelper.getFileEntryFromCache("url1").getSize());
+	}
+
+	public void testOnlyStampsOfOtherHelpersTriggerSyncs() {
+		ContentValues values = new ContentValues();
+		values.put("url", "url2");
+		values.put("sizeondisk", 100L);
+		values.put("width", 10);
+		values.put("height", 20);
+		values.put("lastaccess", System.currentTimeMillis());
+		mDatabaseHelper.getWritableDatabase().insertWithOnConflict("img_cache", null, values, SQLiteDatabase.CONFLICT_REPLACE);
+
+		// This helper's own stamp does not make it sync, so the entry written behind its back stays unknown.
+		mDatabaseHelper.addOrUpdateFile("url1", 100, 10, 20);
+		sleep(1000);
+		assertFalse(mDatabaseHelper.isCached("url2"));
+
+		DiskDatabaseHelper otherHelper = createOtherHelper();
+		otherHelper.addOrUpdateFile("url3", 100, 10, 20);
+
+		for (int i = 0; i < 100 && !mDatabaseHelper.isCached("url3"); i++) {
+			sleep(20);
+		}
+		assertTrue(mDatabaseHelper.isCached("url2"));
+		assertTrue(mDatabaseHelper.isCached("url3"));
+	}
+
+	public void testEvictionsByAnotherHelperAreSynced() {
+		DiskDatabaseHelper otherHelper = createOtherHelper();
+		mDatabaseHelper.addOrUpdateFile("url1", 100, 10, 20);
+		mDatabaseHelper.addOrUpdateFile("url2", 100, 10, 20);
+		otherHelper.syncWithDatabase();
+		assertTrue(otherHelper.isCached("url1"));
+		assertEquals(200, otherHelper.getTotalSizeOnDisk());
+
+		mDatabaseHelper.removeLeastUsedFileFromCache(100);
+		assertFalse(mDatabaseHelper.isCached("url1"));
+
+		for (int i = 0; i < 100 && otherHelper.isCached("url1"); i++) {
+			sleep(20);
+		}
+		assertFalse(otherHelper.isCached("url1"));
+		assertTrue(otherHelper.isCached("url2"));
+		assertEquals(100, otherHelper.getTotalSizeOnDisk());
+	}
+
+	public void testDeletionsByAnotherHelperAreSynced() {
+		DiskDatabaseHelper otherHelper = createOtherHelper();
+		mDatabaseHelper.addOrUpdateFile("url1", 100, 10, 20);
+		otherHelper.syncWithDatabase();
+		assertTrue(otherHelper.isCached("url1"));
+
+		mDatabaseHelper.deleteEntry("url1");
+
+		for (int i = 0; i < 100 && otherHelper.isCached("url1"); i++) {
+			sleep(20);
+		}
+		assertFalse(otherHelper.isCached("url1"));
+	}
+
+	private DiskDatabaseHelper createOtherHelper() {
+		return new DiskDatabaseHelper(getActivity().getApplicationContext(), new DiskDatabaseHelperObserver() {
+			@Override
+			public void onDatabaseWiped() {
+			}
+
+			@Override
+			public void onImageEvicted(String uri) {
+			}
+
+			@Override
+			public List<FileEntry> rebuildEntriesFromDisk() {
+				return new ArrayList<FileEntry>();
+			}
+		});
+	}
+
 	private void addOrUpdateAndVerifyEntry(String url, long size, int width, int height) {
 		mDatabaseHelper.addOrUpdateFile(url, size, width, height);
 		FileEntry entry = mDatabaseHelper.getFileEntryFromCache(url);
@@ -21,6 +21,12 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.annotation.SuppressLint;
 import android.graphics.Bitmap;
@@ -30,6 +36,7 @@ import android.os.StrictMode.ThreadPolicy;
 import android.test.ActivityInstrumentationTestCase2;
 
 import com.xtremelabs.imageutils.DiskLRUCacher.FileFormatException;
+import com.xtremelabs.imageutils.ImageRequest.RequestType;
 import com.xtremelabs.imageutils.test.R;
 import com.xtremelabs.imageutils.testutils.DelayedLoop;
 import com.xtremelabs.testactivity.MainActivity;
@@ -38,6 +45,7 @@ import com.xtremelabs.testactivity.MainActivity;
 public class DiskLRUCacherTests extends ActivityInstrumentationTestCase2<MainActivity> {
 	private static final String IMAGE_FILE_NAME = "disk_cache_test_image.jpg";
 	private static final String TEST_URI = "file:///my/image.jpg";
+	private static final String BLOCKER_URI = "http://www.example.com/blocker_";
 
 	private DiskLRUCacher mDiskCacher;
 	private String mKittenImageUri = null;
@@ -91,6 +99,10 @@ public class DiskLRUCacherTests extends ActivityInstrumentationTestCase2<MainAct
 			@Override
 			public void onImageDecodeFailed(DecodeSignature decodeSignature, String error) {
 			}
+
+			@Override
+			public void onImageMissingFromDisk(DecodeSignature decodeSignature) {
+			}
 		});
 		mDiskCacher.cacheImageDetails(mKittenImageUri);
 		delayedLoop.startLoop();
@@ -133,6 +145,80 @@ public class DiskLRUCacherTests extends ActivityInstrumentationTestCase2<MainAct
 		assertNotNull(bitmap);
 	}
 
+	public void testScaleToSampleSize() {
+		Bitmap bitmap = Bitmap.createBitmap(100, 60, Bitmap.Config.ARGB_8888);
+
+		assertSame(bitmap, DiskLRUCacher.scaleToSampleSize(bitmap, 2, 2));
+		Bitmap scaledBitmap = DiskLRUCacher.scaleToSampleSize(bitmap, 1, 4);
+		assertEquals(25, scaledBitmap.getWidth());
+		assertEquals(15, scaledBitmap.getHeight());
+	}
+
+	/*
+	 * Every decode thread is held up first, so that both decodes are queued when the first of them starts. Releasing a single blocker then frees a single thread.
+	 */
+	public void testQueuedDecodesOfTheSameImageAreCoalesced() throws InterruptedException {
+		final int numBlockers = 3;
+		final CountDownLatch blockersStartedLatch = new CountDownLatch(numBlockers);
+		final Semaphore releasedBlockers = new Semaphore(0);
+		final AtomicInteger numFileDecodes = new AtomicInteger(0);
+		final List<DecodeSignature> deliveredSignatures = new ArrayList<DecodeSignature>();
+		final List<Bitmap> deliveredBitmaps = new ArrayList<Bitmap>();
+		final CountDownLatch deliveredLatch = new CountDownLatch(2);
+
+		mDiskCacher = new DiskLRUCacher(getActivity().getApplicationContext(), new BlankImageDiskObserver() {
+			@Override
+			public void onImageDecoded(DecodeSignature decodeSignature, Bitmap bitmap, ImageReturnedFrom returnedFrom) {
+				synchronized (deliveredSignatures) {
+					deliveredSignatures.add(decodeSignature);
+					deliveredBitmaps.add(bitmap);
+				}
+				deliveredLatch.countDown();
+			}
+		}) {
+			@Override
+			Bitmap getBitmapSynchronouslyFromDisk(DecodeSignature decodeSignature) throws FileNotFoundException, FileFormatException {
+				if (decodeSignature.mUri.startsWith(BLOCKER_URI)) {
+					blockersStartedLatch.countDown();
+					try {
+						releasedBlockers.tryAcquire(5, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+					}
+					throw new FileNotFoundException();
+				}
+				numFileDecodes.incrementAndGet();
+				return super.getBitmapSynchronouslyFromDisk(decodeSignature);
+			}
+		};
+		mDiskCacher.cacheImageDetails(mKittenImageUri);
+		Dimensions dimensions = mDiskCacher.getImageDimensions(mKittenImageUri);
+		DecodeSignature smallDecode = new DecodeSignature(mKittenImageUri, 8, null);
+		DecodeSignature largeDecode = new DecodeSignature(mKittenImageUri, 4, null);
+		assertEquals(DecodeScheduler.getDecodeLane(dimensions, smallDecode), DecodeScheduler.getDecodeLane(dimensions, largeDecode));
+
+		try {
+			for (int i = 0; i < numBlockers; i++) {
+				mDiskCacher.getBitmapAsynchronouslyFromDisk(new DecodeSignature(BLOCKER_URI + i, 1, null), ImageReturnedFrom.DISK, true, RequestType.FULL_REQUEST);
+			}
+			assertTrue(blockersStartedLatch.await(2, TimeUnit.SECONDS));
+
+			mDiskCacher.getBitmapAsynchronouslyFromDisk(largeDecode, ImageReturnedFrom.DISK, true, RequestType.FULL_REQUEST);
+			mDiskCacher.getBitmapAsynchronouslyFromDisk(smallDecode, ImageReturnedFrom.DISK, true, RequestType.FULL_REQUEST);
+			releasedBlockers.release();
+
+			assertTrue(deliveredLatch.await(2, TimeUnit.SECONDS));
+			assertEquals(1, numFileDecodes.get());
+			synchronized (deliveredSignatures) {
+				assertEquals(2, deliveredSignatures.size());
+				Bitmap smallBitmap = deliveredBitmaps.get(deliveredSignatures.indexOf(smallDecode));
+				Bitmap largeBitmap = deliveredBitmaps.get(deliveredSignatures.indexOf(largeDecode));
+				assertEquals(largeBitmap.getWidth() / 2, smallBitmap.getWidth());
+			}
+		} finally {
+			releasedBlockers.release(numBlockers);
+		}
+	}
+
 	private void loadKittenToFile() {
 		StrictMode.setThreadPolicy(ThreadPolicy.LAX);
 		try {
@@ -171,5 +257,9 @@ public class DiskLRUCacherTests extends ActivityInstrumentationTestCase2<MainAct
 		@Override
 		public void onImageDecodeFailed(DecodeSignature decodeSignature, String error) {
 		}
+
+		@Override
+		public void onImageMissingFromDisk(DecodeSignature decodeSignature) {
+		}
 	}
 }
@@ -16,6 +16,12 @@
 
 package com.xtremelabs.imageutils;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.test.AndroidTestCase;
@@ -30,6 +36,7 @@ public class ImageCacherTests extends AndroidTestCase {
 	private static final String TEST_URI = "file:///some/directory/with/an/image.jpg";
 
 	private boolean mCallComplete = false;
+	private volatile ImageResponse mImageResponse;
 	private ImageCacher mImageCacher;
 
 	@Override
@@ -105,7 +112,7 @@ public class ImageCacherTests extends AndroidTestCase {
 			}
 
 			@Override
-			public void bumpInQueue(DecodeSignature decodeSignature) {
+			public void bumpInQueue(DecodeSignature decodeSignature, RequestType requestType) {
 				if (decodeSignature.mSampleSize == 0) {
 					delayedLoop.flagSuccess();
 				} else {
@@ -132,6 +139,8 @@ public class ImageCacherTests extends AndroidTestCase {
 	public void testPermRequestInMemCache() {
 		ThreadChecker.disableUiThreadCheck();
 
+		final DelayedLoop delayedLoop = new DelayedLoop(2000);
+
 		mImageCacher.stubAsynchOperationsMaps(new AsyncOperationsMaps(mImageCacher) {
 			@Override
 			public synchronized AsyncOperationState queueListenerIfRequestPending(ImageRequest imageRequest, ImageCacherListener imageCacherListener) {
@@ -159,19 +168,25 @@ public class ImageCacherTests extends AndroidTestCase {
 		});
 
 		ImageRequest imageRequest = new ImageRequest(TEST_URI, new ScalingInfo());
-		ImageResponse imageResponse = mImageCacher.getBitmap(imageRequest, new ImageCacherListener() {
+		mImageCacher.getBitmap(imageRequest, new ImageCacherListener() {
 			@Override
 			public void onImageAvailable(ImageResponse imageResponse) {
+				mImageResponse = imageResponse;
+				delayedLoop.flagSuccess();
 			}
 
 			@Override
 			public void onFailure(String message) {
+				delayedLoop.flagFailure();
 			}
 		});
 
-		assertNotNull(imageResponse);
-		assertEquals(100, imageResponse.getBitmap().getWidth());
-		assertEquals(100, imageResponse.getBitmap().getHeight());
+		delayedLoop.startLoop();
+		delayedLoop.assertPassed();
+
+		assertNotNull(mImageResponse);
+		assertEquals(100, mImageResponse.getBitmap().getWidth());
+		assertEquals(100, mImageResponse.getBitmap().getHeight());
 	}
 
 	public void testImageDetailsRetrieved() {
@@ -240,15 +255,15 @@ public class ImageCacherTests extends AndroidTestCase {
 					return null;
 				}
 
-				delayedLoop.flagSuccess();
 				return Bitmap.createBitmap(100, 100, Config.RGB_565);
 			}
 		});
 
-		ImageResponse imageResponse = mImageCacher.getBitmap(new ImageRequest(TEST_URI, new ScalingInfo()), new ImageCacherListener() {
+		ImageResponse queuedResponse = mImageCacher.getBitmap(new ImageRequest(TEST_URI, new ScalingInfo()), new ImageCacherListener() {
 			@Override
 			public void onImageAvailable(ImageResponse imageResponse) {
-				delayedLoop.flagFailure();
+				mImageResponse = imageResponse;
+				delayedLoop.flagSuccess();
 			}
 
 			@Override
@@ -256,15 +271,52 @@ public class ImageCacherTests extends AndroidTestCase {
 				delayedLoop.flagFailure();
 			}
 		});
+		assertEquals(ImageResponseStatus.REQUEST_QUEUED, queuedResponse.getImageResponseStatus());
 
 		delayedLoop.startLoop();
 		delayedLoop.assertPassed();
 
-		assertNotNull(imageResponse);
-		assertNotNull(imageResponse.getBitmap());
-		assertEquals(100, imageResponse.getBitmap().getWidth());
-		assertEquals(ImageReturnedFrom.MEMORY, imageResponse.getImageReturnedFrom());
-		assertEquals(ImageResponseStatus.SUCCESS, imageResponse.getImageResponseStatus());
+		assertNotNull(mImageResponse);
+		assertNotNull(mImageResponse.getBitmap());
+		assertEquals(100, mImageResponse.getBitmap().getWidth());
+		assertEquals(ImageReturnedFrom.MEMORY, mImageResponse.getImageReturnedFrom());
+		assertEquals(ImageResponseStatus.SUCCESS, mImageResponse.getImageResponseStatus());
+	}
+
+	public void testRequestAdmittedOffUiThread() throws InterruptedException {
+		ThreadChecker.enableUiThreadCheck();
+
+		final DelayedLoop delayedLoop = new DelayedLoop(2000);
+		mImageCacher.stubAsynchOperationsMaps(new AsyncOperationsMaps(mImageCacher) {
+			@Override
+			public void registerListenerForDetailsRequest(ImageRequest imageRequest, ImageCacherListener imageCacherListener) {
+				if (ThreadChecker.isOnUiThread()) {
+					delayedLoop.flagFailure();
+				} else {
+					delayedLoop.flagSuccess();
+				}
+			}
+		});
+
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				mImageCacher.getBitmap(new ImageRequest(TEST_URI, new ScalingInfo()), new ImageCacherListener() {
+					@Override
+					public void onImageAvailable(ImageResponse imageResponse) {
+					}
+
+					@Override
+					public void onFailure(String message) {
+					}
+				});
+			}
+		});
+		thread.start();
+		thread.join();
+
+		delayedLoop.startLoop();
+		delayedLoop.assertPassed();
 	}
 
 	public void testPrecacheImageToDisk() {
@@ -284,7 +336,7 @@ public class ImageCacherTests extends AndroidTestCase {
 
 		mImageCacher.stubNetwork(new NetworkInterfaceStub() {
 			@Override
-			public void downloadImageToDisk(String url) {
+			public void downloadImageToDisk(String url, RequestType requestType) {
 				mCallComplete = true;
 			}
 		});
@@ -304,4 +356,62 @@ public class ImageCacherTests extends AndroidTestCase {
 		delayedLoop.assertPassed();
 		assertTrue(mCallComplete);
 	}
+
+	public void testGetBitmapsStartsDownloadsTogether() {
+		final DelayedLoop delayedLoop = new DelayedLoop(2000);
+
+		mImageCacher.stubAsynchOperationsMaps(new AsyncOperationsMaps(mImageCacher));
+		mImageCacher.stubNetwork(new NetworkInterfaceStub() {
+			@Override
+			public void downloadImageToDisk(String url, RequestType requestType) {
+				delayedLoop.flagFailure();
+			}
+
+			@Override
+			public void bump(String url, RequestType requestType) {
+				delayedLoop.flagFailure();
+			}
+
+			@Override
+			public void downloadImagesToDisk(Map<String, RequestType> requestTypesByUrl) {
+				Map<String, RequestType> expectedRequestTypes = new HashMap<String, RequestType>();
+				expectedRequestTypes.put("http://a.jpg", RequestType.FULL_REQUEST);
+				expectedRequestTypes.put("http://b.jpg", RequestType.FULL_REQUEST);
+				if (requestTypesByUrl.equals(expectedRequestTypes)) {
+					delayedLoop.flagSuccess();
+				} else {
+					delayedLoop.flagFailure();
+				}
+			}
+		});
+
+		List<ImageRequest> imageRequests = new ArrayList<ImageRequest>();
+		List<ImageCacherListener> imageCacherListeners = new ArrayList<ImageCacherListener>();
+		// Duplicates of a url are downloaded once, for the most important of their request types.
+		List<String> uris = Arrays.asList("http://a.jpg", "http://b.jpg", "http://a.jpg", "http://b.jpg");
+		List<RequestType> requestTypes = Arrays.asList(RequestType.CACHE_TO_DISK, RequestType.FULL_REQUEST, RequestType.FULL_REQUEST, RequestType.CACHE_TO_DISK_AND_MEMORY);
+		for (int i = 0; i < uris.size(); i++) {
+			ImageRequest imageRequest = new ImageRequest(uris.get(i), new ScalingInfo());
+			imageRequest.setRequestType(requestTypes.get(i));
+			imageRequests.add(imageRequest);
+			imageCacherListeners.add(new ImageCacherListener() {
+				@Override
+				public void onImageAvailable(ImageResponse imageResponse) {
+				}
+
+				@Override
+				public void onFailure(String message) {
+				}
+			});
+		}
+
+		List<ImageResponse> imageResponses = mImageCacher.getBitmaps(imageRequests, imageCacherListeners);
+		assertEquals(4, imageResponses.size());
+		for (ImageResponse imageResponse : imageResponses) {
+			assertEquals(ImageResponseStatus.REQUEST_QUEUED, imageResponse.getImageResponseStatus());
+		}
+
+		delayedLoop.startLoop();
+		delayedLoop.assertPassed();
+	}
 }
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2013 Xtreme Labs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xtremelabs.imageutils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.BitmapDrawable;
+import android.test.ActivityInstrumentationTestCase2;
+import android.util.Log;
+
+import com.xtremelabs.imageutils.ImageFileDecoder.DecodeInput;
+import com.xtremelabs.imageutils.test.R;
+import com.xtremelabs.testactivity.MainActivity;
+
+public class ImageFileDecoderTests extends ActivityInstrumentationTestCase2<MainActivity> {
+	private static final String TAG = "ImageFileDecoderTests";
+	private static final String IMAGE_FILE_NAME = "decoder_test_image.jpg";
+	private static final int BENCHMARK_ITERATIONS = 20;
+
+	private File mImageFile;
+
+	public ImageFileDecoderTests() {
+		super(MainActivity.class);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		mImageFile = new File(getActivity().getCacheDir(), IMAGE_FILE_NAME);
+		FileOutputStream fileOutputStream = new FileOutputStream(mImageFile);
+		Bitmap bitmap = ((BitmapDrawable) getActivity().getResources().getDrawable(R.drawable.cute_kitten)).getBitmap();
+		bitmap.compress(Bitmap.CompressFormat.JPEG, 100, fileOutputStream);
+		fileOutputStream.close();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mImageFile.delete();
+
+		super.tearDown();
+	}
+
+	public void testDecodeInputSelection() {
+		assertEquals(DecodeInput.READ_BUFFER, ImageFileDecoder.chooseDecodeInput(1024));
+		assertEquals(DecodeInput.READ_BUFFER, ImageFileDecoder.chooseDecodeInput(ImageFileDecoder.MAXIMUM_READ_BUFFER_FILE_SIZE));
+		assertEquals(DecodeInput.MAPPED_BUFFER, ImageFileDecoder.chooseDecodeInput(ImageFileDecoder.MAXIMUM_READ_BUFFER_FILE_SIZE + 1));
+		assertEquals(DecodeInput.MAPPED_BUFFER, ImageFileDecoder.chooseDecodeInput(ImageFileDecoder.MAXIMUM_MAPPED_FILE_SIZE));
+		assertEquals(DecodeInput.FILE_DESCRIPTOR, ImageFileDecoder.chooseDecodeInput(ImageFileDecoder.MAXIMUM_MAPPED_FILE_SIZE + 1));
+	}
+
+	public void testByteBufferInputStream() throws IOException {
+		ByteBufferInputStream inputStream = new ByteBufferInputStream(ByteBuffer.wrap(new byte[] { 1, 2, 3, (byte) 0xFF }));
+		assertEquals(4, inputStream.available());
+		assertEquals(1, inputStream.read());
+
+		inputStream.mark(0);
+		byte[] buffer = new byte[10];
+		assertEquals(3, inputStream.read(buffer, 0, buffer.length));
+		assertEquals(255, buffer[2] & 0xFF);
+		assertEquals(-1, inputStream.read());
+		assertEquals(-1, inputStream.read(buffer, 0, buffer.length));
+
+		inputStream.reset();
+		assertEquals(1, inputStream.skip(1));
+		assertEquals(3, inputStream.read());
+	}
+
+	public void testAllDecodeInputsProduceTheSameImage() throws FileNotFoundException {
+		Bitmap expected = BitmapFactory.decodeFile(mImageFile.getAbsolutePath());
+		for (DecodeInput decodeInput : DecodeInput.values()) {
+			Bitmap bitmap = ImageFileDecoder.decode(mImageFile, new BitmapFactory.Options(), decodeInput);
+			assertNotNull(bitmap);
+			assertEquals(expected.getWidth(), bitmap.getWidth());
+			assertEquals(expected.getHeight(), bitmap.getHeight());
+		}
+	}
+
+	/**
+	 * Compares each decode input against the unbuffered FileInputStream that the disk cache used to decode from. Results are written to logcat.
+	 */
+	public void testDecodeThroughputBenchmark() throws IOException {
+		long legacyTime = System.nanoTime();
+		for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+			FileInputStream fileInputStream = new FileInputStream(mImageFile);
+			assertNotNull(BitmapFactory.decodeStream(fileInputStream, null, new BitmapFactory.Options()));
+			fileInputStream.close();
+		}
+		legacyTime = System.nanoTime() - legacyTime;
+		logThroughput("Unbuffered stream", legacyTime);
+
+		for (DecodeInput decodeInput : DecodeInput.values()) {
+			long time = System.nanoTime();
+			for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+				assertNotNull(ImageFileDecoder.decode(mImageFile, new BitmapFactory.Options(), decodeInput));
+			}
+			time = System.nanoTime() - time;
+			logThroughput(decodeInput.name(), time);
+		}
+	}
+
+	private void logThroughput(String name, long timeInNanos) {
+		double seconds = timeInNanos / 1000000000.0;
+		double megabytesPerSecond = mImageFile.length() * BENCHMARK_ITERATIONS / (1024.0 * 1024.0) / seconds;
+		Log.i(TAG, name + ": " + (timeInNanos / BENCHMARK_ITERATIONS / 1000) + "us per decode, " + String.format("%.2f", megabytesPerSecond) + "MB/s");
+	}
+}
@@ -1,211 +1,286 @@
-// TODO These tests need to be repaired for the new separate disk/memory calls.
-
-///*
-// * Copyright 2013 Xtreme Labs
-// * 
-// * Licensed under the Apache License, Version 2.0 (the "License");
-// * you may not use this file except in compliance with the License.
-// * You may obtain a copy of the License at
-// * 
-// *     http://www.apache.org/licenses/LICENSE-2.0
-// *     
-// * Unless required by applicable law or agreed to in writing, software
-// * distributed under the License is distributed on an "AS IS" BASIS,
-// * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
-// * See the License for the specific language governing permissions and
-// * limitations under the License.
-// */
-//
-//package com.xtremelabs.imageutils;
-//
-//import java.util.ArrayList;
-//import java.util.List;
-//
-//import android.test.ActivityInstrumentationTestCase2;
-//
-//import com.xtremelabs.imageutils.ImagePrecacheAssistant.PrecacheInformationProvider;
-//import com.xtremelabs.imageutils.ImagePrecacheAssistant.PrecacheRequest;
-//import com.xtremelabs.testactivity.MainActivity;
-//
-//public class ImagePrecacheAssistantTests extends ActivityInstrumentationTestCase2<MainActivity> {
-//	private ImagePrecacheAssistant mAssistant;
-//	private ImageLoader mImageLoader;
-//	private int mCount;
-//	private final List<PrecacheRequest> mList = new ArrayList<ImagePrecacheAssistant.PrecacheRequest>();
-//
-//	private final List<String> mDiskPrecacheRequests = new ArrayList<String>();
-//	private final List<String> mMemoryPrecacheRequests = new ArrayList<String>();
-//	private final List<Integer> mPositionsRequested = new ArrayList<Integer>();
-//
-//	public ImagePrecacheAssistantTests() {
-//		super(MainActivity.class);
-//	}
-//
-//	@Override
-//	protected void setUp() throws Exception {
-//		super.setUp();
-//
-//		ThreadChecker.disableUiThreadCheck();
-//
-//		mImageLoader = new ImageLoader(getActivity()) {
-//			@Override
-//			public void precacheImageToDisk(String uri) {
-//				mDiskPrecacheRequests.add(uri);
-//			}
-//
-//			@Override
-//			public void precacheImageToDiskAndMemory(String uri, Dimensions bounds, Options options) {
-//				mMemoryPrecacheRequests.add(uri);
-//			}
-//		};
-//
-//		mAssistant = new ImagePrecacheAssistant(mImageLoader, new PrecacheInformationProvider() {
-//			@Override
-//			public List<PrecacheRequest> onRowPrecacheRequestsRequired(int position) {
-//				mPositionsRequested.add(position);
-//				return mList;
-//			}
-//
-//			@Override
-//			public int getCount() {
-//				return mCount;
-//			}
-//
-//			@Override
-//			public List<String> onRowPrecacheRequestsForDiskCacheRequired(int position) {
-//				// TODO Auto-generated method stub
-//				return null;
-//			}
-//
-//			@Override
-//			public List<PrecacheRequest> onRowPrecacheRequestsForMemoryCacheRequired(int position) {
-//				// TODO Auto-generated method stub
-//				return null;
-//			}
-//		});
-//
-//		clearLists();
-//	}
-//
-//	public void testListWithOneElement() {
-//		mCount = 1;
-//		mAssistant.onPositionVisited(0);
-//		assertEquals(0, mDiskPrecacheRequests.size());
-//		assertEquals(0, mMemoryPrecacheRequests.size());
-//	}
-//
-//	public void testListWithTwoElements() {
-//		mCount = 2;
-//		mList.add(new PrecacheRequest("1", new Dimensions(null, null)));
-//		mAssistant.onPositionVisited(0);
-//		assertEquals(1, mMemoryPrecacheRequests.size());
-//		assertEquals(0, mDiskPrecacheRequests.size());
-//		assertEquals("1", mMemoryPrecacheRequests.get(0));
-//		assertEquals(1, (int) mPositionsRequested.get(0));
-//
-//		clearLists();
-//
-//		mList.add(new PrecacheRequest("1", new Dimensions(null, null)));
-//
-//		mAssistant.onPositionVisited(1);
-//		assertEquals(0, mDiskPrecacheRequests.size());
-//		assertEquals(0, mMemoryPrecacheRequests.size());
-//
-//		mAssistant.onPositionVisited(0);
-//		assertEquals(0, mDiskPrecacheRequests.size());
-//		assertEquals(0, mMemoryPrecacheRequests.size());
-//	}
-//
-//	public void testDiskPrecache() {
-//		mAssistant.setMemCacheRange(0);
-//		mAssistant.setDiskCacheRange(1);
-//
-//		mCount = 2;
-//		mList.add(new PrecacheRequest("1", new Dimensions(null, null)));
-//		mAssistant.onPositionVisited(0);
-//		assertEquals(0, mMemoryPrecacheRequests.size());
-//		assertEquals(1, mDiskPrecacheRequests.size());
-//		assertEquals("1", mDiskPrecacheRequests.get(0));
-//		assertEquals(1, (int) mPositionsRequested.get(0));
-//	}
-//
-//	public void testMemoryAndDiskPrecache() {
-//		mAssistant.setMemCacheRange(1);
-//		mAssistant.setDiskCacheRange(1);
-//
-//		mCount = 3;
-//		mList.add(new PrecacheRequest("1", new Dimensions(null, null)));
-//		mAssistant.onPositionVisited(0);
-//		assertEquals(1, mMemoryPrecacheRequests.size());
-//		assertEquals(1, mDiskPrecacheRequests.size());
-//		assertEquals(2, (int) mPositionsRequested.get(0));
-//		assertEquals(1, (int) mPositionsRequested.get(1));
-//	}
-//
-//	public void testDirectionSwap() {
-//		mAssistant.setMemCacheRange(2);
-//		mAssistant.setDiskCacheRange(2);
-//
-//		mCount = 12;
-//
-//		mList.add(new PrecacheRequest("1", new Dimensions(null, null)));
-//		mAssistant.onPositionVisited(3);
-//		assertEquals(2, mMemoryPrecacheRequests.size());
-//		assertEquals(2, mDiskPrecacheRequests.size());
-//		List<Integer> expectedValues = new ArrayList<Integer>();
-//		expectedValues.add(6);
-//		expectedValues.add(7);
-//		expectedValues.add(4);
-//		expectedValues.add(5);
-//		assertEquals(expectedValues, mPositionsRequested);
-//
-//		clearLists();
-//
-//		mList.add(new PrecacheRequest("1", new Dimensions(null, null)));
-//		mAssistant.onPositionVisited(2);
-//		assertEquals(1, mMemoryPrecacheRequests.size());
-//		assertEquals(0, mDiskPrecacheRequests.size());
-//		assertEquals(0, (int) mPositionsRequested.get(0));
-//	}
-//
-//	public void testPositionsRequested() {
-//		mAssistant.setMemCacheRange(1);
-//		mAssistant.setDiskCacheRange(1);
-//
-//		mCount = 3;
-//		mList.add(new PrecacheRequest("1", new Dimensions(null, null)));
-//		mAssistant.onPositionVisited(0);
-//		assertEquals(1, mMemoryPrecacheRequests.size());
-//		assertEquals(1, mDiskPrecacheRequests.size());
-//
-//		assertEquals(2, (int) mPositionsRequested.get(0));
-//		assertEquals(1, (int) mPositionsRequested.get(1));
-//	}
-//
-//	public void testForNoExcessiveCalls() {
-//		mAssistant.setMemCacheRange(2);
-//		mAssistant.setDiskCacheRange(2);
-//
-//		mCount = 10;
-//		mList.add(new PrecacheRequest("1", new Dimensions(null, null)));
-//		mAssistant.onPositionVisited(0);
-//		assertEquals(2, mMemoryPrecacheRequests.size());
-//		assertEquals(2, mDiskPrecacheRequests.size());
-//
-//		clearLists();
-//
-//		mList.add(new PrecacheRequest("1", new Dimensions(null, null)));
-//		mAssistant.onPositionVisited(1);
-//		assertEquals(1, mMemoryPrecacheRequests.size());
-//		assertEquals(1, mDiskPrecacheRequests.size());
-//		assertEquals(5, (int) mPositionsRequested.get(0));
-//		assertEquals(3, (int) mPositionsRequested.get(1));
-//	}
-//
-//	private void clearLists() {
-//		mDiskPrecacheRequests.clear();
-//		mMemoryPrecacheRequests.clear();
-//		mList.clear();
-//		mPositionsRequested.clear();
-//	}
-// }
+/*
+ * Copyright 2013 Xtreme Labs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xtremelabs.imageutils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import android.test.ActivityInstrumentationTestCase2;
+
+import com.xtremelabs.imageutils.AbstractImageLoader.Options;
+import com.xtremelabs.imageutils.ImagePrecacheAssistant.GridPrecacheInformationProvider;
+import com.xtremelabs.imageutils.ImagePrecacheAssistant.PrecacheInformationProvider;
+import com.xtremelabs.imageutils.ImagePrecacheAssistant.PrecacheRequest;
+import com.xtremelabs.imageutils.ImagePrecacheAssistant.PrecacheRequest.UnitType;
+import com.xtremelabs.testactivity.MainActivity;
+
+public class ImagePrecacheAssistantTests extends ActivityInstrumentationTestCase2<MainActivity> {
+	private ImageLoader mImageLoader;
+	private ImagePrecacheAssistant mAssistant;
+	private int mCount;
+
+	private final List<String> mMemoryUrisRequested = new ArrayList<String>();
+	private final List<String> mDiskUrisRequested = new ArrayList<String>();
+	private final List<ImageManagerListener> mMemoryListeners = new ArrayList<ImageManagerListener>();
+	private final List<ImageManagerListener> mWithdrawnListeners = new ArrayList<ImageManagerListener>();
+
+	public ImagePrecacheAssistantTests() {
+		super(MainActivity.class);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		ThreadChecker.disableUiThreadCheck();
+
+		mImageLoader = new ImageLoader(getActivity()) {
+			@Override
+			void precacheImageToDisk(String uri, ImageManagerListener imageManagerListener) {
+				mDiskUrisRequested.add(uri);
+			}
+
+			@Override
+			void precacheImageToDiskAndMemory(String uri, Dimensions bounds, Options options, ImageManagerListener imageManagerListener) {
+				mMemoryUrisRequested.add(uri);
+				mMemoryListeners.add(imageManagerListener);
+			}
+
+			@Override
+			void withdrawPrecacheRequest(ImageManagerListener imageManagerListener) {
+				mWithdrawnListeners.add(imageManagerListener);
+			}
+		};
+
+		mAssistant = new ImagePrecacheAssistant(mImageLoader, new PositionUriProvider(""));
+	}
+
+	public void testMemoryAndDiskPrecache() {
+		mAssistant.setMemCacheRange(1);
+		mAssistant.setDiskCacheRange(1);
+
+		mCount = 3;
+		mAssistant.onPositionVisited(0, 0);
+		assertEquals("[1]", mMemoryUrisRequested.toString());
+		assertEquals("[2]", mDiskUrisRequested.toString());
+	}
+
+	public void testPositionsAreNotRequestedTwice() {
+		mAssistant.setMemCacheRange(2);
+		mAssistant.setDiskCacheRange(2);
+
+		mCount = 10;
+		mAssistant.onPositionVisited(0, 0);
+		mAssistant.onPositionVisited(1, 1000);
+		assertEquals("[1, 2, 3]", mMemoryUrisRequested.toString());
+		assertEquals("[3, 4, 5]", mDiskUrisRequested.toString());
+	}
+
+	public void testRangesGrowWithVelocity() {
+		mAssistant.setMemCacheRange(1);
+		mAssistant.setDiskCacheRange(1);
+
+		mCount = 100;
+		for (int position = 0; position < 10; position++) {
+			mAssistant.onPositionVisited(position, position * 1000);
+		}
+		assertTrue(mMemoryUrisRequested.contains("10"));
+		assertFalse(mMemoryUrisRequested.contains("11"));
+		assertTrue(mDiskUrisRequested.contains("11"));
+		assertFalse(mDiskUrisRequested.contains("12"));
+
+		for (int position = 10; position < 20; position++) {
+			mAssistant.onPositionVisited(position, 20000 + position * 20);
+		}
+		assertTrue(mMemoryUrisRequested.contains("22"));
+		assertFalse(mMemoryUrisRequested.contains("23"));
+		assertTrue(mDiskUrisRequested.contains("25"));
+		assertFalse(mDiskUrisRequested.contains("26"));
+	}
+
+	public void testRequestsOutsideRangesAreWithdrawn() {
+		mAssistant.setMemCacheRange(2);
+		mAssistant.setDiskCacheRange(2);
+
+		mCount = 10;
+		mAssistant.onPositionVisited(0, 0);
+		mAssistant.onPositionVisited(1, 1000);
+		assertEquals(1, mWithdrawnListeners.size());
+		assertSame(mMemoryListeners.get(0), mWithdrawnListeners.get(0));
+	}
+
+	public void testDirectionSwapWithdrawsRequestsAhead() {
+		mAssistant.setMemCacheRange(2);
+		mAssistant.setDiskCacheRange(2);
+
+		mCount = 20;
+		mAssistant.onPositionVisited(10, 0);
+		assertEquals("[11, 12]", mMemoryUrisRequested.toString());
+		assertEquals("[13, 14]", mDiskUrisRequested.toString());
+
+		mAssistant.onPositionVisited(9, 1000);
+		assertEquals(4, mWithdrawnListeners.size());
+		assertEquals("[11, 12, 8, 7]", mMemoryUrisRequested.toString());
+		assertEquals("[13, 14, 6, 5]", mDiskUrisRequested.toString());
+	}
+
+	public void testByteBudgetLimitsRequestsInFlight() {
+		mAssistant.setMemCacheRange(3);
+		mAssistant.setDiskCacheRange(0);
+		mAssistant.setPrecacheByteBudget(1);
+
+		mCount = 10;
+		mAssistant.onPositionVisited(0, 0);
+		assertEquals("[1]", mMemoryUrisRequested.toString());
+
+		mMemoryListeners.get(0).onImageReceived(null);
+		assertEquals("[1, 2]", mMemoryUrisRequested.toString());
+
+		mMemoryListeners.get(1).onLoadImageFailed("Forced failure");
+		assertEquals("[1, 2, 3]", mMemoryUrisRequested.toString());
+		assertTrue(mWithdrawnListeners.isEmpty());
+	}
+
+	public void testGridRangesAreCountedInRows() {
+		ImagePrecacheAssistant assistant = new ImagePrecacheAssistant(mImageLoader, new AlternatingGridProvider(10));
+		assistant.setMemCacheRange(1);
+		assistant.setDiskCacheRange(1);
+
+		assistant.onPositionVisited(13, 0);
+		assistant.onPositionVisited(14, 0);
+		assertEquals("[15, 16, 17]", mMemoryUrisRequested.toString());
+		assertEquals("[18, 19]", mDiskUrisRequested.toString());
+
+		assistant.onPositionVisited(10, 1000);
+		assistant.onPositionVisited(11, 1000);
+		assistant.onPositionVisited(12, 1000);
+		assertEquals("[15, 16, 17, 9, 8]", mMemoryUrisRequested.toString());
+		assertEquals("[18, 19, 7, 6, 5]", mDiskUrisRequested.toString());
+		assertEquals(5, mWithdrawnListeners.size());
+	}
+
+	public void testSharedUrisAreRequestedOnce() {
+		ImagePrecacheAssistant assistant = new ImagePrecacheAssistant(mImageLoader, new PrecacheInformationProvider() {
+			@Override
+			public int getCount() {
+				return 10;
+			}
+
+			@Override
+			public List<String> onRowPrecacheRequestsForDiskCacheRequired(int position) {
+				return Collections.singletonList("shared");
+			}
+
+			@Override
+			public List<PrecacheRequest> onRowPrecacheRequestsForMemoryCacheRequired(int position) {
+				return Collections.singletonList(generatePrecacheRequest("shared"));
+			}
+		});
+		assistant.setMemCacheRange(3);
+		assistant.setDiskCacheRange(3);
+
+		assistant.onPositionVisited(0, 0);
+		assistant.onPositionVisited(1, 1000);
+		assertEquals("[shared]", mMemoryUrisRequested.toString());
+		assertTrue(mDiskUrisRequested.isEmpty());
+		assertTrue(mWithdrawnListeners.isEmpty());
+
+		assistant.withdrawAll();
+		assertEquals(1, mWithdrawnListeners.size());
+	}
+
+	public void testCarouselsShareBudgetAndRequests() {
+		mAssistant.setMemCacheRange(1);
+		mAssistant.setDiskCacheRange(0);
+		mAssistant.setPrecacheByteBudget(1);
+		ImagePrecacheAssistant carouselAssistant = mAssistant.createCarouselAssistant(new PositionUriProvider("carousel "));
+		carouselAssistant.setMemCacheRange(1);
+		carouselAssistant.setDiskCacheRange(0);
+
+		mCount = 10;
+		mAssistant.onPositionVisited(0, 0);
+		carouselAssistant.onPositionVisited(0, 0);
+		assertEquals("[1]", mMemoryUrisRequested.toString());
+
+		mMemoryListeners.get(0).onImageReceived(null);
+		assertEquals("[1, carousel 1]", mMemoryUrisRequested.toString());
+
+		carouselAssistant.withdrawAll();
+		assertEquals(1, mWithdrawnListeners.size());
+		assertSame(mMemoryListeners.get(1), mWithdrawnListeners.get(0));
+	}
+
+	private PrecacheRequest generatePrecacheRequest(String uri) {
+		return PrecacheRequest.generatePrecacheRequest(getActivity(), uri, new Dimensions(10, 10), UnitType.PIXELS);
+	}
+
+	private class PositionUriProvider implements PrecacheInformationProvider {
+		private final String mPrefix;
+
+		PositionUriProvider(String prefix) {
+			mPrefix = prefix;
+		}
+
+		@Override
+		public int getCount() {
+			return mCount;
+		}
+
+		@Override
+		public List<String> onRowPrecacheRequestsForDiskCacheRequired(int position) {
+			return Collections.singletonList(mPrefix + position);
+		}
+
+		@Override
+		public List<PrecacheRequest> onRowPrecacheRequestsForMemoryCacheRequired(int position) {
+			return Collections.singletonList(generatePrecacheRequest(mPrefix + position));
+		}
+	}
+
+	/**
+	 * Even rows have three columns, and odd rows have two.
+	 */
+	private class AlternatingGridProvider extends PositionUriProvider implements GridPrecacheInformationProvider {
+		private final int mRowCount;
+
+		AlternatingGridProvider(int rowCount) {
+			super("");
+			mRowCount = rowCount;
+		}
+
+		@Override
+		public int getCount() {
+			return getFirstPositionInRow(mRowCount);
+		}
+
+		@Override
+		public int getRowCount() {
+			return mRowCount;
+		}
+
+		@Override
+		public int getRowForPosition(int position) {
+			return position / 5 * 2 + (position % 5 < 3 ? 0 : 1);
+		}
+
+		@Override
+		public int getFirstPositionInRow(int row) {
+			return row / 2 * 5 + row % 2 * 3;
+		}
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2013 Xtreme Labs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xtremelabs.imageutils;
+
+import android.test.AndroidTestCase;
+
+public class IndexedDequeTests extends AndroidTestCase {
+	private IndexedDeque<String, String> mDeque;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		mDeque = new IndexedDeque<String, String>();
+	}
+
+	public void testPushAndPoll() {
+		assertTrue(mDeque.pushFront("1", "one"));
+		assertTrue(mDeque.pushFront("2", "two"));
+		assertTrue(mDeque.pushFront("3", "three"));
+		assertEquals(3, mDeque.size());
+
+		assertEquals("one", mDeque.peekLast());
+		assertEquals("three", mDeque.pollFirst());
+		assertEquals("one", mDeque.pollLast());
+		assertEquals("two", mDeque.pollFirst());
+		assertNull(mDeque.pollFirst());
+		assertTrue(mDeque.isEmpty());
+	}
+
+	public void testPushExistingKeyReplacesAndBumps() {
+		mDeque.pushFront("1", "one");
+		mDeque.pushFront("2", "two");
+
+		assertFalse(mDeque.pushFront("1", "uno"));
+		assertEquals(2, mDeque.size());
+		assertEquals("uno", mDeque.pollFirst());
+		assertEquals("two", mDeque.pollFirst());
+	}
+
+	public void testBump() {
+		mDeque.pushFront("1", "one");
+		mDeque.pushFront("2", "two");
+		mDeque.pushFront("3", "three");
+
+		assertTrue(mDeque.bump("1"));
+		assertFalse(mDeque.bump("4"));
+		assertEquals("one", mDeque.pollFirst());
+		assertEquals("three", mDeque.pollFirst());
+		assertEquals("two", mDeque.pollFirst());
+	}
+
+	public void testRemove() {
+		mDeque.pushFront("1", "one");
+		mDeque.pushFront("2", "two");
+		mDeque.pushFront("3", "three");
+
+		assertEquals("two", mDeque.remove("2"));
+		assertNull(mDeque.remove("2"));
+		assertFalse(mDeque.contains("2"));
+		assertEquals("three", mDeque.pollFirst());
+		assertEquals("one", mDeque.pollFirst());
+		assertTrue(mDeque.isEmpty());
+	}
+
+	public void testClear() {
+		mDeque.pushFront("1", "one");
+		mDeque.pushFront("2", "two");
+		mDeque.clear();
+
+		assertTrue(mDeque.isEmpty());
+		assertEquals(0, mDeque.size());
+		assertNull(mDeque.pollLast());
+		assertTrue(mDeque.pushFront("1", "one"));
+	}
+}
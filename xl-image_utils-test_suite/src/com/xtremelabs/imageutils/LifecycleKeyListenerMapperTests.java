@@ -0,0 +1,108 @@
+/*
+ * Copyright 2013 Xtreme Labs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xtremelabs.imageutils;
+
+import java.lang.ref.WeakReference;
+import java.util.List;
+
+import android.test.AndroidTestCase;
+
+import com.xtremelabs.imageutils.LifecycleReferenceManager.ImageManagerCacheListener;
+
+public class LifecycleKeyListenerMapperTests extends AndroidTestCase {
+	private static final long GARBAGE_COLLECTION_TIMEOUT_MILLIS = 5000;
+
+	private LifecycleReferenceManager mReferenceManager;
+	private LifecycleKeyListenerMapper mMapper;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		mReferenceManager = LifecycleReferenceManager.getInstance(getContext().getApplicationContext());
+		mMapper = new LifecycleKeyListenerMapper();
+	}
+
+	public void testRemoveAllEntriesForKey() {
+		Object key = new Object();
+		ImageManagerListener listener1 = new BlankListener();
+		ImageManagerListener listener2 = new BlankListener();
+		ImageManagerListener otherListener = new BlankListener();
+		mMapper.registerNewListener(listener1, key, mReferenceManager.new ImageManagerCacheListener());
+		mMapper.registerNewListener(listener2, key, mReferenceManager.new ImageManagerCacheListener());
+		mMapper.registerNewListener(otherListener, new String("other key"), mReferenceManager.new ImageManagerCacheListener());
+
+		List<ImageManagerListener> listeners = mMapper.removeAllEntriesForKey(key);
+		assertEquals(2, listeners.size());
+		assertTrue(listeners.contains(listener1) && listeners.contains(listener2));
+		assertFalse(mMapper.isListenerRegistered(listener1));
+		assertTrue(mMapper.isListenerRegistered(otherListener));
+		assertNull(mMapper.removeAllEntriesForKey(key));
+	}
+
+	public void testListenersOfUnreachableKeyAreUnregistered() throws InterruptedException {
+		ImageManagerListener listener = new BlankListener();
+		ImageManagerCacheListener cacheListener = mReferenceManager.new ImageManagerCacheListener();
+		mMapper.registerNewListener(listener, new Object(), cacheListener);
+
+		long deadline = System.currentTimeMillis() + GARBAGE_COLLECTION_TIMEOUT_MILLIS;
+		while (mMapper.isListenerRegistered(listener) && System.currentTimeMillis() < deadline) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertFalse(mMapper.isListenerRegistered(listener));
+		assertNull(mMapper.getAndRemoveListener(cacheListener));
+	}
+
+	/*
+	 * Listeners usually belong to an ImageLoader, which references its key.
+	 */
+	public void testListenersDoNotKeepTheirKeyReachable() throws InterruptedException {
+		Object key = new Object();
+		WeakReference<Object> keyReference = new WeakReference<Object>(key);
+		ImageManagerCacheListener cacheListener = mReferenceManager.new ImageManagerCacheListener();
+		mMapper.registerNewListener(new KeyHoldingListener(key), key, cacheListener);
+		key = null;
+
+		long deadline = System.currentTimeMillis() + GARBAGE_COLLECTION_TIMEOUT_MILLIS;
+		while (keyReference.get() != null && System.currentTimeMillis() < deadline) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertNull(keyReference.get());
+		assertNull(mMapper.getAndRemoveListener(cacheListener));
+	}
+
+	private static class BlankListener implements ImageManagerListener {
+		@Override
+		public void onImageReceived(ImageResponse imageResponse) {
+		}
+
+		@Override
+		public void onLoadImageFailed(String error) {
+		}
+	}
+
+	private static class KeyHoldingListener extends BlankListener {
+		@SuppressWarnings("unused")
+		private final Object mKey;
+
+		KeyHoldingListener(Object key) {
+			mKey = key;
+		}
+	}
+}
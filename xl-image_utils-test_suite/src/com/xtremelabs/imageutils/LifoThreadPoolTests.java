@@ -0,0 +1,295 @@
+/*
+ * Copyright 2013 Xtreme Labs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xtremelabs.imageutils;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.test.ActivityInstrumentationTestCase2;
+import android.util.Log;
+
+import com.xtremelabs.imageutils.ImageRequest.RequestType;
+import com.xtremelabs.testactivity.MainActivity;
+
+public class LifoThreadPoolTests extends ActivityInstrumentationTestCase2<MainActivity> {
+	private static final String TAG = "LifoThreadPoolTests";
+	private static final int BENCHMARK_ITERATIONS = 10000;
+
+	private final List<Integer> mExecutionOrder = new ArrayList<Integer>();
+
+	public LifoThreadPoolTests() {
+		super(MainActivity.class);
+	}
+
+	public void testLifoOrder() throws InterruptedException {
+		LifoThreadPool threadPool = new LifoThreadPool(1);
+		CountDownLatch blockingLatch = blockPool(threadPool);
+
+		CountDownLatch completionLatch = new CountDownLatch(5);
+		for (int i = 0; i < 5; i++) {
+			threadPool.execute(i, new OrderRecordingRunnable(i, completionLatch));
+		}
+		blockingLatch.countDown();
+
+		assertTrue(completionLatch.await(2, TimeUnit.SECONDS));
+		assertEquals("[4, 3, 2, 1, 0]", mExecutionOrder.toString());
+	}
+
+	public void testBump() throws InterruptedException {
+		LifoThreadPool threadPool = new LifoThreadPool(1);
+		CountDownLatch blockingLatch = blockPool(threadPool);
+
+		CountDownLatch completionLatch = new CountDownLatch(3);
+		threadPool.execute(0, new OrderRecordingRunnable(0, completionLatch));
+		threadPool.execute(1, new OrderRecordingRunnable(1, completionLatch));
+		threadPool.execute(2, new OrderRecordingRunnable(2, completionLatch));
+		threadPool.bump(0);
+		blockingLatch.countDown();
+
+		assertTrue(completionLatch.await(2, TimeUnit.SECONDS));
+		assertEquals("[0, 2, 1]", mExecutionOrder.toString());
+	}
+
+	public void testRemove() throws InterruptedException {
+		LifoThreadPool threadPool = new LifoThreadPool(1);
+		CountDownLatch blockingLatch = blockPool(threadPool);
+
+		CountDownLatch completionLatch = new CountDownLatch(2);
+		threadPool.execute(0, new OrderRecordingRunnable(0, completionLatch));
+		threadPool.execute(1, new OrderRecordingRunnable(1, completionLatch));
+		threadPool.execute(2, new OrderRecordingRunnable(2, completionLatch));
+		assertTrue(threadPool.remove(1));
+		assertFalse(threadPool.remove(1));
+		blockingLatch.countDown();
+
+		assertTrue(completionLatch.await(2, TimeUnit.SECONDS));
+		Thread.sleep(100);
+		assertEquals("[2, 0]", mExecutionOrder.toString());
+	}
+
+	public void testDuplicateExecuteRunsOnce() throws InterruptedException {
+		LifoThreadPool threadPool = new LifoThreadPool(1);
+		CountDownLatch blockingLatch = blockPool(threadPool);
+
+		CountDownLatch completionLatch = new CountDownLatch(2);
+		threadPool.execute(0, new OrderRecordingRunnable(0, completionLatch));
+		threadPool.execute(1, new OrderRecordingRunnable(1, completionLatch));
+		threadPool.execute(0, new OrderRecordingRunnable(0, completionLatch));
+		blockingLatch.countDown();
+
+		assertTrue(completionLatch.await(2, TimeUnit.SECONDS));
+		Thread.sleep(100);
+		assertEquals("[0, 1]", mExecutionOrder.toString());
+	}
+
+	public void testMoreImportantRequestTypesRunFirst() throws InterruptedException {
+		LifoThreadPool threadPool = new LifoThreadPool(1);
+		CountDownLatch blockingLatch = blockPool(threadPool);
+
+		CountDownLatch completionLatch = new CountDownLatch(3);
+		threadPool.execute(0, new OrderRecordingRunnable(0, completionLatch), RequestType.FULL_REQUEST);
+		threadPool.execute(1, new OrderRecordingRunnable(1, completionLatch), RequestType.CACHE_TO_DISK_AND_MEMORY);
+		threadPool.execute(2, new OrderRecordingRunnable(2, completionLatch), RequestType.CACHE_TO_DISK);
+		blockingLatch.countDown();
+
+		assertTrue(completionLatch.await(2, TimeUnit.SECONDS));
+		assertEquals("[0, 1, 2]", mExecutionOrder.toString());
+	}
+
+	public void testQueuedPrecacheIsPromoted() throws InterruptedException {
+		LifoThreadPool threadPool = new LifoThreadPool(1);
+		CountDownLatch blockingLatch = blockPool(threadPool);
+
+		CountDownLatch completionLatch = new CountDownLatch(3);
+		threadPool.execute(0, new OrderRecordingRunnable(0, completionLatch), RequestType.CACHE_TO_DISK);
+		threadPool.execute(1, new OrderRecordingRunnable(1, completionLatch), RequestType.FULL_REQUEST);
+		threadPool.execute(2, new OrderRecordingRunnable(2, completionLatch), RequestType.CACHE_TO_DISK);
+		threadPool.bump(0, RequestType.FULL_REQUEST);
+		blockingLatch.countDown();
+
+		assertTrue(completionLatch.await(2, TimeUnit.SECONDS));
+		assertEquals("[0, 1, 2]", mExecutionOrder.toString());
+	}
+
+	public void testSetPriorityDemotesQueuedTask() throws InterruptedException {
+		LifoThreadPool threadPool = new LifoThreadPool(1);
+		CountDownLatch blockingLatch = blockPool(threadPool);
+
+		CountDownLatch completionLatch = new CountDownLatch(3);
+		threadPool.execute(0, new OrderRecordingRunnable(0, completionLatch), RequestType.FULL_REQUEST);
+		threadPool.execute(1, new OrderRecordingRunnable(1, completionLatch), RequestType.CACHE_TO_DISK_AND_MEMORY);
+		threadPool.execute(2, new OrderRecordingRunnable(2, completionLatch), RequestType.FULL_REQUEST);
+		threadPool.setPriority(2, RequestType.CACHE_TO_DISK_AND_MEMORY);
+		blockingLatch.countDown();
+
+		assertTrue(completionLatch.await(2, TimeUnit.SECONDS));
+		assertEquals("[0, 2, 1]", mExecutionOrder.toString());
+	}
+
+	public void testWaitingTasksArePromoted() throws InterruptedException {
+		LifoThreadPool threadPool = new LifoThreadPool(1, 100);
+		CountDownLatch blockingLatch = blockPool(threadPool);
+
+		CountDownLatch completionLatch = new CountDownLatch(2);
+		threadPool.execute(0, new OrderRecordingRunnable(0, completionLatch), RequestType.CACHE_TO_DISK_AND_MEMORY);
+		Thread.sleep(200);
+		threadPool.execute(1, new OrderRecordingRunnable(1, completionLatch), RequestType.FULL_REQUEST);
+		blockingLatch.countDown();
+
+		assertTrue(completionLatch.await(2, TimeUnit.SECONDS));
+		assertEquals("[0, 1]", mExecutionOrder.toString());
+	}
+
+	public void testTaskLimiterHoldsTasksBack() throws InterruptedException {
+		final Set<Object> allowedKeys = new HashSet<Object>();
+		allowedKeys.add(1);
+		LifoThreadPool threadPool = new LifoThreadPool(2);
+		threadPool.setTaskLimiter(new LifoThreadPool.TaskLimiter() {
+			@Override
+			public boolean tryStart(Object key) {
+				synchronized (allowedKeys) {
+					return allowedKeys.contains(key);
+				}
+			}
+		});
+
+		CountDownLatch firstLatch = new CountDownLatch(1);
+		CountDownLatch secondLatch = new CountDownLatch(1);
+		threadPool.execute(0, new OrderRecordingRunnable(0, secondLatch));
+		threadPool.execute(1, new OrderRecordingRunnable(1, firstLatch));
+		assertTrue(firstLatch.await(2, TimeUnit.SECONDS));
+		assertFalse(secondLatch.await(100, TimeUnit.MILLISECONDS));
+
+		synchronized (allowedKeys) {
+			allowedKeys.add(0);
+		}
+		threadPool.onCapacityAvailable();
+		assertTrue(secondLatch.await(2, TimeUnit.SECONDS));
+		assertEquals("[1, 0]", mExecutionOrder.toString());
+	}
+
+	/*
+	 * The limiter is called while the pool is locked. A worker that is held back must not make execute wait for that lock.
+	 */
+	public void testExecuteDoesNotWaitForHeldBackWorkers() throws InterruptedException {
+		final CountDownLatch scanningLatch = new CountDownLatch(1);
+		final CountDownLatch releaseLatch = new CountDownLatch(1);
+		LifoThreadPool threadPool = new LifoThreadPool(3);
+		threadPool.setTaskLimiter(new LifoThreadPool.TaskLimiter() {
+			@Override
+			public boolean tryStart(Object key) {
+				if (key instanceof String && ((String) key).startsWith("held")) {
+					return false;
+				} else if ("slow".equals(key) && scanningLatch.getCount() > 0) {
+					scanningLatch.countDown();
+					try {
+						releaseLatch.await(5, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+					}
+					return false;
+				}
+				return true;
+			}
+		});
+
+		threadPool.execute("held_1", new OrderRecordingRunnable(-1, new CountDownLatch(1)));
+		threadPool.execute("held_2", new OrderRecordingRunnable(-1, new CountDownLatch(1)));
+		Thread.sleep(100);
+
+		final LifoThreadPool pool = threadPool;
+		new Thread() {
+			@Override
+			public void run() {
+				pool.execute("slow", new OrderRecordingRunnable(-2, new CountDownLatch(1)));
+			}
+		}.start();
+		assertTrue(scanningLatch.await(2, TimeUnit.SECONDS));
+
+		CountDownLatch taskLatch = new CountDownLatch(1);
+		long time = System.nanoTime();
+		threadPool.execute(1, new OrderRecordingRunnable(1, taskLatch));
+		assertTrue(System.nanoTime() - time < TimeUnit.SECONDS.toNanos(1));
+
+		releaseLatch.countDown();
+		assertTrue(taskLatch.await(2, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * Measures the cost of queuing a task on the calling thread. The result is written to logcat.
+	 */
+	public void testExecuteCostBenchmark() throws InterruptedException {
+		LifoThreadPool threadPool = new LifoThreadPool(3);
+		final CountDownLatch completionLatch = new CountDownLatch(BENCHMARK_ITERATIONS);
+		Runnable[] runnables = new Runnable[BENCHMARK_ITERATIONS];
+		for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+			runnables[i] = new Runnable() {
+				@Override
+				public void run() {
+					completionLatch.countDown();
+				}
+			};
+		}
+
+		long time = System.nanoTime();
+		for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+			threadPool.execute(runnables[i], runnables[i]);
+		}
+		time = System.nanoTime() - time;
+
+		assertTrue(completionLatch.await(10, TimeUnit.SECONDS));
+		Log.i(TAG, "LifoThreadPool.execute: " + (time / BENCHMARK_ITERATIONS) + "ns per call");
+	}
+
+	private CountDownLatch blockPool(LifoThreadPool threadPool) throws InterruptedException {
+		final CountDownLatch startedLatch = new CountDownLatch(1);
+		final CountDownLatch blockingLatch = new CountDownLatch(1);
+		threadPool.execute("block", new Runnable() {
+			@Override
+			public void run() {
+				startedLatch.countDown();
+				try {
+					blockingLatch.await();
+				} catch (InterruptedException e) {
+				}
+			}
+		});
+		assertTrue(startedLatch.await(2, TimeUnit.SECONDS));
+		return blockingLatch;
+	}
+
+	private class OrderRecordingRunnable implements Runnable {
+		private final int mId;
+		private final CountDownLatch mLatch;
+
+		OrderRecordingRunnable(int id, CountDownLatch latch) {
+			mId = id;
+			mLatch = latch;
+		}
+
+		@Override
+		public void run() {
+			synchronized (mExecutionOrder) {
+				mExecutionOrder.add(mId);
+			}
+			mLatch.countDown();
+		}
+	}
+}
@@ -43,6 +43,13 @@ public class LocalImageRequestTests extends ActivityInstrumentationTestCase2<Mai
 				imageManagerListener.onImageReceived(new ImageResponse(null, ImageReturnedFrom.DISK, ImageResponseStatus.SUCCESS));
 			}
 
+			@Override
+			public void getBitmaps(Object key, List<ImageRequest> imageRequests, List<ImageManagerListener> imageManagerListeners) {
+				for (int i = 0; i < imageRequests.size(); i++) {
+					getBitmap(key, imageRequests.get(i), imageManagerListeners.get(i));
+				}
+			}
+
 			@Override
 			public List<ImageManagerListener> removeListenersForKey(Object key) {
 				return null;
@@ -51,6 +58,23 @@ public class LocalImageRequestTests extends ActivityInstrumentationTestCase2<Mai
 			@Override
 			public void cancelRequest(ImageManagerListener imageManagerListener) {
 			}
+
+			@Override
+			public Bitmap getBitmapFromMemory(MemoryLookupKey memoryLookupKey) {
+				return null;
+			}
+
+			@Override
+			public void precacheImageToDisk(Object key, ImageRequest imageRequest, ImageManagerListener imageManagerListener) {
+			}
+
+			@Override
+			public void withdrawPrecacheRequest(ImageManagerListener imageManagerListener) {
+			}
+
+			@Override
+			public void setRequestVisible(ImageManagerListener imageManagerListener, boolean visible) {
+			}
 		});
 	}
 
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2013 Xtreme Labs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xtremelabs.imageutils;
+
+import java.util.List;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Debug;
+import android.test.ActivityInstrumentationTestCase2;
+import android.test.UiThreadTest;
+import android.widget.ImageView;
+
+import com.xtremelabs.imageutils.AbstractImageLoader.Options;
+import com.xtremelabs.testactivity.MainActivity;
+
+public class MemoryHitAllocationTests extends ActivityInstrumentationTestCase2<MainActivity> {
+	private static final String IMAGE_URI = "http://www.example.com/memory_hit_allocation_test.jpg";
+	private static final String OTHER_IMAGE_URI = "http://www.example.com/memory_hit_allocation_test_2.jpg";
+	private static final int ITERATIONS = 100;
+
+	private Bitmap mReceivedBitmap;
+	private ImageReturnedFrom mReturnedFrom;
+	private int mNumImagesReceived;
+	private int mNumRequests;
+	private int mNumCancellations;
+
+	public MemoryHitAllocationTests() {
+		super(MainActivity.class);
+	}
+
+	@UiThreadTest
+	public void testMemoryHitDoesNotAllocate() {
+		Options options = getOptions();
+		Bitmap bitmap = cacheBitmap(IMAGE_URI, options);
+		Bitmap otherBitmap = cacheBitmap(OTHER_IMAGE_URI, options);
+
+		ImageLoader imageLoader = new ImageLoader(getActivity());
+		ImageView imageView = new ImageView(getActivity());
+		ImageLoaderListener listener = getRecordingListener();
+
+		imageLoader.loadImage(imageView, IMAGE_URI, options, listener);
+		imageLoader.loadImage(imageView, OTHER_IMAGE_URI, options, listener);
+
+		// Alternating between the two images means that none of the binds is a repeat of the last one.
+		Debug.resetThreadAllocCount();
+		Debug.startAllocCounting();
+		for (int i = 0; i < ITERATIONS; i++) {
+			imageLoader.loadImage(imageView, i % 2 == 0 ? IMAGE_URI : OTHER_IMAGE_URI, options, listener);
+		}
+		Debug.stopAllocCounting();
+		int allocations = Debug.getThreadAllocCount();
+
+		assertEquals(ITERATIONS + 2, mNumImagesReceived);
+		assertSame(ITERATIONS % 2 == 0 ? otherBitmap : bitmap, mReceivedBitmap);
+		assertEquals(ImageReturnedFrom.MEMORY, mReturnedFrom);
+		assertEquals(0, allocations);
+
+		imageLoader.destroy();
+	}
+
+	@UiThreadTest
+	public void testRepeatBindIsSkipped() {
+		Options options = getOptions();
+		Bitmap bitmap = cacheBitmap(IMAGE_URI, options);
+
+		ImageLoader imageLoader = new ImageLoader(getActivity());
+		ImageView imageView = new ImageView(getActivity());
+
+		imageLoader.loadImage(imageView, IMAGE_URI, options);
+		Drawable drawable = imageView.getDrawable();
+		assertSame(bitmap, ((BitmapDrawable) drawable).getBitmap());
+
+		Debug.resetThreadAllocCount();
+		Debug.startAllocCounting();
+		for (int i = 0; i < ITERATIONS; i++) {
+			imageLoader.loadImage(imageView, IMAGE_URI, options);
+		}
+		Debug.stopAllocCounting();
+		int allocations = Debug.getThreadAllocCount();
+
+		assertSame(drawable, imageView.getDrawable());
+		assertEquals(0, allocations);
+
+		imageView.setImageDrawable(null);
+		imageLoader.loadImage(imageView, IMAGE_URI, options);
+		assertSame(bitmap, ((BitmapDrawable) imageView.getDrawable()).getBitmap());
+
+		imageLoader.destroy();
+	}
+
+	@UiThreadTest
+	public void testRepeatBindOfPendingRequestIsSkipped() {
+		ImageLoader imageLoader = new ImageLoader(getActivity());
+		imageLoader.stubReferenceManager(new ReferenceManager() {
+			@Override
+			public void getBitmap(Object key, ImageRequest imageRequest, ImageManagerListener imageManagerListener) {
+				mNumRequests++;
+			}
+
+			@Override
+			public void getBitmaps(Object key, List<ImageRequest> imageRequests, List<ImageManagerListener> imageManagerListeners) {
+				for (int i = 0; i < imageRequests.size(); i++) {
+					getBitmap(key, imageRequests.get(i), imageManagerListeners.get(i));
+				}
+			}
+
+			@Override
+			public List<ImageManagerListener> removeListenersForKey(Object key) {
+				return null;
+			}
+
+			@Override
+			public void cancelRequest(ImageManagerListener imageManagerListener) {
+				mNumCancellations++;
+			}
+
+			@Override
+			public Bitmap getBitmapFromMemory(MemoryLookupKey memoryLookupKey) {
+				return null;
+			}
+
+			@Override
+			public void precacheImageToDisk(Object key, ImageRequest imageRequest, ImageManagerListener imageManagerListener) {
+			}
+
+			@Override
+			public void withdrawPrecacheRequest(ImageManagerListener imageManagerListener) {
+			}
+
+			@Override
+			public void setRequestVisible(ImageManagerListener imageManagerListener, boolean visible) {
+			}
+		});
+		ImageView imageView = new ImageView(getActivity());
+		Options options = getOptions();
+
+		for (int i = 0; i < ITERATIONS; i++) {
+			imageLoader.loadImage(imageView, IMAGE_URI, options);
+		}
+		assertEquals(1, mNumRequests);
+		assertEquals(0, mNumCancellations);
+
+		imageLoader.loadImage(imageView, OTHER_IMAGE_URI, options);
+		assertEquals(2, mNumRequests);
+		assertEquals(1, mNumCancellations);
+
+		imageLoader.destroy();
+	}
+
+	private Options getOptions() {
+		Options options = new Options();
+		options.overrideSampleSize = 1;
+		return options;
+	}
+
+	private Bitmap cacheBitmap(String uri, Options options) {
+		Bitmap bitmap = Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+		DecodeSignature decodeSignature = new DecodeSignature(uri, 1, options.preferedConfig);
+		ImageCacher imageCacher = ImageCacher.getInstance(getActivity().getApplicationContext());
+		imageCacher.onImageDecoded(decodeSignature, bitmap, ImageReturnedFrom.DISK);
+
+		MemoryLookupKey memoryLookupKey = new MemoryLookupKey();
+		memoryLookupKey.mUri = uri;
+		memoryLookupKey.mSampleSize = 1;
+		memoryLookupKey.mScalingPreference = options.scalingPreference;
+		memoryLookupKey.mBitmapConfig = options.preferedConfig;
+		imageCacher.recordMemoryLookup(memoryLookupKey, decodeSignature);
+		return bitmap;
+	}
+
+	private ImageLoaderListener getRecordingListener() {
+		return new ImageLoaderListener() {
+			@Override
+			public void onImageAvailable(ImageView imageView, Bitmap bitmap, ImageReturnedFrom returnedFrom) {
+				mReceivedBitmap = bitmap;
+				mReturnedFrom = returnedFrom;
+				mNumImagesReceived++;
+			}
+
+			@Override
+			public void onImageLoadError(String error) {
+			}
+		};
+	}
+}
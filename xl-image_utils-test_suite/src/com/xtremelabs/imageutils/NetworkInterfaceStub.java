@@ -16,14 +16,38 @@
 
 package com.xtremelabs.imageutils;
 
+import java.util.Map;
+
+import com.xtremelabs.imageutils.ImageRequest.RequestType;
+
 public class NetworkInterfaceStub implements ImageNetworkInterface {
 
 	@Override
-	public void downloadImageToDisk(String url) {
+	public void downloadImageToDisk(String url, RequestType requestType) {
+	}
+
+	@Override
+	public void downloadImagesToDisk(Map<String, RequestType> requestTypesByUrl) {
+		for (Map.Entry<String, RequestType> download : requestTypesByUrl.entrySet()) {
+			downloadImageToDisk(download.getKey(), download.getValue());
+		}
+	}
+
+	@Override
+	public void bump(String url, RequestType requestType) {
+	}
+
+	@Override
+	public void setPriority(String url, RequestType requestType) {
+	}
+
+	@Override
+	public void cancel(String url) {
 	}
 
 	@Override
-	public void bump(String url) {
+	public NetworkConcurrencyLimits getConcurrencyLimits() {
+		return null;
 	}
 
 	@Override
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2013 Xtreme Labs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xtremelabs.imageutils;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import android.test.ActivityInstrumentationTestCase2;
+
+import com.xtremelabs.testactivity.MainActivity;
+
+public class PackFileStoreTests extends ActivityInstrumentationTestCase2<MainActivity> {
+	private DiskManager mDiskManager;
+	private PackFileStore mPackFileStore;
+
+	public PackFileStoreTests() {
+		super(MainActivity.class);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		mDiskManager = new DiskManager("packtestdir", getActivity().getApplicationContext());
+		mDiskManager.clearDirectory();
+		mPackFileStore = new PackFileStore(mDiskManager);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mPackFileStore.clear();
+		mDiskManager.clearDirectory();
+
+		super.tearDown();
+	}
+
+	public void testPutAndRead() throws IOException {
+		byte[] data = generateData(100, (byte) 7);
+		mPackFileStore.put("key1", data, data.length);
+
+		assertTrue(mPackFileStore.contains("key1"));
+		assertTrue(Arrays.equals(data, mPackFileStore.read("key1")));
+		assertNull(mPackFileStore.read("key2"));
+	}
+
+	public void testOverwrite() throws IOException {
+		byte[] data1 = generateData(100, (byte) 1);
+		byte[] data2 = generateData(50, (byte) 2);
+		mPackFileStore.put("key1", data1, data1.length);
+		mPackFileStore.put("key1", data2, data2.length);
+
+		assertTrue(Arrays.equals(data2, mPackFileStore.read("key1")));
+	}
+
+	public void testRemove() throws IOException {
+		byte[] data = generateData(100, (byte) 3);
+		mPackFileStore.put("key1", data, data.length);
+
+		assertTrue(mPackFileStore.remove("key1"));
+		assertFalse(mPackFileStore.contains("key1"));
+		assertFalse(mPackFileStore.remove("key1"));
+	}
+
+	public void testIndexIsRebuiltFromSegments() throws IOException {
+		byte[] data1 = generateData(100, (byte) 1);
+		byte[] data2 = generateData(200, (byte) 2);
+		mPackFileStore.put("key1", data1, data1.length);
+		mPackFileStore.put("key2", data2, data2.length);
+		mPackFileStore.remove("key1");
+
+		PackFileStore reopenedStore = new PackFileStore(mDiskManager);
+		assertFalse(reopenedStore.contains("key1"));
+		assertTrue(Arrays.equals(data2, reopenedStore.read("key2")));
+	}
+
+	public void testCompactionReclaimsSegments() throws IOException {
+		byte[] data = generateData(512 * 1024, (byte) 4);
+		for (int i = 0; i < 10; i++) {
+			mPackFileStore.put("key" + i, data, data.length);
+		}
+		assertTrue(mPackFileStore.getNumSegments() > 1);
+
+		for (int i = 0; i < 9; i++) {
+			mPackFileStore.remove("key" + i);
+		}
+
+		assertTrue(mPackFileStore.getNumSegments() <= 2);
+		assertTrue(Arrays.equals(data, mPackFileStore.read("key9")));
+
+		PackFileStore reopenedStore = new PackFileStore(mDiskManager);
+		for (int i = 0; i < 9; i++) {
+			assertFalse(reopenedStore.contains("key" + i));
+		}
+		assertTrue(Arrays.equals(data, reopenedStore.read("key9")));
+	}
+
+	public void testCompactionReclaimsOverwrittenSegments() throws IOException {
+		byte[] data = null;
+		for (int round = 0; round < 6; round++) {
+			data = generateData(512 * 1024, (byte) round);
+			for (int i = 0; i < 10; i++) {
+				mPackFileStore.put("key" + i, data, data.length);
+			}
+		}
+
+		assertTrue(mPackFileStore.getNumSegments() <= 4);
+		PackFileStore reopenedStore = new PackFileStore(mDiskManager);
+		for (int i = 0; i < 10; i++) {
+			assertTrue(Arrays.equals(data, mPackFileStore.read("key" + i)));
+			assertTrue(Arrays.equals(data, reopenedStore.read("key" + i)));
+		}
+	}
+
+	public void testChangesFromAnotherStoreAreVisible() throws IOException {
+		PackFileStore otherStore = new PackFileStore(mDiskManager);
+		byte[] data1 = generateData(100, (byte) 1);
+		byte[] data2 = generateData(200, (byte) 2);
+		assertFalse(otherStore.contains("key1"));
+
+		mPackFileStore.put("key1", data1, data1.length);
+		assertTrue(Arrays.equals(data1, otherStore.read("key1")));
+
+		otherStore.put("key2", data2, data2.length);
+		otherStore.remove("key1");
+		assertFalse(mPackFileStore.contains("key1"));
+		assertTrue(Arrays.equals(data2, mPackFileStore.read("key2")));
+
+		otherStore.clear();
+		assertFalse(mPackFileStore.contains("key2"));
+	}
+
+	public void testCompactionByAnotherStoreIsVisible() throws IOException {
+		PackFileStore otherStore = new PackFileStore(mDiskManager);
+		byte[] data = generateData(512 * 1024, (byte) 4);
+		for (int i = 0; i < 10; i++) {
+			mPackFileStore.put("key" + i, data, data.length);
+		}
+
+		for (int i = 0; i < 9; i++) {
+			otherStore.remove("key" + i);
+		}
+
+		for (int i = 0; i < 9; i++) {
+			assertFalse(mPackFileStore.contains("key" + i));
+		}
+		assertTrue(Arrays.equals(data, mPackFileStore.read("key9")));
+		assertEquals(otherStore.getNumSegments(), mPackFileStore.getNumSegments());
+	}
+
+	private static byte[] generateData(int length, byte value) {
+		byte[] data = new byte[length];
+		Arrays.fill(data, value);
+		return data;
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2013 Xtreme Labs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xtremelabs.imageutils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.graphics.Bitmap;
+import android.test.ActivityInstrumentationTestCase2;
+import android.test.UiThreadTest;
+import android.widget.AbsListView.OnScrollListener;
+import android.widget.ImageView;
+
+import com.xtremelabs.imageutils.AbstractImageLoader.Options;
+import com.xtremelabs.testactivity.MainActivity;
+
+public class PauseResumeTests extends ActivityInstrumentationTestCase2<MainActivity> {
+	private static final String URI_1 = "http://www.example.com/pause_resume_test_1.jpg";
+	private static final String URI_2 = "http://www.example.com/pause_resume_test_2.jpg";
+	private static final String URI_3 = "http://www.example.com/pause_resume_test_3.jpg";
+	private static final String URI_4 = "http://www.example.com/pause_resume_test_4.jpg";
+
+	private final List<String> mRequestedUris = new ArrayList<String>();
+	private int mNumCancellations;
+	private Bitmap mMemoryBitmap;
+	private ImageLoader mImageLoader;
+	private Options mOptions;
+
+	public PauseResumeTests() {
+		super(MainActivity.class);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		mImageLoader = new ImageLoader(getActivity());
+		mImageLoader.stubReferenceManager(new ReferenceManager() {
+			@Override
+			public void getBitmap(Object key, ImageRequest imageRequest, ImageManagerListener imageManagerListener) {
+				mRequestedUris.add(imageRequest.getUri());
+			}
+
+			@Override
+			public void getBitmaps(Object key, List<ImageRequest> imageRequests, List<ImageManagerListener> imageManagerListeners) {
+				for (int i = 0; i < imageRequests.size(); i++) {
+					getBitmap(key, imageRequests.get(i), imageManagerListeners.get(i));
+				}
+			}
+
+			@Override
+			public List<ImageManagerListener> removeListenersForKey(Object key) {
+				return null;
+			}
+
+			@Override
+			public void cancelRequest(ImageManagerListener imageManagerListener) {
+				mNumCancellations++;
+			}
+
+			@Override
+			public Bitmap getBitmapFromMemory(MemoryLookupKey memoryLookupKey) {
+				return URI_4.equals(memoryLookupKey.mUri) ? mMemoryBitmap : null;
+			}
+
+			@Override
+			public void precacheImageToDisk(Object key, ImageRequest imageRequest, ImageManagerListener imageManagerListener) {
+			}
+
+			@Override
+			public void withdrawPrecacheRequest(ImageManagerListener imageManagerListener) {
+			}
+
+			@Override
+			public void setRequestVisible(ImageManagerListener imageManagerListener, boolean visible) {
+			}
+		});
+
+		mOptions = new Options();
+		mOptions.overrideSampleSize = 1;
+		mMemoryBitmap = Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mImageLoader.destroy();
+		super.tearDown();
+	}
+
+	@UiThreadTest
+	public void testRequestsAreHeldWhilePaused() {
+		ImageView imageView1 = new ImageView(getActivity());
+		ImageView imageView2 = new ImageView(getActivity());
+		ImageView imageView3 = new ImageView(getActivity());
+
+		mImageLoader.pause();
+		assertTrue(mImageLoader.isPaused());
+		mImageLoader.loadImage(imageView1, URI_1, mOptions);
+		mImageLoader.loadImage(imageView2, URI_2, mOptions);
+		mImageLoader.loadImage(imageView1, URI_3, mOptions);
+		mImageLoader.loadImage(imageView3, URI_1, mOptions);
+		mImageLoader.stopLoadingImage(imageView3);
+		assertTrue(mRequestedUris.isEmpty());
+		assertEquals(0, mNumCancellations);
+
+		mImageLoader.resume();
+		assertFalse(mImageLoader.isPaused());
+		assertEquals("[" + URI_2 + ", " + URI_3 + "]", mRequestedUris.toString());
+
+		mImageLoader.resume();
+		assertEquals(2, mRequestedUris.size());
+	}
+
+	@UiThreadTest
+	public void testMemoryHitsAreDeliveredWhilePaused() {
+		ImageView imageView = new ImageView(getActivity());
+
+		mImageLoader.pause();
+		mImageLoader.loadImage(imageView, URI_1, mOptions);
+		mImageLoader.loadImage(imageView, URI_4, mOptions);
+		assertNotNull(imageView.getDrawable());
+		assertEquals(0, mNumCancellations);
+
+		mImageLoader.resume();
+		assertTrue(mRequestedUris.isEmpty());
+	}
+
+	@UiThreadTest
+	public void testPauseOnScrollListener() {
+		PauseOnScrollListener pauseOnScrollListener = new PauseOnScrollListener(mImageLoader);
+
+		pauseOnScrollListener.onScrollStateChanged(null, OnScrollListener.SCROLL_STATE_FLING);
+		assertTrue(mImageLoader.isPaused());
+		pauseOnScrollListener.onScrollStateChanged(null, OnScrollListener.SCROLL_STATE_TOUCH_SCROLL);
+		assertFalse(mImageLoader.isPaused());
+		pauseOnScrollListener.onScrollStateChanged(null, OnScrollListener.SCROLL_STATE_FLING);
+		pauseOnScrollListener.onScrollStateChanged(null, OnScrollListener.SCROLL_STATE_IDLE);
+		assertFalse(mImageLoader.isPaused());
+
+		pauseOnScrollListener = new PauseOnScrollListener(mImageLoader, true, null);
+		pauseOnScrollListener.onScrollStateChanged(null, OnScrollListener.SCROLL_STATE_TOUCH_SCROLL);
+		assertTrue(mImageLoader.isPaused());
+	}
+}
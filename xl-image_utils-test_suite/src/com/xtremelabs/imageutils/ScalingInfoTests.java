@@ -16,8 +16,13 @@
 
 package com.xtremelabs.imageutils;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import android.graphics.Bitmap;
 import android.test.ActivityInstrumentationTestCase2;
 import android.test.UiThreadTest;
+import android.view.View.MeasureSpec;
 import android.view.ViewGroup.LayoutParams;
 import android.widget.ImageView;
 
@@ -29,6 +34,7 @@ public class ScalingInfoTests extends ActivityInstrumentationTestCase2<MainActiv
 	private Options options;
 	private ScalingInfo scalingInfo;
 	private ImageView imageView;
+	private final List<ScalingInfo> mRequestedScalingInfos = new ArrayList<ScalingInfo>();
 
 	public ScalingInfoTests() {
 		super(MainActivity.class);
@@ -144,6 +150,162 @@ public class ScalingInfoTests extends ActivityInstrumentationTestCase2<MainActiv
 		assertNull(scalingInfo.height);
 	}
 
+	@UiThreadTest
+	public void testMeasuredBoundsArePreferred() {
+		mImageLoader = new ImageLoader(getActivity());
+		options.autoDetectBounds = true;
+		options.useScreenSizeAsBounds = false;
+
+		setParams(LayoutParams.MATCH_PARENT, LayoutParams.MATCH_PARENT);
+		layOut(imageView, 120, 80);
+		scalingInfo = mImageLoader.getScalingInfo(imageView, options);
+		assertEquals(120, scalingInfo.width.intValue());
+		assertEquals(80, scalingInfo.height.intValue());
+	}
+
+	/*
+	 * A WRAP_CONTENT view is laid out to the size of its current drawable, which says nothing about the size of the next image.
+	 */
+	@UiThreadTest
+	public void testMeasuredBoundsOfWrapContentAreIgnored() {
+		mImageLoader = new ImageLoader(getActivity());
+		options.autoDetectBounds = true;
+		options.useScreenSizeAsBounds = false;
+
+		setParams(LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT);
+		layOut(imageView, 120, 80);
+		scalingInfo = mImageLoader.getScalingInfo(imageView, options);
+		assertNull(scalingInfo.width);
+		assertNull(scalingInfo.height);
+
+		setParams(LayoutParams.MATCH_PARENT, LayoutParams.WRAP_CONTENT);
+		layOut(imageView, 120, 80);
+		scalingInfo = mImageLoader.getScalingInfo(imageView, options);
+		assertEquals(120, scalingInfo.width.intValue());
+		assertNull(scalingInfo.height);
+	}
+
+	@UiThreadTest
+	public void testRequestWaitsForMeasurement() {
+		mImageLoader = new ImageLoader(getActivity());
+		mImageLoader.stubReferenceManager(getRecordingReferenceManager());
+		options.autoDetectBounds = true;
+		options.useScreenSizeAsBounds = false;
+		options.waitForMeasuredBounds = true;
+
+		imageView.setId(1);
+		setParams(LayoutParams.MATCH_PARENT, LayoutParams.MATCH_PARENT);
+		mImageLoader.loadImage(imageView, "http://www.example.com/measured_1.jpg", options);
+		assertTrue(mRequestedScalingInfos.isEmpty());
+
+		layOut(imageView, 120, 80);
+		imageView.getViewTreeObserver().dispatchOnPreDraw();
+		assertEquals(1, mRequestedScalingInfos.size());
+		assertEquals(120, mRequestedScalingInfos.get(0).width.intValue());
+		assertEquals(80, mRequestedScalingInfos.get(0).height.intValue());
+
+		// A view of the same type uses the size that was measured for the first one.
+		ImageView otherImageView = new ImageView(getActivity());
+		otherImageView.setId(1);
+		otherImageView.setLayoutParams(new LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.MATCH_PARENT));
+		mImageLoader.loadImage(otherImageView, "http://www.example.com/measured_2.jpg", options);
+		assertEquals(2, mRequestedScalingInfos.size());
+		assertEquals(120, mRequestedScalingInfos.get(1).width.intValue());
+		assertEquals(80, mRequestedScalingInfos.get(1).height.intValue());
+
+		mImageLoader.destroy();
+	}
+
+	@UiThreadTest
+	public void testWrapContentViewDoesNotWaitForMeasurement() {
+		mImageLoader = new ImageLoader(getActivity());
+		mImageLoader.stubReferenceManager(getRecordingReferenceManager());
+		options.autoDetectBounds = true;
+		options.useScreenSizeAsBounds = false;
+		options.waitForMeasuredBounds = true;
+
+		setParams(LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT);
+		mImageLoader.loadImage(imageView, "http://www.example.com/wrap_content.jpg", options);
+		assertEquals(1, mRequestedScalingInfos.size());
+		assertNull(mRequestedScalingInfos.get(0).width);
+		assertNull(mRequestedScalingInfos.get(0).height);
+
+		mImageLoader.destroy();
+	}
+
+	/*
+	 * A view with no drawable inside a WRAP_CONTENT parent is laid out with no size, and would never be measured.
+	 */
+	@UiThreadTest
+	public void testViewWithNoDrawableFallsBackToScreenBounds() {
+		mImageLoader = new ImageLoader(getActivity());
+		mImageLoader.stubReferenceManager(getRecordingReferenceManager());
+		options.autoDetectBounds = true;
+		options.useScreenSizeAsBounds = true;
+		options.waitForMeasuredBounds = true;
+
+		setParams(LayoutParams.MATCH_PARENT, LayoutParams.MATCH_PARENT);
+		assertNull(imageView.getDrawable());
+		mImageLoader.loadImage(imageView, "http://www.example.com/no_drawable.jpg", options);
+		assertTrue(mRequestedScalingInfos.isEmpty());
+
+		layOut(imageView, 0, 0);
+		imageView.getViewTreeObserver().dispatchOnPreDraw();
+		assertEquals(1, mRequestedScalingInfos.size());
+		Dimensions screenSize = DisplayUtility.getDisplaySize(getActivity().getApplicationContext());
+		assertEquals(screenSize.width, mRequestedScalingInfos.get(0).width);
+		assertEquals(screenSize.height, mRequestedScalingInfos.get(0).height);
+
+		mImageLoader.destroy();
+	}
+
+	private ReferenceManager getRecordingReferenceManager() {
+		return new ReferenceManager() {
+			@Override
+			public void getBitmap(Object key, ImageRequest imageRequest, ImageManagerListener imageManagerListener) {
+				mRequestedScalingInfos.add(imageRequest.getScalingInfo());
+			}
+
+			@Override
+			public void getBitmaps(Object key, List<ImageRequest> imageRequests, List<ImageManagerListener> imageManagerListeners) {
+				for (int i = 0; i < imageRequests.size(); i++) {
+					getBitmap(key, imageRequests.get(i), imageManagerListeners.get(i));
+				}
+			}
+
+			@Override
+			public List<ImageManagerListener> removeListenersForKey(Object key) {
+				return null;
+			}
+
+			@Override
+			public void cancelRequest(ImageManagerListener imageManagerListener) {
+			}
+
+			@Override
+			public Bitmap getBitmapFromMemory(MemoryLookupKey memoryLookupKey) {
+				return null;
+			}
+
+			@Override
+			public void precacheImageToDisk(Object key, ImageRequest imageRequest, ImageManagerListener imageManagerListener) {
+			}
+
+			@Override
+			public void withdrawPrecacheRequest(ImageManagerListener imageManagerListener) {
+			}
+
+			@Override
+			public void setRequestVisible(ImageManagerListener imageManagerListener, boolean visible) {
+			}
+		};
+	}
+
+	private static void layOut(ImageView view, int width, int height) {
+		view.measure(MeasureSpec.makeMeasureSpec(width, MeasureSpec.EXACTLY), MeasureSpec.makeMeasureSpec(height, MeasureSpec.EXACTLY));
+		view.layout(0, 0, width, height);
+	}
+
 	private void setParams(int width, int height) {
 		LayoutParams params = new LayoutParams(width, height);
 		imageView.setLayoutParams(params);
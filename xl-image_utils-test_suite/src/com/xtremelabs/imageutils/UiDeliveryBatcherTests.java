@@ -0,0 +1,95 @@
+/*
+ * Copyright 2013 Xtreme Labs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xtremelabs.imageutils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.os.Looper;
+import android.test.AndroidTestCase;
+
+public class UiDeliveryBatcherTests extends AndroidTestCase {
+	private final List<Integer> mDeliveries = new ArrayList<Integer>();
+	private int mFramesScheduled;
+	private UiDeliveryBatcher mBatcher;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		mBatcher = new UiDeliveryBatcher(Looper.getMainLooper()) {
+			@Override
+			void scheduleFrame(long delayMillis) {
+				assertTrue(delayMillis > 0 && delayMillis <= UiDeliveryBatcher.FRAME_INTERVAL_MILLIS);
+				mFramesScheduled++;
+			}
+		};
+	}
+
+	public void testBurstIsDeliveredInOneFrame() {
+		for (int i = 0; i < 10; i++) {
+			mBatcher.post(new RecordingDelivery(i));
+		}
+		assertEquals(1, mFramesScheduled);
+		assertTrue(mDeliveries.isEmpty());
+
+		assertFalse(mBatcher.deliverFrame());
+		assertEquals("[0, 1, 2, 3, 4, 5, 6, 7, 8, 9]", mDeliveries.toString());
+	}
+
+	public void testLeftoversRollInToNextFrame() {
+		mBatcher.setFrameBudget(0);
+		for (int i = 0; i < 3; i++) {
+			mBatcher.post(new RecordingDelivery(i));
+		}
+
+		assertTrue(mBatcher.deliverFrame());
+		assertEquals(2, mBatcher.getNumPendingDeliveries());
+		assertTrue(mBatcher.deliverFrame());
+		assertFalse(mBatcher.deliverFrame());
+		assertEquals("[0, 1, 2]", mDeliveries.toString());
+	}
+
+	public void testNewFrameIsScheduledAfterDelivery() {
+		mBatcher.post(new RecordingDelivery(0));
+		mBatcher.deliverFrame();
+		mBatcher.post(new RecordingDelivery(1));
+
+		assertEquals(2, mFramesScheduled);
+	}
+
+	public void testNegativeBudgetIsRejected() {
+		try {
+			mBatcher.setFrameBudget(-1);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	private class RecordingDelivery implements Runnable {
+		private final int mId;
+
+		RecordingDelivery(int id) {
+			mId = id;
+		}
+
+		@Override
+		public void run() {
+			mDeliveries.add(mId);
+		}
+	}
+}
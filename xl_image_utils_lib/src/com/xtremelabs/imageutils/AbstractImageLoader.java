@@ -16,16 +16,25 @@
 
 package com.xtremelabs.imageutils;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 
 import android.app.Activity;
 import android.app.Application;
 import android.app.Fragment;
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.Point;
 import android.os.Handler;
 import android.util.Log;
+import android.util.SparseArray;
+import android.view.View;
+import android.view.ViewTreeObserver;
 import android.widget.ImageView;
 
 import com.xtremelabs.imageutils.ImageRequest.RequestType;
@@ -35,13 +44,34 @@ public abstract class AbstractImageLoader {
 	public static final String TAG = "ImageLoader";
 
 	private final ImageViewReferenceMapper mViewMapper = new ImageViewReferenceMapper();
+	private final ViewVisibilityTracker mVisibilityTracker = new ViewVisibilityTracker(new ViewVisibilityTracker.VisibilityListener() {
+		@Override
+		public void onVisibilityChanged(ImageView view, boolean visible) {
+			ImageManagerListener listener = mViewMapper.getListener(view);
+			if (listener == null) {
+				mVisibilityTracker.untrack(view);
+			} else {
+				mReferenceManager.setRequestVisible(listener, visible);
+			}
+		}
+	});
+	private final HashMap<ImageView, ImageViewBinding> mViewBindings = new HashMap<ImageView, ImageViewBinding>();
+	private final LinkedHashMap<ImageView, HeldRequest> mHeldRequests = new LinkedHashMap<ImageView, HeldRequest>();
+	private LinkedHashMap<ImageView, HeldRequest> mBatchedRequests;
+	private final HashMap<ImageView, DeferredRequest> mDeferredRequests = new HashMap<ImageView, DeferredRequest>();
+	private final SparseArray<Dimensions> mMeasuredSizes = new SparseArray<Dimensions>();
 	private ReferenceManager mReferenceManager;
 	private Context mApplicationContext;
 	private Object mKey;
 	private boolean mDestroyed = false;
+	private boolean mPaused = false;
 
 	private Options mDefaultOptions = new Options();
 
+	private final MemoryLookupKey mMemoryLookupKey = new MemoryLookupKey();
+	private Dimensions mDisplaySize;
+	private int mDisplaySizeOrientation;
+
 	// TODO Cancelled network calls should still save the downloaded image to disk.
 	// TODO Have an API call that can get a bitmap without an ImageView.
 	// TODO Make the disk thread pool a priority pool so that preloaded images take lower priority until directly requested.
@@ -77,6 +107,13 @@ public abstract class AbstractImageLoader {
 		ThreadChecker.throwErrorIfOffUiThread();
 
 		mDestroyed = true;
+		mVisibilityTracker.clear();
+		mViewBindings.clear();
+		mHeldRequests.clear();
+		for (DeferredRequest deferredRequest : mDeferredRequests.values()) {
+			deferredRequest.unregister();
+		}
+		mDeferredRequests.clear();
 
 		List<ImageManagerListener> listeners = mReferenceManager.removeListenersForKey(mKey);
 		if (listeners != null) {
@@ -86,6 +123,52 @@ public abstract class AbstractImageLoader {
 		}
 	}
 
+	/**
+	 * Holds back new image requests, for example while a list is flinging. Images that are in the memory cache are still loaded right away, but requests that would need a download or a decode are held until
+	 * {@link #resume()} is called. Requests that are already running are not affected. See {@link PauseOnScrollListener}.
+	 * 
+	 * @throws CalledFromWrongThreadException
+	 *             This is thrown if the method is called from off the UI thread.
+	 */
+	public void pause() {
+		ThreadChecker.throwErrorIfOffUiThread();
+
+		mPaused = true;
+	}
+
+	/**
+	 * Releases the requests held since {@link #pause()} was called. Requests whose views have since been bound to another image, or have stopped loading, are dropped. The rest are released oldest first, so
+	 * that the most recently bound views are at the front of the LIFO queues and load first.
+	 * 
+	 * @throws CalledFromWrongThreadException
+	 *             This is thrown if the method is called from off the UI thread.
+	 */
+	public void resume() {
+		ThreadChecker.throwErrorIfOffUiThread();
+
+		if (!mPaused) {
+			return;
+		}
+		mPaused = false;
+
+		boolean batchStarted = beginRequestBatch();
+		for (Map.Entry<ImageView, HeldRequest> entry : mHeldRequests.entrySet()) {
+			ImageView imageView = entry.getKey();
+			HeldRequest heldRequest = entry.getValue();
+			if (mViewMapper.getListener(imageView) == heldRequest.mImageManagerListener) {
+				submitImageRequest(imageView, heldRequest.mImageRequest, heldRequest.mImageManagerListener);
+			}
+		}
+		mHeldRequests.clear();
+		if (batchStarted) {
+			submitRequestBatch();
+		}
+	}
+
+	public boolean isPaused() {
+		return mPaused;
+	}
+
 	/**
 	 * The ImageLoader will default to the options provided here if no other options are provided.
 	 * 
@@ -110,6 +193,49 @@ public abstract class AbstractImageLoader {
 		ImageCacher.getInstance(appContext).setNetworkRequestCreator(networkRequestCreator);
 	}
 
+	/**
+	 * Downloads are limited both in total and per host. The limits start low, grow while downloads complete quickly, and are halved when downloads fail or slow down. This returns a snapshot of the current limits,
+	 * which is useful for monitoring how the network is performing.
+	 * 
+	 * @param applicationContext
+	 */
+	public static NetworkConcurrencyLimits getNetworkConcurrencyLimits(Context applicationContext) {
+		if (!(applicationContext instanceof Application)) {
+			applicationContext = applicationContext.getApplicationContext();
+		}
+
+		return ImageCacher.getInstance(applicationContext).getNetworkConcurrencyLimits();
+	}
+
+	/**
+	 * Small images are decoded on up to a thread for every core but one, while large images have a thread of their own. How many small decodes run at once adapts to the device: it grows while decodes complete
+	 * smoothly, and is halved when the UI thread misses frames or the decode threads are starved of CPU time. This returns a snapshot of the current limit, along with decode throughput and queue wait times.
+	 * 
+	 * @param applicationContext
+	 */
+	public static DecodeStatistics getDecodeStatistics(Context applicationContext) {
+		if (!(applicationContext instanceof Application)) {
+			applicationContext = applicationContext.getApplicationContext();
+		}
+
+		return ImageCacher.getInstance(applicationContext).getDecodeStatistics();
+	}
+
+	/**
+	 * Images that finish loading are handed to the UI thread in one batch per frame. This sets how long each frame may spend delivering them; whatever does not fit rolls in to the next frame. The default is 8
+	 * milliseconds.
+	 * 
+	 * @param applicationContext
+	 * @param frameBudgetMillis
+	 */
+	public static void setFrameDeliveryBudget(Context applicationContext, long frameBudgetMillis) {
+		if (!(applicationContext instanceof Application)) {
+			applicationContext = applicationContext.getApplicationContext();
+		}
+
+		LifecycleReferenceManager.getInstance(applicationContext).setFrameDeliveryBudget(frameBudgetMillis);
+	}
+
 	// TODO Write a loadImage call that accepts a URI object, as well as a File object.
 	// TODO All image requests coming in to the ImageLoader should be ImageRequest objects.
 
@@ -137,8 +263,10 @@ public abstract class AbstractImageLoader {
 	 */
 	public void loadImage(ImageView imageView, String uri) {
 		if (!mDestroyed) {
-			ImageManagerListener imageManagerListener = getDefaultImageManagerListener(mDefaultOptions);
-			performImageRequestOnUiThread(imageView, uri, mDefaultOptions, imageManagerListener);
+			if (!loadImageWithoutRequest(imageView, uri, mDefaultOptions, null)) {
+				ImageManagerListener imageManagerListener = getDefaultImageManagerListener(mDefaultOptions);
+				performImageRequestOnUiThread(imageView, uri, mDefaultOptions, null, imageManagerListener);
+			}
 		} else {
 			Log.w(TAG, "WARNING: loadImage was called after the ImageLoader was destroyed.");
 		}
@@ -167,8 +295,10 @@ public abstract class AbstractImageLoader {
 				options = mDefaultOptions;
 			}
 
-			ImageManagerListener imageManagerListener = getDefaultImageManagerListener(options);
-			performImageRequestOnUiThread(imageView, uri, options, imageManagerListener);
+			if (!loadImageWithoutRequest(imageView, uri, options, null)) {
+				ImageManagerListener imageManagerListener = getDefaultImageManagerListener(options);
+				performImageRequestOnUiThread(imageView, uri, options, null, imageManagerListener);
+			}
 		} else {
 			Log.w(TAG, "WARNING: loadImage was called after the ImageLoader was destroyed.");
 		}
@@ -215,13 +345,60 @@ public abstract class AbstractImageLoader {
 				options = mDefaultOptions;
 			}
 
-			ImageManagerListener imageManagerListener = getImageManagerListenerWithCallback(listener, options);
-			performImageRequestOnUiThread(imageView, uri, options, imageManagerListener);
+			if (!loadImageWithoutRequest(imageView, uri, options, listener)) {
+				ImageManagerListener imageManagerListener = getImageManagerListenerWithCallback(listener, options);
+				performImageRequestOnUiThread(imageView, uri, options, listener, imageManagerListener);
+			}
 		} else {
 			Log.w(TAG, "WARNING: loadImage was called after the ImageLoader was destroyed.");
 		}
 	}
 
+	/**
+	 * Loads a batch of images. Each request behaves as though it were passed to the matching loadImage call, but the batch is posted to the UI thread once rather than once per image, and the requests that are not
+	 * in the memory cache are handed to the caching system together. Images requested by more than one view are downloaded once.<br>
+	 * <br>
+	 * This method may be called from any thread.
+	 * 
+	 * @param loadRequests
+	 *            See {@link LoadRequest}.
+	 */
+	public void loadImages(final List<LoadRequest> loadRequests) {
+		if (mDestroyed) {
+			Log.w(TAG, "WARNING: loadImages was called after the ImageLoader was destroyed.");
+			return;
+		}
+
+		for (LoadRequest loadRequest : loadRequests) {
+			if (loadRequest.mImageView == null) {
+				throw new IllegalArgumentException("You cannot load an image into a null ImageView.");
+			}
+		}
+
+		if (ThreadChecker.isOnUiThread()) {
+			boolean batchStarted = beginRequestBatch();
+			for (LoadRequest loadRequest : loadRequests) {
+				Options options = loadRequest.mOptions == null ? mDefaultOptions : loadRequest.mOptions;
+				if (!loadImageWithoutRequest(loadRequest.mImageView, loadRequest.mUri, options, loadRequest.mListener)) {
+					ImageManagerListener imageManagerListener = loadRequest.mListener == null ? getDefaultImageManagerListener(options) : getImageManagerListenerWithCallback(loadRequest.mListener, options);
+					performImageRequest(loadRequest.mImageView, loadRequest.mUri, options, loadRequest.mListener, imageManagerListener);
+				}
+			}
+			if (batchStarted) {
+				submitRequestBatch();
+			}
+		} else {
+			new Handler(mApplicationContext.getMainLooper()).post(new Runnable() {
+				@Override
+				public void run() {
+					if (!mDestroyed) {
+						loadImages(loadRequests);
+					}
+				}
+			});
+		}
+	}
+
 	/**
 	 * This method will load the selected resource into the {@link ImageView} and cancel any previous requests that have been made to the {@link ImageView}.
 	 * 
@@ -234,6 +411,7 @@ public abstract class AbstractImageLoader {
 				ThreadChecker.throwErrorIfOffUiThread();
 
 				mViewMapper.removeListener(imageView);
+				mViewBindings.remove(imageView);
 				imageView.setImageResource(resourceId);
 			}
 		} else {
@@ -264,6 +442,7 @@ public abstract class AbstractImageLoader {
 	 * @returns True if an image load was stopped. False on failure.
 	 */
 	public boolean stopLoadingImage(ImageView imageView) {
+		mViewBindings.remove(imageView);
 		return mViewMapper.removeListener(imageView) != null;
 	}
 
@@ -324,6 +503,101 @@ public abstract class AbstractImageLoader {
 		ImageCacher.getInstance(mApplicationContext).setMaximumDiskCacheSize(maxSizeInBytes);
 	}
 
+	/**
+	 * Enables the packed storage engine for small images. Images whose size on disk is no larger than the provided value are appended to shared segment files rather than being written to a file of their own. This
+	 * saves a file open, close and inode per image, which adds up quickly when caching thousands of small thumbnails or avatars.<br>
+	 * <br>
+	 * This value defaults to 0, which disables packed storage. A value of around 32KB is a good starting point for apps that display many small images.
+	 * 
+	 * @param maxSizeInBytes
+	 */
+	public void setMaximumPackedImageSize(int maxSizeInBytes) {
+		ImageCacher.getInstance(mApplicationContext).setMaximumPackedImageSize(maxSizeInBytes);
+	}
+
+	/**
+	 * When enabled, downloads and decodes are cancelled once every request waiting on them has been cancelled, for example because the view was recycled during a fling. Queued work is dropped and in-progress
+	 * downloads are aborted.<br>
+	 * <br>
+	 * This value defaults to true.
+	 * 
+	 * @param cancelAbandonedRequests
+	 */
+	public void setCancelAbandonedRequests(boolean cancelAbandonedRequests) {
+		ImageCacher.getInstance(mApplicationContext).setCancelAbandonedRequests(cancelAbandonedRequests);
+	}
+
+	/**
+	 * When enabled, downloads and decodes started by the precache methods always run to completion, even if the requests waiting on them are cancelled. Has no effect if abandoned requests are not being cancelled.
+	 * See {@link #setCancelAbandonedRequests(boolean)}.<br>
+	 * <br>
+	 * This value defaults to true.
+	 * 
+	 * @param completePrecacheRequests
+	 */
+	public void setCompletePrecacheRequests(boolean completePrecacheRequests) {
+		ImageCacher.getInstance(mApplicationContext).setCompletePrecacheRequests(completePrecacheRequests);
+	}
+
+	/**
+	 * Serves the images contained in a cache bundle file as though they were in the disk cache. Bundles are created with {@link #exportCacheBundle(Context, File, int)}. Images that are later downloaded into the disk
+	 * cache take precedence over the bundled copies.<br>
+	 * <br>
+	 * Only the bundle's index is read by this call. Image bytes are mapped from the file as they are decoded.
+	 * 
+	 * @param applicationContext
+	 * @param file
+	 * @throws IOException
+	 *             If the file is not a valid cache bundle.
+	 */
+	public static void addCacheBundle(Context applicationContext, File file) throws IOException {
+		if (!(applicationContext instanceof Application)) {
+			applicationContext = applicationContext.getApplicationContext();
+		}
+
+		ImageCacher.getInstance(applicationContext).addCacheBundle(file);
+	}
+
+	/**
+	 * Serves the images contained in a cache bundle that ships in the APK's assets as though they were in the disk cache. This allows images that every user sees on first launch to be loaded without a network
+	 * request.<br>
+	 * <br>
+	 * Store the bundle uncompressed (for example, by giving it an extension that aapt does not compress, such as ".jpg") so that it can be mapped directly out of the APK. Compressed bundles are copied to the
+	 * cache directory the first time they are added.
+	 * 
+	 * @param applicationContext
+	 * @param assetName
+	 * @throws IOException
+	 *             If the asset does not exist or is not a valid cache bundle.
+	 */
+	public static void addCacheBundleFromAsset(Context applicationContext, String assetName) throws IOException {
+		if (!(applicationContext instanceof Application)) {
+			applicationContext = applicationContext.getApplicationContext();
+		}
+
+		ImageCacher.getInstance(applicationContext).addCacheBundleFromAsset(assetName);
+	}
+
+	/**
+	 * Writes the most recently used images in the disk cache, along with their dimensions, to a cache bundle.<br>
+	 * <br>
+	 * This call blocks while the images are copied and should not be made from the UI thread.
+	 * 
+	 * @param applicationContext
+	 * @param destination
+	 *            The file the bundle will be written to. Any existing file is overwritten.
+	 * @param maxNumberOfImages
+	 *            The maximum number of images to include in the bundle.
+	 * @throws IOException
+	 */
+	public static void exportCacheBundle(Context applicationContext, File destination, int maxNumberOfImages) throws IOException {
+		if (!(applicationContext instanceof Application)) {
+			applicationContext = applicationContext.getApplicationContext();
+		}
+
+		ImageCacher.getInstance(applicationContext).exportCacheBundle(destination, maxNumberOfImages);
+	}
+
 	/**
 	 * Caches the image at the provided URI into the disk cache. This call is asynchronous and cannot be cancelled once called.<br>
 	 * <br>
@@ -337,19 +611,28 @@ public abstract class AbstractImageLoader {
 	 * @param applicationContext
 	 */
 	// TODO Test what happens if precache image to disk is called with a file system URI.
-	public void precacheImageToDisk(final String uri) {
-		if (ThreadChecker.isOnUiThread()) {
+	public void precacheImageToDisk(String uri) {
+		ImageRequest imageRequest = new ImageRequest(uri);
+		imageRequest.setRequestType(RequestType.CACHE_TO_DISK);
+		ImageCacher.getInstance(mApplicationContext).precacheImageToDisk(imageRequest);
+	}
+
+	/**
+	 * Caches the images at the provided URIs into the disk cache, as {@link #precacheImageToDisk(String)} would. The requests are admitted together and their downloads are started at once. Duplicate URIs are
+	 * requested once.<br>
+	 * <br>
+	 * This method may be called from any thread.
+	 * 
+	 * @param uris
+	 */
+	public void precacheImagesToDisk(List<String> uris) {
+		List<ImageRequest> imageRequests = new ArrayList<ImageRequest>(uris.size());
+		for (String uri : new LinkedHashSet<String>(uris)) {
 			ImageRequest imageRequest = new ImageRequest(uri);
 			imageRequest.setRequestType(RequestType.CACHE_TO_DISK);
-			ImageCacher.getInstance(mApplicationContext).precacheImageToDisk(imageRequest);
-		} else {
-			new Handler(mApplicationContext.getMainLooper()).post(new Runnable() {
-				@Override
-				public void run() {
-					precacheImageToDisk(uri, mApplicationContext);
-				}
-			});
+			imageRequests.add(imageRequest);
 		}
+		ImageCacher.getInstance(mApplicationContext).precacheImagesToDisk(imageRequests);
 	}
 
 	/**
@@ -365,28 +648,18 @@ public abstract class AbstractImageLoader {
 	 * @param applicationContext
 	 */
 	// TODO Test what happens if precache image to disk is called with a file system URI.
-	public static void precacheImageToDisk(final String uri, Context applicationContext) {
+	public static void precacheImageToDisk(String uri, Context applicationContext) {
 		if (!(applicationContext instanceof Application)) {
 			applicationContext = applicationContext.getApplicationContext();
 		}
 
-		if (ThreadChecker.isOnUiThread()) {
-			ImageRequest imageRequest = new ImageRequest(uri);
-			imageRequest.setRequestType(RequestType.CACHE_TO_DISK);
-			ImageCacher.getInstance(applicationContext).precacheImageToDisk(imageRequest);
-		} else {
-			final Context finalContext = applicationContext;
-			new Handler(applicationContext.getMainLooper()).post(new Runnable() {
-				@Override
-				public void run() {
-					precacheImageToDisk(uri, finalContext);
-				}
-			});
-		}
+		ImageRequest imageRequest = new ImageRequest(uri);
+		imageRequest.setRequestType(RequestType.CACHE_TO_DISK);
+		ImageCacher.getInstance(applicationContext).precacheImageToDisk(imageRequest);
 	}
 
 	/**
-	 * This method must be called from the UI thread.<br>
+	 * This method may be called from any thread.<br>
 	 * <br>
 	 * Caches the image at the provided URL into both the disk cache and into the memory cache.<br>
 	 * <br>
@@ -403,22 +676,41 @@ public abstract class AbstractImageLoader {
 	 * @param options
 	 *            The options used to customize how the view gets precached. Please note that all options relating the image bounds are ignored during this precaching call. The "bounds" object is used instead. Otherwise,
 	 *            the options should be identical to the image request that will be performed by the app.
-	 * 
-	 * @throws CalledFromWrongThreadException
-	 *             This is thrown if the method is called from off the UI thread.
 	 */
 	// TODO The URI/Bounds/Options should be packaged together as an ImageRequest object
 	// FIXME Null bounds will crash the app.
 	public void precacheImageToDiskAndMemory(String uri, Dimensions bounds, Options options) {
-		// TODO: Replace the width and height with options?
-		ThreadChecker.throwErrorIfOffUiThread();
+		precacheImageToDiskAndMemory(uri, bounds, options, getBlankImageManagerListener());
+	}
 
+	/**
+	 * The listener is notified on the UI thread when the image is in the memory cache. The request can be withdrawn with {@link #withdrawPrecacheRequest(ImageManagerListener)}.
+	 */
+	void precacheImageToDiskAndMemory(String uri, Dimensions bounds, Options options, ImageManagerListener imageManagerListener) {
+		// TODO: Replace the width and height with options?
 		ScalingInfo scalingInfo = new ScalingInfo();
 		scalingInfo.height = bounds.height;
 		scalingInfo.width = bounds.width;
 
 		ImageRequest imageRequest = new ImageRequest(uri, scalingInfo, options == null ? mDefaultOptions : options);
-		mReferenceManager.getBitmap(mApplicationContext, imageRequest, getBlankImageManagerListener());
+		imageRequest.setRequestType(RequestType.CACHE_TO_DISK_AND_MEMORY);
+		mReferenceManager.getBitmap(mApplicationContext, imageRequest, imageManagerListener);
+	}
+
+	/**
+	 * The listener is notified on the UI thread, with a null bitmap, when the image is on disk. The request can be withdrawn with {@link #withdrawPrecacheRequest(ImageManagerListener)}.
+	 */
+	void precacheImageToDisk(String uri, ImageManagerListener imageManagerListener) {
+		ImageRequest imageRequest = new ImageRequest(uri);
+		imageRequest.setRequestType(RequestType.CACHE_TO_DISK);
+		mReferenceManager.precacheImageToDisk(mApplicationContext, imageRequest, imageManagerListener);
+	}
+
+	/**
+	 * Withdraws a precache request that is no longer wanted. Its listener will not be notified, and its download or decode is cancelled if no other request is waiting on it.
+	 */
+	void withdrawPrecacheRequest(ImageManagerListener imageManagerListener) {
+		mReferenceManager.withdrawPrecacheRequest(imageManagerListener);
 	}
 
 	/**
@@ -427,13 +719,12 @@ public abstract class AbstractImageLoader {
 	@Deprecated
 	public void precacheImageToDiskAndMemory(String uri, Context applicationContext, Integer width, Integer height) {
 		// TODO: Replace the width and height with options?
-		ThreadChecker.throwErrorIfOffUiThread();
-
 		ScalingInfo scalingInfo = new ScalingInfo();
 		scalingInfo.height = height;
 		scalingInfo.width = width;
 
 		ImageRequest imageRequest = new ImageRequest(uri, scalingInfo);
+		imageRequest.setRequestType(RequestType.CACHE_TO_DISK_AND_MEMORY);
 		mReferenceManager.getBitmap(applicationContext, imageRequest, getBlankImageManagerListener());
 	}
 
@@ -446,29 +737,182 @@ public abstract class AbstractImageLoader {
 		mReferenceManager = referenceManager;
 	}
 
-	private void performImageRequestOnUiThread(final ImageView imageView, final String uri, final Options options, final ImageManagerListener imageManagerListener) {
+	private void performImageRequestOnUiThread(final ImageView imageView, final String uri, final Options options, final ImageLoaderListener imageLoaderListener,
+			final ImageManagerListener imageManagerListener) {
 		if (ThreadChecker.isOnUiThread())
-			performImageRequest(imageView, uri, options, imageManagerListener);
+			performImageRequest(imageView, uri, options, imageLoaderListener, imageManagerListener);
 		else {
 			new Handler(mApplicationContext.getMainLooper()).post(new Runnable() {
 
 				@Override
 				public void run() {
 					if (!mDestroyed)
-						performImageRequest(imageView, uri, options, imageManagerListener);
+						performImageRequest(imageView, uri, options, imageLoaderListener, imageManagerListener);
 				}
 			});
 		}
 	}
 
-	private void performImageRequest(ImageView imageView, String uri, Options options, ImageManagerListener imageManagerListener) {
+	private void performImageRequest(ImageView imageView, String uri, Options options, ImageLoaderListener imageLoaderListener, ImageManagerListener imageManagerListener) {
 		mapImageView(imageView, imageManagerListener);
 		setPreLoadImage(imageView, options);
 
-		ScalingInfo scalingInfo = getScalingInfo(imageView, options);
+		MemoryLookupKey memoryLookupKey = new MemoryLookupKey();
+		setMemoryLookupKey(memoryLookupKey, imageView, uri, options);
+		getViewBinding(imageView).setPending(memoryLookupKey, imageLoaderListener, imageManagerListener);
+
+		if (isMeasurementRequired(imageView, options)) {
+			DeferredRequest deferredRequest = new DeferredRequest(imageView, uri, options, imageLoaderListener, imageManagerListener);
+			mDeferredRequests.put(imageView, deferredRequest);
+			deferredRequest.register();
+		} else {
+			requestImage(imageView, memoryLookupKey, options, imageManagerListener);
+		}
+	}
+
+	private void requestImage(ImageView imageView, MemoryLookupKey memoryLookupKey, Options options, ImageManagerListener imageManagerListener) {
+		ImageRequest imageRequest = new ImageRequest(memoryLookupKey.mUri, memoryLookupKey.toScalingInfo(), options);
+		imageRequest.setMemoryLookupKey(memoryLookupKey);
+		if (mPaused) {
+			// Moves the view to the back of the map, which holds requests in the order their views were last bound.
+			mHeldRequests.remove(imageView);
+			mHeldRequests.put(imageView, new HeldRequest(imageRequest, imageManagerListener));
+		} else {
+			submitImageRequest(imageView, imageRequest, imageManagerListener);
+		}
+	}
+
+	private void submitImageRequest(ImageView imageView, ImageRequest imageRequest, ImageManagerListener imageManagerListener) {
+		if (mBatchedRequests != null) {
+			mBatchedRequests.remove(imageView);
+			mBatchedRequests.put(imageView, new HeldRequest(imageRequest, imageManagerListener));
+			return;
+		}
 
-		ImageRequest imageRequest = new ImageRequest(uri, scalingInfo, options);
 		mReferenceManager.getBitmap(mKey, imageRequest, imageManagerListener);
+		if (!mVisibilityTracker.isVisible(imageView)) {
+			mReferenceManager.setRequestVisible(imageManagerListener, false);
+		}
+	}
+
+	/**
+	 * Until the batch is submitted, requests are collected rather than submitted one at a time.
+	 * 
+	 * @return False if a batch was already being collected, in which case the requests join it.
+	 */
+	private boolean beginRequestBatch() {
+		if (mBatchedRequests != null) {
+			return false;
+		}
+		mBatchedRequests = new LinkedHashMap<ImageView, HeldRequest>();
+		return true;
+	}
+
+	private void submitRequestBatch() {
+		LinkedHashMap<ImageView, HeldRequest> batchedRequests = mBatchedRequests;
+		mBatchedRequests = null;
+		if (batchedRequests.isEmpty()) {
+			return;
+		}
+
+		List<ImageRequest> imageRequests = new ArrayList<ImageRequest>(batchedRequests.size());
+		List<ImageManagerListener> imageManagerListeners = new ArrayList<ImageManagerListener>(batchedRequests.size());
+		for (HeldRequest batchedRequest : batchedRequests.values()) {
+			imageRequests.add(batchedRequest.mImageRequest);
+			imageManagerListeners.add(batchedRequest.mImageManagerListener);
+		}
+		mReferenceManager.getBitmaps(mKey, imageRequests, imageManagerListeners);
+
+		for (Map.Entry<ImageView, HeldRequest> entry : batchedRequests.entrySet()) {
+			if (!mVisibilityTracker.isVisible(entry.getKey())) {
+				mReferenceManager.setRequestVisible(entry.getValue().mImageManagerListener, false);
+			}
+		}
+	}
+
+	/**
+	 * Requests that are being held while the loader is paused, are waiting for their view to be measured, or are part of a batch that has not been submitted yet, were never submitted, so they are dropped rather
+	 * than cancelled.
+	 */
+	private void cancelImageRequest(ImageView imageView, ImageManagerListener imageManagerListener) {
+		HeldRequest heldRequest = mHeldRequests.get(imageView);
+		HeldRequest batchedRequest = mBatchedRequests == null ? null : mBatchedRequests.get(imageView);
+		DeferredRequest deferredRequest = mDeferredRequests.get(imageView);
+		if (heldRequest != null && heldRequest.mImageManagerListener == imageManagerListener) {
+			mHeldRequests.remove(imageView);
+		} else if (batchedRequest != null && batchedRequest.mImageManagerListener == imageManagerListener) {
+			mBatchedRequests.remove(imageView);
+		} else if (deferredRequest != null && deferredRequest.mImageManagerListener == imageManagerListener) {
+			mDeferredRequests.remove(imageView);
+			deferredRequest.unregister();
+		} else {
+			mReferenceManager.cancelRequest(imageManagerListener);
+		}
+	}
+
+	/**
+	 * A repeat of the view's last request is skipped if the image is still on its way or still displayed. Images that are in the memory cache are loaded right away, without registering any listeners. The lookup
+	 * reuses a single key, so neither case allocates.
+	 * 
+	 * @return True if the image is already bound to the view or was loaded from the memory cache.
+	 */
+	private boolean loadImageWithoutRequest(ImageView imageView, String uri, Options options, ImageLoaderListener listener) {
+		if (GeneralUtils.isStringBlank(uri) || !ThreadChecker.isOnUiThread()) {
+			return false;
+		}
+
+		setMemoryLookupKey(mMemoryLookupKey, imageView, uri, options);
+		ImageViewBinding viewBinding = mViewBindings.get(imageView);
+		if (viewBinding != null && viewBinding.matches(imageView, mMemoryLookupKey, listener, mViewMapper.getListener(imageView))) {
+			return true;
+		}
+
+		Bitmap bitmap = mReferenceManager.getBitmapFromMemory(mMemoryLookupKey);
+		if (bitmap == null) {
+			return false;
+		}
+
+		ImageManagerListener oldListener = mViewMapper.removeListener(imageView);
+		if (oldListener != null) {
+			cancelImageRequest(imageView, oldListener);
+		}
+		displayMemoryHit(imageView, bitmap, mMemoryLookupKey, listener);
+		return true;
+	}
+
+	private void displayMemoryHit(ImageView imageView, Bitmap bitmap, MemoryLookupKey memoryLookupKey, ImageLoaderListener listener) {
+		if (listener == null) {
+			imageView.setImageBitmap(bitmap);
+		} else {
+			listener.onImageAvailable(imageView, bitmap, ImageReturnedFrom.MEMORY);
+		}
+		getViewBinding(imageView).setDisplayed(imageView, memoryLookupKey, listener);
+	}
+
+	private ImageViewBinding getViewBinding(ImageView imageView) {
+		ImageViewBinding viewBinding = mViewBindings.get(imageView);
+		if (viewBinding == null) {
+			viewBinding = new ImageViewBinding();
+			mViewBindings.put(imageView, viewBinding);
+		}
+		return viewBinding;
+	}
+
+	private void onImageDisplayed(ImageView imageView, ImageManagerListener listener) {
+		ImageViewBinding viewBinding = mViewBindings.get(imageView);
+		if (viewBinding != null) {
+			viewBinding.onDisplayed(imageView, listener);
+		}
+	}
+
+	/*
+	 * A failed request is not remembered, so that binding it again retries it.
+	 */
+	private void onImageFailed(ImageView imageView, ImageManagerListener listener) {
+		ImageViewBinding viewBinding = mViewBindings.get(imageView);
+		if (viewBinding != null && viewBinding.isPending(listener)) {
+			mViewBindings.remove(imageView);
+		}
 	}
 
 	private void setPreLoadImage(ImageView imageView, Options options) {
@@ -491,53 +935,116 @@ public abstract class AbstractImageLoader {
 	 * @return Returns the information the imageCacher needs to figure out how to decode the downloaded image.
 	 */
 	ScalingInfo getScalingInfo(ImageView imageView, final Options options) {
-		ScalingInfo scalingInfo = new ScalingInfo();
+		MemoryLookupKey memoryLookupKey = new MemoryLookupKey();
+		setMemoryLookupKey(memoryLookupKey, imageView, null, options);
+		return memoryLookupKey.toScalingInfo();
+	}
+
+	/**
+	 * Fills in the key with the URI, the options that affect decoding, and either the override sample size or the bounds the image will be scaled to fit. Nothing is allocated once the display size is known.
+	 */
+	private void setMemoryLookupKey(MemoryLookupKey memoryLookupKey, ImageView imageView, String uri, Options options) {
+		memoryLookupKey.mUri = uri;
+		memoryLookupKey.mScalingPreference = options.scalingPreference;
+		memoryLookupKey.mBitmapConfig = options.preferedConfig;
+		memoryLookupKey.mWidth = MemoryLookupKey.UNSPECIFIED;
+		memoryLookupKey.mHeight = MemoryLookupKey.UNSPECIFIED;
+
 		if (options.overrideSampleSize != null) {
-			scalingInfo.sampleSize = options.overrideSampleSize;
-			return scalingInfo;
+			memoryLookupKey.mSampleSize = options.overrideSampleSize;
+			return;
 		}
+		memoryLookupKey.mSampleSize = MemoryLookupKey.UNSPECIFIED;
 
 		/*
 		 * FIXME: It appears as though the width and height bound constraints are not being followed exactly. Review this implementation.
 		 */
-		Integer width = options.widthBounds;
-		Integer height = options.heightBounds;
+		int width = options.widthBounds == null ? MemoryLookupKey.UNSPECIFIED : options.widthBounds;
+		int height = options.heightBounds == null ? MemoryLookupKey.UNSPECIFIED : options.heightBounds;
 
 		if (options.useScreenSizeAsBounds) {
-			Dimensions screenSize = DisplayUtility.getDisplaySize(mApplicationContext);
-			width = Math.min(screenSize.width, width == null ? screenSize.width : width);
-			height = Math.min(screenSize.height, height == null ? screenSize.height : height);
+			Dimensions screenSize = getDisplaySize();
+			width = width == MemoryLookupKey.UNSPECIFIED ? screenSize.width : Math.min(screenSize.width, width);
+			height = height == MemoryLookupKey.UNSPECIFIED ? screenSize.height : Math.min(screenSize.height, height);
 		}
 
 		if (options.autoDetectBounds) {
-			Point imageBounds = ViewDimensionsUtil.getImageViewDimensions(imageView);
-			if (imageBounds.x != -1) {
-				if (width == null) {
-					width = imageBounds.x;
-				} else {
-					width = Math.min(width, imageBounds.x);
+			int viewWidth = ViewDimensionsUtil.getImageViewWidth(imageView);
+			int viewHeight = ViewDimensionsUtil.getImageViewHeight(imageView);
+			if (viewWidth == -1 || viewHeight == -1) {
+				Dimensions measuredSize = getMeasuredSize(imageView);
+				if (measuredSize != null) {
+					viewWidth = viewWidth == -1 && !ViewDimensionsUtil.isWrapContent(imageView, true) ? measuredSize.width : viewWidth;
+					viewHeight = viewHeight == -1 && !ViewDimensionsUtil.isWrapContent(imageView, false) ? measuredSize.height : viewHeight;
 				}
 			}
-			if (imageBounds.y != -1) {
-				if (height == null) {
-					height = imageBounds.y;
-				} else {
-					height = Math.min(height, imageBounds.y);
-				}
+
+			if (viewWidth != -1) {
+				width = width == MemoryLookupKey.UNSPECIFIED ? viewWidth : Math.min(width, viewWidth);
+			}
+			if (viewHeight != -1) {
+				height = height == MemoryLookupKey.UNSPECIFIED ? viewHeight : Math.min(height, viewHeight);
 			}
 		}
 
-		scalingInfo.width = width;
-		scalingInfo.height = height;
-		return scalingInfo;
+		memoryLookupKey.mWidth = width;
+		memoryLookupKey.mHeight = height;
+	}
+
+	/**
+	 * The display size is looked up again only when the orientation changes.
+	 */
+	private Dimensions getDisplaySize() {
+		int orientation = mApplicationContext.getResources().getConfiguration().orientation;
+		if (mDisplaySize == null || orientation != mDisplaySizeOrientation) {
+			mDisplaySize = DisplayUtility.getDisplaySize(mApplicationContext);
+			mDisplaySizeOrientation = orientation;
+		}
+		return mDisplaySize;
+	}
+
+	/**
+	 * Views of the same type, such as the rows of a list, share an ID and are usually the same size. The last measured size for each ID stands in for views that have not been laid out yet, so that only the first
+	 * of them waits to be measured.
+	 */
+	private Dimensions getMeasuredSize(ImageView imageView) {
+		int id = imageView.getId();
+		return id == View.NO_ID ? null : mMeasuredSizes.get(id);
+	}
+
+	private boolean isMeasurementRequired(ImageView imageView, Options options) {
+		return options.waitForMeasuredBounds && options.autoDetectBounds && options.overrideSampleSize == null && getMeasuredSize(imageView) == null
+				&& (isDimensionUnknown(imageView, true) || isDimensionUnknown(imageView, false));
+	}
+
+	/**
+	 * WRAP_CONTENT dimensions are never measured, so they are not waited on.
+	 */
+	private static boolean isDimensionUnknown(ImageView imageView, boolean isWidth) {
+		if (ViewDimensionsUtil.isWrapContent(imageView, isWidth)) {
+			return false;
+		}
+		return (isWidth ? ViewDimensionsUtil.getImageViewWidth(imageView) : ViewDimensionsUtil.getImageViewHeight(imageView)) == -1;
 	}
 
 	private void mapImageView(ImageView view, ImageManagerListener listener) {
 		ImageManagerListener oldListener = mViewMapper.removeListener(view);
 		if (oldListener != null) {
-			mReferenceManager.cancelRequest(oldListener);
+			cancelImageRequest(view, oldListener);
 		}
 		mViewMapper.registerImageViewToListener(view, listener);
+		mVisibilityTracker.track(view);
+	}
+
+	/**
+	 * @return The view that was waiting on the listener, or null if the listener has been replaced or cancelled.
+	 */
+	private ImageView unmapImageView(ImageManagerListener listener) {
+		ImageView view = mViewMapper.removeImageView(listener);
+		if (view != null) {
+			mVisibilityTracker.untrack(view);
+		}
+		return view;
 	}
 
 	/**
@@ -550,17 +1057,21 @@ public abstract class AbstractImageLoader {
 		return new ImageManagerListener() {
 			@Override
 			public void onLoadImageFailed(String error) {
-				ImageView imageView = mViewMapper.removeImageView(this);
-				if (imageView != null && options.unsuccessfulLoadResourceId != null) {
-					imageView.setImageResource(options.unsuccessfulLoadResourceId);
+				ImageView imageView = unmapImageView(this);
+				if (imageView != null) {
+					onImageFailed(imageView, this);
+					if (options.unsuccessfulLoadResourceId != null) {
+						imageView.setImageResource(options.unsuccessfulLoadResourceId);
+					}
 				}
 			}
 
 			@Override
 			public void onImageReceived(ImageResponse imageResponse) {
-				ImageView imageView = mViewMapper.removeImageView(this);
+				ImageView imageView = unmapImageView(this);
 				if (imageView != null) {
 					imageView.setImageBitmap(imageResponse.getBitmap());
+					onImageDisplayed(imageView, this);
 				}
 			}
 		};
@@ -577,18 +1088,22 @@ public abstract class AbstractImageLoader {
 		return new ImageManagerListener() {
 			@Override
 			public void onLoadImageFailed(String error) {
-				ImageView imageView = mViewMapper.removeImageView(this);
-				if (imageView != null && listenerOptions.unsuccessfulLoadResourceId != null) {
-					imageView.setImageResource(listenerOptions.unsuccessfulLoadResourceId);
+				ImageView imageView = unmapImageView(this);
+				if (imageView != null) {
+					onImageFailed(imageView, this);
+					if (listenerOptions.unsuccessfulLoadResourceId != null) {
+						imageView.setImageResource(listenerOptions.unsuccessfulLoadResourceId);
+					}
 				}
 				listener.onImageLoadError(error);
 			}
 
 			@Override
 			public void onImageReceived(ImageResponse imageResponse) {
-				ImageView imageView = mViewMapper.removeImageView(this);
+				ImageView imageView = unmapImageView(this);
 				if (imageView != null) {
 					listener.onImageAvailable(imageView, imageResponse.getBitmap(), imageResponse.getImageReturnedFrom());
+					onImageDisplayed(imageView, this);
 				}
 			}
 		};
@@ -611,6 +1126,107 @@ public abstract class AbstractImageLoader {
 		};
 	}
 
+	/**
+	 * Waits for the view to be laid out, then makes the request using its measured size. The view is checked just before each frame is drawn, by which time any pending layout has been done.
+	 */
+	private class DeferredRequest implements ViewTreeObserver.OnPreDrawListener {
+		final ImageView mImageView;
+		final String mUri;
+		final Options mOptions;
+		final ImageLoaderListener mImageLoaderListener;
+		final ImageManagerListener mImageManagerListener;
+
+		DeferredRequest(ImageView imageView, String uri, Options options, ImageLoaderListener imageLoaderListener, ImageManagerListener imageManagerListener) {
+			mImageView = imageView;
+			mUri = uri;
+			mOptions = options;
+			mImageLoaderListener = imageLoaderListener;
+			mImageManagerListener = imageManagerListener;
+		}
+
+		void register() {
+			mImageView.getViewTreeObserver().addOnPreDrawListener(this);
+		}
+
+		/*
+		 * A view that was not attached when the listener was added hands out a different observer once it is, and the listener has been moved to that observer.
+		 */
+		void unregister() {
+			ViewTreeObserver observer = mImageView.getViewTreeObserver();
+			if (observer.isAlive()) {
+				observer.removeOnPreDrawListener(this);
+			}
+		}
+
+		@Override
+		public boolean onPreDraw() {
+			if (mDeferredRequests.get(mImageView) != this) {
+				unregister();
+				return true;
+			}
+			if (mImageView.isLayoutRequested()) {
+				return true;
+			}
+
+			/*
+			 * A view that has been laid out with no size, such as a view with no drawable inside a WRAP_CONTENT parent, might never grow. The request then falls back to the LayoutParams and screen bounds.
+			 */
+			unregister();
+			mDeferredRequests.remove(mImageView);
+			if (ViewDimensionsUtil.isMeasured(mImageView) && mImageView.getId() != View.NO_ID) {
+				mMeasuredSizes.put(mImageView.getId(), new Dimensions(ViewDimensionsUtil.getImageViewWidth(mImageView), ViewDimensionsUtil.getImageViewHeight(mImageView)));
+			}
+
+			MemoryLookupKey memoryLookupKey = new MemoryLookupKey();
+			setMemoryLookupKey(memoryLookupKey, mImageView, mUri, mOptions);
+			Bitmap bitmap = mReferenceManager.getBitmapFromMemory(memoryLookupKey);
+			if (bitmap != null) {
+				// The request was never submitted, so there is nothing to cancel.
+				mViewMapper.removeListener(mImageView);
+				displayMemoryHit(mImageView, bitmap, memoryLookupKey, mImageLoaderListener);
+			} else {
+				getViewBinding(mImageView).setPending(memoryLookupKey, mImageLoaderListener, mImageManagerListener);
+				requestImage(mImageView, memoryLookupKey, mOptions, mImageManagerListener);
+			}
+			return true;
+		}
+	}
+
+	private static class HeldRequest {
+		final ImageRequest mImageRequest;
+		final ImageManagerListener mImageManagerListener;
+
+		HeldRequest(ImageRequest imageRequest, ImageManagerListener imageManagerListener) {
+			mImageRequest = imageRequest;
+			mImageManagerListener = imageManagerListener;
+		}
+	}
+
+	/**
+	 * A single request in a call to {@link AbstractImageLoader#loadImages(List)}. The options and listener have the same meaning as in the loadImage calls, and either may be null.
+	 */
+	public static class LoadRequest {
+		private final ImageView mImageView;
+		private final String mUri;
+		private final Options mOptions;
+		private final ImageLoaderListener mListener;
+
+		public LoadRequest(ImageView imageView, String uri) {
+			this(imageView, uri, null, null);
+		}
+
+		public LoadRequest(ImageView imageView, String uri, Options options) {
+			this(imageView, uri, options, null);
+		}
+
+		public LoadRequest(ImageView imageView, String uri, Options options, ImageLoaderListener listener) {
+			mImageView = imageView;
+			mUri = uri;
+			mOptions = options;
+			mListener = listener;
+		}
+	}
+
 	/**
 	 * This class provides all the options that can be set when making loadImage calls.
 	 * 
@@ -683,6 +1299,15 @@ public abstract class AbstractImageLoader {
 		 */
 		public boolean useScreenSizeAsBounds = true;
 
+		/**
+		 * If true, and autoDetectBounds is set, a request for an ImageView whose size cannot be read from its LayoutParams (for example MATCH_PARENT inside a weighted layout) waits until the view has been laid
+		 * out, and the image is then scaled to the view's measured size. Once a view with a given ID has been measured, views with the same ID use that size instead of waiting. WRAP_CONTENT dimensions are not
+		 * waited on, as a WRAP_CONTENT view takes the size of its current drawable. If the view is laid out with no size, the LayoutParams and screen bounds are used instead.<br>
+		 * <br>
+		 * Default value: false.
+		 */
+		public boolean waitForMeasuredBounds = false;
+
 		/**
 		 * The ImageLoader has the ability to automatically scale down images according to the bounds of the ImageView provided, or the bounds specified within this options object. This parameter is a flag for the sample
 		 * size calculation logic that changes how it chooses sample sizes. See {@link ScalingPreference} for further details.
@@ -1,26 +1,27 @@
 /*
  * Copyright 2013 Xtreme Labs
- * import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
-
-import android.graphics.Bitmap;
-
-import com.xtremelabs.imageutils.ImageCacher.ImageCacherListener;
-import com.xtremelabs.imageutils.ImageRequest.RequestType;
-import com.xtremelabs.imageutils.ImageResponse.ImageResponseStatus;
-import com.xtremelabs.imageutils.OperationTracker.KeyReferenceProvider;
-import com.xtremelabs.imageutils.OperationTracker.OperationTransferer;
-ess or implied.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
 
 package com.xtremelabs.imageutils;
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.graphics.Bitmap;
 
@@ -30,217 +31,445 @@ import com.xtremelabs.imageutils.ImageResponse.ImageResponseStatus;
 import com.xtremelabs.imageutils.OperationTracker.KeyReferenceProvider;
 import com.xtremelabs.imageutils.OperationTracker.OperationTransferer;
 
+/**
+ * Tracks the listeners waiting on each download, details request and decode, and moves them from one operation to the next.
+ * 
+ * None of the methods take a lock. The UI thread registering and cancelling listeners, and the download and decode threads completing operations, never block one another. Each request is resolved exactly once:
+ * whichever of its completion or its cancellation happens first wins, and the other has no effect.
+ */
 public class AsyncOperationsMaps {
 	public enum AsyncOperationState {
 		QUEUED_FOR_NETWORK_REQUEST, QUEUED_FOR_DETAILS_REQUEST, QUEUED_FOR_DECODE_REQUEST, NOT_QUEUED
 	}
 
-	private final OperationTracker<String, RequestParameters, ImageCacherListener> mNetworkOperationTracker = new OperationTracker<String, RequestParameters, ImageCacherListener>();
-	private final OperationTracker<String, RequestParameters, ImageCacherListener> mDetailsOperationTracker = new OperationTracker<String, RequestParameters, ImageCacherListener>();
-	private final OperationTracker<DecodeSignature, ImageCacherListener, ImageCacherListener> mDecodeOperationTracker = new OperationTracker<DecodeSignature, ImageCacherListener, ImageCacherListener>();
+	private final OperationTracker<String, RequestParameters, ImageCacherListener> mNetworkOperationTracker = new OperationTracker<String, RequestParameters, ImageCacherListener>(
+			new ListenerReferenceProvider<String>());
+	private final OperationTracker<String, RequestParameters, ImageCacherListener> mDetailsOperationTracker = new OperationTracker<String, RequestParameters, ImageCacherListener>(
+			new ListenerReferenceProvider<String>());
+	private final OperationTracker<DecodeSignature, RequestParameters, ImageCacherListener> mDecodeOperationTracker = new OperationTracker<DecodeSignature, RequestParameters, ImageCacherListener>(
+			new ListenerReferenceProvider<DecodeSignature>());
 
-	private final AsyncOperationsObserver mAsyncOperationsObserver;
+	/*
+	 * The unresolved request for each listener, wherever it currently is.
+	 */
+	private final ConcurrentHashMap<ImageCacherListener, RequestParameters> mPendingRequests = new ConcurrentHashMap<ImageCacherListener, RequestParameters>();
 
-	private final KeyReferenceProvider<String, RequestParameters, ImageCacherListener> mNetworkAndDetailsKeyReferenceProvider = new KeyReferenceProvider<String, RequestParameters, ImageCacherListener>() {
-		@Override
-		public ImageCacherListener getKeyReference(String operationKey, RequestParameters operationListValue) {
-			return operationListValue.mImageCacherListener;
-		}
-	};
+	private final AsyncOperationsObserver mAsyncOperationsObserver;
 
-	private final KeyReferenceProvider<DecodeSignature, ImageCacherListener, ImageCacherListener> mDecodeReferenceProvider = new KeyReferenceProvider<DecodeSignature, ImageCacherListener, ImageCacherListener>() {
-		@Override
-		public ImageCacherListener getKeyReference(DecodeSignature decodeSignature, ImageCacherListener imageCacherListener) {
-			return imageCacherListener;
-		}
-	};
+	private volatile boolean mCancelAbandonedRequests = true;
+	private volatile boolean mCompletePrecacheRequests = true;
 
 	public AsyncOperationsMaps(AsyncOperationsObserver asyncOperationsObserver) {
 		mAsyncOperationsObserver = asyncOperationsObserver;
 	}
 
-	public synchronized boolean isNetworkRequestPending(String uri) {
+	public boolean isNetworkRequestPending(String uri) {
 		return mNetworkOperationTracker.hasPendingOperation(uri);
 	}
 
-	public synchronized boolean isDetailsRequestPending(String uri) {
+	public boolean isDetailsRequestPending(String uri) {
 		return mDetailsOperationTracker.hasPendingOperation(uri);
 	}
 
-	public synchronized boolean isDecodeRequestPending(String uri, ScalingInfo scalingInfo, Bitmap.Config bitmapConfig) {
+	public boolean isDecodeRequestPending(String uri, ScalingInfo scalingInfo, Bitmap.Config bitmapConfig) {
 		DecodeSignature decodeSignature = new DecodeSignature(uri, mAsyncOperationsObserver.getSampleSize(new ImageRequest(uri, scalingInfo)), bitmapConfig);
+		return isDecodeRequestPending(decodeSignature);
+	}
+
+	public boolean isDecodeRequestPending(DecodeSignature decodeSignature) {
 		return mDecodeOperationTracker.hasPendingOperation(decodeSignature);
 	}
 
-	public synchronized AsyncOperationState queueListenerIfRequestPending(ImageRequest imageRequest, ImageCacherListener imageCacherListener) {
+	/**
+	 * @return The most important effective request type still waiting on the download, or null if none is.
+	 */
+	public RequestType getPendingNetworkRequestType(String uri) {
+		return isNetworkRequestPending(uri) ? getEffectiveRequestType(mNetworkOperationTracker.getListValues(uri)) : null;
+	}
+
+	/**
+	 * @return The most important effective request type still waiting on the decode, or null if none is.
+	 */
+	public RequestType getPendingDecodeRequestType(DecodeSignature decodeSignature) {
+		return isDecodeRequestPending(decodeSignature) ? getEffectiveRequestType(mDecodeOperationTracker.getListValues(decodeSignature)) : null;
+	}
+
+	public AsyncOperationState queueListenerIfRequestPending(ImageRequest imageRequest, ImageCacherListener imageCacherListener) {
 		String uri = imageRequest.getUri();
-		Bitmap.Config bitmapConfig = imageRequest.getOptions().preferedConfig;
-		if (isNetworkRequestPending(uri)) {
-			registerListenerForNetworkRequest(imageRequest, imageCacherListener);
+		boolean precache = isPrecache(imageRequest.getRequestType());
+		RequestParameters requestParameters = createPendingRequest(imageCacherListener, imageRequest);
+
+		if (mNetworkOperationTracker.registerIfPending(uri, requestParameters, precache)) {
 			return AsyncOperationState.QUEUED_FOR_NETWORK_REQUEST;
 		}
 
 		int sampleSize = mAsyncOperationsObserver.getSampleSize(imageRequest);
-		DecodeSignature decodeSignature = new DecodeSignature(uri, sampleSize, bitmapConfig);
-		if (isDecodeRequestPendingForParams(decodeSignature)) {
-			queueForDecodeRequest(imageCacherListener, decodeSignature);
+		DecodeSignature decodeSignature = new DecodeSignature(uri, sampleSize, imageRequest.getOptions().preferedConfig);
+		if (mDecodeOperationTracker.registerIfPending(decodeSignature, requestParameters, precache)) {
 			return AsyncOperationState.QUEUED_FOR_DECODE_REQUEST;
 		}
 
+		mPendingRequests.remove(imageCacherListener, requestParameters);
 		return AsyncOperationState.NOT_QUEUED;
 	}
 
-	public synchronized void registerListenerForNetworkRequest(ImageRequest imageRequest, ImageCacherListener imageCacherListener) {
-		RequestParameters networkRequestParameters = new RequestParameters(imageCacherListener, imageRequest);
-		mNetworkOperationTracker.register(imageRequest.getUri(), networkRequestParameters, imageCacherListener);
+	public void registerListenerForNetworkRequest(ImageRequest imageRequest, ImageCacherListener imageCacherListener) {
+		RequestParameters requestParameters = createPendingRequest(imageCacherListener, imageRequest);
+		mNetworkOperationTracker.register(imageRequest.getUri(), requestParameters, isPrecache(imageRequest.getRequestType()));
 	}
 
 	// TODO Fix naming convention. The NetworkRequestParameter object is no longer specific to network requests.
 	public void registerListenerForDetailsRequest(ImageRequest imageRequest, ImageCacherListener imageCacherListener) {
-		RequestParameters networkRequestParameters = new RequestParameters(imageCacherListener, imageRequest);
-		mDetailsOperationTracker.register(imageRequest.getUri(), networkRequestParameters, imageCacherListener);
+		RequestParameters requestParameters = createPendingRequest(imageCacherListener, imageRequest);
+		mDetailsOperationTracker.register(imageRequest.getUri(), requestParameters, false);
 	}
 
 	// TODO Refactor all calls to queueForDecodeRequest to instead point to this method.
-	public synchronized void registerListenerForDecode(DecodeSignature decodeSignature, ImageCacherListener imageCacherListener) {
-		queueForDecodeRequest(imageCacherListener, decodeSignature);
+	public void registerListenerForDecode(DecodeSignature decodeSignature, ImageCacherListener imageCacherListener) {
+		registerListenerForDecode(decodeSignature, RequestType.FULL_REQUEST, imageCacherListener);
 	}
 
-	public void onDecodeSuccess(Bitmap bitmap, ImageReturnedFrom returnedFrom, DecodeSignature decodeSignature) {
-		List<ImageCacherListener> listeners = mDecodeOperationTracker.removeList(decodeSignature, mDecodeReferenceProvider);
+	public void registerListenerForDecode(DecodeSignature decodeSignature, RequestType requestType, ImageCacherListener imageCacherListener) {
+		RequestParameters requestParameters = createPendingRequest(imageCacherListener, null, requestType);
+		mDecodeOperationTracker.register(decodeSignature, requestParameters, isPrecache(requestType));
+	}
 
-		for (ImageCacherListener listener : listeners) {
-			listener.onImageAvailable(new ImageResponse(bitmap, returnedFrom, ImageResponseStatus.SUCCESS));
+	/**
+	 * Registers a listener for a decode of an image that is on disk. Unlike the other overloads, the listener can be moved to a download if the image turns out to be missing. See
+	 * {@link #onDecodeImageMissing(DecodeSignature)}.
+	 */
+	public void registerListenerForDecode(DecodeSignature decodeSignature, ImageRequest imageRequest, ImageCacherListener imageCacherListener) {
+		RequestParameters requestParameters = createPendingRequest(imageCacherListener, imageRequest);
+		mDecodeOperationTracker.register(decodeSignature, requestParameters, isPrecache(imageRequest.getRequestType()));
+	}
+
+	/**
+	 * Demotes or restores the request a listener is waiting on. A demoted full request is treated as a precache request when its download or decode is queued, so requests for images that are not on screen
+	 * make way for those that are. Queued downloads and decodes move to the queue for the most important request still waiting on them.
+	 * 
+	 * Details requests only read image headers from disk, so they are left alone.
+	 */
+	public void setRequestDemoted(ImageCacherListener imageCacherListener, boolean demoted) {
+		RequestParameters requestParameters = mPendingRequests.get(imageCacherListener);
+		if (requestParameters == null || requestParameters.mDemoted == demoted) {
+			return;
+		}
+		requestParameters.mDemoted = demoted;
+
+		String uri = mNetworkOperationTracker.getOperationKey(imageCacherListener);
+		if (uri != null) {
+			RequestType requestType = getEffectiveRequestType(mNetworkOperationTracker.getListValues(uri));
+			if (requestType != null) {
+				mAsyncOperationsObserver.onNetworkRequestPriorityChanged(uri, requestType);
+			}
+			return;
+		}
+
+		DecodeSignature decodeSignature = mDecodeOperationTracker.getOperationKey(imageCacherListener);
+		if (decodeSignature != null) {
+			RequestType requestType = getEffectiveRequestType(mDecodeOperationTracker.getListValues(decodeSignature));
+			if (requestType != null) {
+				mAsyncOperationsObserver.onDecodeRequestPriorityChanged(decodeSignature, requestType);
+			}
+		}
+	}
+
+	/**
+	 * When enabled, an operation is cancelled as soon as the last listener waiting on it is cancelled. Queued work is removed from its queue and in-progress downloads are aborted. Enabled by default.
+	 */
+	public void setCancelAbandonedRequests(boolean cancelAbandonedRequests) {
+		mCancelAbandonedRequests = cancelAbandonedRequests;
+	}
+
+	/**
+	 * When enabled, operations that a precache request is waiting on are never cancelled, even once all of their listeners have been cancelled. Enabled by default.
+	 */
+	public void setCompletePrecacheRequests(boolean completePrecacheRequests) {
+		mCompletePrecacheRequests = completePrecacheRequests;
+	}
+
+	public void onDecodeSuccess(Bitmap bitmap, ImageReturnedFrom returnedFrom, DecodeSignature decodeSignature) {
+		List<RequestParameters> requestParametersList = mDecodeOperationTracker.removeList(decodeSignature);
+		if (requestParametersList != null) {
+			for (RequestParameters requestParameters : requestParametersList) {
+				if (resolve(requestParameters)) {
+					requestParameters.mImageCacherListener.onImageAvailable(new ImageResponse(bitmap, returnedFrom, ImageResponseStatus.SUCCESS));
+				}
+			}
 		}
 	}
 
 	public void onDecodeFailed(DecodeSignature decodeSignature, String message) {
-		List<ImageCacherListener> listeners = mDecodeOperationTracker.removeList(decodeSignature, mDecodeReferenceProvider);
-		for (ImageCacherListener listener : listeners) {
-			listener.onFailure(message);
+		notifyFailure(mDecodeOperationTracker.removeList(decodeSignature), message);
+	}
+
+	/**
+	 * Moves the listeners waiting on the decode to a download of the image. Listeners that were registered without an image request can not be moved, and are notified of the failure.
+	 * 
+	 * @return The most important effective request type that was moved, or null if no listener was moved.
+	 */
+	public RequestType onDecodeImageMissing(final DecodeSignature decodeSignature) {
+		final List<RequestType> requestTypes = new ArrayList<RequestType>();
+		mDecodeOperationTracker.transferOperation(decodeSignature, new OperationTransferer<DecodeSignature, RequestParameters, ImageCacherListener>() {
+			@Override
+			public void transferOperation(DecodeSignature decodeSignature, RequestParameters requestParameters, ImageCacherListener imageCacherListener) {
+				if (requestParameters.mImageRequest == null) {
+					if (resolve(requestParameters)) {
+						imageCacherListener.onFailure("The image is no longer on disk.");
+					}
+					return;
+				}
+				transferRequest(mNetworkOperationTracker, decodeSignature.mUri, requestParameters, isPrecache(requestParameters.mRequestType));
+				if (!requestParameters.mResolved.get()) {
+					requestTypes.add(requestParameters.getEffectiveRequestType());
+				}
+			}
+		});
+
+		RequestType mostImportantRequestType = null;
+		for (RequestType requestType : requestTypes) {
+			if (mostImportantRequestType == null || requestType.compareTo(mostImportantRequestType) > 0) {
+				mostImportantRequestType = requestType;
+			}
 		}
+		return mostImportantRequestType;
 	}
 
+	/**
+	 * The details request is started before the download's listeners are moved, so the request for the image is pending throughout.
+	 */
 	public void onDownloadComplete(String uri) {
-		moveNetworkListenersToDetailsQueue(uri);
+		if (mNetworkOperationTracker.hasPendingOperation(uri)) {
+			mDetailsOperationTracker.open(uri);
+		}
+		mNetworkOperationTracker.transferOperation(uri, new OperationTransferer<String, RequestParameters, ImageCacherListener>() {
+			@Override
+			public void transferOperation(String uri, RequestParameters requestParameters, ImageCacherListener imageCacherListener) {
+				transferRequest(mDetailsOperationTracker, uri, requestParameters, false);
+			}
+		});
 		mAsyncOperationsObserver.onImageDetailsRequired(uri);
 	}
 
 	public void onDownloadFailed(String uri, String message) {
-		List<RequestParameters> requestParametersList = mNetworkOperationTracker.removeList(uri, mNetworkAndDetailsKeyReferenceProvider);
-
-		for (RequestParameters networkRequestParameters : requestParametersList) {
-			networkRequestParameters.mImageCacherListener.onFailure(message);
-		}
+		notifyFailure(mNetworkOperationTracker.removeList(uri), message);
 	}
 
 	public void onDetailsRequestComplete(String uri) {
-		final Set<DecodeSignature> decodeRequestsToMake = new HashSet<DecodeSignature>();
-
-		synchronized (this) {
-			mDetailsOperationTracker.transferOperation(uri, new OperationTransferer<String, RequestParameters, ImageCacherListener>() {
-				@Override
-				public void transferOperation(String uri, RequestParameters networkRequestParameters, ImageCacherListener imageCacherListener) {
-					RequestType requestType = networkRequestParameters.mImageRequest.getRequestType();
-
-					switch (requestType) {
-					case CACHE_TO_DISK:
-						return;
-					case CACHE_TO_DISK_AND_MEMORY:
-					case FULL_REQUEST:
-						int sampleSize = mAsyncOperationsObserver.getSampleSize(new ImageRequest(uri, networkRequestParameters.mImageRequest.getScalingInfo()));
-						DecodeSignature decodeSignature = new DecodeSignature(uri, sampleSize, networkRequestParameters.mImageRequest.getOptions().preferedConfig);
-
-						queueForDecodeRequest(networkRequestParameters.mImageCacherListener, decodeSignature);
-						decodeRequestsToMake.add(decodeSignature);
-						break;
+		final Map<DecodeSignature, RequestType> decodeRequestsToMake = new HashMap<DecodeSignature, RequestType>();
+
+		mDetailsOperationTracker.transferOperation(uri, new OperationTransferer<String, RequestParameters, ImageCacherListener>() {
+			@Override
+			public void transferOperation(String uri, RequestParameters requestParameters, ImageCacherListener imageCacherListener) {
+				RequestType requestType = requestParameters.getEffectiveRequestType();
+
+				switch (requestType) {
+				case CACHE_TO_DISK:
+					if (resolve(requestParameters)) {
+						requestParameters.mImageCacherListener.onImageAvailable(new ImageResponse(null, ImageReturnedFrom.NETWORK, ImageResponseStatus.SUCCESS));
+					}
+					return;
+				case CACHE_TO_DISK_AND_MEMORY:
+				case FULL_REQUEST:
+					int sampleSize = mAsyncOperationsObserver.getSampleSize(new ImageRequest(uri, requestParameters.mImageRequest.getScalingInfo()));
+					DecodeSignature decodeSignature = new DecodeSignature(uri, sampleSize, requestParameters.mImageRequest.getOptions().preferedConfig);
+
+					transferRequest(mDecodeOperationTracker, decodeSignature, requestParameters, isPrecache(requestParameters.mRequestType));
+					RequestType queuedRequestType = decodeRequestsToMake.get(decodeSignature);
+					if (queuedRequestType == null || requestType.compareTo(queuedRequestType) > 0) {
+						decodeRequestsToMake.put(decodeSignature, requestType);
 					}
+					break;
 				}
-			}, mNetworkAndDetailsKeyReferenceProvider);
-		}
+			}
+		});
 
-		for (DecodeSignature decodeSignature : decodeRequestsToMake) {
-			mAsyncOperationsObserver.onImageDecodeRequired(decodeSignature);
+		for (Map.Entry<DecodeSignature, RequestType> decodeRequest : decodeRequestsToMake.entrySet()) {
+			mAsyncOperationsObserver.onImageDecodeRequired(decodeRequest.getKey(), decodeRequest.getValue());
 		}
 	}
 
 	public void onDetailsRequestFailed(String uri, String message) {
-		List<RequestParameters> list = mDetailsOperationTracker.removeList(uri, mNetworkAndDetailsKeyReferenceProvider);
+		notifyFailure(mDetailsOperationTracker.removeList(uri), message);
+	}
+
+	/**
+	 * Removes the listener from the operation it is waiting on. If no listeners remain, the operation may be cancelled. See {@link #setCancelAbandonedRequests(boolean)}.
+	 * 
+	 * Details requests only read image headers from disk, so they always run to completion.
+	 * 
+	 * @return True if the request was cancelled, in which case its listener will not be notified. False if the request had already completed or been cancelled.
+	 */
+	public boolean cancelPendingRequest(ImageCacherListener imageCacherListener) {
+		return cancelPendingRequest(imageCacherListener, mCompletePrecacheRequests);
+	}
+
+	/**
+	 * @param completePrecacheRequests
+	 *            Overrides {@link #setCompletePrecacheRequests(boolean)} for this cancellation.
+	 */
+	public boolean cancelPendingRequest(ImageCacherListener imageCacherListener, boolean completePrecacheRequests) {
+		RequestParameters requestParameters = mPendingRequests.get(imageCacherListener);
+		if (requestParameters == null || !resolve(requestParameters)) {
+			return false;
+		}
 
-		if (list != null) {
-			for (RequestParameters networkRequestParameters : list) {
-				networkRequestParameters.mImageCacherListener.onFailure(message);
+		/*
+		 * The request may be moving between operations, in which case it is not found here. It has been resolved, so the operation it is moving to will drop it.
+		 */
+		String uri = mNetworkOperationTracker.removeRequest(imageCacherListener);
+		if (uri != null) {
+			if (mCancelAbandonedRequests && mNetworkOperationTracker.abandonIfEmpty(uri, completePrecacheRequests)) {
+				mAsyncOperationsObserver.onNetworkRequestAbandoned(uri);
 			}
+			return true;
 		}
-	}
 
-	public synchronized void cancelPendingRequest(ImageCacherListener imageCacherListener) {
-		if (mNetworkOperationTracker.removeRequest(imageCacherListener, mNetworkAndDetailsKeyReferenceProvider, false) || mDetailsOperationTracker.removeRequest(imageCacherListener, mNetworkAndDetailsKeyReferenceProvider, false)
-				|| mDecodeOperationTracker.removeRequest(imageCacherListener, mDecodeReferenceProvider, false)) {
-			return;
+		if (mDetailsOperationTracker.removeRequest(imageCacherListener) != null) {
+			return true;
+		}
+
+		DecodeSignature decodeSignature = mDecodeOperationTracker.removeRequest(imageCacherListener);
+		if (decodeSignature != null && mCancelAbandonedRequests && mDecodeOperationTracker.abandonIfEmpty(decodeSignature, completePrecacheRequests)) {
+			mAsyncOperationsObserver.onDecodeRequestAbandoned(decodeSignature);
 		}
+		return true;
 	}
 
-	public synchronized int getNumPendingDownloads() {
+	public int getNumPendingDownloads() {
 		return mNetworkOperationTracker.getNumPendingOperations();
 	}
 
-	public synchronized int getNumPendingDetailsRequests() {
+	public int getNumPendingDetailsRequests() {
 		return mDetailsOperationTracker.getNumPendingOperations();
 	}
 
-	public synchronized int getNumPendingDecodes() {
+	public int getNumPendingDecodes() {
 		return mDecodeOperationTracker.getNumPendingOperations();
 	}
 
-	public synchronized int getNumListenersForNetwork() {
+	public int getNumListenersForNetwork() {
 		return mNetworkOperationTracker.getNumListValues();
 	}
 
-	public synchronized int getNumListenersForDetails() {
+	public int getNumListenersForDetails() {
 		return mDetailsOperationTracker.getNumListValues();
 	}
 
-	public synchronized int getNumListenersForDecode() {
+	public int getNumListenersForDecode() {
 		return mDecodeOperationTracker.getNumListValues();
 	}
 
-	public synchronized boolean isListenerWaitingOnNetwork(ImageCacherListener imageCacherListener) {
+	public boolean isListenerWaitingOnNetwork(ImageCacherListener imageCacherListener) {
 		return mNetworkOperationTracker.isOperationPendingForReference(imageCacherListener);
 	}
 
-	public synchronized boolean isListenerWaitingOnDetails(ImageCacherListener imageCacherListener) {
+	public boolean isListenerWaitingOnDetails(ImageCacherListener imageCacherListener) {
 		return mDetailsOperationTracker.isOperationPendingForReference(imageCacherListener);
 	}
 
-	public synchronized boolean isListenerWaitingOnDecode(ImageCacherListener imageCacherListener) {
+	public boolean isListenerWaitingOnDecode(ImageCacherListener imageCacherListener) {
 		return mDecodeOperationTracker.isOperationPendingForReference(imageCacherListener);
 	}
 
-	public synchronized boolean areMapsEmpty() {
+	public boolean areMapsEmpty() {
 		return mNetworkOperationTracker.getNumPendingOperations() == 0 && mNetworkOperationTracker.getNumListValues() == 0 && mDecodeOperationTracker.getNumPendingOperations() == 0 && mDecodeOperationTracker.getNumListValues() == 0
-				&& mDetailsOperationTracker.getNumPendingOperations() == 0 && mDetailsOperationTracker.getNumListValues() == 0;
+				&& mDetailsOperationTracker.getNumPendingOperations() == 0 && mDetailsOperationTracker.getNumListValues() == 0 && mPendingRequests.isEmpty();
 	}
 
-	private synchronized void queueForDecodeRequest(ImageCacherListener imageCacherListener, DecodeSignature decodeSignature) {
-		mDecodeOperationTracker.register(decodeSignature, imageCacherListener, imageCacherListener);
+	private static boolean isPrecache(RequestType requestType) {
+		return requestType != RequestType.FULL_REQUEST;
 	}
 
-	private synchronized void moveNetworkListenersToDetailsQueue(String uri) {
-		mNetworkOperationTracker.transferOperationToTracker(uri, mDetailsOperationTracker, mNetworkAndDetailsKeyReferenceProvider);
+	private RequestParameters createPendingRequest(ImageCacherListener imageCacherListener, ImageRequest imageRequest) {
+		return createPendingRequest(imageCacherListener, imageRequest, imageRequest.getRequestType());
 	}
 
-	private synchronized boolean isDecodeRequestPendingForParams(DecodeSignature decodeSignature) {
-		return mDecodeOperationTracker.hasPendingOperation(decodeSignature);
+	private RequestParameters createPendingRequest(ImageCacherListener imageCacherListener, ImageRequest imageRequest, RequestType requestType) {
+		RequestParameters requestParameters = new RequestParameters(imageCacherListener, imageRequest, requestType);
+		mPendingRequests.put(imageCacherListener, requestParameters);
+		return requestParameters;
+	}
+
+	/**
+	 * @return The most important effective request type among the unresolved requests, or null if there are none.
+	 */
+	private static RequestType getEffectiveRequestType(List<RequestParameters> requestParametersList) {
+		RequestType mostImportantRequestType = null;
+		for (RequestParameters requestParameters : requestParametersList) {
+			if (!requestParameters.mResolved.get()) {
+				RequestType requestType = requestParameters.getEffectiveRequestType();
+				if (mostImportantRequestType == null || requestType.compareTo(mostImportantRequestType) > 0) {
+					mostImportantRequestType = requestType;
+				}
+			}
+		}
+		return mostImportantRequestType;
+	}
+
+	/**
+	 * @return True if the request had not already been resolved. Only the caller that resolves a request may notify its listener.
+	 */
+	private boolean resolve(RequestParameters requestParameters) {
+		if (!requestParameters.mResolved.compareAndSet(false, true)) {
+			return false;
+		}
+		mPendingRequests.remove(requestParameters.mImageCacherListener, requestParameters);
+		return true;
+	}
+
+	/*
+	 * A request that is cancelled while it is being moved may be missed by the cancellation, so it is removed again once it has been moved.
+	 */
+	private <KEY> void transferRequest(OperationTracker<KEY, RequestParameters, ImageCacherListener> targetTracker, KEY operationKey, RequestParameters requestParameters, boolean precache) {
+		if (requestParameters.mResolved.get()) {
+			return;
+		}
+
+		targetTracker.register(operationKey, requestParameters, precache);
+		if (requestParameters.mResolved.get()) {
+			targetTracker.removeRequest(requestParameters.mImageCacherListener);
+		}
+	}
+
+	private void notifyFailure(List<RequestParameters> requestParametersList, String message) {
+		if (requestParametersList != null) {
+			for (RequestParameters requestParameters : requestParametersList) {
+				if (resolve(requestParameters)) {
+					requestParameters.mImageCacherListener.onFailure(message);
+				}
+			}
+		}
 	}
 
-	private class RequestParameters {
-		ImageCacherListener mImageCacherListener;
-		ImageRequest mImageRequest;
+	private static class ListenerReferenceProvider<KEY> implements KeyReferenceProvider<KEY, RequestParameters, ImageCacherListener> {
+		@Override
+		public ImageCacherListener getKeyReference(KEY operationKey, RequestParameters requestParameters) {
+			return requestParameters.mImageCacherListener;
+		}
+	}
 
-		RequestParameters(ImageCacherListener imageCacherListener, ImageRequest imageRequest) {
+	/*
+	 * The image request is null for listeners that were registered directly for a decode.
+	 */
+	private static class RequestParameters {
+		final ImageCacherListener mImageCacherListener;
+		final ImageRequest mImageRequest;
+		final RequestType mRequestType;
+		final AtomicBoolean mResolved = new AtomicBoolean(false);
+		volatile boolean mDemoted = false;
+
+		RequestParameters(ImageCacherListener imageCacherListener, ImageRequest imageRequest, RequestType requestType) {
 			mImageCacherListener = imageCacherListener;
 			mImageRequest = imageRequest;
+			mRequestType = requestType;
+		}
+
+		RequestType getEffectiveRequestType() {
+			if (mDemoted && mRequestType == RequestType.FULL_REQUEST) {
+				return RequestType.CACHE_TO_DISK_AND_MEMORY;
+			}
+			return mRequestType;
 		}
 	}
 }
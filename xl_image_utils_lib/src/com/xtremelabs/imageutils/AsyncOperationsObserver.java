@@ -16,8 +16,10 @@
 
 package com.xtremelabs.imageutils;
 
+import com.xtremelabs.imageutils.ImageRequest.RequestType;
+
 public interface AsyncOperationsObserver {
-	public void onImageDecodeRequired(DecodeSignature decodeSignature);
+	public void onImageDecodeRequired(DecodeSignature decodeSignature, RequestType requestType);
 
 	public int getSampleSize(ImageRequest imageRequest);
 
@@ -26,4 +28,12 @@ public interface AsyncOperationsObserver {
 	public boolean isDecodeRequestPending(DecodeSignature decodeSignature);
 
 	public void onImageDetailsRequired(String uri);
+
+	public void onNetworkRequestAbandoned(String uri);
+
+	public void onDecodeRequestAbandoned(DecodeSignature decodeSignature);
+
+	public void onNetworkRequestPriorityChanged(String uri, RequestType requestType);
+
+	public void onDecodeRequestPriorityChanged(DecodeSignature decodeSignature, RequestType requestType);
 }
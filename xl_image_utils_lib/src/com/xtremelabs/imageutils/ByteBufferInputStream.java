@@ -0,0 +1,91 @@
+/*
+ * Copyright 2013 Xtreme Labs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xtremelabs.imageutils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link InputStream} over the remaining bytes of a {@link ByteBuffer}. Supports mark and reset, so BitmapFactory does not need to wrap it in a BufferedInputStream.
+ * 
+ * This class is not thread safe.
+ */
+class ByteBufferInputStream extends InputStream {
+	private final ByteBuffer mBuffer;
+	private int mMark = -1;
+
+	public ByteBufferInputStream(ByteBuffer buffer) {
+		mBuffer = buffer;
+	}
+
+	@Override
+	public int read() {
+		if (!mBuffer.hasRemaining()) {
+			return -1;
+		}
+		return mBuffer.get() & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) {
+		if (length == 0) {
+			return 0;
+		}
+		if (!mBuffer.hasRemaining()) {
+			return -1;
+		}
+
+		int bytesToRead = Math.min(length, mBuffer.remaining());
+		mBuffer.get(buffer, offset, bytesToRead);
+		return bytesToRead;
+	}
+
+	@Override
+	public long skip(long numBytes) {
+		if (numBytes <= 0) {
+			return 0;
+		}
+
+		int bytesToSkip = (int) Math.min(numBytes, mBuffer.remaining());
+		mBuffer.position(mBuffer.position() + bytesToSkip);
+		return bytesToSkip;
+	}
+
+	@Override
+	public int available() {
+		return mBuffer.remaining();
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public synchronized void mark(int readLimit) {
+		mMark = mBuffer.position();
+	}
+
+	@Override
+	public synchronized void reset() throws IOException {
+		if (mMark < 0) {
+			throw new IOException("The stream has not been marked.");
+		}
+		mBuffer.position(mMark);
+	}
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright 2013 Xtreme Labs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xtremelabs.imageutils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.res.AssetFileDescriptor;
+
+/**
+ * A read-only, memory mapped snapshot of images and their dimensions. Bundles are produced with {@link Writer}, shipped as an APK asset or downloaded, and then served by the {@link DiskLRUCacher} exactly as if the
+ * images had been cached on disk.
+ * 
+ * Format: [int magic][int version][int count], followed by count index records of [int keyLength][key bytes (UTF-8)][long dataOffset][int dataLength][int width][int height], followed by the image bytes. Data
+ * offsets are relative to the start of the bundle.
+ */
+class CacheBundle {
+	static final int MAGIC = 0x584C4342; // "XLCB"
+	static final int VERSION = 1;
+
+	private static final int MAX_KEY_LENGTH = 64 * 1024;
+
+	private final ByteBuffer mBuffer;
+	private final Map<String, Entry> mIndex = new HashMap<String, Entry>();
+
+	private CacheBundle(ByteBuffer buffer) throws IOException {
+		mBuffer = buffer;
+		readIndex();
+	}
+
+	public static CacheBundle open(File file) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = randomAccessFile.getChannel();
+			return new CacheBundle(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+	/**
+	 * Maps a bundle that is stored uncompressed inside the APK. The mapping remains valid after the descriptor has been closed.
+	 */
+	public static CacheBundle open(AssetFileDescriptor assetFileDescriptor) throws IOException {
+		FileInputStream fileInputStream = new FileInputStream(assetFileDescriptor.getFileDescriptor());
+		try {
+			MappedByteBuffer buffer = fileInputStream.getChannel().map(FileChannel.MapMode.READ_ONLY, assetFileDescriptor.getStartOffset(), assetFileDescriptor.getLength());
+			return new CacheBundle(buffer);
+		} finally {
+			fileInputStream.close();
+			assetFileDescriptor.close();
+		}
+	}
+
+	public synchronized boolean contains(String uri) {
+		return mIndex.containsKey(uri);
+	}
+
+	public synchronized Dimensions getDimensions(String uri) {
+		Entry entry = mIndex.get(uri);
+		return entry == null ? null : new Dimensions(entry.mWidth, entry.mHeight);
+	}
+
+	/**
+	 * @return The bytes stored for the uri, or null if the uri is not in the bundle.
+	 */
+	public byte[] read(String uri) {
+		Entry entry;
+		synchronized (this) {
+			entry = mIndex.get(uri);
+		}
+		if (entry == null) {
+			return null;
+		}
+
+		byte[] data = new byte[entry.mLength];
+		ByteBuffer buffer = mBuffer.duplicate();
+		buffer.position(entry.mOffset);
+		buffer.get(data);
+		return data;
+	}
+
+	/**
+	 * Stops serving the provided uri. Used when an image in the bundle turns out to be undecodable.
+	 */
+	public synchronized void remove(String uri) {
+		mIndex.remove(uri);
+	}
+
+	private void readIndex() throws IOException {
+		ByteBuffer buffer = mBuffer.duplicate();
+		try {
+			if (buffer.getInt() != MAGIC) {
+				throw new IOException("The file is not a cache bundle.");
+			}
+			int version = buffer.getInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported cache bundle version: " + version);
+			}
+
+			int count = buffer.getInt();
+			for (int i = 0; i < count; i++) {
+				int keyLength = buffer.getInt();
+				if (keyLength <= 0 || keyLength > MAX_KEY_LENGTH) {
+					throw new IOException("Malformed cache bundle index.");
+				}
+				byte[] keyBytes = new byte[keyLength];
+				buffer.get(keyBytes);
+				long offset = buffer.getLong();
+				int length = buffer.getInt();
+				int width = buffer.getInt();
+				int height = buffer.getInt();
+
+				if (offset < 0 || length < 0 || offset + length > buffer.limit()) {
+					throw new IOException("Malformed cache bundle index.");
+				}
+				mIndex.put(new String(keyBytes, "UTF-8"), new Entry((int) offset, length, width, height));
+			}
+		} catch (BufferUnderflowException e) {
+			throw new IOException("The cache bundle is truncated.");
+		}
+	}
+
+	private static class Entry {
+		final int mOffset;
+		final int mLength;
+		final int mWidth;
+		final int mHeight;
+
+		Entry(int offset, int length, int width, int height) {
+			mOffset = offset;
+			mLength = length;
+			mWidth = width;
+			mHeight = height;
+		}
+	}
+
+	/**
+	 * Writes a cache bundle. Image bytes are spooled to a temporary file as they are added, since the size of the index is not known until the last image has been added.
+	 */
+	static class Writer {
+		private final File mDestination;
+		private final File mDataFile;
+		private final DataOutputStream mDataOutputStream;
+		private final List<Record> mRecords = new ArrayList<Record>();
+		private long mDataLength = 0;
+
+		public Writer(File destination) throws IOException {
+			mDestination = destination;
+			mDataFile = new File(destination.getAbsolutePath() + ".data");
+			mDataOutputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mDataFile), 16 * 1024));
+		}
+
+		public void add(String uri, InputStream inputStream, int width, int height) throws IOException {
+			long offset = mDataLength;
+			byte[] buffer = new byte[16 * 1024];
+			int bytesRead;
+			try {
+				while ((bytesRead = inputStream.read(buffer)) != -1) {
+					mDataOutputStream.write(buffer, 0, bytesRead);
+					mDataLength += bytesRead;
+				}
+			} finally {
+				inputStream.close();
+			}
+			mRecords.add(new Record(toBytes(uri), offset, (int) (mDataLength - offset), width, height));
+		}
+
+		public void finish() throws IOException {
+			mDataOutputStream.close();
+
+			long indexLength = 12;
+			for (Record record : mRecords) {
+				indexLength += 4 + record.mKeyBytes.length + 8 + 4 + 4 + 4;
+			}
+			if (indexLength + mDataLength > Integer.MAX_VALUE) {
+				throw new IOException("Cache bundles are limited to 2GB.");
+			}
+
+			DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mDestination), 16 * 1024));
+			InputStream dataInputStream = null;
+			try {
+				outputStream.writeInt(MAGIC);
+				outputStream.writeInt(VERSION);
+				outputStream.writeInt(mRecords.size());
+				for (Record record : mRecords) {
+					outputStream.writeInt(record.mKeyBytes.length);
+					outputStream.write(record.mKeyBytes);
+					outputStream.writeLong(indexLength + record.mOffset);
+					outputStream.writeInt(record.mLength);
+					outputStream.writeInt(record.mWidth);
+					outputStream.writeInt(record.mHeight);
+				}
+
+				dataInputStream = new FileInputStream(mDataFile);
+				byte[] buffer = new byte[16 * 1024];
+				int bytesRead;
+				while ((bytesRead = dataInputStream.read(buffer)) != -1) {
+					outputStream.write(buffer, 0, bytesRead);
+				}
+			} catch (IOException e) {
+				outputStream.close();
+				mDestination.delete();
+				throw e;
+			} finally {
+				if (dataInputStream != null) {
+					dataInputStream.close();
+				}
+				outputStream.close();
+				mDataFile.delete();
+			}
+		}
+
+		/**
+		 * Discards everything written so far. Safe to call after {@link #finish()}.
+		 */
+		public void abort() {
+			try {
+				mDataOutputStream.close();
+			} catch (IOException e) {
+			}
+			mDataFile.delete();
+		}
+
+		private static class Record {
+			final byte[] mKeyBytes;
+			final long mOffset;
+			final int mLength;
+			final int mWidth;
+			final int mHeight;
+
+			Record(byte[] keyBytes, long offset, int length, int width, int height) {
+				mKeyBytes = keyBytes;
+				mOffset = offset;
+				mLength = length;
+				mWidth = width;
+				mHeight = height;
+			}
+		}
+	}
+
+	private static byte[] toBytes(String uri) {
+		try {
+			return uri.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
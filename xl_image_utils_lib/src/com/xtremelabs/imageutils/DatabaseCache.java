@@ -16,6 +16,7 @@
 
 package com.xtremelabs.imageutils;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
@@ -51,6 +52,15 @@ class DatabaseCache {
 		}
 	}
 
+	/**
+	 * Removes the entry only if it has not been replaced since it was read.
+	 */
+	public synchronized void removeIfUnchanged(String uri, FileEntry fileEntry) {
+		if (mUriToFileEntry.get(uri) == fileEntry) {
+			remove(uri);
+		}
+	}
+
 	public synchronized String getLRU() {
 		return hashedUriQueue.peek();
 	}
@@ -76,7 +86,7 @@ class DatabaseCache {
 		return totalSizeOnDisk;
 	}
 
-	public Collection<FileEntry> getAllEntries() {
-		return mUriToFileEntry.values();
+	public synchronized Collection<FileEntry> getAllEntries() {
+		return new ArrayList<FileEntry>(mUriToFileEntry.values());
 	}
 }
@@ -0,0 +1,339 @@
+/*
+ * Copyright 2013 Xtreme Labs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xtremelabs.imageutils;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.xtremelabs.imageutils.ImageRequest.RequestType;
+
+/**
+ * Runs details requests and decodes on a {@link LifoThreadPool}, and adapts how many decodes may run at once.
+ * 
+ * Work is split into {@link Lane}s so that one multi-megapixel decode cannot hold up dozens of thumbnails. Details requests and large decodes may each run one at a time. Only one small decode may run at first. That
+ * limit grows by one each time a full limit's worth of decodes completes without a sign of trouble, up to a thread for every core but one. It is halved when the UI thread misses frames or a decode spends most of
+ * its time waiting for a CPU rather than running on one. A lane with nothing queued lends its unused threads to the other lanes until it has work again.
+ * 
+ * While decodes are running, a heartbeat is posted to the UI thread once a frame. A heartbeat that runs more than two frames late means the UI thread was too busy to draw for that long. The pool's threads run at
+ * background priority.
+ */
+class DecodeScheduler implements LifoThreadPool.TaskLimiter {
+	static final long FRAME_MILLIS = 16;
+	/*
+	 * Decodes whose bitmaps are larger than this go to the large decode lane. A 512x512 ARGB_8888 bitmap is this size.
+	 */
+	static final long LARGE_DECODE_BYTES = 1024 * 1024;
+
+	private static final long FRAME_OVERRUN_MILLIS = 2 * FRAME_MILLIS;
+	/*
+	 * Short decodes are dominated by scheduling noise, so they say little about contention.
+	 */
+	private static final long MINIMUM_DECODE_MILLIS_FOR_CONTENTION = 20;
+	private static final double CONTENDED_CPU_RATIO = 0.5;
+	/*
+	 * Gives the decodes that were running when the limit was decreased time to finish before it can be decreased again.
+	 */
+	private static final long BACK_OFF_COOLDOWN_MILLIS = 250;
+	private static final double SAMPLE_WEIGHT = 0.2;
+
+	enum Lane {
+		DETAILS, SMALL_DECODE, LARGE_DECODE
+	}
+
+	private final LifoThreadPool mThreadPool;
+	private final int mMaximumLimit;
+	private final Handler mUiHandler = new Handler(Looper.getMainLooper());
+	private final Map<Object, Lane> mQueuedLanes = new HashMap<Object, Lane>();
+	private final int[] mLaneLimits = new int[Lane.values().length];
+	private final int[] mNumQueued = new int[Lane.values().length];
+	private final int[] mNumActive = new int[Lane.values().length];
+	private int mNumActiveDecodes = 0;
+	private int mNumDecodesSinceIncrease = 0;
+	private long mNextBackOffTime = 0;
+	private boolean mHeartbeatPosted = false;
+	private long mHeartbeatDueTime;
+
+	private long mNumDecodes = 0;
+	private long mNumFrameOverruns = 0;
+	private long mNumBackOffs = 0;
+	private long mBusyMillis = 0;
+	private long mBusyStartTime;
+	private double mAverageQueueWaitMillis;
+	private double mAverageDecodeMillis;
+
+	public DecodeScheduler() {
+		this(getDefaultMaximumThreads());
+	}
+
+	/**
+	 * @param maximumThreads
+	 *            The most small decodes that may run at once.
+	 */
+	DecodeScheduler(int maximumThreads) {
+		mMaximumLimit = maximumThreads;
+		mLaneLimits[Lane.DETAILS.ordinal()] = 1;
+		mLaneLimits[Lane.SMALL_DECODE.ordinal()] = 1;
+		mLaneLimits[Lane.LARGE_DECODE.ordinal()] = 1;
+
+		mThreadPool = new LifoThreadPool(maximumThreads + 2);
+		mThreadPool.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+		mThreadPool.setTaskLimiter(this);
+	}
+
+	/**
+	 * One core is left for the UI thread.
+	 */
+	static int getDefaultMaximumThreads() {
+		return Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+	}
+
+	/**
+	 * @param dimensions
+	 *            The dimensions of the image on disk. Decodes of images whose dimensions are unknown are treated as large.
+	 */
+	static Lane getDecodeLane(Dimensions dimensions, DecodeSignature decodeSignature) {
+		if (dimensions == null || dimensions.width == null || dimensions.height == null) {
+			return Lane.LARGE_DECODE;
+		}
+
+		int sampleSize = Math.max(1, decodeSignature.mSampleSize);
+		long width = (dimensions.width + sampleSize - 1) / sampleSize;
+		long height = (dimensions.height + sampleSize - 1) / sampleSize;
+		long bytes = width * height * getBytesPerPixel(decodeSignature.mBitmapConfig);
+		return bytes > LARGE_DECODE_BYTES ? Lane.LARGE_DECODE : Lane.SMALL_DECODE;
+	}
+
+	private static int getBytesPerPixel(Bitmap.Config config) {
+		if (config == null) {
+			return 4;
+		}
+
+		switch (config) {
+		case ALPHA_8:
+			return 1;
+		case RGB_565:
+		case ARGB_4444:
+			return 2;
+		default:
+			return 4;
+		}
+	}
+
+	public void execute(Object key, Runnable runnable, Lane lane) {
+		execute(key, runnable, lane, RequestType.FULL_REQUEST);
+	}
+
+	public void execute(Object key, Runnable runnable, Lane lane, RequestType requestType) {
+		onQueued(key, lane);
+		mThreadPool.execute(key, new DecodeRunnable(runnable, lane), requestType);
+	}
+
+	public void bump(Object key, RequestType requestType) {
+		mThreadPool.bump(key, requestType);
+	}
+
+	public void setPriority(Object key, RequestType requestType) {
+		mThreadPool.setPriority(key, requestType);
+	}
+
+	/**
+	 * @return True if the request was removed before it started running.
+	 */
+	public boolean remove(Object key) {
+		if (!mThreadPool.remove(key)) {
+			return false;
+		}
+
+		synchronized (this) {
+			Lane lane = mQueuedLanes.remove(key);
+			if (lane != null) {
+				mNumQueued[lane.ordinal()]--;
+			}
+		}
+		return true;
+	}
+
+	synchronized void onQueued(Object key, Lane lane) {
+		if (mQueuedLanes.put(key, lane) == null) {
+			mNumQueued[lane.ordinal()]++;
+		}
+	}
+
+	/**
+	 * A request may start on one of its own lane's threads, or on a thread that is free because its lane has nothing queued.
+	 */
+	@Override
+	public synchronized boolean tryStart(Object key) {
+		Lane lane = mQueuedLanes.get(key);
+		if (lane == null) {
+			lane = Lane.DETAILS;
+		}
+		int index = lane.ordinal();
+
+		int numFreeThreads = 0;
+		int numReservedThreads = 0;
+		for (int i = 0; i < mLaneLimits.length; i++) {
+			int numFreeLaneThreads = Math.max(0, mLaneLimits[i] - mNumActive[i]);
+			numFreeThreads += mLaneLimits[i] - mNumActive[i];
+			if (i != index && mNumQueued[i] > 0) {
+				numReservedThreads += numFreeLaneThreads;
+			}
+		}
+
+		boolean hasOwnThread = mNumActive[index] < mLaneLimits[index];
+		if (numFreeThreads <= 0 || (!hasOwnThread && numFreeThreads <= numReservedThreads)) {
+			return false;
+		}
+
+		if (mQueuedLanes.remove(key) != null) {
+			mNumQueued[index]--;
+		}
+		mNumActive[index]++;
+		if (lane != Lane.DETAILS) {
+			if (mNumActiveDecodes++ == 0) {
+				mBusyStartTime = SystemClock.uptimeMillis();
+			}
+			postHeartbeat();
+		}
+		return true;
+	}
+
+	synchronized void onDetailsRequestFinished() {
+		mNumActive[Lane.DETAILS.ordinal()]--;
+	}
+
+	/**
+	 * @param queueWaitMillis
+	 *            The time the decode spent queued.
+	 * @param decodeMillis
+	 *            The time the decode took to run.
+	 * @param cpuMillis
+	 *            The time the decode spent running on a CPU.
+	 */
+	synchronized void onDecodeFinished(Lane lane, long queueWaitMillis, long decodeMillis, long cpuMillis) {
+		mNumActive[lane.ordinal()]--;
+		if (--mNumActiveDecodes == 0) {
+			mBusyMillis += SystemClock.uptimeMillis() - mBusyStartTime;
+		}
+		mAverageQueueWaitMillis = average(mAverageQueueWaitMillis, queueWaitMillis, mNumDecodes);
+		mAverageDecodeMillis = average(mAverageDecodeMillis, decodeMillis, mNumDecodes);
+		mNumDecodes++;
+
+		int smallDecodeLimit = mLaneLimits[Lane.SMALL_DECODE.ordinal()];
+		if (decodeMillis >= MINIMUM_DECODE_MILLIS_FOR_CONTENTION && cpuMillis < decodeMillis * CONTENDED_CPU_RATIO) {
+			backOff();
+		} else if (++mNumDecodesSinceIncrease >= smallDecodeLimit) {
+			mLaneLimits[Lane.SMALL_DECODE.ordinal()] = Math.min(mMaximumLimit, smallDecodeLimit + 1);
+			mNumDecodesSinceIncrease = 0;
+		}
+	}
+
+	synchronized void onFrameOverrun() {
+		mNumFrameOverruns++;
+		backOff();
+	}
+
+	public synchronized DecodeStatistics getStatistics() {
+		long busyMillis = mBusyMillis;
+		if (mNumActiveDecodes > 0) {
+			busyMillis += SystemClock.uptimeMillis() - mBusyStartTime;
+		}
+		double decodesPerSecond = busyMillis > 0 ? mNumDecodes * 1000.0 / busyMillis : 0;
+		return new DecodeStatistics(mLaneLimits[Lane.SMALL_DECODE.ordinal()], mMaximumLimit, mNumActiveDecodes, mNumDecodes, decodesPerSecond, mAverageQueueWaitMillis, mAverageDecodeMillis, mNumFrameOverruns,
+				mNumBackOffs);
+	}
+
+	private void backOff() {
+		mNumDecodesSinceIncrease = 0;
+
+		long now = SystemClock.uptimeMillis();
+		if (now < mNextBackOffTime) {
+			return;
+		}
+		mNextBackOffTime = now + BACK_OFF_COOLDOWN_MILLIS;
+
+		int index = Lane.SMALL_DECODE.ordinal();
+		mLaneLimits[index] = Math.max(1, (mLaneLimits[index] + 1) / 2);
+		mNumBackOffs++;
+	}
+
+	/*
+	 * Must be called while synchronized.
+	 */
+	private void postHeartbeat() {
+		if (!mHeartbeatPosted) {
+			mHeartbeatPosted = true;
+			mHeartbeatDueTime = SystemClock.uptimeMillis() + FRAME_MILLIS;
+			mUiHandler.postDelayed(mHeartbeat, FRAME_MILLIS);
+		}
+	}
+
+	private static double average(double average, double sample, long numPreviousSamples) {
+		if (numPreviousSamples == 0) {
+			return sample;
+		}
+		return average + (sample - average) * SAMPLE_WEIGHT;
+	}
+
+	private final Runnable mHeartbeat = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (DecodeScheduler.this) {
+				mHeartbeatPosted = false;
+				if (SystemClock.uptimeMillis() - mHeartbeatDueTime > FRAME_OVERRUN_MILLIS) {
+					onFrameOverrun();
+				}
+				if (mNumActiveDecodes > 0) {
+					postHeartbeat();
+				}
+			}
+		}
+	};
+
+	private class DecodeRunnable implements Runnable {
+		private final Runnable mRunnable;
+		private final Lane mLane;
+		private final long mQueuedTime = SystemClock.uptimeMillis();
+
+		DecodeRunnable(Runnable runnable, Lane lane) {
+			mRunnable = runnable;
+			mLane = lane;
+		}
+
+		@Override
+		public void run() {
+			long startTime = SystemClock.uptimeMillis();
+			long startCpuTime = SystemClock.currentThreadTimeMillis();
+			try {
+				mRunnable.run();
+			} finally {
+				if (mLane == Lane.DETAILS) {
+					onDetailsRequestFinished();
+				} else {
+					onDecodeFinished(mLane, startTime - mQueuedTime, SystemClock.uptimeMillis() - startTime, SystemClock.currentThreadTimeMillis() - startCpuTime);
+				}
+				mThreadPool.onCapacityAvailable();
+			}
+		}
+	}
+}
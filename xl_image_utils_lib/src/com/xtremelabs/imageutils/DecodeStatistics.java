@@ -0,0 +1,77 @@
+/*
+ * Copyright 2013 Xtreme Labs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xtremelabs.imageutils;
+
+/**
+ * A snapshot of how the image system is decoding images. The number of decodes allowed to run at once adapts to how busy the device is, so this is useful for seeing what that costs and gains.
+ */
+public class DecodeStatistics {
+	/**
+	 * The maximum number of small decodes that may currently run at once. Large decodes have a thread of their own, as do requests for image details.
+	 */
+	public final int threadLimit;
+
+	/**
+	 * The number of threads for small decodes. The thread limit never exceeds this.
+	 */
+	public final int maximumThreads;
+
+	/**
+	 * The number of decodes that are currently running.
+	 */
+	public final int activeDecodes;
+
+	public final long decodesCompleted;
+
+	/**
+	 * The number of decodes completed per second while at least one decode was running.
+	 */
+	public final double decodesPerSecond;
+
+	/**
+	 * The time decodes have recently spent queued before starting.
+	 */
+	public final double averageQueueWaitMillis;
+
+	/**
+	 * The time decodes have recently taken to run.
+	 */
+	public final double averageDecodeMillis;
+
+	/**
+	 * The number of times the UI thread has been seen to miss frames while decodes were running.
+	 */
+	public final long frameOverruns;
+
+	/**
+	 * The number of times the thread limit has been decreased.
+	 */
+	public final long backOffs;
+
+	public DecodeStatistics(int threadLimit, int maximumThreads, int activeDecodes, long decodesCompleted, double decodesPerSecond, double averageQueueWaitMillis, double averageDecodeMillis, long frameOverruns,
+			long backOffs) {
+		this.threadLimit = threadLimit;
+		this.maximumThreads = maximumThreads;
+		this.activeDecodes = activeDecodes;
+		this.decodesCompleted = decodesCompleted;
+		this.decodesPerSecond = decodesPerSecond;
+		this.averageQueueWaitMillis = averageQueueWaitMillis;
+		this.averageDecodeMillis = averageDecodeMillis;
+		this.frameOverruns = frameOverruns;
+		this.backOffs = backOffs;
+	}
+}
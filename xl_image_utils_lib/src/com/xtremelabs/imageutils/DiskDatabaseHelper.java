@@ -16,66 +16,150 @@
 
 package com.xtremelabs.imageutils;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.FileObserver;
+import android.os.Process;
 
+/**
+ * Keeps the disk cache index in SQLite, with an in-memory copy for fast lookups.
+ * 
+ * The index may be shared by several processes. SQLite serializes the individual writes. Schema changes and evictions also hold an {@link InterProcessLock}. New, evicted and deleted entries are announced
+ * by touching a stamp file, once per burst. The other processes watch the stamp file, copy the new entries into their in-memory index and drop the entries whose rows are gone.
+ */
 public class DiskDatabaseHelper extends SQLiteOpenHelper {
 	// TODO: Map columns to indices (Bug Josh).
 	private final String[] columns = { "url", "sizeondisk", "width", "height", "lastaccess" };
 
-	private final static int DATABASE_VERSION = 2;
+	/*
+	 * When changing the schema, increment the version and add a step to migrate(...) that upgrades the previous version in place. Versions older than FIRST_MIGRATABLE_VERSION have no migration path, so their index is
+	 * rebuilt from the files on disk.
+	 */
+	private final static int DATABASE_VERSION = 3;
+	private final static int FIRST_MIGRATABLE_VERSION = 2;
 	private final String DICTIONARY_TABLE_NAME = "img_cache";
 	private final String DICTIONARY_TABLE_CREATE = "CREATE TABLE IF NOT EXISTS " + DICTIONARY_TABLE_NAME + " (" + columns[0] + " VARCHAR PRIMARY KEY, " + columns[1] + " INTEGER, " + columns[2] + " INTEGER, " + columns[3] + " INTEGER, "
 			+ columns[4] + " INTEGER);";
+	private final String LAST_ACCESS_INDEX_CREATE = "CREATE INDEX IF NOT EXISTS " + DICTIONARY_TABLE_NAME + "_" + columns[4] + " ON " + DICTIONARY_TABLE_NAME + " (" + columns[4] + ");";
 	private final static String DATABASE_NAME = "imageCacheDatabase";
+	private final static String LOCK_FILE_SUFFIX = "-lock";
+	private final static String STAMP_FILE_SUFFIX = "-stamp";
+	private final static long SYNC_DELAY_MS = 100;
+	private final static long SYNC_MARGIN_MS = 5000;
 	private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
 	private DiskDatabaseHelperObserver mObserver;
 
-	private DatabaseCache mDatabaseCache = new DatabaseCache();
+	private final InterProcessLock mIndexLock;
+	private final File mStampFile;
+	private final FileObserver mStampObserver;
+	private final AtomicBoolean mIsSyncScheduled = new AtomicBoolean(false);
+	private final AtomicBoolean mIsTouchScheduled = new AtomicBoolean(false);
+	private final String mStampPrefix = Process.myPid() + "-" + System.identityHashCode(this) + "-";
+	private final AtomicInteger mNumStampsWritten = new AtomicInteger(0);
+	private volatile String mLastStampWritten;
+	private long mLastSyncedAccessTime;
+
+	private volatile DatabaseCache mDatabaseCache = new DatabaseCache();
 
 	public DiskDatabaseHelper(Context context, DiskDatabaseHelperObserver observer) {
 		super(context, DATABASE_NAME, null, DATABASE_VERSION);
 		mObserver = observer;
 
-		List<FileEntry> entries = getAllEntriesFromDatabase();
-		Comparator<FileEntry> comparator = new Comparator<FileEntry>() {
-			@Override
-			public int compare(FileEntry lhs, FileEntry rhs) {
-				long difference = lhs.getLastAccessTime() - rhs.getLastAccessTime();
-				if (difference < 0) {
-					return -1;
-				} else if (difference > 0) {
-					return 1;
-				} else {
-					return 0;
-				}
+		File databaseFile = context.getDatabasePath(DATABASE_NAME);
+		databaseFile.getParentFile().mkdirs();
+		mIndexLock = InterProcessLock.getLock(new File(databaseFile.getPath() + LOCK_FILE_SUFFIX), 0);
+		mStampFile = new File(databaseFile.getPath() + STAMP_FILE_SUFFIX);
+		mLastSyncedAccessTime = System.currentTimeMillis();
+
+		List<FileEntry> entries;
+		mIndexLock.lock();
+		try {
+			try {
+				entries = getAllEntriesFromDatabase();
+			} catch (SQLiteException e) {
+				Logger.w("The image cache database could not be read. It will be rebuilt from disk. Message: " + e.getMessage());
+				entries = recoverFromUnreadableDatabase(context);
 			}
-		};
-		Collections.sort(entries, comparator);
+		} finally {
+			mIndexLock.unlock();
+		}
+
 		for (FileEntry entry : entries) {
 			mDatabaseCache.put(entry.getUri(), entry);
 		}
+
+		mStampObserver = new FileObserver(databaseFile.getParent(), FileObserver.CLOSE_WRITE) {
+			@Override
+			public void onEvent(int event, String path) {
+				if (mStampFile.getName().equals(path) && !isOwnStamp()) {
+					scheduleSync();
+				}
+			}
+		};
+		mStampObserver.startWatching();
 	}
 
+	/**
+	 * Also called when the database file has gone missing or was deleted after being found corrupt. Any images that are still on disk are indexed again in the background.
+	 */
 	@Override
 	public void onCreate(SQLiteDatabase db) {
 		db.execSQL(DICTIONARY_TABLE_CREATE);
+		db.execSQL(LAST_ACCESS_INDEX_CREATE);
+		scheduleIndexRebuild();
 	}
 
 	@Override
 	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-		resetTable(db);
-		mObserver.onDatabaseWiped();
+		if (oldVersion < FIRST_MIGRATABLE_VERSION) {
+			rebuildTable(db);
+			return;
+		}
+
+		try {
+			for (int version = oldVersion; version < newVersion; version++) {
+				migrate(db, version);
+			}
+		} catch (SQLiteException e) {
+			Logger.w("Unable to migrate the image cache database from version " + oldVersion + ". It will be rebuilt from disk. Message: " + e.getMessage());
+			rebuildTable(db);
+		}
+	}
+
+	@Override
+	public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		rebuildTable(db);
+	}
+
+	/**
+	 * Upgrades the schema from the provided version to the next version, preserving all entries.
+	 */
+	private void migrate(SQLiteDatabase db, int fromVersion) {
+		switch (fromVersion) {
+		case 2:
+			db.execSQL(LAST_ACCESS_INDEX_CREATE);
+			break;
+		default:
+			throw new SQLiteException("No migration from version " + fromVersion);
+		}
 	}
 
 	public FileEntry getFileEntryFromDatabase(String uri) {
@@ -95,7 +179,7 @@ public class DiskDatabaseHelper extends SQLiteOpenHelper {
 	}
 
 	private List<FileEntry> getAllEntriesFromDatabase() {
-		Cursor cursor = getReadableDatabase().query(DICTIONARY_TABLE_NAME, null, null, null, null, null, null);
+		Cursor cursor = getReadableDatabase().query(DICTIONARY_TABLE_NAME, columns, null, null, null, null, columns[4] + " ASC");
 		List<FileEntry> list = new ArrayList<FileEntry>();
 		while (cursor.moveToNext()) {
 			list.add(createFileEntry(cursor));
@@ -118,8 +202,136 @@ public class DiskDatabaseHelper extends SQLiteOpenHelper {
 		values.put(columns[3], height);
 		values.put(columns[4], updateTime);
 
-		mDatabaseCache.put(url, new FileEntry(url, size, width, height, updateTime));
+		// The row is written first, so that a sync never finds the entry in memory without its row. See syncWithDatabase().
 		getWritableDatabase().insertWithOnConflict(DICTIONARY_TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+		mDatabaseCache.put(url, new FileEntry(url, size, width, height, updateTime));
+		scheduleStampTouch();
+	}
+
+	/*
+	 * Bursts of changes are announced with a single touch.
+	 */
+	private void scheduleStampTouch() {
+		if (mIsTouchScheduled.compareAndSet(false, true)) {
+			executor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					mIsTouchScheduled.set(false);
+					touchStampFile();
+				}
+			}, SYNC_DELAY_MS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Notifies other processes that entries have been added to or removed from the index. The stamp that is written identifies this helper, so that it can ignore its own touches.
+	 */
+	private void touchStampFile() {
+		String stamp = mStampPrefix + mNumStampsWritten.incrementAndGet();
+		mLastStampWritten = stamp;
+		FileOutputStream outputStream = null;
+		try {
+			outputStream = new FileOutputStream(mStampFile);
+			outputStream.write(stamp.getBytes());
+		} catch (IOException e) {
+			Logger.w("Unable to touch the image cache stamp file. Other processes will not see new entries. Message: " + e.getMessage());
+		} finally {
+			if (outputStream != null) {
+				try {
+					outputStream.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/*
+	 * A stamp that can not be read is treated as another process's, as syncing is always safe.
+	 */
+	private boolean isOwnStamp() {
+		String lastStampWritten = mLastStampWritten;
+		if (lastStampWritten == null) {
+			return false;
+		}
+
+		FileInputStream inputStream = null;
+		try {
+			inputStream = new FileInputStream(mStampFile);
+			byte[] buffer = new byte[lastStampWritten.length() + 1];
+			int length = 0;
+			int bytesRead;
+			while (length < buffer.length && (bytesRead = inputStream.read(buffer, length, buffer.length - length)) != -1) {
+				length += bytesRead;
+			}
+			return lastStampWritten.equals(new String(buffer, 0, length));
+		} catch (IOException e) {
+			return false;
+		} finally {
+			if (inputStream != null) {
+				try {
+					inputStream.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/*
+	 * Bursts of stamp changes are coalesced into a single sync.
+	 */
+	private void scheduleSync() {
+		if (mIsSyncScheduled.compareAndSet(false, true)) {
+			executor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					mIsSyncScheduled.set(false);
+					syncWithDatabase();
+				}
+			}, SYNC_DELAY_MS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Copies entries that were added by other processes into the in-memory index, and drops the entries that other processes evicted or deleted. New entries are found through the last access index. The margin
+	 * covers entries whose access time was taken shortly before an earlier sync, but that were only committed after it.
+	 */
+	void syncWithDatabase() {
+		Collection<FileEntry> entries;
+		Set<String> uris = new HashSet<String>();
+		Cursor cursor = null;
+		try {
+			SQLiteDatabase db = getReadableDatabase();
+			cursor = db.query(DICTIONARY_TABLE_NAME, columns, columns[4] + " >= ?", new String[] { Long.toString(mLastSyncedAccessTime - SYNC_MARGIN_MS) }, null, null, columns[4] + " ASC");
+			while (cursor.moveToNext()) {
+				FileEntry entry = createFileEntry(cursor);
+				if (!mDatabaseCache.isCached(entry.getUri())) {
+					mDatabaseCache.put(entry.getUri(), entry);
+				}
+				mLastSyncedAccessTime = Math.max(mLastSyncedAccessTime, entry.getLastAccessTime());
+			}
+			cursor.close();
+			cursor = null;
+
+			entries = mDatabaseCache.getAllEntries();
+			cursor = db.query(DICTIONARY_TABLE_NAME, new String[] { columns[0] }, null, null, null, null, null);
+			while (cursor.moveToNext()) {
+				uris.add(cursor.getString(0));
+			}
+		} catch (SQLiteException e) {
+			Logger.w("Unable to sync the image cache index. Message: " + e.getMessage());
+			return;
+		} finally {
+			if (cursor != null) {
+				cursor.close();
+			}
+		}
+
+		// The entries were read before the rows, so their rows had already been written. An entry that has since been replaced is kept.
+		for (FileEntry entry : entries) {
+			if (!uris.contains(entry.getUri())) {
+				mDatabaseCache.removeIfUnchanged(entry.getUri(), entry);
+			}
+		}
 	}
 
 	private boolean removeFileFromDatabase(String uri) {
@@ -147,11 +359,97 @@ public class DiskDatabaseHelper extends SQLiteOpenHelper {
 	}
 
 	void resetTable(SQLiteDatabase db) {
-		db.execSQL("DROP TABLE " + DICTIONARY_TABLE_NAME);
+		db.execSQL("DROP TABLE IF EXISTS " + DICTIONARY_TABLE_NAME);
 		db.execSQL(DICTIONARY_TABLE_CREATE);
+		db.execSQL(LAST_ACCESS_INDEX_CREATE);
 		mDatabaseCache = new DatabaseCache();
 	}
 
+	/**
+	 * Replaces the table with an empty one that is then rebuilt from the files on disk in the background. The images are only wiped if that fails.
+	 */
+	private void rebuildTable(SQLiteDatabase db) {
+		try {
+			resetTable(db);
+		} catch (SQLiteException e) {
+			Logger.w("Unable to rebuild the image cache database. The disk cache will be wiped. Message: " + e.getMessage());
+			mObserver.onDatabaseWiped();
+			return;
+		}
+		scheduleIndexRebuild();
+	}
+
+	/*
+	 * Reading the header of every cached file can take seconds, and the database is first opened by ImageCacher.getInstance, which is usually called on the UI thread. Until the rebuild completes, images that
+	 * have not been indexed yet are treated as misses.
+	 */
+	private void scheduleIndexRebuild() {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				rebuildIndexFromDisk();
+			}
+		});
+	}
+
+	/*
+	 * Images that were downloaded while the files were being read are already indexed, and their entries are kept.
+	 */
+	private void rebuildIndexFromDisk() {
+		List<FileEntry> entries = mObserver.rebuildEntriesFromDisk();
+		if (entries.isEmpty()) {
+			return;
+		}
+
+		mIndexLock.lock();
+		try {
+			SQLiteDatabase db = getWritableDatabase();
+			db.beginTransaction();
+			try {
+				for (FileEntry entry : entries) {
+					Dimensions dimensions = entry.getDimensions();
+					ContentValues values = new ContentValues();
+					values.put(columns[0], entry.getUri());
+					values.put(columns[1], entry.getSize());
+					values.put(columns[2], dimensions.width);
+					values.put(columns[3], dimensions.height);
+					values.put(columns[4], entry.getLastAccessTime());
+					db.insertWithOnConflict(DICTIONARY_TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+				}
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+		} catch (SQLiteException e) {
+			Logger.w("Unable to rebuild the image cache database. The disk cache will be wiped. Message: " + e.getMessage());
+			mObserver.onDatabaseWiped();
+			return;
+		} finally {
+			mIndexLock.unlock();
+		}
+
+		for (FileEntry entry : entries) {
+			if (!mDatabaseCache.isCached(entry.getUri())) {
+				mDatabaseCache.put(entry.getUri(), entry);
+			}
+		}
+	}
+
+	/**
+	 * Last resort for a database that cannot even be opened. The database file is deleted and recreated, which rebuilds the index from disk. If the new database cannot be read either, the disk cache is wiped.
+	 */
+	private List<FileEntry> recoverFromUnreadableDatabase(Context context) {
+		close();
+		context.deleteDatabase(DATABASE_NAME);
+		try {
+			return getAllEntriesFromDatabase();
+		} catch (SQLiteException e) {
+			Logger.w("Unable to recreate the image cache database. The disk cache will be wiped. Message: " + e.getMessage());
+			mObserver.onDatabaseWiped();
+			return new ArrayList<FileEntry>();
+		}
+	}
+
 	private FileEntry createFileEntry(Cursor cursor) {
 		FileEntry fileEntry = new FileEntry(cursor.getString(0), cursor.getLong(1), cursor.getInt(2), cursor.getInt(3), cursor.getLong(4));
 		return fileEntry;
@@ -161,6 +459,11 @@ public class DiskDatabaseHelper extends SQLiteOpenHelper {
 		public void onDatabaseWiped();
 
 		public void onImageEvicted(String uri);
+
+		/**
+		 * Called when the index has to be rebuilt. Implementations should return an entry for every valid image in the disk cache, and may delete any files they cannot read.
+		 */
+		public List<FileEntry> rebuildEntriesFromDisk();
 	}
 
 	public boolean isCached(String uri) {
@@ -168,16 +471,27 @@ public class DiskDatabaseHelper extends SQLiteOpenHelper {
 	}
 
 	public void removeLeastUsedFileFromCache(long maximumCacheSize) {
-		String uri;
-		while ((uri = mDatabaseCache.removeLRU(maximumCacheSize)) != null) {
-			removeFileFromDatabase(uri);
-			mObserver.onImageEvicted(uri);
+		mIndexLock.lock();
+		try {
+			String uri;
+			boolean evicted = false;
+			while ((uri = mDatabaseCache.removeLRU(maximumCacheSize)) != null) {
+				removeFileFromDatabase(uri);
+				mObserver.onImageEvicted(uri);
+				evicted = true;
+			}
+			if (evicted) {
+				scheduleStampTouch();
+			}
+		} finally {
+			mIndexLock.unlock();
 		}
 	}
 
 	public void deleteEntry(String uri) {
 		mDatabaseCache.remove(uri);
 		removeFileFromDatabase(uri);
+		scheduleStampTouch();
 	}
 
 	public long getTotalSizeOnDisk() {
@@ -16,42 +16,66 @@
 
 package com.xtremelabs.imageutils;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import android.content.Context;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.res.AssetFileDescriptor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 
+import com.xtremelabs.imageutils.DecodeScheduler.Lane;
 import com.xtremelabs.imageutils.DiskDatabaseHelper.DiskDatabaseHelperObserver;
+import com.xtremelabs.imageutils.ImageRequest.RequestType;
 
 public class DiskLRUCacher implements ImageDiskCacherInterface {
 	private static final int MAX_PERMANENT_STORAGE_IMAGE_DIMENSIONS_CACHED = 25; // TODO Optimize this value, or allow for API access to modify it.
+	private static final String ENTRY_LOCK_FILE_NAME = "entries.lock";
+	private static final int NUM_ENTRY_LOCK_STRIPES = 64;
+	private static final long STALE_TEMP_FILE_AGE = 60 * 60 * 1000; // 1 hour
+	private static final String BUNDLE_DIRECTORY = "imgbundle";
+	// URL encoding always escapes this character, so it never appears in an encoded asset name.
+	private static final String BUNDLE_VERSION_SEPARATOR = "@";
 
 	private long mMaximumCacheSizeInBytes = 50 * 1024 * 1024; // 50MB
+	private int mMaximumPackedImageSizeInBytes = 0; // Disabled by default.
+	private final Context mAppContext;
 	private final DiskManager mDiskManager;
+	private final DiskManager mLockDiskManager;
+	private final PackFileStore mPackFileStore;
+	private final List<CacheBundle> mCacheBundles = new ArrayList<CacheBundle>();
 	private final DiskDatabaseHelper mDatabaseHelper;
 	private ImageDiskObserver mImageDiskObserver;
 	private final MappedQueue<String, Dimensions> mPermanentStorageDimensionsCache = new MappedQueue<String, Dimensions>(MAX_PERMANENT_STORAGE_IMAGE_DIMENSIONS_CACHED);
-	private final HashMap<DecodeSignature, Runnable> mRequestToRunnableMap = new HashMap<DecodeSignature, Runnable>();
+	private final HashMap<DecodeSignature, DecodeRunnable> mRequestToRunnableMap = new HashMap<DecodeSignature, DecodeRunnable>();
 
 	/*
-	 * WARNING: Increasing the number of threads for image decoding will lag the UI thread.
-	 * 
-	 * It is highly recommended to leave the number of decode threads at one. Increasing this number too high will cause performance problems.
+	 * Decoding on too many threads at once lags the UI thread, so the scheduler backs off when the UI thread misses frames. Details requests, small decodes and large decodes are scheduled in separate lanes.
 	 */
-	private final LifoThreadPool mThreadPool = new LifoThreadPool(1);
+	private final DecodeScheduler mDecodeScheduler = new DecodeScheduler();
 
 	public DiskLRUCacher(Context appContext, ImageDiskObserver imageDecodeObserver) {
+		mAppContext = appContext;
 		mDiskManager = new DiskManager("img", appContext);
+		mLockDiskManager = new DiskManager("imglock", appContext);
+		mPackFileStore = new PackFileStore(new DiskManager("imgpack", appContext));
 		mDatabaseHelper = new DiskDatabaseHelper(appContext, mDiskDatabaseHelperObserver);
 		mImageDiskObserver = imageDecodeObserver;
 	}
@@ -63,7 +87,7 @@ public class DiskLRUCacher implements ImageDiskCacherInterface {
 		if (isPermanentStorageUri) {
 			return mPermanentStorageDimensionsCache.contains(uri);
 		} else {
-			return mDatabaseHelper.isCached(uri);
+			return mDatabaseHelper.isCached(uri) || getCacheBundle(uri) != null;
 		}
 	}
 
@@ -80,32 +104,40 @@ public class DiskLRUCacher implements ImageDiskCacherInterface {
 	@Override
 	public void retrieveImageDetails(final String uri) {
 		if (mPermanentStorageDimensionsCache.getValue(uri) == null) {
-			mThreadPool.execute(new Runnable() {
+			mDecodeScheduler.execute(uri, new Runnable() {
 				@Override
 				public void run() {
 					cacheImageDetails(uri);
 				}
-			});
+			}, Lane.DETAILS);
 		}
 	}
 
 	void cacheImageDetails(String uri) {
 		try {
-			File file;
-
 			boolean isFileSystemUri = GeneralUtils.isFileSystemUri(uri);
-			if (isFileSystemUri) {
-				file = new File(new URI(uri.replace(" ", "%20")).getPath());
+			byte[] packedImage = isFileSystemUri ? null : mPackFileStore.read(uri);
+
+			Dimensions dimensions;
+			long sizeOnDisk;
+			if (packedImage != null) {
+				dimensions = getImageDimensionsFromBytes(packedImage);
+				sizeOnDisk = packedImage.length;
 			} else {
-				file = getFile(uri);
+				File file;
+				if (isFileSystemUri) {
+					file = new File(new URI(uri.replace(" ", "%20")).getPath());
+				} else {
+					file = getFile(uri);
+				}
+				dimensions = getImageDimensionsFromDisk(file);
+				sizeOnDisk = file.length();
 			}
 
-			Dimensions dimensions = getImageDimensionsFromDisk(file);
-
 			if (isFileSystemUri) {
 				mPermanentStorageDimensionsCache.addOrBump(uri, dimensions);
 			} else {
-				mDatabaseHelper.addOrUpdateFile(uri, file.length(), dimensions.width, dimensions.height);
+				mDatabaseHelper.addOrUpdateFile(uri, sizeOnDisk, dimensions.width, dimensions.height);
 				clearLeastUsedFilesInCache();
 			}
 
@@ -114,46 +146,62 @@ public class DiskLRUCacher implements ImageDiskCacherInterface {
 			mImageDiskObserver.onImageDetailsRequestFailed(uri, "URISyntaxException caught when attempting to retrieve image details. URI: " + uri);
 		} catch (FileNotFoundException e) {
 			mImageDiskObserver.onImageDetailsRequestFailed(uri, "Image file not found. URI: " + uri);
+		} catch (IOException e) {
+			mImageDiskObserver.onImageDetailsRequestFailed(uri, "Unable to read the packed image. URI: " + uri + ", Message: " + e.getMessage());
 		}
 	}
 
 	@Override
-	public void getBitmapAsynchronouslyFromDisk(final DecodeSignature decodeSignature, final ImageReturnedFrom returnedFrom, final boolean noPreviousNetworkRequest) {
-		Runnable runnable = new Runnable() {
-			@Override
-			public void run() {
-				boolean failed = false;
-				String errorMessage = null;
-				Bitmap bitmap = null;
-				try {
-					bitmap = getBitmapSynchronouslyFromDisk(decodeSignature);
-				} catch (FileNotFoundException e) {
-					failed = true;
-					errorMessage = "Disk decode failed with error message: " + e.getMessage();
-				} catch (FileFormatException e) {
-					failed = true;
-					errorMessage = "Disk decode failed with error message: " + e.getMessage();
-				}
-				removeRequestFromMap(decodeSignature);
-
-				if (!failed) {
-					mImageDiskObserver.onImageDecoded(decodeSignature, bitmap, returnedFrom);
-				} else {
-					mDiskManager.deleteFile(encode(decodeSignature.mUri));
-					mDatabaseHelper.deleteEntry(decodeSignature.mUri);
-					mImageDiskObserver.onImageDecodeFailed(decodeSignature, errorMessage);
-				}
-			}
-		};
-
+	public void getBitmapAsynchronouslyFromDisk(DecodeSignature decodeSignature, ImageReturnedFrom returnedFrom, boolean noPreviousNetworkRequest, RequestType requestType) {
+		DecodeRunnable runnable = new DecodeRunnable(decodeSignature, returnedFrom);
 		if (mapRunnableToParameters(runnable, decodeSignature)) {
-			mThreadPool.execute(runnable);
+			Lane lane = DecodeScheduler.getDecodeLane(getImageDimensions(decodeSignature.mUri), decodeSignature);
+			mDecodeScheduler.execute(decodeSignature, runnable, lane, requestType);
+		} else {
+			mDecodeScheduler.bump(decodeSignature, requestType);
 		}
 	}
 
+	/**
+	 * Images that are no larger than the maximum packed image size are appended to the {@link PackFileStore}. All other images are written to their own file.
+	 */
 	@Override
 	public void downloadImageFromInputStream(String uri, InputStream inputStream) throws IOException {
-		mDiskManager.loadStreamToFile(inputStream, encode(uri));
+		String filename = encode(uri);
+		int maximumPackedImageSize = mMaximumPackedImageSizeInBytes;
+
+		if (maximumPackedImageSize > 0) {
+			byte[] buffer = new byte[maximumPackedImageSize + 1];
+			int length = readUpTo(inputStream, buffer);
+			if (length <= maximumPackedImageSize) {
+				inputStream.close();
+				InterProcessLock entryLock = getEntryLock(uri);
+				entryLock.lock();
+				try {
+					mPackFileStore.put(uri, buffer, length);
+					mDiskManager.deleteFile(filename);
+				} finally {
+					entryLock.unlock();
+				}
+				return;
+			}
+			inputStream = new SequenceInputStream(new ByteArrayInputStream(buffer, 0, length), inputStream);
+		}
+
+		/*
+		 * The download itself happens outside of the entry lock. Only publishing the file has to exclude other writers of the same entry.
+		 */
+		File tempFile = mDiskManager.loadStreamToTempFile(inputStream);
+		InterProcessLock entryLock = getEntryLock(uri);
+		entryLock.lock();
+		try {
+			mPackFileStore.remove(uri);
+			if (!mDiskManager.moveToFile(tempFile, filename)) {
+				throw new IOException("Unable to move the downloaded image into the disk cache. URI: " + uri);
+			}
+		} finally {
+			entryLock.unlock();
+		}
 	}
 
 	@Override
@@ -163,18 +211,135 @@ public class DiskLRUCacher implements ImageDiskCacherInterface {
 
 	// TODO This method should NOT be taking the sampleSize in directly, but rather the scaling info. The sampleSize should be calculated by the disk system.
 	@Override
-	public void bumpInQueue(DecodeSignature decodeSignature) {
+	public void bumpInQueue(DecodeSignature decodeSignature, RequestType requestType) {
+		mDecodeScheduler.bump(decodeSignature, requestType);
+	}
+
+	@Override
+	public void setPriorityInQueue(DecodeSignature decodeSignature, RequestType requestType) {
+		mDecodeScheduler.setPriority(decodeSignature, requestType);
+	}
+
+	@Override
+	public void cancelDecode(DecodeSignature decodeSignature) {
 		synchronized (mRequestToRunnableMap) {
-			mThreadPool.bump(mRequestToRunnableMap.get(decodeSignature));
+			if (mDecodeScheduler.remove(decodeSignature)) {
+				mRequestToRunnableMap.remove(decodeSignature);
+			}
 		}
 	}
 
+	@Override
+	public DecodeStatistics getDecodeStatistics() {
+		return mDecodeScheduler.getStatistics();
+	}
+
 	@Override
 	public void setDiskCacheSize(long sizeInBytes) {
 		mMaximumCacheSizeInBytes = sizeInBytes;
 		clearLeastUsedFilesInCache();
 	}
 
+	@Override
+	public void setMaximumPackedImageSize(int sizeInBytes) {
+		mMaximumPackedImageSizeInBytes = Math.max(0, sizeInBytes);
+	}
+
+	@Override
+	public void addCacheBundle(File file) throws IOException {
+		addCacheBundle(CacheBundle.open(file));
+	}
+
+	@Override
+	public void addCacheBundleFromAsset(String assetName) throws IOException {
+		AssetFileDescriptor assetFileDescriptor;
+		try {
+			assetFileDescriptor = mAppContext.getAssets().openFd(assetName);
+		} catch (FileNotFoundException e) {
+			addCacheBundleFromAssetCopy(assetName);
+			return;
+		}
+		addCacheBundle(CacheBundle.open(assetFileDescriptor));
+	}
+
+	/*
+	 * Compressed assets cannot be mapped. The bundle is copied out of the APK once per version of the app, as the asset may change in an update, and the copy is mapped instead. The copy is written to a temporary
+	 * file and renamed into place, and a copy that can not be opened is replaced.
+	 */
+	private void addCacheBundleFromAssetCopy(String assetName) throws IOException {
+		DiskManager diskManager = new DiskManager(BUNDLE_DIRECTORY, mAppContext);
+		String prefix = encode(assetName) + BUNDLE_VERSION_SEPARATOR;
+		String filename = prefix + getVersionCode();
+		File file = diskManager.getFile(filename);
+
+		if (file.exists()) {
+			try {
+				addCacheBundle(CacheBundle.open(file));
+				return;
+			} catch (IOException e) {
+				Logger.w("The copy of the cache bundle " + assetName + " could not be opened, and will be copied again. Message: " + e.getMessage());
+			}
+		}
+
+		for (File otherFile : diskManager.listFiles()) {
+			String name = otherFile.getName();
+			if (name.startsWith(prefix) || name.equals(encode(assetName)) || (DiskManager.isTempFile(otherFile) && System.currentTimeMillis() - otherFile.lastModified() > STALE_TEMP_FILE_AGE)) {
+				otherFile.delete();
+			}
+		}
+
+		InputStream inputStream = mAppContext.getAssets().open(assetName);
+		try {
+			diskManager.loadStreamToFile(inputStream, filename);
+		} finally {
+			inputStream.close();
+		}
+		addCacheBundle(CacheBundle.open(file));
+	}
+
+	private int getVersionCode() {
+		try {
+			return mAppContext.getPackageManager().getPackageInfo(mAppContext.getPackageName(), 0).versionCode;
+		} catch (NameNotFoundException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Writes the most recently used images in the disk cache to a bundle that can later be loaded with {@link #addCacheBundle(File)}. Images that have been evicted while the bundle is being written are skipped.
+	 */
+	@Override
+	public void exportCacheBundle(File destination, int maxNumberOfImages) throws IOException {
+		List<FileEntry> entries = new ArrayList<FileEntry>(mDatabaseHelper.getAllEntries());
+		Collections.sort(entries, new Comparator<FileEntry>() {
+			@Override
+			public int compare(FileEntry lhs, FileEntry rhs) {
+				long difference = rhs.getLastAccessTime() - lhs.getLastAccessTime();
+				return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+			}
+		});
+
+		CacheBundle.Writer writer = new CacheBundle.Writer(destination);
+		try {
+			int numImages = 0;
+			for (FileEntry entry : entries) {
+				if (numImages >= maxNumberOfImages) {
+					break;
+				}
+
+				InputStream inputStream = openCachedImage(entry.getUri());
+				if (inputStream != null) {
+					Dimensions dimensions = entry.getDimensions();
+					writer.add(entry.getUri(), inputStream, dimensions.width, dimensions.height);
+					numImages++;
+				}
+			}
+			writer.finish();
+		} finally {
+			writer.abort();
+		}
+	}
+
 	@Override
 	public Dimensions getImageDimensions(String uri) {
 		boolean isFromPermanentStorage = GeneralUtils.isFileSystemUri(uri);
@@ -187,7 +352,8 @@ public class DiskLRUCacher implements ImageDiskCacherInterface {
 			if (fileEntry != null) {
 				dimensions = fileEntry.getDimensions();
 			} else {
-				dimensions = null;
+				CacheBundle cacheBundle = getCacheBundle(uri);
+				dimensions = cacheBundle != null ? cacheBundle.getDimensions(uri) : null;
 			}
 		}
 
@@ -199,7 +365,7 @@ public class DiskLRUCacher implements ImageDiskCacherInterface {
 		mPermanentStorageDimensionsCache.remove(uri);
 	}
 
-	private boolean mapRunnableToParameters(Runnable runnable, DecodeSignature parameters) {
+	private boolean mapRunnableToParameters(DecodeRunnable runnable, DecodeSignature parameters) {
 		synchronized (mRequestToRunnableMap) {
 			if (!mRequestToRunnableMap.containsKey(parameters)) {
 				mRequestToRunnableMap.put(parameters, runnable);
@@ -216,13 +382,82 @@ public class DiskLRUCacher implements ImageDiskCacherInterface {
 		}
 	}
 
+	/**
+	 * Takes the queued decodes that can be derived from the same decode as the given one: those of the same URI and bitmap config. They stay mapped until they complete so that repeat requests are not decoded again.
+	 * 
+	 * Only decodes in the same {@link Lane} are taken. The merged decode runs at the smallest sample size, so taking a large decode in to a small one would run it on the small decode lane.
+	 */
+	private List<DecodeRunnable> takeCoalescableDecodes(DecodeSignature decodeSignature) {
+		List<DecodeRunnable> decodes = new ArrayList<DecodeRunnable>();
+		Dimensions dimensions = getImageDimensions(decodeSignature.mUri);
+		Lane lane = DecodeScheduler.getDecodeLane(dimensions, decodeSignature);
+		synchronized (mRequestToRunnableMap) {
+			for (Map.Entry<DecodeSignature, DecodeRunnable> entry : mRequestToRunnableMap.entrySet()) {
+				DecodeSignature otherDecodeSignature = entry.getKey();
+				if (!otherDecodeSignature.equals(decodeSignature) && otherDecodeSignature.mUri.equals(decodeSignature.mUri) && otherDecodeSignature.mBitmapConfig == decodeSignature.mBitmapConfig
+						&& DecodeScheduler.getDecodeLane(dimensions, otherDecodeSignature) == lane && mDecodeScheduler.remove(otherDecodeSignature)) {
+					decodes.add(entry.getValue());
+				}
+			}
+		}
+		return decodes;
+	}
+
+	/**
+	 * @return The bitmap, downscaled to what it would have been had it been decoded at the target sample size.
+	 */
+	static Bitmap scaleToSampleSize(Bitmap bitmap, int sampleSize, int targetSampleSize) {
+		if (targetSampleSize <= sampleSize) {
+			return bitmap;
+		}
+		int width = Math.max(1, bitmap.getWidth() * sampleSize / targetSampleSize);
+		int height = Math.max(1, bitmap.getHeight() * sampleSize / targetSampleSize);
+		return Bitmap.createScaledBitmap(bitmap, width, height, true);
+	}
+
 	Bitmap getBitmapSynchronouslyFromDisk(DecodeSignature decodeSignature) throws FileNotFoundException, FileFormatException {
 		String uri = decodeSignature.mUri;
 		int sampleSize = decodeSignature.mSampleSize;
 		Bitmap.Config bitmapConfig = decodeSignature.mBitmapConfig;
 
+		BitmapFactory.Options opts = new BitmapFactory.Options();
+		opts.inSampleSize = sampleSize;
+		opts.inPreferredConfig = bitmapConfig;
+
+		boolean isFileSystemUri = GeneralUtils.isFileSystemUri(uri);
+		if (!isFileSystemUri) {
+			byte[] packedImage;
+			try {
+				packedImage = mPackFileStore.read(uri);
+			} catch (IOException e) {
+				throw new FileNotFoundException("Unable to read the packed image. Message: " + e.getMessage());
+			}
+
+			if (packedImage != null) {
+				Bitmap bitmap = BitmapFactory.decodeByteArray(packedImage, 0, packedImage.length, opts);
+				if (bitmap == null) {
+					mPackFileStore.remove(uri);
+					throw new FileFormatException();
+				}
+				return bitmap;
+			}
+
+			CacheBundle cacheBundle = mDatabaseHelper.isCached(uri) ? null : getCacheBundle(uri);
+			if (cacheBundle != null) {
+				byte[] bundledImage = cacheBundle.read(uri);
+				if (bundledImage != null) {
+					Bitmap bitmap = BitmapFactory.decodeByteArray(bundledImage, 0, bundledImage.length, opts);
+					if (bitmap == null) {
+						cacheBundle.remove(uri);
+						throw new FileFormatException();
+					}
+					return bitmap;
+				}
+			}
+		}
+
 		File file = null;
-		if (GeneralUtils.isFileSystemUri(uri)) {
+		if (isFileSystemUri) {
 			try {
 				file = new File(new URI(uri).getPath());
 			} catch (URISyntaxException e) {
@@ -231,19 +466,7 @@ public class DiskLRUCacher implements ImageDiskCacherInterface {
 		} else {
 			file = getFile(uri);
 		}
-		FileInputStream fileInputStream = null;
-		fileInputStream = new FileInputStream(file);
-		BitmapFactory.Options opts = new BitmapFactory.Options();
-		opts.inSampleSize = sampleSize;
-		opts.inPreferredConfig = bitmapConfig;
-		Bitmap bitmap = BitmapFactory.decodeStream(fileInputStream, null, opts);
-		if (fileInputStream != null) {
-			try {
-				fileInputStream.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		}
+		Bitmap bitmap = ImageFileDecoder.decode(file, opts);
 		if (bitmap == null) {
 			file.delete();
 			throw new FileFormatException();
@@ -251,6 +474,55 @@ public class DiskLRUCacher implements ImageDiskCacherInterface {
 		return bitmap;
 	}
 
+	private void addCacheBundle(CacheBundle cacheBundle) {
+		synchronized (mCacheBundles) {
+			mCacheBundles.add(cacheBundle);
+		}
+	}
+
+	private CacheBundle getCacheBundle(String uri) {
+		synchronized (mCacheBundles) {
+			for (CacheBundle cacheBundle : mCacheBundles) {
+				if (cacheBundle.contains(uri)) {
+					return cacheBundle;
+				}
+			}
+		}
+		return null;
+	}
+
+	private void deleteImage(String uri) {
+		InterProcessLock entryLock = getEntryLock(uri);
+		entryLock.lock();
+		try {
+			mDiskManager.deleteFile(encode(uri));
+			mPackFileStore.remove(uri);
+		} finally {
+			entryLock.unlock();
+		}
+	}
+
+	/**
+	 * Entries are striped over a fixed set of locks, so that the lock file does not grow with the size of the cache.
+	 */
+	private InterProcessLock getEntryLock(String uri) {
+		int stripe = (uri.hashCode() & Integer.MAX_VALUE) % NUM_ENTRY_LOCK_STRIPES;
+		return InterProcessLock.getLock(mLockDiskManager.getFile(ENTRY_LOCK_FILE_NAME), stripe);
+	}
+
+	private InputStream openCachedImage(String uri) throws IOException {
+		byte[] packedImage = mPackFileStore.read(uri);
+		if (packedImage != null) {
+			return new ByteArrayInputStream(packedImage);
+		}
+
+		try {
+			return new FileInputStream(getFile(uri));
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+	}
+
 	private void clearLeastUsedFilesInCache() {
 		mDatabaseHelper.removeLeastUsedFileFromCache(mMaximumCacheSizeInBytes);
 	}
@@ -270,18 +542,29 @@ public class DiskLRUCacher implements ImageDiskCacherInterface {
 
 	private Dimensions getImageDimensionsFromDisk(File file) throws FileNotFoundException {
 		try {
-			FileInputStream fileInputStream;
-			fileInputStream = new FileInputStream(file);
-			BitmapFactory.Options o = new BitmapFactory.Options();
-			o.inJustDecodeBounds = true;
-			BitmapFactory.decodeStream(fileInputStream, null, o);
-			return new Dimensions(o.outWidth, o.outHeight);
+			return ImageFileDecoder.decodeDimensions(file);
 		} catch (FileNotFoundException e) {
 			e.printStackTrace();
 			throw e;
 		}
 	}
 
+	private Dimensions getImageDimensionsFromBytes(byte[] data) {
+		BitmapFactory.Options o = new BitmapFactory.Options();
+		o.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(data, 0, data.length, o);
+		return new Dimensions(o.outWidth, o.outHeight);
+	}
+
+	private static int readUpTo(InputStream inputStream, byte[] buffer) throws IOException {
+		int length = 0;
+		int bytesRead;
+		while (length < buffer.length && (bytesRead = inputStream.read(buffer, length, buffer.length - length)) != -1) {
+			length += bytesRead;
+		}
+		return length;
+	}
+
 	public static class FileFormatException extends Exception {
 		/**
 		 * 
@@ -294,18 +577,143 @@ public class DiskLRUCacher implements ImageDiskCacherInterface {
 		return mRequestToRunnableMap.containsKey(decodeSignature);
 	}
 
+	/**
+	 * Pending decodes of the same URI at other sample sizes are coalesced in to this one. The file is decoded once at the smallest sample size, and the other sizes are downscaled from it in memory.
+	 */
+	private class DecodeRunnable implements Runnable {
+		private final DecodeSignature mDecodeSignature;
+		private final ImageReturnedFrom mReturnedFrom;
+
+		DecodeRunnable(DecodeSignature decodeSignature, ImageReturnedFrom returnedFrom) {
+			mDecodeSignature = decodeSignature;
+			mReturnedFrom = returnedFrom;
+		}
+
+		@Override
+		public void run() {
+			List<DecodeRunnable> decodes = takeCoalescableDecodes(mDecodeSignature);
+			decodes.add(this);
+
+			int sampleSize = mDecodeSignature.mSampleSize;
+			for (DecodeRunnable decode : decodes) {
+				sampleSize = Math.min(sampleSize, decode.mDecodeSignature.mSampleSize);
+			}
+
+			boolean failed = false;
+			boolean missing = false;
+			String errorMessage = null;
+			Bitmap bitmap = null;
+			try {
+				bitmap = getBitmapSynchronouslyFromDisk(new DecodeSignature(mDecodeSignature.mUri, sampleSize, mDecodeSignature.mBitmapConfig));
+			} catch (FileNotFoundException e) {
+				// Another process may have evicted the image after it was found in the index. Network images can be downloaded again.
+				failed = true;
+				missing = !GeneralUtils.isFileSystemUri(mDecodeSignature.mUri);
+				errorMessage = "Disk decode failed with error message: " + e.getMessage();
+			} catch (FileFormatException e) {
+				failed = true;
+				errorMessage = "Disk decode failed with error message: " + e.getMessage();
+			}
+			for (DecodeRunnable decode : decodes) {
+				removeRequestFromMap(decode.mDecodeSignature);
+			}
+
+			if (!failed) {
+				List<Bitmap> bitmaps = new ArrayList<Bitmap>(decodes.size());
+				for (DecodeRunnable decode : decodes) {
+					bitmaps.add(scaleToSampleSize(bitmap, sampleSize, decode.mDecodeSignature.mSampleSize));
+				}
+				for (int i = 0; i < decodes.size(); i++) {
+					mImageDiskObserver.onImageDecoded(decodes.get(i).mDecodeSignature, bitmaps.get(i), decodes.get(i).mReturnedFrom);
+				}
+			} else {
+				deleteImage(mDecodeSignature.mUri);
+				mDatabaseHelper.deleteEntry(mDecodeSignature.mUri);
+				for (DecodeRunnable decode : decodes) {
+					if (missing) {
+						mImageDiskObserver.onImageMissingFromDisk(decode.mDecodeSignature);
+					} else {
+						mImageDiskObserver.onImageDecodeFailed(decode.mDecodeSignature, errorMessage);
+					}
+				}
+			}
+		}
+	}
+
 	private final DiskDatabaseHelperObserver mDiskDatabaseHelperObserver = new DiskDatabaseHelperObserver() {
 		@Override
 		public void onDatabaseWiped() {
 			mDiskManager.clearDirectory();
+			mPackFileStore.clear();
 		}
 
 		@Override
 		public void onImageEvicted(String uri) {
-			mDiskManager.deleteFile(encode(uri));
+			deleteImage(uri);
+		}
+
+		@Override
+		public List<FileEntry> rebuildEntriesFromDisk() {
+			return DiskLRUCacher.this.rebuildEntriesFromDisk();
 		}
 	};
 
+	/**
+	 * Recreates the index entries for every image in the disk cache by reading the image headers. Files that cannot be decoded are deleted.
+	 */
+	List<FileEntry> rebuildEntriesFromDisk() {
+		List<FileEntry> entries = new ArrayList<FileEntry>();
+
+		for (File file : mDiskManager.listFiles()) {
+			if (DiskManager.isTempFile(file)) {
+				if (System.currentTimeMillis() - file.lastModified() > STALE_TEMP_FILE_AGE) {
+					file.delete();
+				}
+				continue;
+			}
+
+			String uri;
+			try {
+				uri = URLDecoder.decode(file.getName(), "UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				continue;
+			} catch (IllegalArgumentException e) {
+				file.delete();
+				continue;
+			}
+
+			Dimensions dimensions;
+			try {
+				dimensions = getImageDimensionsFromDisk(file);
+			} catch (FileNotFoundException e) {
+				continue;
+			}
+
+			if (dimensions.width <= 0 || dimensions.height <= 0) {
+				file.delete();
+			} else {
+				entries.add(new FileEntry(uri, file.length(), dimensions.width, dimensions.height, file.lastModified()));
+			}
+		}
+
+		long rebuildTime = System.currentTimeMillis();
+		for (String uri : mPackFileStore.getKeys()) {
+			try {
+				byte[] packedImage = mPackFileStore.read(uri);
+				Dimensions dimensions = packedImage == null ? null : getImageDimensionsFromBytes(packedImage);
+				if (dimensions == null || dimensions.width <= 0 || dimensions.height <= 0) {
+					mPackFileStore.remove(uri);
+				} else {
+					entries.add(new FileEntry(uri, packedImage.length, dimensions.width, dimensions.height, rebuildTime));
+				}
+			} catch (IOException e) {
+				mPackFileStore.remove(uri);
+			}
+		}
+
+		return entries;
+	}
+
 	void stubImageDiskObserver(ImageDiskObserver imageDecodeObserver) {
 		mImageDiskObserver = imageDecodeObserver;
 	}
@@ -27,9 +27,16 @@ import android.os.Environment;
 /**
  * Provides access to basic disk operations.
  * 
+ * Streams are written to a temporary file that is then renamed into place, so a file is never visible to readers in this or any other process until it is complete.
+ * 
  * This class is not thread safe.
  */
 public class DiskManager {
+	/*
+	 * URLEncoder always encodes "~", so temporary files can never collide with the name of a cached image.
+	 */
+	private static final String TEMP_FILE_PREFIX = "~tmp";
+
 	private final String subDirectory;
 	private final Context appContext;
 	private File cacheDir; // Do not access this variable directly. It can disappear at any time. Use "getCacheDir()" instead.
@@ -50,7 +57,17 @@ public class DiskManager {
 	}
 
 	public void loadStreamToFile(InputStream inputStream, String filename) throws IOException {
-		File file = new File(getCacheDir(), filename);
+		File tempFile = loadStreamToTempFile(inputStream);
+		if (!moveToFile(tempFile, filename)) {
+			throw new IOException("Unable to move the downloaded file into place. File: " + filename);
+		}
+	}
+
+	/**
+	 * Writes the stream to a uniquely named temporary file. The file should be passed to {@link #moveToFile(File, String)} once any locks required to publish it have been acquired.
+	 */
+	public File loadStreamToTempFile(InputStream inputStream) throws IOException {
+		File file = File.createTempFile(TEMP_FILE_PREFIX, null, getCacheDir());
 		FileOutputStream fileOutputStream = null;
 
 		try {
@@ -83,6 +100,22 @@ public class DiskManager {
 				e.printStackTrace();
 			}
 		}
+		return file;
+	}
+
+	/**
+	 * Atomically replaces the named file with the provided temporary file. The temporary file is deleted if the move fails.
+	 */
+	public boolean moveToFile(File tempFile, String filename) {
+		if (tempFile.renameTo(new File(getCacheDir(), filename))) {
+			return true;
+		}
+		tempFile.delete();
+		return false;
+	}
+
+	public static boolean isTempFile(File file) {
+		return file.getName().startsWith(TEMP_FILE_PREFIX);
 	}
 
 	private synchronized File getCacheDir() {
@@ -105,6 +138,11 @@ public class DiskManager {
 		return cacheDir;
 	}
 
+	public File[] listFiles() {
+		File[] files = getCacheDir().listFiles();
+		return files == null ? new File[0] : files;
+	}
+
 	public void clearDirectory() {
 		deleteDirectory(getCacheDir());
 	}
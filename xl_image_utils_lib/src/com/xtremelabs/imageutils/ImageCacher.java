@@ -16,11 +16,23 @@
 
 package com.xtremelabs.imageutils;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.os.Build;
 
 import com.xtremelabs.imageutils.AsyncOperationsMaps.AsyncOperationState;
+import com.xtremelabs.imageutils.ImageRequest.RequestType;
 import com.xtremelabs.imageutils.ImageResponse.ImageResponseStatus;
 
 /**
@@ -30,6 +42,7 @@ import com.xtremelabs.imageutils.ImageResponse.ImageResponseStatus;
  */
 public class ImageCacher implements ImageDownloadObserver, ImageDiskObserver, AsyncOperationsObserver {
 	private static ImageCacher mImageCacher;
+	private static final int MAX_MEMORY_LOOKUPS = 256;
 
 	private ImageDiskCacherInterface mDiskCache;
 	private ImageMemoryCacherInterface mMemoryCache;
@@ -37,6 +50,33 @@ public class ImageCacher implements ImageDownloadObserver, ImageDiskObserver, As
 
 	private AsyncOperationsMaps mAsyncOperationsMap;
 
+	/*
+	 * Requests are admitted here, one at a time and in the order they arrived, so that callers never wait on the disk cache's lookups or the operation maps.
+	 */
+	private final ExecutorService mDispatcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			return new Thread(runnable, "ImageCacher-Dispatcher");
+		}
+	});
+
+	/*
+	 * Downloads started while a batch is being admitted, by url. Only used on the dispatcher thread.
+	 */
+	private Map<String, RequestType> mBatchedDownloads;
+
+	/*
+	 * Remembers which decode signature each loader lookup resolved to, so that memory hits can skip the sample size calculation. Access ordered, so the least recently used lookups are dropped first.
+	 */
+	private final LinkedHashMap<MemoryLookupKey, DecodeSignature> mMemoryLookups = new LinkedHashMap<MemoryLookupKey, DecodeSignature>(16, 0.75f, true) {
+		private static final long serialVersionUID = 3516387532412856374L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<MemoryLookupKey, DecodeSignature> eldest) {
+			return size() > MAX_MEMORY_LOOKUPS;
+		}
+	};
+
 	private ImageCacher(Context appContext) {
 		if (Build.VERSION.SDK_INT <= 11) {
 			mMemoryCache = new SizeEstimatingMemoryLRUCacher();
@@ -56,21 +96,90 @@ public class ImageCacher implements ImageDownloadObserver, ImageDiskObserver, As
 		return mImageCacher;
 	}
 
-	public ImageResponse getBitmap(ImageRequest imageRequest, ImageCacherListener imageCacherListener) {
-		String uri = imageRequest.getUri();
+	/**
+	 * May be called from any thread. Only the memory cache is probed on the calling thread; the rest of the request's admission runs on the dispatcher thread, and its result is delivered to the listener.
+	 * 
+	 * @return The bitmap if it was found in the memory cache, or a queued response otherwise.
+	 */
+	public ImageResponse getBitmap(final ImageRequest imageRequest, final ImageCacherListener imageCacherListener) {
 		throwExceptionIfNeeded(imageRequest, imageCacherListener);
 
+		MemoryLookupKey memoryLookupKey = imageRequest.getMemoryLookupKey();
+		if (memoryLookupKey != null) {
+			Bitmap bitmap = getBitmapFromMemory(memoryLookupKey);
+			if (bitmap != null) {
+				return new ImageResponse(bitmap, ImageReturnedFrom.MEMORY, ImageResponseStatus.SUCCESS);
+			}
+		}
+
+		mDispatcher.execute(new Runnable() {
+			@Override
+			public void run() {
+				admitRequest(imageRequest, imageCacherListener);
+			}
+		});
+		return generateQueuedResponse();
+	}
+
+	/**
+	 * The batch equivalent of {@link #getBitmap(ImageRequest, ImageCacherListener)}. The requests that miss the memory cache are admitted together in a single pass on the dispatcher thread, and the downloads they
+	 * need are handed to the network interface at once.
+	 * 
+	 * @return A response for each request, in the same order.
+	 */
+	public List<ImageResponse> getBitmaps(List<ImageRequest> imageRequests, List<? extends ImageCacherListener> imageCacherListeners) {
+		List<ImageResponse> imageResponses = new ArrayList<ImageResponse>(imageRequests.size());
+		final List<ImageRequest> queuedRequests = new ArrayList<ImageRequest>(imageRequests.size());
+		final List<ImageCacherListener> queuedListeners = new ArrayList<ImageCacherListener>(imageRequests.size());
+
+		for (int i = 0; i < imageRequests.size(); i++) {
+			ImageRequest imageRequest = imageRequests.get(i);
+			ImageCacherListener imageCacherListener = imageCacherListeners.get(i);
+			throwExceptionIfNeeded(imageRequest, imageCacherListener);
+
+			MemoryLookupKey memoryLookupKey = imageRequest.getMemoryLookupKey();
+			Bitmap bitmap = memoryLookupKey == null ? null : getBitmapFromMemory(memoryLookupKey);
+			if (bitmap != null) {
+				imageResponses.add(new ImageResponse(bitmap, ImageReturnedFrom.MEMORY, ImageResponseStatus.SUCCESS));
+			} else {
+				imageResponses.add(generateQueuedResponse());
+				queuedRequests.add(imageRequest);
+				queuedListeners.add(imageCacherListener);
+			}
+		}
+
+		if (!queuedRequests.isEmpty()) {
+			mDispatcher.execute(new Runnable() {
+				@Override
+				public void run() {
+					beginDownloadBatch();
+					try {
+						for (int i = 0; i < queuedRequests.size(); i++) {
+							admitRequest(queuedRequests.get(i), queuedListeners.get(i));
+						}
+					} finally {
+						submitDownloadBatch();
+					}
+				}
+			});
+		}
+		return imageResponses;
+	}
+
+	private void admitRequest(ImageRequest imageRequest, ImageCacherListener imageCacherListener) {
+		String uri = imageRequest.getUri();
+
 		AsyncOperationState state = mAsyncOperationsMap.queueListenerIfRequestPending(imageRequest, imageCacherListener);
 		switch (state) {
 		case QUEUED_FOR_NETWORK_REQUEST:
-			mNetworkInterface.bump(uri);
-			return generateQueuedResponse();
+			bumpDownload(uri, imageRequest.getRequestType());
+			return;
 		case QUEUED_FOR_DECODE_REQUEST:
-			mDiskCache.bumpInQueue(new DecodeSignature(uri, getSampleSize(imageRequest), imageRequest.getOptions().preferedConfig));
-			return generateQueuedResponse();
+			mDiskCache.bumpInQueue(new DecodeSignature(uri, getSampleSize(imageRequest), imageRequest.getOptions().preferedConfig), imageRequest.getRequestType());
+			return;
 		case QUEUED_FOR_DETAILS_REQUEST:
-			mDiskCache.bumpInQueue(new DecodeSignature(uri, 0, imageRequest.getOptions().preferedConfig));
-			return generateQueuedResponse();
+			mDiskCache.bumpInQueue(new DecodeSignature(uri, 0, imageRequest.getOptions().preferedConfig), imageRequest.getRequestType());
+			return;
 		case NOT_QUEUED:
 			break;
 		default:
@@ -86,18 +195,38 @@ public class ImageCacher implements ImageDownloadObserver, ImageDiskObserver, As
 		if (isCached && sampleSize != -1) {
 			DecodeSignature decodeSignature = new DecodeSignature(uri, sampleSize, imageRequest.getOptions().preferedConfig);
 			Bitmap bitmap;
+			if (imageRequest.getMemoryLookupKey() != null) {
+				recordMemoryLookup(imageRequest.getMemoryLookupKey(), decodeSignature);
+			}
 			if ((bitmap = mMemoryCache.getBitmap(decodeSignature)) != null) {
-				return new ImageResponse(bitmap, ImageReturnedFrom.MEMORY, ImageResponseStatus.SUCCESS);
+				imageCacherListener.onImageAvailable(new ImageResponse(bitmap, ImageReturnedFrom.MEMORY, ImageResponseStatus.SUCCESS));
 			} else {
-				decodeBitmapFromDisk(decodeSignature, imageCacherListener);
+				decodeBitmapFromDisk(decodeSignature, imageRequest, imageCacherListener);
 			}
 		} else if (GeneralUtils.isFileSystemUri(uri)) {
 			retrieveImageDetails(imageRequest, imageCacherListener);
 		} else {
 			downloadImageFromNetwork(imageRequest, imageCacherListener);
 		}
+	}
 
-		return generateQueuedResponse();
+	/**
+	 * Looks for a bitmap in the memory cache using the decode signature that the same lookup resolved to last time. Nothing is allocated.
+	 * 
+	 * @return The bitmap, or null if the lookup has not been seen before or the bitmap is no longer in the memory cache.
+	 */
+	public Bitmap getBitmapFromMemory(MemoryLookupKey memoryLookupKey) {
+		DecodeSignature decodeSignature;
+		synchronized (mMemoryLookups) {
+			decodeSignature = mMemoryLookups.get(memoryLookupKey);
+		}
+		return decodeSignature == null ? null : mMemoryCache.getBitmap(decodeSignature);
+	}
+
+	void recordMemoryLookup(MemoryLookupKey memoryLookupKey, DecodeSignature decodeSignature) {
+		synchronized (mMemoryLookups) {
+			mMemoryLookups.put(memoryLookupKey, decodeSignature);
+		}
 	}
 
 	@Override
@@ -118,29 +247,62 @@ public class ImageCacher implements ImageDownloadObserver, ImageDiskObserver, As
 	 * 
 	 * @param uri
 	 */
-	public void precacheImageToDisk(ImageRequest imageRequest) {
-		String uri = imageRequest.getUri();
-		validateUri(uri);
+	public void precacheImageToDisk(final ImageRequest imageRequest) {
+		precacheImageToDisk(imageRequest, getBlankImageCacherListener());
+	}
 
+	/**
+	 * The batch equivalent of {@link #precacheImageToDisk(ImageRequest)}. The requests are admitted together in a single pass on the dispatcher thread, and their downloads are handed to the network interface at
+	 * once.
+	 */
+	public void precacheImagesToDisk(final List<ImageRequest> imageRequests) {
+		for (ImageRequest imageRequest : imageRequests) {
+			validateUri(imageRequest.getUri());
+		}
+
+		mDispatcher.execute(new Runnable() {
+			@Override
+			public void run() {
+				beginDownloadBatch();
+				try {
+					for (ImageRequest imageRequest : imageRequests) {
+						admitPrecacheRequest(imageRequest, getBlankImageCacherListener());
+					}
+				} finally {
+					submitDownloadBatch();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Caches the image at the provided uri to disk. The listener is notified with a null bitmap once the image is on disk, or right away if there is nothing to do because the image is already cached, is on the file
+	 * system or is already being downloaded.
+	 */
+	public void precacheImageToDisk(final ImageRequest imageRequest, final ImageCacherListener imageCacherListener) {
+		validateUri(imageRequest.getUri());
+
+		mDispatcher.execute(new Runnable() {
+			@Override
+			public void run() {
+				admitPrecacheRequest(imageRequest, imageCacherListener);
+			}
+		});
+	}
+
+	private void admitPrecacheRequest(ImageRequest imageRequest, ImageCacherListener imageCacherListener) {
+		String uri = imageRequest.getUri();
 		if (GeneralUtils.isFileSystemUri(uri)) {
+			imageCacherListener.onImageAvailable(new ImageResponse(null, ImageReturnedFrom.DISK, ImageResponseStatus.SUCCESS));
 			return;
 		}
 
 		if (!mAsyncOperationsMap.isNetworkRequestPending(uri) && !mDiskCache.isCached(uri)) {
-			mAsyncOperationsMap.registerListenerForNetworkRequest(imageRequest, new ImageCacherListener() {
-				@Override
-				public void onImageAvailable(ImageResponse imageResponse) {
-					// Intentionally blank.
-				}
-
-				@Override
-				public void onFailure(String message) {
-					// Intentionally blank.
-				}
-			});
-			mNetworkInterface.downloadImageToDisk(uri);
+			mAsyncOperationsMap.registerListenerForNetworkRequest(imageRequest, imageCacherListener);
+			downloadImageToDisk(uri, imageRequest.getRequestType());
 		} else {
 			mDiskCache.bumpOnDisk(uri);
+			imageCacherListener.onImageAvailable(new ImageResponse(null, ImageReturnedFrom.DISK, ImageResponseStatus.SUCCESS));
 		}
 	}
 
@@ -156,13 +318,121 @@ public class ImageCacher implements ImageDownloadObserver, ImageDiskObserver, As
 		mDiskCache.setDiskCacheSize(maxSizeInBytes);
 	}
 
-	public void cancelRequestForBitmap(ImageCacherListener imageCacherListener) {
-		mAsyncOperationsMap.cancelPendingRequest(imageCacherListener);
+	public void setMaximumPackedImageSize(int sizeInBytes) {
+		mDiskCache.setMaximumPackedImageSize(sizeInBytes);
+	}
+
+	public void addCacheBundle(File file) throws IOException {
+		mDiskCache.addCacheBundle(file);
+	}
+
+	public void addCacheBundleFromAsset(String assetName) throws IOException {
+		mDiskCache.addCacheBundleFromAsset(assetName);
+	}
+
+	public void exportCacheBundle(File destination, int maxNumberOfImages) throws IOException {
+		mDiskCache.exportCacheBundle(destination, maxNumberOfImages);
+	}
+
+	/**
+	 * The cancellation is dispatched behind any admission still waiting for the listener, so that it cannot be overtaken by the request it cancels.
+	 */
+	public void cancelRequestForBitmap(final ImageCacherListener imageCacherListener) {
+		mDispatcher.execute(new Runnable() {
+			@Override
+			public void run() {
+				mAsyncOperationsMap.cancelPendingRequest(imageCacherListener);
+			}
+		});
+	}
+
+	/**
+	 * Cancels a precache request that is no longer wanted. Unlike {@link #cancelRequestForBitmap(ImageCacherListener)}, the download or decode it was waiting on is abandoned once no other requests are waiting on it,
+	 * even if precache requests are set to run to completion.
+	 */
+	public void withdrawPrecacheRequest(final ImageCacherListener imageCacherListener) {
+		mDispatcher.execute(new Runnable() {
+			@Override
+			public void run() {
+				mAsyncOperationsMap.cancelPendingRequest(imageCacherListener, false);
+			}
+		});
+	}
+
+	/**
+	 * Demotes the listener's request to precache priority while its image is not visible, or restores it. Dispatched for the same reason as {@link #cancelRequestForBitmap(ImageCacherListener)}.
+	 */
+	public void setRequestDemoted(final ImageCacherListener imageCacherListener, final boolean demoted) {
+		mDispatcher.execute(new Runnable() {
+			@Override
+			public void run() {
+				mAsyncOperationsMap.setRequestDemoted(imageCacherListener, demoted);
+			}
+		});
+	}
+
+	public void setCancelAbandonedRequests(boolean cancelAbandonedRequests) {
+		mAsyncOperationsMap.setCancelAbandonedRequests(cancelAbandonedRequests);
+	}
+
+	public void setCompletePrecacheRequests(boolean completePrecacheRequests) {
+		mAsyncOperationsMap.setCompletePrecacheRequests(completePrecacheRequests);
 	}
 
 	private void downloadImageFromNetwork(ImageRequest imageRequest, ImageCacherListener imageCacherListener) {
 		mAsyncOperationsMap.registerListenerForNetworkRequest(imageRequest, imageCacherListener);
-		mNetworkInterface.downloadImageToDisk(imageRequest.getUri());
+		downloadImageToDisk(imageRequest.getUri(), imageRequest.getRequestType());
+	}
+
+	/*
+	 * While a batch is being admitted, downloads are collected so that they can be handed to the network interface together. A url requested more than once is downloaded once, for its most important request.
+	 */
+	private void downloadImageToDisk(String uri, RequestType requestType) {
+		if (mBatchedDownloads == null) {
+			mNetworkInterface.downloadImageToDisk(uri, requestType);
+		} else {
+			RequestType batchedRequestType = mBatchedDownloads.get(uri);
+			if (batchedRequestType == null || requestType.compareTo(batchedRequestType) > 0) {
+				mBatchedDownloads.put(uri, requestType);
+			}
+		}
+	}
+
+	/*
+	 * A download that is still being collected has not reached the network interface yet, so bumping it there would do nothing.
+	 */
+	private void bumpDownload(String uri, RequestType requestType) {
+		if (mBatchedDownloads != null && mBatchedDownloads.containsKey(uri)) {
+			downloadImageToDisk(uri, requestType);
+		} else {
+			mNetworkInterface.bump(uri, requestType);
+		}
+	}
+
+	private void beginDownloadBatch() {
+		mBatchedDownloads = new LinkedHashMap<String, RequestType>();
+	}
+
+	private void submitDownloadBatch() {
+		Map<String, RequestType> batchedDownloads = mBatchedDownloads;
+		mBatchedDownloads = null;
+		if (!batchedDownloads.isEmpty()) {
+			mNetworkInterface.downloadImagesToDisk(batchedDownloads);
+		}
+	}
+
+	private static ImageCacherListener getBlankImageCacherListener() {
+		return new ImageCacherListener() {
+			@Override
+			public void onImageAvailable(ImageResponse imageResponse) {
+				// Intentionally blank.
+			}
+
+			@Override
+			public void onFailure(String message) {
+				// Intentionally blank.
+			}
+		};
 	}
 
 	private void retrieveImageDetails(ImageRequest imageRequest, ImageCacherListener imageCacherListener) {
@@ -170,9 +440,10 @@ public class ImageCacher implements ImageDownloadObserver, ImageDiskObserver, As
 		mDiskCache.retrieveImageDetails(imageRequest.getUri());
 	}
 
-	private void decodeBitmapFromDisk(DecodeSignature decodeSignature, ImageCacherListener imageCacherListener) {
-		mAsyncOperationsMap.registerListenerForDecode(decodeSignature, imageCacherListener);
-		mDiskCache.getBitmapAsynchronouslyFromDisk(decodeSignature, ImageReturnedFrom.DISK, true);
+	private void decodeBitmapFromDisk(DecodeSignature decodeSignature, ImageRequest imageRequest, ImageCacherListener imageCacherListener) {
+		RequestType requestType = imageRequest.getRequestType();
+		mAsyncOperationsMap.registerListenerForDecode(decodeSignature, imageRequest, imageCacherListener);
+		mDiskCache.getBitmapAsynchronouslyFromDisk(decodeSignature, ImageReturnedFrom.DISK, true, requestType);
 	}
 
 	private void validateUri(String uri) {
@@ -181,8 +452,6 @@ public class ImageCacher implements ImageDownloadObserver, ImageDiskObserver, As
 	}
 
 	private void throwExceptionIfNeeded(ImageRequest imageRequest, ImageCacherListener imageCacherListener) {
-		ThreadChecker.throwErrorIfOffUiThread();
-
 		validateUri(imageRequest.getUri());
 
 		if (imageCacherListener == null) {
@@ -211,6 +480,14 @@ public class ImageCacher implements ImageDownloadObserver, ImageDiskObserver, As
 		mAsyncOperationsMap.onDecodeFailed(decodeSignature, message);
 	}
 
+	@Override
+	public void onImageMissingFromDisk(DecodeSignature decodeSignature) {
+		RequestType requestType = mAsyncOperationsMap.onDecodeImageMissing(decodeSignature);
+		if (requestType != null) {
+			mNetworkInterface.downloadImageToDisk(decodeSignature.mUri, requestType);
+		}
+	}
+
 	@Override
 	public void onImageDownloaded(String uri) {
 		mAsyncOperationsMap.onDownloadComplete(uri);
@@ -222,8 +499,8 @@ public class ImageCacher implements ImageDownloadObserver, ImageDiskObserver, As
 	}
 
 	@Override
-	public void onImageDecodeRequired(DecodeSignature decodeSignature) {
-		mDiskCache.getBitmapAsynchronouslyFromDisk(decodeSignature, ImageReturnedFrom.NETWORK, false);
+	public void onImageDecodeRequired(DecodeSignature decodeSignature, RequestType requestType) {
+		mDiskCache.getBitmapAsynchronouslyFromDisk(decodeSignature, ImageReturnedFrom.NETWORK, false, requestType);
 	}
 
 	@Override
@@ -240,6 +517,14 @@ public class ImageCacher implements ImageDownloadObserver, ImageDiskObserver, As
 		mNetworkInterface.setNetworkRequestCreator(networkRequestCreator);
 	}
 
+	public NetworkConcurrencyLimits getNetworkConcurrencyLimits() {
+		return mNetworkInterface.getConcurrencyLimits();
+	}
+
+	public DecodeStatistics getDecodeStatistics() {
+		return mDiskCache.getDecodeStatistics();
+	}
+
 	void stubMemCache(ImageMemoryCacherInterface imageMemoryCacherInterface) {
 		mMemoryCache = imageMemoryCacherInterface;
 	}
@@ -271,6 +556,36 @@ public class ImageCacher implements ImageDownloadObserver, ImageDiskObserver, As
 		mDiskCache.retrieveImageDetails(uri);
 	}
 
+	@Override
+	public void onNetworkRequestAbandoned(String uri) {
+		mNetworkInterface.cancel(uri);
+		RequestType requestType = mAsyncOperationsMap.getPendingNetworkRequestType(uri);
+		if (requestType != null) {
+			// A new request arrived while the download was being cancelled, and may have been merged in to the cancelled download.
+			mNetworkInterface.downloadImageToDisk(uri, requestType);
+		}
+	}
+
+	@Override
+	public void onDecodeRequestAbandoned(DecodeSignature decodeSignature) {
+		mDiskCache.cancelDecode(decodeSignature);
+		RequestType requestType = mAsyncOperationsMap.getPendingDecodeRequestType(decodeSignature);
+		if (requestType != null) {
+			// A new request arrived while the decode was being cancelled, and may have been merged in to the cancelled decode.
+			mDiskCache.getBitmapAsynchronouslyFromDisk(decodeSignature, ImageReturnedFrom.DISK, true, requestType);
+		}
+	}
+
+	@Override
+	public void onNetworkRequestPriorityChanged(String uri, RequestType requestType) {
+		mNetworkInterface.setPriority(uri, requestType);
+	}
+
+	@Override
+	public void onDecodeRequestPriorityChanged(DecodeSignature decodeSignature, RequestType requestType) {
+		mDiskCache.setPriorityInQueue(decodeSignature, requestType);
+	}
+
 	private ImageResponse generateQueuedResponse() {
 		return new ImageResponse(null, null, ImageResponseStatus.REQUEST_QUEUED);
 	}
@@ -278,5 +593,14 @@ public class ImageCacher implements ImageDownloadObserver, ImageDiskObserver, As
 	public void invalidateFileSystemUri(String uri) {
 		mDiskCache.invalidateFileSystemUri(uri);
 		mMemoryCache.removeAllImagesForUri(uri);
+
+		synchronized (mMemoryLookups) {
+			Iterator<MemoryLookupKey> iterator = mMemoryLookups.keySet().iterator();
+			while (iterator.hasNext()) {
+				if (uri.equals(iterator.next().mUri)) {
+					iterator.remove();
+				}
+			}
+		}
 	}
 }
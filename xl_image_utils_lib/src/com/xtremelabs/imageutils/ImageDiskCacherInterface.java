@@ -16,6 +16,11 @@
 
 package com.xtremelabs.imageutils;
 
+import java.io.File;
+import java.io.IOException;
+
+import com.xtremelabs.imageutils.ImageRequest.RequestType;
+
 /**
  * This interface defines the mechanisms that the ImageCacher uses to interract with the Disk Cache.
  */
@@ -24,19 +29,39 @@ interface ImageDiskCacherInterface extends NetworkToDiskInterface {
 
 	int getSampleSize(ImageRequest imageRequest);
 
-	void getBitmapAsynchronouslyFromDisk(DecodeSignature decodeSignature, ImageReturnedFrom returnedFrom, boolean noPreviousNetworkRequest);
+	void getBitmapAsynchronouslyFromDisk(DecodeSignature decodeSignature, ImageReturnedFrom returnedFrom, boolean noPreviousNetworkRequest, RequestType requestType);
 
 	void bumpOnDisk(String uri);
 
 	void setDiskCacheSize(long sizeInBytes);
 
+	void setMaximumPackedImageSize(int sizeInBytes);
+
 	Dimensions getImageDimensions(String uri);
 
-	void bumpInQueue(DecodeSignature decodeSignature);
+	void bumpInQueue(DecodeSignature decodeSignature, RequestType requestType);
+
+	/**
+	 * Moves a queued decode to the queue for the request type, even if that is less important than its current one.
+	 */
+	void setPriorityInQueue(DecodeSignature decodeSignature, RequestType requestType);
+
+	/**
+	 * Removes the decode from the queue. Decodes that have already started run to completion.
+	 */
+	void cancelDecode(DecodeSignature decodeSignature);
+
+	DecodeStatistics getDecodeStatistics();
 
 	boolean isDecodeRequestPending(DecodeSignature decodeSignature);
 
 	void retrieveImageDetails(String uri);
 
 	void invalidateFileSystemUri(String uri);
+
+	void addCacheBundle(File file) throws IOException;
+
+	void addCacheBundleFromAsset(String assetName) throws IOException;
+
+	void exportCacheBundle(File destination, int maxNumberOfImages) throws IOException;
 }
\ No newline at end of file
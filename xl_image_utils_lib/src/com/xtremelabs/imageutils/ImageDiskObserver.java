@@ -23,6 +23,11 @@ public interface ImageDiskObserver {
 
 	public void onImageDecodeFailed(DecodeSignature decodeSignature, String error);
 
+	/**
+	 * Called instead of {@link #onImageDecodeFailed(DecodeSignature, String)} when an image from the network was in the index, but is no longer on disk.
+	 */
+	public void onImageMissingFromDisk(DecodeSignature decodeSignature);
+
 	public void onImageDetailsRequestFailed(String uri, String errorMessage);
 
 	public void onImageDetailsRetrieved(String uri);
@@ -16,12 +16,17 @@
 
 package com.xtremelabs.imageutils;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.util.Log;
 
+import com.xtremelabs.imageutils.ImageRequest.RequestType;
 import com.xtremelabs.imageutils.NetworkRequestCreator.InputStreamListener;
 
 class ImageDownloader implements ImageNetworkInterface {
@@ -34,29 +39,62 @@ class ImageDownloader implements ImageNetworkInterface {
 	private NetworkRequestCreator mNetworkRequestCreator = new DefaultNetworkRequestCreator();
 
 	/*
-	 * TODO: Research into lowering the number of available threads for the network
+	 * The pool has a thread for the largest number of downloads that may ever run at once. The controller decides how many of them may run right now.
 	 */
-	private final LifoThreadPool mThreadPool = new LifoThreadPool(3);
+	private final NetworkConcurrencyController mConcurrencyController = new NetworkConcurrencyController();
+	private final LifoThreadPool mThreadPool = new LifoThreadPool(NetworkConcurrencyController.MAXIMUM_GLOBAL_LIMIT);
 
 	public ImageDownloader(NetworkToDiskInterface networkToDiskInterface, ImageDownloadObserver imageDownloadObserver) {
 		mNetworkToDiskInterface = networkToDiskInterface;
 		mImageDownloadObserver = imageDownloadObserver;
+		mThreadPool.setTaskLimiter(mConcurrencyController);
 	}
 
 	@Override
-	public synchronized void bump(String url) {
-		ImageDownloadingRunnable runnable = mUrlToRunnableMap.get(url);
-		if (runnable != null) {
-			mThreadPool.bump(runnable);
+	public NetworkConcurrencyLimits getConcurrencyLimits() {
+		return mConcurrencyController.getLimits();
+	}
+
+	@Override
+	public synchronized void bump(String url, RequestType requestType) {
+		if (mUrlToRunnableMap.containsKey(url)) {
+			mThreadPool.bump(url, requestType);
+		}
+	}
+
+	@Override
+	public synchronized void setPriority(String url, RequestType requestType) {
+		if (mUrlToRunnableMap.containsKey(url)) {
+			mThreadPool.setPriority(url, requestType);
 		}
 	}
 
+	/**
+	 * If a download for the url is already queued, it is bumped and promoted to the provided request type.
+	 */
 	@Override
-	public synchronized void downloadImageToDisk(final String url) {
-		ImageDownloadingRunnable runnable = new ImageDownloadingRunnable(url);
+	public synchronized void downloadImageToDisk(final String url, RequestType requestType) {
 		if (!mUrlToRunnableMap.containsKey(url)) {
+			ImageDownloadingRunnable runnable = new ImageDownloadingRunnable(url);
 			mUrlToRunnableMap.put(url, runnable);
-			mThreadPool.execute(runnable);
+			mThreadPool.execute(url, runnable, requestType);
+		} else {
+			mThreadPool.bump(url, requestType);
+		}
+	}
+
+	@Override
+	public synchronized void downloadImagesToDisk(Map<String, RequestType> requestTypesByUrl) {
+		for (Map.Entry<String, RequestType> download : requestTypesByUrl.entrySet()) {
+			downloadImageToDisk(download.getKey(), download.getValue());
+		}
+	}
+
+	@Override
+	public synchronized void cancel(String url) {
+		ImageDownloadingRunnable runnable = mUrlToRunnableMap.remove(url);
+		if (runnable != null && !mThreadPool.remove(url)) {
+			runnable.cancel();
 		}
 	}
 
@@ -69,41 +107,119 @@ class ImageDownloader implements ImageNetworkInterface {
 		}
 	}
 
-	private synchronized void removeUrlFromMap(String url) {
-		mUrlToRunnableMap.remove(url);
+	/*
+	 * A cancelled download may still be running when a new download for the same url is queued, so only the runnable that is currently mapped to the url may remove it.
+	 */
+	private synchronized void removeRunnableFromMap(ImageDownloadingRunnable runnable) {
+		if (mUrlToRunnableMap.get(runnable.mUrl) == runnable) {
+			mUrlToRunnableMap.remove(runnable.mUrl);
+		}
 	}
 
 	class ImageDownloadingRunnable implements Runnable {
 		private final String mUrl;
+		private volatile boolean mCancelled = false;
+
+		/*
+		 * Measurements for the concurrency controller. The start time is taken by the pool thread. The others are taken by the thread that the network request creator calls back on.
+		 */
+		private volatile long mStartTime;
+		private long mResponseTime;
+		private long mNumBytesRead = 0;
+		private boolean mNetworkFailed = false;
+		private boolean mSucceeded = false;
+		private final AtomicBoolean mReported = new AtomicBoolean(false);
 
 		public ImageDownloadingRunnable(String url) {
 			mUrl = url;
 		}
 
+		/**
+		 * The download stops the next time the stream is read. Nothing is reported for a cancelled download.
+		 */
+		void cancel() {
+			mCancelled = true;
+		}
+
 		@Override
 		public void run() {
+			if (mCancelled) {
+				reportToConcurrencyController();
+			} else {
+				download();
+			}
+		}
+
+		/*
+		 * The network request creator may call back after getInputStream returns, so the download keeps its slot until it does.
+		 */
+		private void download() {
+			mStartTime = System.currentTimeMillis();
 			try {
 				mNetworkRequestCreator.getInputStream(mUrl, new InputStreamListener() {
 					@Override
 					public void onInputStreamReady(InputStream inputStream) {
-						String errorMessage = loadInputStreamToDisk(inputStream);
-						removeUrlFromMap(mUrl);
-						if (errorMessage != null) {
-							mImageDownloadObserver.onImageDownloadFailed(mUrl, errorMessage);
-						} else {
-							mImageDownloadObserver.onImageDownloaded(mUrl);
+						try {
+							mResponseTime = System.currentTimeMillis();
+							String errorMessage = loadInputStreamToDisk(inputStream == null ? null : new CancellableInputStream(inputStream));
+							removeRunnableFromMap(ImageDownloadingRunnable.this);
+							if (mCancelled) {
+								return;
+							}
+
+							if (errorMessage != null) {
+								mImageDownloadObserver.onImageDownloadFailed(mUrl, errorMessage);
+							} else {
+								mSucceeded = true;
+								mImageDownloadObserver.onImageDownloaded(mUrl);
+							}
+						} finally {
+							reportToConcurrencyController();
 						}
 					}
 
 					@Override
 					public void onFailure(String errorMessage) {
-						removeUrlFromMap(mUrl);
-						mImageDownloadObserver.onImageDownloadFailed(mUrl, errorMessage);
+						try {
+							mNetworkFailed = true;
+							removeRunnableFromMap(ImageDownloadingRunnable.this);
+							if (!mCancelled) {
+								mImageDownloadObserver.onImageDownloadFailed(mUrl, errorMessage);
+							}
+						} finally {
+							reportToConcurrencyController();
+						}
 					}
 				});
 			} catch (IllegalStateException e) {
-				reportIllegalStateExceptionLoadFailure(e);
+				try {
+					removeRunnableFromMap(this);
+					reportIllegalStateExceptionLoadFailure(e);
+				} finally {
+					reportToConcurrencyController();
+				}
+			} catch (RuntimeException e) {
+				reportToConcurrencyController();
+				throw e;
+			}
+		}
+
+		/**
+		 * Releases the download's slot. Only the first call has any effect, so a creator that calls back more than once can not release a slot twice.
+		 */
+		private void reportToConcurrencyController() {
+			if (!mReported.compareAndSet(false, true)) {
+				return;
+			}
+
+			if (mSucceeded) {
+				mConcurrencyController.onDownloadSucceeded(mUrl, mResponseTime - mStartTime, mNumBytesRead, System.currentTimeMillis() - mResponseTime);
+			} else if (mNetworkFailed && !mCancelled) {
+				mConcurrencyController.onDownloadFailed(mUrl);
+			} else {
+				mConcurrencyController.onDownloadFinished(mUrl);
 			}
+			mThreadPool.onCapacityAvailable();
 		}
 
 		private void reportIllegalStateExceptionLoadFailure(IllegalStateException e) {
@@ -145,6 +261,58 @@ class ImageDownloader implements ImageNetworkInterface {
 			}
 			return errorMessage;
 		}
+
+		/**
+		 * Fails the next read once the download has been cancelled, which stops the download without closing the connection from another thread. Also records how many bytes were read, and whether reading from
+		 * the network failed.
+		 */
+		private class CancellableInputStream extends FilterInputStream {
+			CancellableInputStream(InputStream inputStream) {
+				super(inputStream);
+			}
+
+			@Override
+			public int read() throws IOException {
+				throwIfCancelled();
+				try {
+					int value = super.read();
+					if (value != -1) {
+						mNumBytesRead++;
+					}
+					return value;
+				} catch (IOException e) {
+					mNetworkFailed = true;
+					throw e;
+				}
+			}
+
+			@Override
+			public int read(byte[] buffer, int offset, int length) throws IOException {
+				throwIfCancelled();
+				try {
+					int bytesRead = super.read(buffer, offset, length);
+					if (bytesRead > 0) {
+						mNumBytesRead += bytesRead;
+					}
+					return bytesRead;
+				} catch (IOException e) {
+					mNetworkFailed = true;
+					throw e;
+				}
+			}
+
+			@Override
+			public long skip(long byteCount) throws IOException {
+				throwIfCancelled();
+				return super.skip(byteCount);
+			}
+
+			private void throwIfCancelled() throws InterruptedIOException {
+				if (mCancelled) {
+					throw new InterruptedIOException("The download was cancelled. URL: " + mUrl);
+				}
+			}
+		}
 	}
 
 	@Override
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2013 Xtreme Labs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xtremelabs.imageutils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * Decodes image files using the cheapest input for the size of the file.
+ * 
+ * Small files are read into a reusable buffer with a single read and decoded from memory. Medium files are memory mapped, so the decoder pulls bytes straight out of the page cache. Large files are handed to the
+ * decoder as a file descriptor, which avoids mapping large regions of the address space.
+ * 
+ * All inputs share a reusable per-thread temp storage buffer, so the decoder does not allocate one for every image.
+ */
+class ImageFileDecoder {
+	static enum DecodeInput {
+		READ_BUFFER, MAPPED_BUFFER, FILE_DESCRIPTOR
+	}
+
+	static final int MAXIMUM_READ_BUFFER_FILE_SIZE = 128 * 1024; // 128KB
+	static final int MAXIMUM_MAPPED_FILE_SIZE = 4 * 1024 * 1024; // 4MB
+
+	private static final int TEMP_STORAGE_SIZE = 16 * 1024;
+
+	private static final ThreadLocal<byte[]> sReadBuffer = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[MAXIMUM_READ_BUFFER_FILE_SIZE];
+		}
+	};
+
+	private static final ThreadLocal<byte[]> sTempStorage = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[TEMP_STORAGE_SIZE];
+		}
+	};
+
+	static DecodeInput chooseDecodeInput(long fileLength) {
+		if (fileLength <= MAXIMUM_READ_BUFFER_FILE_SIZE) {
+			return DecodeInput.READ_BUFFER;
+		} else if (fileLength <= MAXIMUM_MAPPED_FILE_SIZE) {
+			return DecodeInput.MAPPED_BUFFER;
+		} else {
+			return DecodeInput.FILE_DESCRIPTOR;
+		}
+	}
+
+	/**
+	 * @return The decoded bitmap, or null if the file could not be read or decoded.
+	 */
+	public static Bitmap decode(File file, BitmapFactory.Options opts) throws FileNotFoundException {
+		return decode(file, opts, chooseDecodeInput(file.length()));
+	}
+
+	/**
+	 * Only decodes the bounds of the image.
+	 * 
+	 * @return The dimensions of the image. Both dimensions are -1 if the image could not be read.
+	 */
+	public static Dimensions decodeDimensions(File file) throws FileNotFoundException {
+		BitmapFactory.Options opts = new BitmapFactory.Options();
+		opts.inJustDecodeBounds = true;
+		decode(file, opts);
+		return new Dimensions(opts.outWidth, opts.outHeight);
+	}
+
+	static Bitmap decode(File file, BitmapFactory.Options opts, DecodeInput decodeInput) throws FileNotFoundException {
+		opts.inTempStorage = sTempStorage.get();
+
+		FileInputStream fileInputStream = new FileInputStream(file);
+		try {
+			switch (decodeInput) {
+			case READ_BUFFER:
+				return decodeFromReadBuffer(fileInputStream, opts);
+			case MAPPED_BUFFER:
+				FileChannel channel = fileInputStream.getChannel();
+				return BitmapFactory.decodeStream(new ByteBufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())), null, opts);
+			case FILE_DESCRIPTOR:
+			default:
+				return BitmapFactory.decodeFileDescriptor(fileInputStream.getFD(), null, opts);
+			}
+		} catch (IOException e) {
+			Logger.w("Unable to read image file for decoding. File: " + file + ", Message: " + e.getMessage());
+			return null;
+		} finally {
+			try {
+				fileInputStream.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private static Bitmap decodeFromReadBuffer(FileInputStream fileInputStream, BitmapFactory.Options opts) throws IOException {
+		byte[] buffer = sReadBuffer.get();
+		int length = 0;
+		int bytesRead;
+		while (length < buffer.length && (bytesRead = fileInputStream.read(buffer, length, buffer.length - length)) != -1) {
+			length += bytesRead;
+		}
+
+		if (length == buffer.length && fileInputStream.read() != -1) {
+			/*
+			 * The file grew after its size was checked. Fall back to decoding from the descriptor.
+			 */
+			fileInputStream.getChannel().position(0);
+			return BitmapFactory.decodeFileDescriptor(fileInputStream.getFD(), null, opts);
+		}
+		return BitmapFactory.decodeByteArray(buffer, 0, length, opts);
+	}
+}
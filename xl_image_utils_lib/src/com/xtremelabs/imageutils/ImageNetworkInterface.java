@@ -16,10 +16,31 @@
 
 package com.xtremelabs.imageutils;
 
+import java.util.Map;
+
+import com.xtremelabs.imageutils.ImageRequest.RequestType;
+
 interface ImageNetworkInterface {
-	void downloadImageToDisk(String url);
+	void downloadImageToDisk(String url, RequestType requestType);
+
+	/**
+	 * Starts several downloads at once, in iteration order.
+	 */
+	void downloadImagesToDisk(Map<String, RequestType> requestTypesByUrl);
+
+	void bump(String url, RequestType requestType);
+
+	/**
+	 * Moves a queued download to the queue for the request type, even if that is less important than its current one.
+	 */
+	void setPriority(String url, RequestType requestType);
+
+	/**
+	 * Removes the download from the queue, or aborts it if it is in progress. Cancelled downloads are not reported to the observer.
+	 */
+	void cancel(String url);
 
-	void bump(String url);
+	NetworkConcurrencyLimits getConcurrencyLimits();
 
 	boolean isNetworkRequestPendingForUrl(String url);
 
@@ -16,10 +16,15 @@
 
 package com.xtremelabs.imageutils;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import android.content.Context;
 import android.content.res.Resources;
+import android.os.SystemClock;
 import android.util.TypedValue;
 import android.widget.BaseAdapter;
 
@@ -31,11 +36,15 @@ import com.xtremelabs.imageutils.AbstractImageLoader.Options;
  * <b>Instructions:</b><br>
  * Create a new instance of this class from within adapter.<br>
  * Implement the methods {@link PrecacheInformationProvider#onRowPrecacheRequestsRequired(int)} and {@link PrecacheInformationProvider#getCount()}.<br>
- * In the "getView" method of the adapter, call {@link #onPositionVisited(int)}, and pass in the current position.
+ * In the "getView" method of the adapter, call {@link #onPositionVisited(int)}, and pass in the current position.<br>
+ * <br>
+ * The precached ranges grow with the speed of scrolling, up to three times their configured size. Requests for positions that fall out of the ranges are withdrawn, and the number of bytes
+ * being precached at once is limited so that precaching does not hold up the images that are on screen. See {@link #setPrecacheByteBudget(long)}.<br>
+ * <br>
+ * For grids, implement {@link GridPrecacheInformationProvider} instead. For horizontal carousels nested in rows, see {@link #createCarouselAssistant(PrecacheInformationProvider)}. An image that appears in several
+ * positions is only requested once.
  */
 /*
- * TODO This class still has a couple of inefficiencies. Namely, there are some duplicate calls being made. Find the duplicate calls and code them away.
- * 
  * TODO This class' API needs some additional work. The PrecacheInformationProvider needs to be using options and/or accept an ImageView so its API is closer to that of the ImageLoader.loadImage
  * methods.
  * 
@@ -48,20 +57,82 @@ public class ImagePrecacheAssistant {
 
 	private static final int DEFAULT_MEM_CACHE_RANGE = 4;
 	private static final int DEFAULT_DISK_CACHE_RANGE = 10;
+	private static final long DEFAULT_PRECACHE_BYTE_BUDGET = 4 * 1024 * 1024;
+
+	/*
+	 * Used when the size of an image is not known. Images precached to disk are not decoded, so only their compressed size counts towards the budget.
+	 */
+	private static final long ESTIMATED_DISK_PRECACHE_BYTES = 64 * 1024;
+	private static final long ESTIMATED_MEMORY_PRECACHE_BYTES = 256 * 1024;
+	private static final int BYTES_PER_PIXEL = 4;
+
+	/*
+	 * The ranges are their configured size at or below the base velocity, and grow in proportion to the velocity above it.
+	 */
+	private static final float BASE_VELOCITY = 10f;
+	private static final float MAX_RANGE_SCALE = 3f;
+	private static final float VELOCITY_SMOOTHING = 0.3f;
+	private static final long VELOCITY_TIMEOUT_MILLIS = 500;
 
 	private int mMemCacheRange = DEFAULT_MEM_CACHE_RANGE;
 	private int mDiskCacheRange = DEFAULT_DISK_CACHE_RANGE;
 
 	private final AbstractImageLoader mImageLoader;
 	private final PrecacheInformationProvider mPrecacheInformationProvider;
+	private final GridPrecacheInformationProvider mGridInformationProvider;
+
+	/*
+	 * Directions and velocities are measured in rows.
+	 */
+	private int mCurrentRow = 0;
+	private Direction mCurrentDirection = Direction.DOWN;
+
+	private float mVelocity = 0f;
+	private int mLastSampleRow;
+	private long mLastSampleTime = -1;
+
+	/*
+	 * Positions that have been precached, mapped to the requests they refer to.
+	 */
+	private final Map<Integer, List<PrecacheHandle>> mMemoryPrecaches = new HashMap<Integer, List<PrecacheHandle>>();
+	private final Map<Integer, List<PrecacheHandle>> mDiskPrecaches = new HashMap<Integer, List<PrecacheHandle>>();
+	private RangesToCache mRanges;
 
-	private int mCurrentPosition = 0;
-	private Direction mCurrentDirection = Direction.UP;
-	private boolean isFirstCalculation = true;
+	/*
+	 * The following state is shared with carousel assistants, and is only used on the root assistant.
+	 */
+	private final ImagePrecacheAssistant mRoot;
+	private final List<ImagePrecacheAssistant> mCarouselAssistants = new ArrayList<ImagePrecacheAssistant>();
+	private final Map<String, PrecacheHandle> mMemoryHandles = new HashMap<String, PrecacheHandle>();
+	private final Map<String, PrecacheHandle> mDiskHandles = new HashMap<String, PrecacheHandle>();
+	private final List<PrecacheHandle> mUnreferencedHandles = new ArrayList<PrecacheHandle>();
+	private long mPrecacheByteBudget = DEFAULT_PRECACHE_BYTE_BUDGET;
+	private long mBytesInFlight = 0;
+	private boolean mIssuingRequests = false;
 
 	public ImagePrecacheAssistant(AbstractImageLoader imageLoader, PrecacheInformationProvider precacheInformationProvider) {
+		this(imageLoader, precacheInformationProvider, null);
+	}
+
+	private ImagePrecacheAssistant(AbstractImageLoader imageLoader, PrecacheInformationProvider precacheInformationProvider, ImagePrecacheAssistant root) {
 		mImageLoader = imageLoader;
 		mPrecacheInformationProvider = precacheInformationProvider;
+		if (precacheInformationProvider instanceof GridPrecacheInformationProvider) {
+			mGridInformationProvider = (GridPrecacheInformationProvider) precacheInformationProvider;
+		} else {
+			mGridInformationProvider = null;
+		}
+		mRoot = root == null ? this : root;
+	}
+
+	/**
+	 * Creates an assistant for a horizontal carousel nested in one of this assistant's rows. Call its {@link #onPositionVisited(int)} method from the carousel's adapter.<br>
+	 * <br>
+	 * The carousel assistant looks ahead along the carousel in whichever direction it is being scrolled. It shares this assistant's byte budget, and images that this assistant or any of its carousels have already
+	 * requested are not requested again. Call {@link #withdrawAll()} on the carousel assistant when the carousel's row is recycled.
+	 */
+	public ImagePrecacheAssistant createCarouselAssistant(PrecacheInformationProvider precacheInformationProvider) {
+		return new ImagePrecacheAssistant(mImageLoader, precacheInformationProvider, mRoot);
 	}
 
 	/**
@@ -71,22 +142,38 @@ public class ImagePrecacheAssistant {
 	 *            The current position within the adapter.
 	 */
 	public void onPositionVisited(int position) {
-		calculateDirection(position);
-		RangesToCache ranges = calculateRanges(position);
+		onPositionVisited(position, SystemClock.uptimeMillis());
+	}
 
-		for (int i = ranges.diskCacheLowerIndex; i < ranges.diskCacheUpperIndex; i++) {
-			List<String> precacheRequestUris = mPrecacheInformationProvider.onRowPrecacheRequestsForDiskCacheRequired(i);
-			precacheListToDisk(precacheRequestUris);
-		}
+	void onPositionVisited(int position, long uptimeMillis) {
+		int row = getRowForPosition(position);
+		updateVelocity(row, uptimeMillis);
+		calculateDirection(row);
+		mRanges = calculateRanges(row);
 
-		for (int i = ranges.memCacheLowerIndex; i < ranges.memCacheUpperIndex; i++) {
-			List<PrecacheRequest> precacheRequests = mPrecacheInformationProvider.onRowPrecacheRequestsForMemoryCacheRequired(i);
-			precacheListToMemory(precacheRequests);
+		if (mRoot != this && !mRoot.mCarouselAssistants.contains(this)) {
+			mRoot.mCarouselAssistants.add(this);
 		}
+
+		releasePositionsOutsideRanges(mMemoryPrecaches);
+		releasePositionsOutsideRanges(mDiskPrecaches);
+		mRoot.updateRequests();
 	}
 
 	/**
-	 * Adjust the number of positions ahead that become cached in both the disk and memory caches.
+	 * Withdraws all of the requests made by this assistant. Positions are precached again when {@link #onPositionVisited(int)} is next called.
+	 */
+	public void withdrawAll() {
+		mRanges = null;
+		mRoot.mCarouselAssistants.remove(this);
+
+		releasePositionsOutsideRanges(mMemoryPrecaches);
+		releasePositionsOutsideRanges(mDiskPrecaches);
+		mRoot.updateRequests();
+	}
+
+	/**
+	 * Adjust the number of positions ahead that become cached in both the disk and memory caches. For grids, the range is a number of rows.
 	 * 
 	 * @param range
 	 */
@@ -95,7 +182,7 @@ public class ImagePrecacheAssistant {
 	}
 
 	/**
-	 * Adjust the number of positions ahead of those that become cached in memory that will be cached on disk.
+	 * Adjust the number of positions ahead of those that become cached in memory that will be cached on disk. For grids, the range is a number of rows.
 	 * 
 	 * @param range
 	 */
@@ -103,98 +190,240 @@ public class ImagePrecacheAssistant {
 		mDiskCacheRange = range;
 	}
 
-	private void precacheListToMemory(List<PrecacheRequest> precacheRequests) {
+	/**
+	 * Adjust the estimated number of bytes that may be precached at once. Once the budget is spent, further positions are precached as earlier ones complete. The nearest position is always precached. Defaults to
+	 * 4MB.<br>
+	 * <br>
+	 * The budget is shared with carousel assistants, and can only be set on the assistant that created them.
+	 * 
+	 * @param bytes
+	 */
+	public void setPrecacheByteBudget(long bytes) {
+		if (mRoot != this) {
+			throw new IllegalStateException("The precache byte budget is shared, and can only be set on the assistant that created this one.");
+		}
+		mPrecacheByteBudget = bytes;
+	}
+
+	private void updateVelocity(int row, long uptimeMillis) {
+		long elapsedMillis = uptimeMillis - mLastSampleTime;
+		if (mLastSampleTime < 0 || elapsedMillis > VELOCITY_TIMEOUT_MILLIS) {
+			mVelocity = 0f;
+		} else if (elapsedMillis > 0) {
+			float velocity = Math.abs(row - mLastSampleRow) * 1000f / elapsedMillis;
+			mVelocity += VELOCITY_SMOOTHING * (velocity - mVelocity);
+		} else {
+			// Several positions can be visited in the same frame. They are measured together at the next sample.
+			return;
+		}
+
+		mLastSampleRow = row;
+		mLastSampleTime = uptimeMillis;
+	}
+
+	private float getRangeScale() {
+		return Math.max(1f, Math.min(MAX_RANGE_SCALE, mVelocity / BASE_VELOCITY));
+	}
+
+	private void releasePositionsOutsideRanges(Map<Integer, List<PrecacheHandle>> precaches) {
+		Iterator<Map.Entry<Integer, List<PrecacheHandle>>> iterator = precaches.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<Integer, List<PrecacheHandle>> entry = iterator.next();
+			if (mRanges == null || !mRanges.contains(entry.getKey())) {
+				for (PrecacheHandle handle : entry.getValue()) {
+					handle.release();
+				}
+				iterator.remove();
+			}
+		}
+	}
+
+	/*
+	 * Requests are made for the new ranges before unreferenced requests are withdrawn, so that images that have moved between positions are not withdrawn and requested again.
+	 */
+	private void updateRequests() {
+		issueRequests();
+
+		if (!mUnreferencedHandles.isEmpty()) {
+			for (PrecacheHandle handle : mUnreferencedHandles) {
+				if (handle.mNumReferences == 0) {
+					handle.withdraw();
+				}
+			}
+			mUnreferencedHandles.clear();
+			issueRequests();
+		}
+	}
+
+	/*
+	 * Requests that complete while this is running are accounted for by the running loops.
+	 */
+	private void issueRequests() {
+		if (mIssuingRequests) {
+			return;
+		}
+
+		mIssuingRequests = true;
+		try {
+			issueRequestsForRanges();
+			for (int i = 0; i < mCarouselAssistants.size(); i++) {
+				mCarouselAssistants.get(i).issueRequestsForRanges();
+			}
+		} finally {
+			mIssuingRequests = false;
+		}
+	}
+
+	/*
+	 * Positions are precached nearest first, memory before disk, until the budget is spent.
+	 */
+	private void issueRequestsForRanges() {
+		if (mRanges == null) {
+			return;
+		}
+
+		int numMemCachePositions = mRanges.memCacheUpperIndex - mRanges.memCacheLowerIndex;
+		for (int i = 0; i < numMemCachePositions && !mRoot.isBudgetSpent(); i++) {
+			int position = mCurrentDirection == Direction.DOWN ? mRanges.memCacheLowerIndex + i : mRanges.memCacheUpperIndex - 1 - i;
+			if (!mMemoryPrecaches.containsKey(position)) {
+				precachePositionToMemory(position);
+			}
+		}
+
+		int numDiskCachePositions = mRanges.diskCacheUpperIndex - mRanges.diskCacheLowerIndex;
+		for (int i = 0; i < numDiskCachePositions && !mRoot.isBudgetSpent(); i++) {
+			int position = mCurrentDirection == Direction.DOWN ? mRanges.diskCacheLowerIndex + i : mRanges.diskCacheUpperIndex - 1 - i;
+			if (!mDiskPrecaches.containsKey(position)) {
+				precachePositionToDisk(position);
+			}
+		}
+	}
+
+	private boolean isBudgetSpent() {
+		return mBytesInFlight > 0 && mBytesInFlight >= mPrecacheByteBudget;
+	}
+
+	private void precachePositionToMemory(int position) {
+		List<PrecacheHandle> handles = new ArrayList<PrecacheHandle>();
+		mMemoryPrecaches.put(position, handles);
+
+		List<PrecacheRequest> precacheRequests = mPrecacheInformationProvider.onRowPrecacheRequestsForMemoryCacheRequired(position);
 		if (precacheRequests != null) {
 			for (PrecacheRequest precacheRequest : precacheRequests) {
-				mImageLoader.precacheImageToDiskAndMemory(precacheRequest.mUri, precacheRequest.mBounds, precacheRequest.mOptions);
+				PrecacheHandle handle = mRoot.mMemoryHandles.get(precacheRequest.mUri);
+				if (handle != null) {
+					handle.acquire(handles);
+				} else {
+					handle = new PrecacheHandle(precacheRequest.mUri, mRoot.mMemoryHandles, estimateMemoryBytes(precacheRequest.mBounds));
+					handle.acquire(handles);
+					mImageLoader.precacheImageToDiskAndMemory(precacheRequest.mUri, precacheRequest.mBounds, precacheRequest.mOptions, handle);
+				}
 			}
 		}
 	}
 
-	private void precacheListToDisk(List<String> precacheRequestUris) {
+	/*
+	 * Images that are being precached to memory are also being precached to disk.
+	 */
+	private void precachePositionToDisk(int position) {
+		List<PrecacheHandle> handles = new ArrayList<PrecacheHandle>();
+		mDiskPrecaches.put(position, handles);
+
+		List<String> precacheRequestUris = mPrecacheInformationProvider.onRowPrecacheRequestsForDiskCacheRequired(position);
 		if (precacheRequestUris != null) {
 			for (String precacheRequestUri : precacheRequestUris) {
-				mImageLoader.precacheImageToDisk(precacheRequestUri);
+				PrecacheHandle handle = mRoot.mMemoryHandles.get(precacheRequestUri);
+				if (handle == null) {
+					handle = mRoot.mDiskHandles.get(precacheRequestUri);
+				}
+				if (handle != null) {
+					handle.acquire(handles);
+				} else {
+					handle = new PrecacheHandle(precacheRequestUri, mRoot.mDiskHandles, ESTIMATED_DISK_PRECACHE_BYTES);
+					handle.acquire(handles);
+					mImageLoader.precacheImageToDisk(precacheRequestUri, handle);
+				}
 			}
 		}
 	}
 
-	private RangesToCache calculateRanges(int position) {
+	private static long estimateMemoryBytes(Dimensions bounds) {
+		if (bounds == null || bounds.width == null || bounds.height == null) {
+			return ESTIMATED_MEMORY_PRECACHE_BYTES;
+		}
+		return (long) bounds.width * bounds.height * BYTES_PER_PIXEL;
+	}
+
+	private RangesToCache calculateRanges(int row) {
 		RangesToCache indices = new RangesToCache();
 
+		float scale = getRangeScale();
+		int memCacheRange = Math.round(mMemCacheRange * scale);
+		int diskCacheRange = Math.round(mDiskCacheRange * scale);
+
 		switch (mCurrentDirection) {
 		case UP:
-			calculateRangesForUp(position, indices);
+			calculateRangesForUp(row, memCacheRange, diskCacheRange, indices);
 			break;
 		case DOWN:
-			calculateRangesForDown(position, indices);
+			calculateRangesForDown(row, memCacheRange, diskCacheRange, indices);
 			break;
 		}
 
+		indices.memCacheLowerIndex = getFirstPositionInRow(indices.memCacheLowerIndex);
+		indices.memCacheUpperIndex = getFirstPositionInRow(indices.memCacheUpperIndex);
+		indices.diskCacheLowerIndex = getFirstPositionInRow(indices.diskCacheLowerIndex);
+		indices.diskCacheUpperIndex = getFirstPositionInRow(indices.diskCacheUpperIndex);
 		return indices;
 	}
 
-	private void calculateDirection(int position) {
-		if (directionSwitchedToDown(position)) {
+	/*
+	 * Positions within a row can be visited in any order, so the direction only changes when the row does.
+	 */
+	private void calculateDirection(int row) {
+		if (row > mCurrentRow) {
 			mCurrentDirection = Direction.DOWN;
-		} else if (directionSwitchedToUp(position)) {
+		} else if (row < mCurrentRow) {
 			mCurrentDirection = Direction.UP;
 		}
 
-		switch (mCurrentDirection) {
-		case DOWN:
-			mCurrentPosition = position;
-			break;
-		case UP:
-			mCurrentPosition = position;
-			break;
-		}
+		mCurrentRow = row;
 	}
 
-	private void calculateRangesForUp(int position, RangesToCache indices) {
-		if (isFirstCalculation) {
-			indices.memCacheUpperIndex = Math.max(0, position);
-		} else {
-			indices.memCacheUpperIndex = Math.max(0, position - mMemCacheRange + 1);
-		}
-		indices.memCacheLowerIndex = Math.max(0, position - mMemCacheRange);
-
-		if (isFirstCalculation) {
-			indices.diskCacheUpperIndex = Math.max(0, indices.memCacheLowerIndex);
-		} else {
-			indices.diskCacheUpperIndex = Math.max(0, indices.memCacheLowerIndex - mDiskCacheRange + 1);
-		}
-		indices.diskCacheLowerIndex = Math.max(0, indices.memCacheLowerIndex - mDiskCacheRange);
+	/*
+	 * The ranges are calculated in rows, and then converted to positions.
+	 */
+	private void calculateRangesForUp(int row, int memCacheRange, int diskCacheRange, RangesToCache indices) {
+		indices.memCacheUpperIndex = Math.max(0, row);
+		indices.memCacheLowerIndex = Math.max(0, row - memCacheRange);
 
-		isFirstCalculation = false;
+		indices.diskCacheUpperIndex = indices.memCacheLowerIndex;
+		indices.diskCacheLowerIndex = Math.max(0, indices.memCacheLowerIndex - diskCacheRange);
 	}
 
-	private void calculateRangesForDown(int position, RangesToCache indices) {
-		int count = mPrecacheInformationProvider.getCount();
+	private void calculateRangesForDown(int row, int memCacheRange, int diskCacheRange, RangesToCache indices) {
+		int count = getRowCount();
 
-		if (isFirstCalculation) {
-			indices.memCacheLowerIndex = Math.min(count, position + 1);
-		} else {
-			indices.memCacheLowerIndex = Math.min(count, position + mMemCacheRange);
-		}
-		indices.memCacheUpperIndex = Math.min(count, position + 1 + mMemCacheRange);
+		indices.memCacheLowerIndex = Math.min(count, row + 1);
+		indices.memCacheUpperIndex = Math.min(count, row + 1 + memCacheRange);
 
-		if (isFirstCalculation) {
-			indices.diskCacheLowerIndex = Math.min(count, indices.memCacheUpperIndex);
-		} else {
-			indices.diskCacheLowerIndex = Math.min(count, indices.memCacheUpperIndex + mDiskCacheRange - 1);
-		}
-		indices.diskCacheUpperIndex = Math.min(count, indices.memCacheUpperIndex + mDiskCacheRange);
+		indices.diskCacheLowerIndex = indices.memCacheUpperIndex;
+		indices.diskCacheUpperIndex = Math.min(count, indices.memCacheUpperIndex + diskCacheRange);
+	}
 
-		isFirstCalculation = false;
+	private int getRowCount() {
+		return mGridInformationProvider == null ? mPrecacheInformationProvider.getCount() : mGridInformationProvider.getRowCount();
 	}
 
-	private boolean directionSwitchedToDown(int position) {
-		return mCurrentDirection == Direction.UP && position >= mCurrentPosition;
+	private int getRowForPosition(int position) {
+		return mGridInformationProvider == null ? position : mGridInformationProvider.getRowForPosition(position);
 	}
 
-	private boolean directionSwitchedToUp(int position) {
-		return mCurrentDirection == Direction.DOWN && position <= mCurrentPosition;
+	private int getFirstPositionInRow(int row) {
+		if (mGridInformationProvider == null) {
+			return row;
+		}
+		return row >= mGridInformationProvider.getRowCount() ? mGridInformationProvider.getCount() : mGridInformationProvider.getFirstPositionInRow(row);
 	}
 
 	/**
@@ -225,6 +454,20 @@ public class ImagePrecacheAssistant {
 		public List<PrecacheRequest> onRowPrecacheRequestsForMemoryCacheRequired(int position);
 	}
 
+	/**
+	 * Implement this interface instead of {@link PrecacheInformationProvider} for adapters that lay their positions out in rows of one or more columns, such as grids and staggered grids. Rows may have different
+	 * numbers of columns. Positions must be numbered row by row.<br>
+	 * <br>
+	 * The memory and disk cache ranges are counted in rows, and every position in a row is precached along with it.
+	 */
+	public static interface GridPrecacheInformationProvider extends PrecacheInformationProvider {
+		public int getRowCount();
+
+		public int getRowForPosition(int position);
+
+		public int getFirstPositionInRow(int row);
+	}
+
 	public static class PrecacheRequest {
 		public static enum UnitType {
 			PIXELS, DENSITY_INDEPENDENT_PIXELS
@@ -275,5 +518,76 @@ public class ImagePrecacheAssistant {
 	private static class RangesToCache {
 		int memCacheLowerIndex = 0, memCacheUpperIndex = 0;
 		int diskCacheLowerIndex = 0, diskCacheUpperIndex = 0;
+
+		/*
+		 * Memory cache requests that move into the disk cache range are left to complete.
+		 */
+		boolean contains(int position) {
+			return position >= Math.min(memCacheLowerIndex, diskCacheLowerIndex) && position < Math.max(memCacheUpperIndex, diskCacheUpperIndex);
+		}
+	}
+
+	/**
+	 * Tracks a single precache request, which may be referred to by several positions. Once no positions refer to it, it is withdrawn. The listener is called on the UI thread, and is not called at all once the
+	 * request has been withdrawn.
+	 */
+	private class PrecacheHandle implements ImageManagerListener {
+		private final String mUri;
+		private final Map<String, PrecacheHandle> mHandles;
+		private final long mEstimatedBytes;
+		private int mNumReferences = 0;
+		private boolean mInFlight = true;
+
+		/*
+		 * The handle is accounted for before its request is made, as memory cache hits complete during the request.
+		 */
+		PrecacheHandle(String uri, Map<String, PrecacheHandle> handles, long estimatedBytes) {
+			mUri = uri;
+			mHandles = handles;
+			mEstimatedBytes = estimatedBytes;
+
+			mHandles.put(uri, this);
+			mRoot.mBytesInFlight += estimatedBytes;
+		}
+
+		void acquire(List<PrecacheHandle> positionHandles) {
+			positionHandles.add(this);
+			mNumReferences++;
+		}
+
+		void release() {
+			if (--mNumReferences == 0) {
+				mRoot.mUnreferencedHandles.add(this);
+			}
+		}
+
+		void withdraw() {
+			if (mHandles.get(mUri) == this) {
+				mHandles.remove(mUri);
+			}
+			if (mInFlight) {
+				mInFlight = false;
+				mRoot.mBytesInFlight -= mEstimatedBytes;
+				mImageLoader.withdrawPrecacheRequest(this);
+			}
+		}
+
+		@Override
+		public void onImageReceived(ImageResponse imageResponse) {
+			onComplete();
+		}
+
+		@Override
+		public void onLoadImageFailed(String error) {
+			onComplete();
+		}
+
+		private void onComplete() {
+			if (mInFlight) {
+				mInFlight = false;
+				mRoot.mBytesInFlight -= mEstimatedBytes;
+				mRoot.issueRequests();
+			}
+		}
 	}
 }
@@ -23,6 +23,9 @@ class ImageRequest {
 		WEB, LOCAL_FILE_SYSTEM
 	}
 
+	/**
+	 * Ordered from least to most important.
+	 */
 	static enum RequestType {
 		CACHE_TO_DISK, CACHE_TO_DISK_AND_MEMORY, FULL_REQUEST
 	}
@@ -32,6 +35,7 @@ class ImageRequest {
 	private LocationOfImage mImageRequestType;
 	private RequestType mRequestType = RequestType.FULL_REQUEST;
 	private final Options mOptions;
+	private MemoryLookupKey mMemoryLookupKey;
 
 	public ImageRequest(String uri) {
 		this(uri, null);
@@ -83,6 +87,17 @@ class ImageRequest {
 		return mRequestType;
 	}
 
+	void setMemoryLookupKey(MemoryLookupKey memoryLookupKey) {
+		mMemoryLookupKey = memoryLookupKey;
+	}
+
+	/**
+	 * @return The key the loader will look this request up by the next time it is made, or null if the request did not come from a loader.
+	 */
+	MemoryLookupKey getMemoryLookupKey() {
+		return mMemoryLookupKey;
+	}
+
 	private void setLocationOfImage() {
 		if (GeneralUtils.isFileSystemUri(mUri)) {
 			mImageRequestType = LocationOfImage.LOCAL_FILE_SYSTEM;
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2013 Xtreme Labs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xtremelabs.imageutils;
+
+import android.graphics.drawable.Drawable;
+import android.widget.ImageView;
+
+/**
+ * Remembers what was last bound to an ImageView: the request that is on its way to it, or the image it is displaying. Adapters rebind their views constantly, and a rebind that matches this can be skipped.
+ * 
+ * Bindings are reused as the view is bound to other images, so updating one does not allocate. Must only be used from the UI thread.
+ */
+class ImageViewBinding {
+	private final MemoryLookupKey mMemoryLookupKey = new MemoryLookupKey();
+	private ImageLoaderListener mImageLoaderListener;
+	private ImageManagerListener mPendingListener;
+	private Drawable mDisplayedDrawable;
+
+	/**
+	 * @param pendingListener
+	 *            The listener that the view is currently waiting on, if any.
+	 * @return True if the request was the last one bound to the view, and its image is either still on its way to the view or still displayed by it.
+	 */
+	boolean matches(ImageView imageView, MemoryLookupKey memoryLookupKey, ImageLoaderListener imageLoaderListener, ImageManagerListener pendingListener) {
+		if (mImageLoaderListener != imageLoaderListener || !mMemoryLookupKey.equals(memoryLookupKey)) {
+			return false;
+		}
+
+		if (mPendingListener != null) {
+			return mPendingListener == pendingListener;
+		}
+		return mDisplayedDrawable != null && mDisplayedDrawable == imageView.getDrawable();
+	}
+
+	void setPending(MemoryLookupKey memoryLookupKey, ImageLoaderListener imageLoaderListener, ImageManagerListener pendingListener) {
+		mMemoryLookupKey.set(memoryLookupKey);
+		mImageLoaderListener = imageLoaderListener;
+		mPendingListener = pendingListener;
+		mDisplayedDrawable = null;
+	}
+
+	void setDisplayed(ImageView imageView, MemoryLookupKey memoryLookupKey, ImageLoaderListener imageLoaderListener) {
+		mMemoryLookupKey.set(memoryLookupKey);
+		mImageLoaderListener = imageLoaderListener;
+		mPendingListener = null;
+		mDisplayedDrawable = imageView.getDrawable();
+	}
+
+	/**
+	 * Called once the pending request has been delivered to the view.
+	 * 
+	 * @return False if the view has since been bound to another request.
+	 */
+	boolean onDisplayed(ImageView imageView, ImageManagerListener listener) {
+		if (mPendingListener != listener) {
+			return false;
+		}
+		mPendingListener = null;
+		mDisplayedDrawable = imageView.getDrawable();
+		return true;
+	}
+
+	boolean isPending(ImageManagerListener listener) {
+		return mPendingListener == listener;
+	}
+}
@@ -33,6 +33,10 @@ class ImageViewReferenceMapper {
 		return view;
 	}
 
+	public synchronized ImageManagerListener getListener(ImageView view) {
+		return map.getSecondaryItem(view);
+	}
+
 	public synchronized ImageManagerListener removeListener(ImageView view) {
 		return map.removePrimaryItem(view);
 	}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2013 Xtreme Labs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xtremelabs.imageutils;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A deque with a hash index over its keys. Pushing, bumping and removing by key, and popping from either end are all O(1).
+ * 
+ * Values are iterated from front to back. The deque must not be modified while it is being iterated.
+ * 
+ * This class is not thread safe.
+ */
+class IndexedDeque<KEY, VALUE> implements Iterable<VALUE> {
+	private Node mHead;
+	private Node mTail;
+	private final Map<KEY, Node> mMap = new HashMap<KEY, Node>();
+
+	/**
+	 * Adds the value to the front of the deque. If the key is already in the deque, its value is replaced and it is moved to the front.
+	 * 
+	 * @return True if the key was not already in the deque.
+	 */
+	public boolean pushFront(KEY key, VALUE value) {
+		Node node = mMap.get(key);
+		if (node != null) {
+			node.mValue = value;
+			removeFromList(node);
+			addToHead(node);
+			return false;
+		}
+
+		node = new Node(key, value);
+		mMap.put(key, node);
+		addToHead(node);
+		return true;
+	}
+
+	/**
+	 * @return True if the key was in the deque.
+	 */
+	public boolean bump(KEY key) {
+		Node node = mMap.get(key);
+		if (node == null) {
+			return false;
+		}
+		removeFromList(node);
+		addToHead(node);
+		return true;
+	}
+
+	/**
+	 * @return The value that was removed, or null if the key was not in the deque.
+	 */
+	public VALUE remove(KEY key) {
+		Node node = mMap.remove(key);
+		if (node == null) {
+			return null;
+		}
+		removeFromList(node);
+		return node.mValue;
+	}
+
+	public VALUE pollFirst() {
+		return mHead == null ? null : remove(mHead.mKey);
+	}
+
+	public VALUE pollLast() {
+		return mTail == null ? null : remove(mTail.mKey);
+	}
+
+	public VALUE peekLast() {
+		return mTail == null ? null : mTail.mValue;
+	}
+
+	public VALUE get(KEY key) {
+		Node node = mMap.get(key);
+		return node == null ? null : node.mValue;
+	}
+
+	public boolean contains(KEY key) {
+		return mMap.containsKey(key);
+	}
+
+	public void clear() {
+		mMap.clear();
+		mHead = null;
+		mTail = null;
+	}
+
+	public int size() {
+		return mMap.size();
+	}
+
+	public boolean isEmpty() {
+		return mHead == null;
+	}
+
+	@Override
+	public Iterator<VALUE> iterator() {
+		return new Iterator<VALUE>() {
+			private Node mNextNode = mHead;
+
+			@Override
+			public boolean hasNext() {
+				return mNextNode != null;
+			}
+
+			@Override
+			public VALUE next() {
+				if (mNextNode == null) {
+					throw new NoSuchElementException();
+				}
+				VALUE value = mNextNode.mValue;
+				mNextNode = mNextNode.mNext;
+				return value;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	private void addToHead(Node node) {
+		if (mHead == null) {
+			mHead = node;
+			mTail = node;
+		} else {
+			node.mNext = mHead;
+			mHead.mPrevious = node;
+			mHead = node;
+		}
+	}
+
+	private void removeFromList(Node node) {
+		Node next = node.mNext;
+		Node previous = node.mPrevious;
+
+		if (previous != null) {
+			previous.mNext = next;
+		} else {
+			mHead = next;
+		}
+
+		if (next != null) {
+			next.mPrevious = previous;
+		} else {
+			mTail = previous;
+		}
+
+		node.mNext = null;
+		node.mPrevious = null;
+	}
+
+	private class Node {
+		private Node mPrevious;
+		private Node mNext;
+		private final KEY mKey;
+		private VALUE mValue;
+
+		Node(KEY key, VALUE value) {
+			mKey = key;
+			mValue = value;
+		}
+	}
+}
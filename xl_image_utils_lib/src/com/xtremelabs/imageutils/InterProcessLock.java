@@ -0,0 +1,100 @@
+/*
+ * Copyright 2013 Xtreme Labs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xtremelabs.imageutils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A reentrant lock that is shared by every thread in every process that uses the same lock file and position.
+ * 
+ * File locks are held on behalf of the whole process, so threads are first serialized with a {@link ReentrantLock} and only the outermost hold takes the file lock. Locks are advisory: they only exclude code that
+ * also takes them.
+ * 
+ * Lock files are opened once and never closed. On Linux, closing any descriptor for a file releases every lock the process holds on that file.
+ */
+class InterProcessLock {
+	private static final Map<String, FileChannel> sChannels = new HashMap<String, FileChannel>();
+	private static final Map<String, InterProcessLock> sLocks = new HashMap<String, InterProcessLock>();
+
+	private final FileChannel mChannel;
+	private final long mPosition;
+	private final ReentrantLock mLock = new ReentrantLock();
+	private FileLock mFileLock;
+
+	private InterProcessLock(FileChannel channel, long position) {
+		mChannel = channel;
+		mPosition = position;
+	}
+
+	/**
+	 * @param position
+	 *            Locks at different positions in the same file are independent of each other. This allows one file to hold a set of striped locks.
+	 */
+	public static synchronized InterProcessLock getLock(File lockFile, long position) {
+		String path = lockFile.getAbsolutePath();
+		String key = path + "#" + position;
+
+		InterProcessLock lock = sLocks.get(key);
+		if (lock == null) {
+			if (!sChannels.containsKey(path)) {
+				sChannels.put(path, openLockFile(lockFile));
+			}
+			lock = new InterProcessLock(sChannels.get(path), position);
+			sLocks.put(key, lock);
+		}
+		return lock;
+	}
+
+	public void lock() {
+		mLock.lock();
+		if (mLock.getHoldCount() == 1 && mChannel != null) {
+			try {
+				mFileLock = mChannel.lock(mPosition, 1, false);
+			} catch (IOException e) {
+				Logger.w("Unable to acquire a file lock. Only threads in this process will be excluded. Message: " + e.getMessage());
+			}
+		}
+	}
+
+	public void unlock() {
+		if (mLock.getHoldCount() == 1 && mFileLock != null) {
+			try {
+				mFileLock.release();
+			} catch (IOException e) {
+				Logger.w("Unable to release a file lock. Message: " + e.getMessage());
+			}
+			mFileLock = null;
+		}
+		mLock.unlock();
+	}
+
+	private static FileChannel openLockFile(File lockFile) {
+		try {
+			return new RandomAccessFile(lockFile, "rw").getChannel();
+		} catch (IOException e) {
+			Logger.w("Unable to open lock file. Only threads in this process will be excluded. File: " + lockFile + ", Message: " + e.getMessage());
+			return null;
+		}
+	}
+}
@@ -16,81 +16,369 @@
 
 package com.xtremelabs.imageutils;
 
-import java.util.concurrent.LinkedBlockingDeque;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
-import android.annotation.SuppressLint;
-import android.os.AsyncTask;
-import android.os.Build;
+import android.os.Process;
 
+import com.xtremelabs.imageutils.ImageRequest.RequestType;
+
+/**
+ * A fixed size thread pool that runs the most recently submitted task first. Tasks are identified by a key, which is used to de-duplicate, bump and remove them.
+ * 
+ * Every {@link RequestType} has its own queue. Workers always take from the queue of the most important request type, so precaching never delays an image the user is looking at. To prevent starvation, the task
+ * that has waited longest in a less important queue is promoted to the next queue up once it has waited for the maximum wait time. Submitting or bumping a queued task with a more important request type promotes
+ * it immediately.
+ * 
+ * Submissions and bumps are pushed on to a lock-free inbox, so {@link #execute(Object, Runnable, RequestType)} and {@link #bump(Object, RequestType)} never block and are cheap enough to call from the UI thread.
+ * Workers move the contents of the inbox into the queues, which are {@link IndexedDeque}s, so every queue operation is O(1) regardless of how many tasks are waiting.
+ * 
+ * An optional {@link TaskLimiter} can hold tasks back, for example to limit how many run at once. Held back tasks are skipped over and stay queued until {@link #onCapacityAvailable()} is called.
+ */
 class LifoThreadPool {
-	private ThreadPoolExecutor mThreadPool;
-	private LifoBlockingStack mStack;
+	static final long DEFAULT_MAXIMUM_WAIT_MILLIS = 2000;
+
+	/*
+	 * Request types from most to least important.
+	 */
+	private static final RequestType[] PRIORITY_ORDER = { RequestType.FULL_REQUEST, RequestType.CACHE_TO_DISK_AND_MEMORY, RequestType.CACHE_TO_DISK };
+
+	private final int mPoolSize;
+	private final long mMaximumWaitNanos;
+	private final AtomicReference<Command> mInbox = new AtomicReference<Command>();
+	private final List<IndexedDeque<Object, Task>> mQueues = new ArrayList<IndexedDeque<Object, Task>>();
+	private final Semaphore mQueuedTasks = new Semaphore(0);
+	private final AtomicBoolean mStarted = new AtomicBoolean(false);
+	private final AtomicInteger mThreadCount = new AtomicInteger(0);
+	private final AtomicInteger mCapacityGeneration = new AtomicInteger(0);
+	private final ConcurrentLinkedQueue<Thread> mWaitingWorkers = new ConcurrentLinkedQueue<Thread>();
+	private volatile TaskLimiter mTaskLimiter;
+	private volatile int mThreadPriority = Process.THREAD_PRIORITY_DEFAULT;
 
 	public LifoThreadPool(int poolSize) {
-		if (Build.VERSION.SDK_INT >= 9) {
-			mStack = new LifoBlockingStack();
-			mThreadPool = new ThreadPoolExecutor(poolSize, poolSize, 120, TimeUnit.SECONDS, mStack);
-		} else {
-			mThreadPool = new ThreadPoolExecutor(poolSize, poolSize, 120, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+		this(poolSize, DEFAULT_MAXIMUM_WAIT_MILLIS);
+	}
+
+	/**
+	 * @param maximumWaitMillis
+	 *            How long a task may wait in a queue before it is promoted to the next queue up.
+	 */
+	public LifoThreadPool(int poolSize, long maximumWaitMillis) {
+		mPoolSize = poolSize;
+		mMaximumWaitNanos = maximumWaitMillis * 1000000L;
+		for (int i = 0; i < PRIORITY_ORDER.length; i++) {
+			mQueues.add(new IndexedDeque<Object, Task>());
 		}
 	}
 
-	public void execute(final Runnable runnable) {
-		/*
-		 * This is a performance hack.
-		 * 
-		 * ThreadPoolExecutors, when queuing a runnable, can take up to 100ms on the UI thread. Since we need the ThreadPoolExecutor to support the LIFO system, we still need to post our runnables to the executor, but we
-		 * can use an AsyncTask to kick off the laggy execute call off the UI thread.
-		 */
-		new AsyncTask<Void, Void, Void>() {
-			@Override
-			protected Void doInBackground(Void... params) {
-				mThreadPool.execute(runnable);
-				return null;
+	public void execute(Object key, Runnable runnable) {
+		execute(key, runnable, RequestType.FULL_REQUEST);
+	}
+
+	/**
+	 * Queues the runnable at the top of the stack for its request type. If a task with the same key is already queued, it is bumped instead, and promoted if the request type is more important than the one it was
+	 * queued with. If it is already running, the runnable is queued to run again.
+	 */
+	public void execute(Object key, Runnable runnable, RequestType requestType) {
+		if (!mStarted.get() && mStarted.compareAndSet(false, true)) {
+			for (int i = 0; i < mPoolSize; i++) {
+				startWorker();
 			}
-		}.execute();
+		}
+
+		pushCommand(new Command(key, runnable, getPriority(requestType), false));
+		mQueuedTasks.release();
+
+		// The new task may not be held back by the task limiter.
+		onCapacityAvailable();
+	}
+
+	/**
+	 * Must be set before the first task is executed.
+	 */
+	public void setTaskLimiter(TaskLimiter taskLimiter) {
+		mTaskLimiter = taskLimiter;
+	}
+
+	/**
+	 * Must be set before the first task is executed.
+	 * 
+	 * @param threadPriority
+	 *            A priority from {@link Process}, such as {@link Process#THREAD_PRIORITY_BACKGROUND}.
+	 */
+	public void setThreadPriority(int threadPriority) {
+		mThreadPriority = threadPriority;
 	}
 
-	public void bump(Runnable runnable) {
-		if (mStack != null) {
-			mStack.bump(runnable);
+	/**
+	 * Wakes up workers that are waiting for the task limiter to let a task start. Does not block.
+	 */
+	public void onCapacityAvailable() {
+		mCapacityGeneration.incrementAndGet();
+		for (Thread worker : mWaitingWorkers) {
+			LockSupport.unpark(worker);
 		}
 	}
 
-	@SuppressLint("NewApi")
-	private class LifoBlockingStack extends LinkedBlockingDeque<Runnable> {
-		private static final long serialVersionUID = -4854985351588039351L;
+	/**
+	 * Moves a queued task to the top of its stack. Tasks that are running or have already run are ignored.
+	 */
+	public void bump(Object key) {
+		bump(key, null);
+	}
 
-		@Override
-		public boolean offer(Runnable runnable) {
-			if (!contains(runnable)) {
-				return super.offerFirst(runnable);
+	/**
+	 * Moves a queued task to the top of its stack, promoting it if the request type is more important than the one it was queued with. Tasks that are running or have already run are ignored.
+	 * 
+	 * @param requestType
+	 *            May be null, in which case the task is not promoted.
+	 */
+	public void bump(Object key, RequestType requestType) {
+		if (key != null) {
+			pushCommand(new Command(key, null, requestType == null ? -1 : getPriority(requestType), false));
+		}
+	}
+
+	/**
+	 * Moves a queued task to the queue for the request type, whether that is more or less important than the one it is in. Tasks that are running or have already run are ignored.
+	 */
+	public void setPriority(Object key, RequestType requestType) {
+		if (key != null && requestType != null) {
+			pushCommand(new Command(key, null, getPriority(requestType), true));
+		}
+	}
+
+	/**
+	 * @return True if the task was removed before it started running.
+	 */
+	public boolean remove(Object key) {
+		synchronized (mQueues) {
+			drainInbox();
+			for (IndexedDeque<Object, Task> queue : mQueues) {
+				if (queue.remove(key) != null) {
+					return true;
+				}
 			}
 			return false;
 		}
+	}
 
-		@Override
-		public boolean offer(Runnable runnable, long timeout, TimeUnit unit) throws InterruptedException {
-			return super.offerFirst(runnable, timeout, unit);
+	static int getPriority(RequestType requestType) {
+		for (int i = 0; i < PRIORITY_ORDER.length; i++) {
+			if (PRIORITY_ORDER[i] == requestType) {
+				return i;
+			}
 		}
+		return 0;
+	}
 
-		@Override
-		public boolean add(Runnable runnable) {
-			return super.offerFirst(runnable);
+	private void pushCommand(Command command) {
+		Command head;
+		do {
+			head = mInbox.get();
+			command.mNext = head;
+		} while (!mInbox.compareAndSet(head, command));
+	}
+
+	/*
+	 * Must be called while synchronized on mQueues. The inbox is taken as a whole, and is reversed so that commands are applied in the order they were made.
+	 */
+	private void drainInbox() {
+		Command command = mInbox.getAndSet(null);
+		Command reversed = null;
+		while (command != null) {
+			Command next = command.mNext;
+			command.mNext = reversed;
+			reversed = command;
+			command = next;
 		}
 
-		@Override
-		public void put(Runnable runnable) throws InterruptedException {
-			super.putFirst(runnable);
+		for (command = reversed; command != null; command = command.mNext) {
+			int priority = findPriorityOfQueuedTask(command.mKey);
+			if (priority < 0) {
+				if (command.mRunnable != null) {
+					mQueues.get(command.mPriority).pushFront(command.mKey, new Task(command.mKey, command.mRunnable, command.mTime));
+				}
+			} else if (command.mPriority >= 0 && (command.mPriority < priority || (command.mReplacePriority && command.mPriority != priority))) {
+				Task task = mQueues.get(priority).remove(command.mKey);
+				task.mQueuedTime = command.mTime;
+				mQueues.get(command.mPriority).pushFront(command.mKey, task);
+			} else {
+				IndexedDeque<Object, Task> queue = mQueues.get(priority);
+				queue.get(command.mKey).mQueuedTime = command.mTime;
+				queue.bump(command.mKey);
+			}
+		}
+	}
+
+	private int findPriorityOfQueuedTask(Object key) {
+		for (int i = 0; i < mQueues.size(); i++) {
+			if (mQueues.get(i).contains(key)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/*
+	 * Must be called while synchronized on mQueues. The tasks at the back of each queue have waited the longest, since bumps move tasks to the front.
+	 */
+	private Task pollTask() {
+		long now = System.nanoTime();
+		for (int i = 1; i < mQueues.size(); i++) {
+			IndexedDeque<Object, Task> queue = mQueues.get(i);
+			Task oldestTask = queue.peekLast();
+			if (oldestTask != null && now - oldestTask.mQueuedTime >= mMaximumWaitNanos) {
+				queue.pollLast();
+				oldestTask.mQueuedTime = now;
+				mQueues.get(i - 1).pushFront(oldestTask.mKey, oldestTask);
+			}
+		}
+
+		TaskLimiter taskLimiter = mTaskLimiter;
+		for (IndexedDeque<Object, Task> queue : mQueues) {
+			if (taskLimiter == null) {
+				if (!queue.isEmpty()) {
+					return queue.pollFirst();
+				}
+			} else {
+				Task taskToStart = null;
+				for (Task task : queue) {
+					if (taskLimiter.tryStart(task.mKey)) {
+						taskToStart = task;
+						break;
+					}
+				}
+				if (taskToStart != null) {
+					queue.remove(taskToStart.mKey);
+					return taskToStart;
+				}
+			}
 		}
+		return null;
+	}
+
+	private boolean hasQueuedTasks() {
+		for (IndexedDeque<Object, Task> queue : mQueues) {
+			if (!queue.isEmpty()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * Parks the worker outside of the lock until capacity has become available since the generation was read. The worker is registered before the generation is checked again, so a wake up can not be missed.
+	 */
+	private void waitForCapacity(int generation) {
+		Thread worker = Thread.currentThread();
+		mWaitingWorkers.add(worker);
+		try {
+			while (mCapacityGeneration.get() == generation) {
+				LockSupport.park(this);
+				// Workers are never interrupted on purpose, and an interrupted thread can not park.
+				Thread.interrupted();
+			}
+		} finally {
+			mWaitingWorkers.remove(worker);
+		}
+	}
 
-		public void bump(Runnable runnable) {
-			if (Build.VERSION.SDK_INT >= 9 && runnable != null && super.remove(runnable)) {
-				super.offerFirst(runnable);
+	private void startWorker() {
+		Thread thread = new Thread(mWorkerRunnable, "LifoThreadPool-" + mThreadCount.incrementAndGet());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private final Runnable mWorkerRunnable = new Runnable() {
+		@Override
+		public void run() {
+			if (mThreadPriority != Process.THREAD_PRIORITY_DEFAULT) {
+				Process.setThreadPriority(mThreadPriority);
+			}
+
+			while (true) {
+				mQueuedTasks.acquireUninterruptibly();
+
+				Task task;
+				while (true) {
+					int generation = mCapacityGeneration.get();
+					boolean heldBack;
+					synchronized (mQueues) {
+						drainInbox();
+						task = pollTask();
+						heldBack = task == null && hasQueuedTasks();
+					}
+					if (!heldBack) {
+						break;
+					}
+					// Every queued task is being held back by the task limiter.
+					waitForCapacity(generation);
+				}
+				if (task == null) {
+					// The task was removed or de-duplicated.
+					continue;
+				}
+
+				boolean completed = false;
+				try {
+					task.mRunnable.run();
+					completed = true;
+				} finally {
+					if (!completed) {
+						/*
+						 * The exception is still thrown to the thread's uncaught exception handler, but the pool keeps its size.
+						 */
+						startWorker();
+					}
+				}
 			}
 		}
 	};
+
+	interface TaskLimiter {
+		/**
+		 * Called while the pool is locked, so implementations must not call back in to the pool.
+		 * 
+		 * @return True if the task may start. The limiter should consider the task to be running from this point on.
+		 */
+		boolean tryStart(Object key);
+	}
+
+	private static class Task {
+		final Object mKey;
+		final Runnable mRunnable;
+		long mQueuedTime;
+
+		Task(Object key, Runnable runnable, long queuedTime) {
+			mKey = key;
+			mRunnable = runnable;
+			mQueuedTime = queuedTime;
+		}
+	}
+
+	/*
+	 * A command with a null runnable is a bump. A negative priority leaves the task in its current queue. Otherwise the task is only ever promoted, unless the command replaces its priority.
+	 */
+	private static class Command {
+		final Object mKey;
+		final Runnable mRunnable;
+		final int mPriority;
+		final boolean mReplacePriority;
+		final long mTime = System.nanoTime();
+		Command mNext;
+
+		Command(Object key, Runnable runnable, int priority, boolean replacePriority) {
+			mKey = key;
+			mRunnable = runnable;
+			mPriority = priority;
+			mReplacePriority = replacePriority;
+		}
+	}
 }
@@ -16,9 +16,12 @@
 
 package com.xtremelabs.imageutils;
 
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.WeakHashMap;
 
 import com.xtremelabs.imageutils.LifecycleReferenceManager.ImageManagerCacheListener;
 
@@ -26,59 +29,91 @@ import com.xtremelabs.imageutils.LifecycleReferenceManager.ImageManagerCacheList
  * This class maintains three sets of mappings which ensure that any Activity that is being destroyed has all references to it released.
  * 
  * The {@link Object} "key" in this class refers to either an Activity or a Fragment.
+ * 
+ * Keys and listeners are only weakly referenced, as a listener usually belongs to an ImageLoader that references its key. If a key is garbage collected without its entries having been removed, a background
+ * thread unregisters its listeners and cancels their requests.
  */
 class LifecycleKeyListenerMapper {
-	private final HashMap<Object, List<ImageManagerListener>> mKeyToListenersMap = new HashMap<Object, List<ImageManagerListener>>();
-	private final HashMap<ImageManagerListener, ListenerInfo> mListenerToInfoMap = new HashMap<ImageManagerListener, ListenerInfo>();
-	private final HashMap<ImageManagerCacheListener, ImageManagerListener> mCacheListenerToImageReceivedListenerMap = new HashMap<ImageManagerCacheListener, ImageManagerListener>();
+	private final HashMap<KeyReference, List<ListenerInfo>> mKeyToListenersMap = new HashMap<KeyReference, List<ListenerInfo>>();
+	private final WeakHashMap<ImageManagerListener, ListenerInfo> mListenerToInfoMap = new WeakHashMap<ImageManagerListener, ListenerInfo>();
+	private final HashMap<ImageManagerCacheListener, ListenerInfo> mCacheListenerToInfoMap = new HashMap<ImageManagerCacheListener, ListenerInfo>();
+	private final ReferenceQueue<Object> mReclaimedKeys = new ReferenceQueue<Object>();
+
+	LifecycleKeyListenerMapper() {
+		Thread thread = new Thread(mReaperRunnable, "LifecycleKeyListenerMapper-Reaper");
+		thread.setDaemon(true);
+		thread.start();
+	}
 
 	public synchronized void registerNewListener(ImageManagerListener imageManagerListener, Object key, ImageManagerCacheListener customImageListener) {
-		List<ImageManagerListener> imageManagerListenersList = mKeyToListenersMap.get(key);
-		if (imageManagerListenersList == null) {
-			imageManagerListenersList = new ArrayList<ImageManagerListener>();
-			mKeyToListenersMap.put(key, imageManagerListenersList);
+		KeyReference keyReference = new KeyReference(key, null);
+		List<ListenerInfo> listenerInfoList = mKeyToListenersMap.get(keyReference);
+		if (listenerInfoList == null) {
+			keyReference = new KeyReference(key, mReclaimedKeys);
+			listenerInfoList = new ArrayList<ListenerInfo>();
+			mKeyToListenersMap.put(keyReference, listenerInfoList);
 		}
-		imageManagerListenersList.add(imageManagerListener);
 
-		ListenerInfo info = new ListenerInfo(key, customImageListener);
+		ListenerInfo info = new ListenerInfo(keyReference, imageManagerListener, customImageListener);
+		listenerInfoList.add(info);
 		mListenerToInfoMap.put(imageManagerListener, info);
+		mCacheListenerToInfoMap.put(customImageListener, info);
+	}
 
-		mCacheListenerToImageReceivedListenerMap.put(customImageListener, imageManagerListener);
+	/**
+	 * Registers several listeners under a single acquisition of the lock.
+	 */
+	public synchronized void registerNewListeners(List<ImageManagerListener> imageManagerListeners, Object key, List<ImageManagerCacheListener> customImageListeners) {
+		for (int i = 0; i < imageManagerListeners.size(); i++) {
+			registerNewListener(imageManagerListeners.get(i), key, customImageListeners.get(i));
+		}
 	}
 
 	public synchronized ImageManagerCacheListener unregisterListener(ImageManagerListener imageManagerListener) {
 		ListenerInfo info = mListenerToInfoMap.remove(imageManagerListener);
 		if (info != null) {
-			List<ImageManagerListener> listenerList = mKeyToListenersMap.get(info.mKey);
-			if (listenerList != null) {
-				listenerList.remove(imageManagerListener);
-				if (listenerList.size() == 0) {
-					mKeyToListenersMap.remove(info.mKey);
-				}
-			}
-			mCacheListenerToImageReceivedListenerMap.remove(info.mCacheListener);
+			removeListenerInfo(info);
 			return info.mCacheListener;
 		} else {
 			return null;
 		}
 	}
 
+	public synchronized ImageManagerCacheListener getCacheListener(ImageManagerListener imageManagerListener) {
+		ListenerInfo info = mListenerToInfoMap.get(imageManagerListener);
+		return info == null ? null : info.mCacheListener;
+	}
+
+	/**
+	 * @return The listener mapped to the cache listener, or null if it has been unregistered or garbage collected.
+	 */
 	public synchronized ImageManagerListener getAndRemoveListener(ImageManagerCacheListener cacheListener) {
-		ImageManagerListener listener = mCacheListenerToImageReceivedListenerMap.get(cacheListener);
+		ListenerInfo info = mCacheListenerToInfoMap.get(cacheListener);
+		if (info == null) {
+			return null;
+		}
+
+		ImageManagerListener listener = info.mListener.get();
 		if (listener != null) {
-			unregisterListener(listener);
+			mListenerToInfoMap.remove(listener);
 		}
+		removeListenerInfo(info);
 		return listener;
 	}
 
 	public synchronized List<ImageManagerListener> removeAllEntriesForKey(Object key) {
-		List<ImageManagerListener> listeners = mKeyToListenersMap.remove(key);
-		if (listeners != null) {
-			for (ImageManagerListener listener : listeners) {
-				ListenerInfo info = mListenerToInfoMap.remove(listener);
-				if (info != null) {
-					mCacheListenerToImageReceivedListenerMap.remove(info.mCacheListener);
-				}
+		List<ListenerInfo> listenerInfoList = mKeyToListenersMap.remove(new KeyReference(key, null));
+		if (listenerInfoList == null) {
+			return null;
+		}
+
+		List<ImageManagerListener> listeners = new ArrayList<ImageManagerListener>(listenerInfoList.size());
+		for (ListenerInfo info : listenerInfoList) {
+			mCacheListenerToInfoMap.remove(info.mCacheListener);
+			ImageManagerListener listener = info.mListener.get();
+			if (listener != null) {
+				mListenerToInfoMap.remove(listener);
+				listeners.add(listener);
 			}
 		}
 		return listeners;
@@ -88,13 +123,100 @@ class LifecycleKeyListenerMapper {
 		return mListenerToInfoMap.containsKey(imageManagerListener);
 	}
 
-	private class ListenerInfo {
-		Object mKey;
-		ImageManagerCacheListener mCacheListener;
+	private void removeListenerInfo(ListenerInfo info) {
+		List<ListenerInfo> listenerInfoList = mKeyToListenersMap.get(info.mKeyReference);
+		if (listenerInfoList != null) {
+			listenerInfoList.remove(info);
+			if (listenerInfoList.size() == 0) {
+				mKeyToListenersMap.remove(info.mKeyReference);
+			}
+		}
+		mCacheListenerToInfoMap.remove(info.mCacheListener);
+	}
+
+	/**
+	 * @return The cache listeners of all requests that were made for the key.
+	 */
+	private synchronized List<ImageManagerCacheListener> removeAllEntriesForReclaimedKey(KeyReference keyReference) {
+		List<ListenerInfo> listenerInfoList = mKeyToListenersMap.remove(keyReference);
+		if (listenerInfoList == null) {
+			return null;
+		}
+
+		List<ImageManagerCacheListener> cacheListeners = new ArrayList<ImageManagerCacheListener>(listenerInfoList.size());
+		for (ListenerInfo info : listenerInfoList) {
+			mCacheListenerToInfoMap.remove(info.mCacheListener);
+			ImageManagerListener listener = info.mListener.get();
+			if (listener != null) {
+				mListenerToInfoMap.remove(listener);
+			}
+			cacheListeners.add(info.mCacheListener);
+		}
+		return cacheListeners;
+	}
+
+	/*
+	 * Requests are cancelled outside of the lock, as cancelling hands the work over to the ImageCacher.
+	 */
+	private final Runnable mReaperRunnable = new Runnable() {
+		@Override
+		public void run() {
+			while (true) {
+				KeyReference keyReference;
+				try {
+					keyReference = (KeyReference) mReclaimedKeys.remove();
+				} catch (InterruptedException e) {
+					return;
+				}
+
+				List<ImageManagerCacheListener> cacheListeners = removeAllEntriesForReclaimedKey(keyReference);
+				if (cacheListeners != null) {
+					for (ImageManagerCacheListener cacheListener : cacheListeners) {
+						cacheListener.cancelRequest();
+					}
+				}
+			}
+		}
+	};
+
+	/**
+	 * Compares keys by identity. Once its key has been collected, a reference is only equal to itself.
+	 */
+	private static class KeyReference extends WeakReference<Object> {
+		private final int mHashCode;
+
+		KeyReference(Object key, ReferenceQueue<Object> queue) {
+			super(key, queue);
+			mHashCode = System.identityHashCode(key);
+		}
+
+		@Override
+		public int hashCode() {
+			return mHashCode;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o == this) {
+				return true;
+			}
+			if (!(o instanceof KeyReference)) {
+				return false;
+			}
+			Object key = get();
+			return key != null && key == ((KeyReference) o).get();
+		}
+	}
+
+	private static class ListenerInfo {
+		final KeyReference mKeyReference;
+		final WeakReference<ImageManagerListener> mListener;
+		final ImageManagerCacheListener mCacheListener;
 
-		ListenerInfo(Object key, ImageManagerCacheListener cacheListener) {
-			this.mKey = key;
-			this.mCacheListener = cacheListener;
+		ListenerInfo(KeyReference keyReference, ImageManagerListener listener, ImageManagerCacheListener cacheListener) {
+			mKeyReference = keyReference;
+			mListener = new WeakReference<ImageManagerListener>(listener);
+			mCacheListener = cacheListener;
 		}
 	}
 }
@@ -16,11 +16,12 @@
 
 package com.xtremelabs.imageutils;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import android.app.Application;
 import android.content.Context;
-import android.os.Handler;
+import android.graphics.Bitmap;
 
 import com.xtremelabs.imageutils.ImageCacher.ImageCacherListener;
 import com.xtremelabs.imageutils.ImageResponse.ImageResponseStatus;
@@ -29,23 +30,21 @@ import com.xtremelabs.imageutils.ImageResponse.ImageResponseStatus;
  * This class is responsible for maintaining a clear separation between the cacher and the lifecycle classes that originally made image requests (ie. Activities and Fragments).
  * 
  * HashMaps are used to maintain mappings between the different requests. When an Activity or Fragment is being destroyed, this class will sever all references back to the Activity or Fragment, allowing the class to
- * become garbage collected.
+ * become garbage collected. Should the Activity or Fragment be garbage collected first, its remaining requests are cancelled in the background.
  * 
  * Finally, this class is responsible for ensuring that all calls back to listeners in the ImageLoader occur on the UI thread. This prevents race conditions in the ImageLoader and simplifies loading the bitmaps back to
- * image views.
+ * image views. Results are delivered in batches, once per frame.
  */
-// TODO: It may be worthwhile to use a WeakHashMap rather than actively forcing the user to call onDestroy.
-// Look into using a ReferenceQueue
 class LifecycleReferenceManager implements ReferenceManager {
 	private static LifecycleReferenceManager referenceManager;
 
 	private final LifecycleKeyListenerMapper mListenerHelper = new LifecycleKeyListenerMapper();
-	private final Handler mUiThreadHandler;
+	private final UiDeliveryBatcher mDeliveryBatcher;
 	private final ImageCacher mImageCacher;
 
 	private LifecycleReferenceManager(Context applicationContext) {
 		mImageCacher = ImageCacher.getInstance(applicationContext);
-		mUiThreadHandler = new Handler(applicationContext.getMainLooper());
+		mDeliveryBatcher = new UiDeliveryBatcher(applicationContext.getMainLooper());
 	}
 
 	public synchronized static LifecycleReferenceManager getInstance(Context applicationContext) {
@@ -81,16 +80,81 @@ class LifecycleReferenceManager implements ReferenceManager {
 		returnImageIfValid(imageManagerListener, imageResponse);
 	}
 
+	/**
+	 * Listeners are registered under a single acquisition of the listener mapper's lock, and the requests are admitted by the {@link ImageCacher} as a batch.
+	 */
+	@Override
+	public void getBitmaps(Object key, List<ImageRequest> imageRequests, List<ImageManagerListener> imageManagerListeners) {
+		List<ImageRequest> validRequests = new ArrayList<ImageRequest>(imageRequests.size());
+		List<ImageManagerListener> validListeners = new ArrayList<ImageManagerListener>(imageRequests.size());
+		List<ImageManagerCacheListener> cacheListeners = new ArrayList<ImageManagerCacheListener>(imageRequests.size());
+		for (int i = 0; i < imageRequests.size(); i++) {
+			if (GeneralUtils.isStringBlank(imageRequests.get(i).getUri())) {
+				imageManagerListeners.get(i).onLoadImageFailed("Blank url");
+			} else {
+				validRequests.add(imageRequests.get(i));
+				validListeners.add(imageManagerListeners.get(i));
+				cacheListeners.add(new ImageManagerCacheListener());
+			}
+		}
+
+		if (validRequests.isEmpty()) {
+			return;
+		}
+
+		mListenerHelper.registerNewListeners(validListeners, key, cacheListeners);
+		List<ImageResponse> imageResponses = mImageCacher.getBitmaps(validRequests, cacheListeners);
+		for (int i = 0; i < imageResponses.size(); i++) {
+			returnImageIfValid(validListeners.get(i), imageResponses.get(i));
+		}
+	}
+
+	public void setFrameDeliveryBudget(long frameBudgetMillis) {
+		mDeliveryBatcher.setFrameBudget(frameBudgetMillis);
+	}
+
 	@Override
 	public List<ImageManagerListener> removeListenersForKey(Object key) {
 		return mListenerHelper.removeAllEntriesForKey(key);
 	}
 
+	@Override
+	public Bitmap getBitmapFromMemory(MemoryLookupKey memoryLookupKey) {
+		return mImageCacher.getBitmapFromMemory(memoryLookupKey);
+	}
+
 	@Override
 	public void cancelRequest(ImageManagerListener imageManagerListener) {
 		mListenerHelper.unregisterListener(imageManagerListener).cancelRequest();
 	}
 
+	@Override
+	public void precacheImageToDisk(Object key, ImageRequest imageRequest, ImageManagerListener imageManagerListener) {
+		String uri = imageRequest.getUri();
+
+		if (GeneralUtils.isStringBlank(uri)) {
+			imageManagerListener.onLoadImageFailed("Blank url");
+			return;
+		}
+		mImageCacher.precacheImageToDisk(imageRequest, generateRegisteredListener(key, uri, imageManagerListener));
+	}
+
+	@Override
+	public void withdrawPrecacheRequest(ImageManagerListener imageManagerListener) {
+		ImageManagerCacheListener cacheListener = mListenerHelper.unregisterListener(imageManagerListener);
+		if (cacheListener != null) {
+			mImageCacher.withdrawPrecacheRequest(cacheListener);
+		}
+	}
+
+	@Override
+	public void setRequestVisible(ImageManagerListener imageManagerListener, boolean visible) {
+		ImageManagerCacheListener cacheListener = mListenerHelper.getCacheListener(imageManagerListener);
+		if (cacheListener != null) {
+			mImageCacher.setRequestDemoted(cacheListener, !visible);
+		}
+	}
+
 	private ImageManagerCacheListener generateRegisteredListener(Object key, String url, ImageManagerListener listener) {
 		ImageManagerCacheListener cacheListener = new ImageManagerCacheListener();
 
@@ -107,7 +171,7 @@ class LifecycleReferenceManager implements ReferenceManager {
 	class ImageManagerCacheListener extends ImageCacherListener {
 		@Override
 		public void onImageAvailable(final ImageResponse imageResponse) {
-			mUiThreadHandler.post(new Runnable() {
+			mDeliveryBatcher.post(new Runnable() {
 				@Override
 				public void run() {
 					ImageManagerListener listener = mListenerHelper.getAndRemoveListener(ImageManagerCacheListener.this);
@@ -121,7 +185,7 @@ class LifecycleReferenceManager implements ReferenceManager {
 
 		@Override
 		public void onFailure(final String message) {
-			mUiThreadHandler.post(new Runnable() {
+			mDeliveryBatcher.post(new Runnable() {
 				@Override
 				public void run() {
 					ImageManagerListener listener = mListenerHelper.getAndRemoveListener(ImageManagerCacheListener.this);
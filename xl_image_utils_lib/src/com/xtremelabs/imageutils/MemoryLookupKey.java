@@ -0,0 +1,101 @@
+/*
+ * Copyright 2013 Xtreme Labs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xtremelabs.imageutils;
+
+import android.graphics.Bitmap;
+
+import com.xtremelabs.imageutils.AbstractImageLoader.Options.ScalingPreference;
+
+/**
+ * Identifies an image request by what is known before the image's dimensions are: the URI, the bounds the image is scaled to fit, and the options that affect decoding. The ImageCacher remembers which
+ * DecodeSignature each key resolved to, so that a repeat request can be found in the memory cache without working out its sample size.
+ * 
+ * Bounds are stored as ints so that filling in a key does not allocate. The loader reuses one key for all of its lookups.
+ */
+class MemoryLookupKey {
+	static final int UNSPECIFIED = -1;
+
+	String mUri;
+	int mWidth = UNSPECIFIED;
+	int mHeight = UNSPECIFIED;
+	int mSampleSize = UNSPECIFIED;
+	ScalingPreference mScalingPreference;
+	Bitmap.Config mBitmapConfig;
+
+	MemoryLookupKey() {
+	}
+
+	MemoryLookupKey(MemoryLookupKey memoryLookupKey) {
+		set(memoryLookupKey);
+	}
+
+	void set(MemoryLookupKey memoryLookupKey) {
+		mUri = memoryLookupKey.mUri;
+		mWidth = memoryLookupKey.mWidth;
+		mHeight = memoryLookupKey.mHeight;
+		mSampleSize = memoryLookupKey.mSampleSize;
+		mScalingPreference = memoryLookupKey.mScalingPreference;
+		mBitmapConfig = memoryLookupKey.mBitmapConfig;
+	}
+
+	ScalingInfo toScalingInfo() {
+		ScalingInfo scalingInfo = new ScalingInfo();
+		if (mSampleSize != UNSPECIFIED) {
+			scalingInfo.sampleSize = mSampleSize;
+		} else {
+			scalingInfo.width = mWidth == UNSPECIFIED ? null : mWidth;
+			scalingInfo.height = mHeight == UNSPECIFIED ? null : mHeight;
+		}
+		return scalingInfo;
+	}
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + ((mBitmapConfig == null) ? 0 : mBitmapConfig.hashCode());
+		result = prime * result + ((mScalingPreference == null) ? 0 : mScalingPreference.hashCode());
+		result = prime * result + mSampleSize;
+		result = prime * result + mWidth;
+		result = prime * result + mHeight;
+		result = prime * result + ((mUri == null) ? 0 : mUri.hashCode());
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		MemoryLookupKey other = (MemoryLookupKey) obj;
+		if (mBitmapConfig != other.mBitmapConfig)
+			return false;
+		if (mScalingPreference != other.mScalingPreference)
+			return false;
+		if (mSampleSize != other.mSampleSize || mWidth != other.mWidth || mHeight != other.mHeight)
+			return false;
+		if (mUri == null) {
+			if (other.mUri != null)
+				return false;
+		} else if (!mUri.equals(other.mUri))
+			return false;
+		return true;
+	}
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2013 Xtreme Labs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xtremelabs.imageutils;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Limits how many downloads run at once, both in total and per host, and adapts those limits to the network.
+ * 
+ * Limits grow by one each time a full limit's worth of downloads completes without a sign of congestion, and are halved when a download fails or is much slower than average. A download is much slower than
+ * average when its time to first byte is more than twice the average, or its throughput is less than half the average. The averages are exponentially weighted, so the limits settle at whatever the current network
+ * can sustain.
+ */
+class NetworkConcurrencyController implements LifoThreadPool.TaskLimiter {
+	static final int MAXIMUM_GLOBAL_LIMIT = 8;
+	static final int MAXIMUM_HOST_LIMIT = 6;
+
+	private static final int INITIAL_GLOBAL_LIMIT = 3;
+	private static final int INITIAL_HOST_LIMIT = 2;
+	private static final int MAXIMUM_HOST_WINDOWS = 32;
+
+	private final CongestionWindow mGlobalWindow = new CongestionWindow(INITIAL_GLOBAL_LIMIT, MAXIMUM_GLOBAL_LIMIT);
+
+	/*
+	 * Access ordered. Once there are too many hosts, the least recently used host without active downloads is forgotten, and starts again from the initial limit if it is seen again.
+	 */
+	private final LinkedHashMap<String, CongestionWindow> mHostWindows = new LinkedHashMap<String, CongestionWindow>(16, 0.75f, true) {
+		private static final long serialVersionUID = -2840612893412387610L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CongestionWindow> eldest) {
+			if (size() > MAXIMUM_HOST_WINDOWS) {
+				Iterator<CongestionWindow> iterator = values().iterator();
+				while (iterator.hasNext()) {
+					if (iterator.next().mNumActiveDownloads == 0) {
+						iterator.remove();
+						break;
+					}
+				}
+			}
+			return false;
+		}
+	};
+
+	private int mNumActiveDownloads = 0;
+
+	/**
+	 * @param key
+	 *            The url of the download.
+	 */
+	@Override
+	public synchronized boolean tryStart(Object key) {
+		if (mNumActiveDownloads >= mGlobalWindow.mLimit) {
+			return false;
+		}
+
+		CongestionWindow hostWindow = getHostWindow(getHost((String) key));
+		if (hostWindow.mNumActiveDownloads >= hostWindow.mLimit) {
+			return false;
+		}
+
+		mNumActiveDownloads++;
+		hostWindow.mNumActiveDownloads++;
+		return true;
+	}
+
+	/**
+	 * @param latencyMillis
+	 *            The time it took for the response to start arriving.
+	 * @param transferMillis
+	 *            The time it took to read the response.
+	 */
+	public synchronized void onDownloadSucceeded(String url, long latencyMillis, long numBytes, long transferMillis) {
+		CongestionWindow hostWindow = release(url);
+		mGlobalWindow.onSample(latencyMillis, numBytes, transferMillis);
+		hostWindow.onSample(latencyMillis, numBytes, transferMillis);
+	}
+
+	/**
+	 * Reports a download that failed because of a network error.
+	 */
+	public synchronized void onDownloadFailed(String url) {
+		CongestionWindow hostWindow = release(url);
+		mGlobalWindow.onCongestion();
+		hostWindow.onCongestion();
+	}
+
+	/**
+	 * Reports a download that ended without saying anything about the network, such as a cancelled download.
+	 */
+	public synchronized void onDownloadFinished(String url) {
+		release(url);
+	}
+
+	public synchronized NetworkConcurrencyLimits getLimits() {
+		Map<String, Integer> hostLimits = new HashMap<String, Integer>();
+		for (Map.Entry<String, CongestionWindow> entry : mHostWindows.entrySet()) {
+			hostLimits.put(entry.getKey(), entry.getValue().mLimit);
+		}
+		return new NetworkConcurrencyLimits(mGlobalWindow.mLimit, mNumActiveDownloads, hostLimits);
+	}
+
+	private CongestionWindow release(String url) {
+		CongestionWindow hostWindow = getHostWindow(getHost(url));
+		mNumActiveDownloads--;
+		hostWindow.mNumActiveDownloads--;
+		return hostWindow;
+	}
+
+	private CongestionWindow getHostWindow(String host) {
+		CongestionWindow hostWindow = mHostWindows.get(host);
+		if (hostWindow == null) {
+			hostWindow = new CongestionWindow(INITIAL_HOST_LIMIT, MAXIMUM_HOST_LIMIT);
+			mHostWindows.put(host, hostWindow);
+		}
+		return hostWindow;
+	}
+
+	/**
+	 * @return The authority of the url, without any user info. This is called for every queued download each time a worker looks for a download to start, so it avoids parsing the url as a whole.
+	 */
+	static String getHost(String url) {
+		int start = url.indexOf("://");
+		start = start < 0 ? 0 : start + 3;
+
+		int end = start;
+		while (end < url.length()) {
+			char c = url.charAt(end);
+			if (c == '/' || c == '?' || c == '#') {
+				break;
+			}
+			end++;
+		}
+
+		int userInfoEnd = url.lastIndexOf('@', end - 1);
+		if (userInfoEnd >= start) {
+			start = userInfoEnd + 1;
+		}
+		return url.substring(start, end);
+	}
+
+	private static class CongestionWindow {
+		/*
+		 * Responses smaller than this are dominated by latency, so they say little about throughput.
+		 */
+		private static final long MINIMUM_BYTES_FOR_THROUGHPUT = 16 * 1024;
+		private static final int MINIMUM_SAMPLES = 3;
+		private static final double SAMPLE_WEIGHT = 0.2;
+		private static final double CONGESTED_LATENCY_RATIO = 2.0;
+		private static final double CONGESTED_THROUGHPUT_RATIO = 0.5;
+
+		private final int mMaximumLimit;
+		private int mLimit;
+		private int mNumActiveDownloads = 0;
+		private int mNumSuccessesSinceIncrease = 0;
+		private int mNumSamplesUntilNextDecrease = 0;
+
+		private int mNumLatencySamples = 0;
+		private double mAverageLatencyMillis;
+		private int mNumThroughputSamples = 0;
+		private double mAverageBytesPerMilli;
+
+		CongestionWindow(int initialLimit, int maximumLimit) {
+			mLimit = initialLimit;
+			mMaximumLimit = maximumLimit;
+		}
+
+		void onSample(long latencyMillis, long numBytes, long transferMillis) {
+			boolean congested = false;
+
+			if (mNumLatencySamples >= MINIMUM_SAMPLES && latencyMillis > mAverageLatencyMillis * CONGESTED_LATENCY_RATIO) {
+				congested = true;
+			}
+			mAverageLatencyMillis = average(mAverageLatencyMillis, latencyMillis, mNumLatencySamples++);
+
+			if (numBytes >= MINIMUM_BYTES_FOR_THROUGHPUT) {
+				double bytesPerMilli = (double) numBytes / Math.max(1, transferMillis);
+				if (mNumThroughputSamples >= MINIMUM_SAMPLES && bytesPerMilli < mAverageBytesPerMilli * CONGESTED_THROUGHPUT_RATIO) {
+					congested = true;
+				}
+				mAverageBytesPerMilli = average(mAverageBytesPerMilli, bytesPerMilli, mNumThroughputSamples++);
+			}
+
+			if (congested) {
+				onCongestion();
+				return;
+			}
+
+			if (mNumSamplesUntilNextDecrease > 0) {
+				mNumSamplesUntilNextDecrease--;
+			}
+			if (++mNumSuccessesSinceIncrease >= mLimit) {
+				mLimit = Math.min(mMaximumLimit, mLimit + 1);
+				mNumSuccessesSinceIncrease = 0;
+			}
+		}
+
+		/*
+		 * Downloads that were already running when the limit was decreased are likely to report congestion too, so they are ignored.
+		 */
+		void onCongestion() {
+			mNumSuccessesSinceIncrease = 0;
+			if (mNumSamplesUntilNextDecrease > 0) {
+				mNumSamplesUntilNextDecrease--;
+				return;
+			}
+
+			mNumSamplesUntilNextDecrease = mNumActiveDownloads;
+			mLimit = Math.max(1, (mLimit + 1) / 2);
+		}
+
+		private static double average(double average, double sample, int numPreviousSamples) {
+			if (numPreviousSamples == 0) {
+				return sample;
+			}
+			return average + (sample - average) * SAMPLE_WEIGHT;
+		}
+	}
+}
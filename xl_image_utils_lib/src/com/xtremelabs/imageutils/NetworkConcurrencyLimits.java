@@ -0,0 +1,46 @@
+/*
+ * Copyright 2013 Xtreme Labs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xtremelabs.imageutils;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A snapshot of the limits that the image system is currently placing on concurrent downloads. The limits adapt to the network, so they are useful for monitoring how the network is performing.
+ */
+public class NetworkConcurrencyLimits {
+	/**
+	 * The maximum number of downloads that may run at once.
+	 */
+	public final int globalLimit;
+
+	/**
+	 * The number of downloads that are currently running.
+	 */
+	public final int activeDownloads;
+
+	/**
+	 * The maximum number of downloads that may run at once for each host that images have been downloaded from.
+	 */
+	public final Map<String, Integer> hostLimits;
+
+	public NetworkConcurrencyLimits(int globalLimit, int activeDownloads, Map<String, Integer> hostLimits) {
+		this.globalLimit = globalLimit;
+		this.activeDownloads = activeDownloads;
+		this.hostLimits = Collections.unmodifiableMap(hostLimits);
+	}
+}
@@ -19,6 +19,12 @@ package com.xtremelabs.imageutils;
 import java.io.InputStream;
 
 public interface NetworkRequestCreator {
+	/**
+	 * Opens the image at the url. Exactly one of the listener's methods must eventually be called, either before this returns or later from any thread. Until then, the download counts against the limits on
+	 * concurrent downloads.
+	 * 
+	 * The stream is read on the thread that calls {@link InputStreamListener#onInputStreamReady(InputStream)}, so that thread should not be the UI thread.
+	 */
 	public void getInputStream(String url, InputStreamListener listener);
 
 	public static interface InputStreamListener {
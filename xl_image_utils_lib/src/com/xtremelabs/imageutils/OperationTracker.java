@@ -17,141 +17,277 @@
 package com.xtremelabs.imageutils;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * Tracks the values, such as listeners, that are waiting on each pending operation.
+ * 
+ * Each operation is a record in a concurrent map. Its values are held in an immutable snapshot that is replaced with compare-and-set, and once the operation is closed it accepts no more values. A value is
+ * therefore either registered before the operation closes, and handed to whoever closed it, or its registration fails and the caller knows the operation is gone. No method blocks any other.
+ */
 class OperationTracker<OPERATION_KEY, OPERATION_LIST_VALUE, KEY_REFERENCE> {
-	private final Map<OPERATION_KEY, List<OPERATION_LIST_VALUE>> mOperationKeyToValueList = new HashMap<OPERATION_KEY, List<OPERATION_LIST_VALUE>>();
-	private final Map<KEY_REFERENCE, OPERATION_KEY> mReferenceToOperation = new HashMap<KEY_REFERENCE, OPERATION_KEY>();
-
-	public synchronized void register(OPERATION_KEY operationKey, OPERATION_LIST_VALUE operationListValue, KEY_REFERENCE keyReference) {
-		List<OPERATION_LIST_VALUE> list = mOperationKeyToValueList.get(operationKey);
-		if (list == null) {
-			list = new ArrayList<OPERATION_LIST_VALUE>();
-			mOperationKeyToValueList.put(operationKey, list);
+	private final ConcurrentHashMap<OPERATION_KEY, Operation> mOperations = new ConcurrentHashMap<OPERATION_KEY, Operation>();
+	private final ConcurrentHashMap<KEY_REFERENCE, OPERATION_KEY> mReferenceToOperation = new ConcurrentHashMap<KEY_REFERENCE, OPERATION_KEY>();
+	private final KeyReferenceProvider<OPERATION_KEY, OPERATION_LIST_VALUE, KEY_REFERENCE> mKeyReferenceProvider;
+
+	public OperationTracker(KeyReferenceProvider<OPERATION_KEY, OPERATION_LIST_VALUE, KEY_REFERENCE> keyReferenceProvider) {
+		mKeyReferenceProvider = keyReferenceProvider;
+	}
+
+	/**
+	 * Adds the value to the operation, starting the operation if it is not pending.
+	 * 
+	 * @param pinned
+	 *            Pinned operations are never abandoned. See {@link #abandonIfEmpty(Object, boolean)}.
+	 */
+	public void register(OPERATION_KEY operationKey, OPERATION_LIST_VALUE operationListValue, boolean pinned) {
+		while (true) {
+			Operation operation = getOpenOperation(operationKey);
+			if (operation.add(operationListValue, pinned)) {
+				mapReference(operationKey, operation, operationListValue);
+				return;
+			}
+			mOperations.remove(operationKey, operation);
+		}
+	}
+
+	/**
+	 * Adds the value to the operation only if the operation is already pending.
+	 * 
+	 * @return True if the value was added.
+	 */
+	public boolean registerIfPending(OPERATION_KEY operationKey, OPERATION_LIST_VALUE operationListValue, boolean pinned) {
+		Operation operation = mOperations.get(operationKey);
+		if (operation == null || !operation.add(operationListValue, pinned)) {
+			return false;
 		}
-		list.add(operationListValue);
+		mapReference(operationKey, operation, operationListValue);
+		return true;
+	}
 
+	/*
+	 * An operation can be closed between the value being added and the reference being mapped. Whoever closed it may already have unmapped its references, so the reference is unmapped again.
+	 */
+	private void mapReference(OPERATION_KEY operationKey, Operation operation, OPERATION_LIST_VALUE operationListValue) {
+		KEY_REFERENCE keyReference = mKeyReferenceProvider.getKeyReference(operationKey, operationListValue);
 		mReferenceToOperation.put(keyReference, operationKey);
+		if (operation.mState.get().mClosed) {
+			mReferenceToOperation.remove(keyReference, operationKey);
+		}
+	}
+
+	/**
+	 * Starts the operation with no values if it is not already pending.
+	 */
+	public void open(OPERATION_KEY operationKey) {
+		getOpenOperation(operationKey);
 	}
 
-	public synchronized boolean hasPendingOperation(OPERATION_KEY operationKey) {
-		return mOperationKeyToValueList.containsKey(operationKey);
+	private Operation getOpenOperation(OPERATION_KEY operationKey) {
+		Operation operation = mOperations.get(operationKey);
+		while (operation == null || operation.mState.get().mClosed) {
+			if (operation != null) {
+				mOperations.remove(operationKey, operation);
+			}
+			Operation newOperation = new Operation();
+			operation = mOperations.putIfAbsent(operationKey, newOperation);
+			if (operation == null) {
+				operation = newOperation;
+			}
+		}
+		return operation;
 	}
 
-	public synchronized int getNumPendingOperations() {
-		return mOperationKeyToValueList.size();
+	public boolean hasPendingOperation(OPERATION_KEY operationKey) {
+		Operation operation = mOperations.get(operationKey);
+		return operation != null && !operation.mState.get().mClosed;
 	}
 
-	public synchronized int getNumListValues() {
+	public int getNumPendingOperations() {
+		return mOperations.size();
+	}
+
+	public int getNumListValues() {
 		return mReferenceToOperation.size();
 	}
 
-	public synchronized boolean isOperationPendingForReference(KEY_REFERENCE keyReference) {
-		return mReferenceToOperation.containsKey(keyReference);
+	/**
+	 * @return The number of list values registered for the operation, or 0 if the operation is not pending.
+	 */
+	public int getNumListValues(OPERATION_KEY operationKey) {
+		Operation operation = mOperations.get(operationKey);
+		return operation == null ? 0 : operation.mState.get().mValues.size();
 	}
 
-	public void transferOperationToTracker(OPERATION_KEY operationKey, OperationTracker<OPERATION_KEY, OPERATION_LIST_VALUE, KEY_REFERENCE> targetTracker,
-			KeyReferenceProvider<OPERATION_KEY, OPERATION_LIST_VALUE, KEY_REFERENCE> keyReferenceProvider) {
+	/**
+	 * @return The list values registered for the operation when this was called, or an empty list if the operation is not pending. The list must not be modified.
+	 */
+	public List<OPERATION_LIST_VALUE> getListValues(OPERATION_KEY operationKey) {
+		Operation operation = mOperations.get(operationKey);
+		return operation == null ? Collections.<OPERATION_LIST_VALUE> emptyList() : operation.mState.get().mValues;
+	}
 
-		List<OPERATION_LIST_VALUE> operationValueList;
-		List<KEY_REFERENCE> keyReferences;
-		synchronized (this) {
-			operationValueList = mOperationKeyToValueList.remove(operationKey);
-			keyReferences = getAndRemoveKeyReferences(operationKey, operationValueList, keyReferenceProvider);
-		}
+	/**
+	 * @return The key of the operation the reference is registered for, or null if it is not registered.
+	 */
+	public OPERATION_KEY getOperationKey(KEY_REFERENCE keyReference) {
+		return mReferenceToOperation.get(keyReference);
+	}
 
-		if (operationValueList != null) {
-			targetTracker.initializeList(operationKey);
+	public boolean isOperationPendingForReference(KEY_REFERENCE keyReference) {
+		return mReferenceToOperation.containsKey(keyReference);
+	}
 
-			int listSize = operationValueList.size();
-			for (int i = 0; i < listSize; i++) {
-				OPERATION_LIST_VALUE value = operationValueList.get(i);
-				KEY_REFERENCE keyReference = keyReferences.get(i);
-				targetTracker.register(operationKey, value, keyReference);
+	/**
+	 * Closes the operation and hands each of its values to the transferer.
+	 */
+	public void transferOperation(OPERATION_KEY operationKey, OperationTransferer<OPERATION_KEY, OPERATION_LIST_VALUE, KEY_REFERENCE> operationTransferer) {
+		List<OPERATION_LIST_VALUE> list = removeList(operationKey);
+		if (list != null) {
+			for (OPERATION_LIST_VALUE value : list) {
+				operationTransferer.transferOperation(operationKey, value, mKeyReferenceProvider.getKeyReference(operationKey, value));
 			}
 		}
 	}
 
-	private void initializeList(OPERATION_KEY operationKey) {
-		mOperationKeyToValueList.put(operationKey, new ArrayList<OPERATION_LIST_VALUE>());
-	}
+	/**
+	 * Closes the operation.
+	 * 
+	 * @return The values that were waiting on the operation, or null if it was not pending.
+	 */
+	public List<OPERATION_LIST_VALUE> removeList(OPERATION_KEY operationKey) {
+		Operation operation = mOperations.remove(operationKey);
+		if (operation == null) {
+			return null;
+		}
 
-	public void transferOperation(OPERATION_KEY operationKey, OperationTransferer<OPERATION_KEY, OPERATION_LIST_VALUE, KEY_REFERENCE> operationTransferer,
-			KeyReferenceProvider<OPERATION_KEY, OPERATION_LIST_VALUE, KEY_REFERENCE> keyReferenceProvider) {
+		List<OPERATION_LIST_VALUE> list = operation.close();
+		for (OPERATION_LIST_VALUE value : list) {
+			mReferenceToOperation.remove(mKeyReferenceProvider.getKeyReference(operationKey, value), operationKey);
+		}
+		return list;
+	}
 
-		List<OPERATION_LIST_VALUE> list;
-		List<KEY_REFERENCE> keyReferences;
-		synchronized (this) {
-			list = mOperationKeyToValueList.remove(operationKey);
-			keyReferences = getAndRemoveKeyReferences(operationKey, list, keyReferenceProvider);
+	/**
+	 * Removes the value registered for the reference. The operation remains pending, even if it has no values left.
+	 * 
+	 * @return The key of the operation the value was removed from, or null if no value was registered for the reference.
+	 */
+	public OPERATION_KEY removeRequest(KEY_REFERENCE keyReference) {
+		OPERATION_KEY operationKey = mReferenceToOperation.remove(keyReference);
+		if (operationKey == null) {
+			return null;
 		}
 
-		if (list != null) {
-			int listSize = list.size();
-			for (int i = 0; i < listSize; i++) {
-				operationTransferer.transferOperation(operationKey, list.get(i), keyReferences.get(i));
-			}
+		Operation operation = mOperations.get(operationKey);
+		if (operation == null || !operation.remove(operationKey, keyReference)) {
+			return null;
 		}
+		return operationKey;
 	}
 
-	private synchronized List<KEY_REFERENCE> getAndRemoveKeyReferences(OPERATION_KEY operationKey, List<OPERATION_LIST_VALUE> list, KeyReferenceProvider<OPERATION_KEY, OPERATION_LIST_VALUE, KEY_REFERENCE> keyReferenceProvider) {
-		List<KEY_REFERENCE> keyReferences = new ArrayList<KEY_REFERENCE>();
-		if (list != null) {
-			for (OPERATION_LIST_VALUE value : list) {
-				KEY_REFERENCE keyReference = keyReferenceProvider.getKeyReference(operationKey, value);
-				mReferenceToOperation.remove(keyReference);
-				keyReferences.add(keyReference);
-			}
+	/**
+	 * Closes the operation if it has no values left.
+	 * 
+	 * @param respectPins
+	 *            If true, pinned operations are not closed.
+	 * @return True if the operation was closed. Values registered concurrently start a new operation instead.
+	 */
+	public boolean abandonIfEmpty(OPERATION_KEY operationKey, boolean respectPins) {
+		Operation operation = mOperations.get(operationKey);
+		if (operation == null || !operation.closeIfEmpty(respectPins)) {
+			return false;
 		}
-		return keyReferences;
+		mOperations.remove(operationKey, operation);
+		return true;
 	}
 
-	public synchronized List<OPERATION_LIST_VALUE> removeList(OPERATION_KEY operationKey, KeyReferenceProvider<OPERATION_KEY, OPERATION_LIST_VALUE, KEY_REFERENCE> keyReferenceProvider) {
-		List<OPERATION_LIST_VALUE> list = mOperationKeyToValueList.remove(operationKey);
+	private class Operation {
+		private final AtomicReference<State<OPERATION_LIST_VALUE>> mState = new AtomicReference<State<OPERATION_LIST_VALUE>>(new State<OPERATION_LIST_VALUE>(
+				Collections.<OPERATION_LIST_VALUE> emptyList(), false, false));
 
-		if (list != null) {
-			for (OPERATION_LIST_VALUE value : list) {
-				mReferenceToOperation.remove(keyReferenceProvider.getKeyReference(operationKey, value));
+		boolean add(OPERATION_LIST_VALUE value, boolean pinned) {
+			while (true) {
+				State<OPERATION_LIST_VALUE> state = mState.get();
+				if (state.mClosed) {
+					return false;
+				}
+
+				List<OPERATION_LIST_VALUE> values = new ArrayList<OPERATION_LIST_VALUE>(state.mValues.size() + 1);
+				values.addAll(state.mValues);
+				values.add(value);
+				if (mState.compareAndSet(state, new State<OPERATION_LIST_VALUE>(values, state.mPinned || pinned, false))) {
+					return true;
+				}
 			}
 		}
 
-		return list;
-	}
-
-	public boolean removeRequest(KEY_REFERENCE keyReference, KeyReferenceProvider<OPERATION_KEY, OPERATION_LIST_VALUE, KEY_REFERENCE> keyReferenceProvider, boolean deleteMapIfEmpty) {
-		boolean removed = false;
+		boolean remove(OPERATION_KEY operationKey, KEY_REFERENCE keyReference) {
+			while (true) {
+				State<OPERATION_LIST_VALUE> state = mState.get();
+				if (state.mClosed) {
+					return false;
+				}
 
-		OPERATION_KEY operationKey = mReferenceToOperation.remove(keyReference);
-		if (operationKey != null) {
-			List<OPERATION_LIST_VALUE> list = mOperationKeyToValueList.get(operationKey);
-			if (list != null) {
-				OPERATION_LIST_VALUE valueToRemove = findOperationListValueToRemove(keyReference, keyReferenceProvider, operationKey, list);
-				if (valueToRemove != null) {
-					removed = list.remove(valueToRemove);
-
-					if (deleteMapIfEmpty && list.isEmpty()) {
-						mOperationKeyToValueList.remove(operationKey);
+				List<OPERATION_LIST_VALUE> values = new ArrayList<OPERATION_LIST_VALUE>(state.mValues);
+				boolean removed = false;
+				for (int i = 0; i < values.size(); i++) {
+					if (keyReference.equals(mKeyReferenceProvider.getKeyReference(operationKey, values.get(i)))) {
+						values.remove(i);
+						removed = true;
+						break;
 					}
 				}
+				if (!removed) {
+					return false;
+				}
+				if (mState.compareAndSet(state, new State<OPERATION_LIST_VALUE>(values, state.mPinned, false))) {
+					return true;
+				}
 			}
 		}
 
-		return removed;
-	}
+		List<OPERATION_LIST_VALUE> close() {
+			while (true) {
+				State<OPERATION_LIST_VALUE> state = mState.get();
+				if (state.mClosed) {
+					return Collections.emptyList();
+				}
+				if (mState.compareAndSet(state, new State<OPERATION_LIST_VALUE>(state.mValues, state.mPinned, true))) {
+					return state.mValues;
+				}
+			}
+		}
 
-	private OPERATION_LIST_VALUE findOperationListValueToRemove(KEY_REFERENCE keyReference, KeyReferenceProvider<OPERATION_KEY, OPERATION_LIST_VALUE, KEY_REFERENCE> keyReferenceProvider, OPERATION_KEY operationKey,
-			List<OPERATION_LIST_VALUE> list) {
-		OPERATION_LIST_VALUE valueToRemove = null;
-		for (OPERATION_LIST_VALUE value : list) {
-			KEY_REFERENCE keyReferenceContainedInValue = keyReferenceProvider.getKeyReference(operationKey, value);
-			if (keyReference.equals(keyReferenceContainedInValue)) {
-				valueToRemove = value;
-				break;
+		boolean closeIfEmpty(boolean respectPins) {
+			while (true) {
+				State<OPERATION_LIST_VALUE> state = mState.get();
+				if (state.mClosed || !state.mValues.isEmpty() || (respectPins && state.mPinned)) {
+					return false;
+				}
+				if (mState.compareAndSet(state, new State<OPERATION_LIST_VALUE>(state.mValues, state.mPinned, true))) {
+					return true;
+				}
 			}
 		}
-		return valueToRemove;
+	}
+
+	/*
+	 * Immutable. A closed operation's values belong to whoever closed it.
+	 */
+	private static class State<VALUE> {
+		final List<VALUE> mValues;
+		final boolean mPinned;
+		final boolean mClosed;
+
+		State(List<VALUE> values, boolean pinned, boolean closed) {
+			mValues = values;
+			mPinned = pinned;
+			mClosed = closed;
+		}
 	}
 
 	public interface KeyReferenceProvider<OPERATION_KEY, OPERATION_LIST_VALUE, KEY_REFERENCE> {
@@ -0,0 +1,536 @@
+/*
+ * Copyright 2013 Xtreme Labs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xtremelabs.imageutils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A log-structured blob store used to keep small images out of individual files.
+ * 
+ * Images are appended to large segment files. An in-memory index maps each key to the segment, offset and length of its bytes. Deletions are written as tombstone records. Once enough of a sealed segment has been
+ * overwritten or deleted, the next overwrite or removal of one of its records copies its live records forward into the active segment and deletes the segment file.
+ * 
+ * The index is not persisted separately. It is rebuilt by scanning the segments the first time the store is accessed.
+ * 
+ * Several processes may share a store. Every operation holds an {@link InterProcessLock}, and a version file records changes made by each process. When another process has appended records, the new tail of each
+ * segment is scanned into the index. When another process has compacted or cleared the store, the index is rebuilt.
+ * 
+ * Record format: [int keyLength][key bytes (UTF-8)][int dataLength][data bytes]. A dataLength of -1 marks a tombstone.
+ */
+class PackFileStore {
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".pack";
+	private static final String LOCK_FILE_NAME = "pack.lock";
+	private static final String VERSION_FILE_NAME = "pack.version";
+	private static final int TOMBSTONE = -1;
+	private static final int MAX_KEY_LENGTH = 64 * 1024;
+
+	private static final long MAX_SEGMENT_SIZE = 4 * 1024 * 1024; // 4MB
+	private static final float COMPACTION_THRESHOLD = 0.5f;
+
+	private final DiskManager mDiskManager;
+	private final InterProcessLock mLock;
+	private final Map<String, Entry> mIndex = new HashMap<String, Entry>();
+	private final TreeMap<Integer, Segment> mSegments = new TreeMap<Integer, Segment>();
+	private Segment mActiveSegment;
+	private boolean mLoaded = false;
+
+	/*
+	 * The structure version changes when segments are deleted. The append version changes whenever records are written.
+	 */
+	private RandomAccessFile mVersionFile;
+	private long mStructureVersion = 0;
+	private long mAppendVersion = 0;
+
+	public PackFileStore(DiskManager diskManager) {
+		mDiskManager = diskManager;
+		mLock = InterProcessLock.getLock(diskManager.getFile(LOCK_FILE_NAME), 0);
+	}
+
+	public synchronized boolean contains(String key) {
+		mLock.lock();
+		try {
+			ensureLoaded();
+			return mIndex.containsKey(key);
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * @return The bytes stored for the key, or null if the key is not in the store.
+	 */
+	public synchronized byte[] read(String key) throws IOException {
+		Entry entry;
+		mLock.lock();
+		try {
+			ensureLoaded();
+			entry = mIndex.get(key);
+		} finally {
+			mLock.unlock();
+		}
+		if (entry == null) {
+			return null;
+		}
+		return readEntry(key, entry);
+	}
+
+	private static byte[] readEntry(String key, Entry entry) throws IOException {
+		byte[] data = new byte[entry.mLength];
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		long position = entry.mDataOffset;
+		while (buffer.hasRemaining()) {
+			int bytesRead = entry.mSegment.mChannel.read(buffer, position);
+			if (bytesRead < 0) {
+				throw new EOFException("Packed image was truncated. Key: " + key);
+			}
+			position += bytesRead;
+		}
+		return data;
+	}
+
+	public synchronized void put(String key, byte[] data, int length) throws IOException {
+		mLock.lock();
+		try {
+			ensureLoaded();
+			Entry replacedEntry = putRecord(key, data, length);
+			boolean compacted = replacedEntry != null && compactIfNeeded(replacedEntry.mSegment);
+			writeVersions(compacted ? mStructureVersion + 1 : mStructureVersion, mAppendVersion + 1);
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * @return True if the key was in the store.
+	 */
+	public synchronized boolean remove(String key) {
+		mLock.lock();
+		try {
+			ensureLoaded();
+			Entry entry = mIndex.remove(key);
+			if (entry == null) {
+				return false;
+			}
+
+			try {
+				Segment segment = getWritableSegment();
+				long recordOffset = segment.mSize;
+				appendRecord(segment, toBytes(key), null, TOMBSTONE);
+				segment.mDeadBytes += segment.mSize - recordOffset;
+				segment.mTombstones.add(key);
+			} catch (IOException e) {
+				Logger.w("Unable to write a tombstone to the pack file store. Key: " + key + ", Message: " + e.getMessage());
+			}
+
+			markDead(entry);
+			boolean compacted = compactIfNeeded(entry.mSegment);
+			writeVersions(compacted ? mStructureVersion + 1 : mStructureVersion, mAppendVersion + 1);
+			return true;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	public synchronized void clear() {
+		mLock.lock();
+		try {
+			readVersions();
+			closeSegments();
+			for (File file : mDiskManager.listFiles()) {
+				if (parseSegmentId(file.getName()) >= 0) {
+					file.delete();
+				}
+			}
+			writeVersions(mStructureVersion + 1, mAppendVersion + 1);
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	public synchronized List<String> getKeys() {
+		mLock.lock();
+		try {
+			ensureLoaded();
+			return new ArrayList<String>(mIndex.keySet());
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	synchronized int getNumSegments() {
+		mLock.lock();
+		try {
+			ensureLoaded();
+			return mSegments.size();
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Brings the index up to date with the segments on disk. Must be called while holding the lock.
+	 */
+	private void ensureLoaded() {
+		if (mLoaded) {
+			long structureVersion = mStructureVersion;
+			long appendVersion = mAppendVersion;
+			readVersions();
+
+			if (structureVersion != mStructureVersion) {
+				closeSegments();
+			} else {
+				if (appendVersion != mAppendVersion) {
+					catchUp();
+				}
+				return;
+			}
+		} else {
+			readVersions();
+		}
+		mLoaded = true;
+
+		TreeMap<Integer, File> segmentFiles = new TreeMap<Integer, File>();
+		for (File file : mDiskManager.listFiles()) {
+			int id = parseSegmentId(file.getName());
+			if (id >= 0) {
+				segmentFiles.put(id, file);
+			}
+		}
+
+		for (Map.Entry<Integer, File> segmentFile : segmentFiles.entrySet()) {
+			try {
+				Segment segment = new Segment(segmentFile.getKey(), segmentFile.getValue());
+				mSegments.put(segment.mId, segment);
+				scanSegment(segment);
+				mActiveSegment = segment;
+			} catch (IOException e) {
+				Logger.w("Unable to read pack file segment. It will be discarded. File: " + segmentFile.getValue() + ", Message: " + e.getMessage());
+				Segment segment = mSegments.remove(segmentFile.getKey());
+				if (segment != null) {
+					segment.close();
+				}
+				segmentFile.getValue().delete();
+			}
+		}
+	}
+
+	/**
+	 * Scans the records that other processes have appended since the index was last brought up to date.
+	 */
+	private void catchUp() {
+		for (File file : mDiskManager.listFiles()) {
+			int id = parseSegmentId(file.getName());
+			if (id < 0) {
+				continue;
+			}
+
+			try {
+				Segment segment = mSegments.get(id);
+				if (segment == null) {
+					segment = new Segment(id, file);
+					segment.mSize = 0;
+					mSegments.put(id, segment);
+				}
+				if (file.length() > segment.mSize) {
+					scanSegment(segment, segment.mSize);
+				}
+			} catch (IOException e) {
+				Logger.w("Unable to read the tail of a pack file segment. File: " + file + ", Message: " + e.getMessage());
+			}
+		}
+		mActiveSegment = mSegments.isEmpty() ? null : mSegments.get(mSegments.lastKey());
+	}
+
+	private void scanSegment(Segment segment) throws IOException {
+		scanSegment(segment, 0);
+	}
+
+	private void scanSegment(Segment segment, long startOffset) throws IOException {
+		FileInputStream fileInputStream = new FileInputStream(segment.mFile);
+		fileInputStream.getChannel().position(startOffset);
+		DataInputStream inputStream = new DataInputStream(new BufferedInputStream(fileInputStream, 16 * 1024));
+		long offset = startOffset;
+		long fileLength = segment.mFile.length();
+		try {
+			while (offset < fileLength) {
+				long recordOffset = offset;
+				int keyLength = inputStream.readInt();
+				if (keyLength <= 0 || keyLength > MAX_KEY_LENGTH || recordOffset + 4 + keyLength + 4 > fileLength) {
+					break;
+				}
+				byte[] keyBytes = new byte[keyLength];
+				inputStream.readFully(keyBytes);
+				int dataLength = inputStream.readInt();
+				long recordSize = 4 + keyLength + 4 + Math.max(0, dataLength);
+				if (dataLength < TOMBSTONE || recordOffset + recordSize > fileLength) {
+					break;
+				}
+
+				String key = new String(keyBytes, "UTF-8");
+				if (dataLength == TOMBSTONE) {
+					markDead(mIndex.remove(key));
+					segment.mDeadBytes += recordSize;
+					segment.mTombstones.add(key);
+				} else {
+					skipFully(inputStream, dataLength);
+					markDead(mIndex.put(key, new Entry(segment, recordOffset + 4 + keyLength + 4, dataLength, recordSize)));
+				}
+				offset += recordSize;
+			}
+		} catch (EOFException e) {
+			// The last record was only partially written. It is truncated below.
+		} finally {
+			inputStream.close();
+		}
+
+		segment.mSize = offset;
+		if (offset < fileLength) {
+			segment.mChannel.truncate(offset);
+		}
+	}
+
+	private Segment getWritableSegment() throws IOException {
+		if (mActiveSegment == null || mActiveSegment.mSize >= MAX_SEGMENT_SIZE) {
+			int id = mSegments.isEmpty() ? 0 : mSegments.lastKey() + 1;
+			Segment segment = new Segment(id, mDiskManager.getFile(SEGMENT_PREFIX + id + SEGMENT_SUFFIX));
+			mSegments.put(id, segment);
+			mActiveSegment = segment;
+		}
+		return mActiveSegment;
+	}
+
+	/**
+	 * @return The entry that was replaced, or null if the key was not in the store.
+	 */
+	private Entry putRecord(String key, byte[] data, int length) throws IOException {
+		Segment segment = getWritableSegment();
+		long recordOffset = segment.mSize;
+		byte[] keyBytes = toBytes(key);
+
+		appendRecord(segment, keyBytes, data, length);
+
+		Entry replacedEntry = mIndex.put(key, new Entry(segment, recordOffset + 4 + keyBytes.length + 4, length, segment.mSize - recordOffset));
+		markDead(replacedEntry);
+		return replacedEntry;
+	}
+
+	private static void appendRecord(Segment segment, byte[] keyBytes, byte[] data, int dataLength) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(4 + keyBytes.length + 4 + Math.max(0, dataLength));
+		buffer.putInt(keyBytes.length);
+		buffer.put(keyBytes);
+		buffer.putInt(dataLength);
+		if (dataLength > 0) {
+			buffer.put(data, 0, dataLength);
+		}
+		buffer.flip();
+
+		long position = segment.mSize;
+		try {
+			while (buffer.hasRemaining()) {
+				position += segment.mChannel.write(buffer, position);
+			}
+		} catch (IOException e) {
+			segment.mChannel.truncate(segment.mSize);
+			throw e;
+		}
+		segment.mSize = position;
+	}
+
+	private void markDead(Entry entry) {
+		if (entry != null) {
+			entry.mSegment.mDeadBytes += entry.mRecordSize;
+		}
+	}
+
+	/**
+	 * @return True if the segment was compacted and deleted.
+	 */
+	private boolean compactIfNeeded(Segment segment) {
+		if (segment == mActiveSegment || !mSegments.containsKey(segment.mId) || segment.mDeadBytes < segment.mSize * COMPACTION_THRESHOLD) {
+			return false;
+		}
+
+		try {
+			List<String> liveKeys = new ArrayList<String>();
+			for (Map.Entry<String, Entry> indexEntry : mIndex.entrySet()) {
+				if (indexEntry.getValue().mSegment == segment) {
+					liveKeys.add(indexEntry.getKey());
+				}
+			}
+
+			for (String key : liveKeys) {
+				Entry entry = mIndex.get(key);
+				putRecord(key, readEntry(key, entry), entry.mLength);
+			}
+
+			/*
+			 * A tombstone only needs to survive while an older segment could still contain a live record for its key.
+			 */
+			if (mSegments.firstKey() < segment.mId) {
+				for (String key : segment.mTombstones) {
+					if (!mIndex.containsKey(key)) {
+						Segment activeSegment = getWritableSegment();
+						long recordOffset = activeSegment.mSize;
+						appendRecord(activeSegment, toBytes(key), null, TOMBSTONE);
+						activeSegment.mDeadBytes += activeSegment.mSize - recordOffset;
+						activeSegment.mTombstones.add(key);
+					}
+				}
+			}
+
+			mSegments.remove(segment.mId);
+			segment.close();
+			segment.mFile.delete();
+			return true;
+		} catch (IOException e) {
+			Logger.w("Pack file compaction failed. It will be retried the next time a record in the segment is replaced or removed. Message: " + e.getMessage());
+			return false;
+		}
+	}
+
+	private void closeSegments() {
+		for (Segment segment : mSegments.values()) {
+			segment.close();
+		}
+		mSegments.clear();
+		mIndex.clear();
+		mActiveSegment = null;
+		mLoaded = false;
+	}
+
+	private void readVersions() {
+		try {
+			ByteBuffer buffer = ByteBuffer.allocate(16);
+			FileChannel channel = getVersionFile().getChannel();
+			while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) > 0) {
+			}
+			if (!buffer.hasRemaining()) {
+				mStructureVersion = buffer.getLong(0);
+				mAppendVersion = buffer.getLong(8);
+			}
+		} catch (IOException e) {
+			Logger.w("Unable to read the pack file version. Message: " + e.getMessage());
+		}
+	}
+
+	private void writeVersions(long structureVersion, long appendVersion) {
+		mStructureVersion = structureVersion;
+		mAppendVersion = appendVersion;
+		try {
+			ByteBuffer buffer = ByteBuffer.allocate(16);
+			buffer.putLong(structureVersion);
+			buffer.putLong(appendVersion);
+			buffer.flip();
+			FileChannel channel = getVersionFile().getChannel();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer, buffer.position());
+			}
+		} catch (IOException e) {
+			Logger.w("Unable to write the pack file version. Message: " + e.getMessage());
+		}
+	}
+
+	private RandomAccessFile getVersionFile() throws IOException {
+		if (mVersionFile == null) {
+			mVersionFile = new RandomAccessFile(mDiskManager.getFile(VERSION_FILE_NAME), "rw");
+		}
+		return mVersionFile;
+	}
+
+	private static int parseSegmentId(String filename) {
+		if (filename.startsWith(SEGMENT_PREFIX) && filename.endsWith(SEGMENT_SUFFIX)) {
+			try {
+				return Integer.parseInt(filename.substring(SEGMENT_PREFIX.length(), filename.length() - SEGMENT_SUFFIX.length()));
+			} catch (NumberFormatException e) {
+			}
+		}
+		return -1;
+	}
+
+	private static void skipFully(DataInputStream inputStream, int length) throws IOException {
+		int remaining = length;
+		while (remaining > 0) {
+			int skipped = inputStream.skipBytes(remaining);
+			if (skipped <= 0) {
+				throw new EOFException();
+			}
+			remaining -= skipped;
+		}
+	}
+
+	private static byte[] toBytes(String key) {
+		try {
+			return key.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static class Segment {
+		final int mId;
+		final File mFile;
+		final RandomAccessFile mRandomAccessFile;
+		final FileChannel mChannel;
+		final List<String> mTombstones = new ArrayList<String>();
+		long mSize;
+		long mDeadBytes;
+
+		Segment(int id, File file) throws IOException {
+			mId = id;
+			mFile = file;
+			mRandomAccessFile = new RandomAccessFile(file, "rw");
+			mChannel = mRandomAccessFile.getChannel();
+			mSize = mChannel.size();
+		}
+
+		void close() {
+			try {
+				mRandomAccessFile.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private static class Entry {
+		final Segment mSegment;
+		final long mDataOffset;
+		final int mLength;
+		final long mRecordSize;
+
+		Entry(Segment segment, long dataOffset, int length, long recordSize) {
+			mSegment = segment;
+			mDataOffset = dataOffset;
+			mLength = length;
+			mRecordSize = recordSize;
+		}
+	}
+}
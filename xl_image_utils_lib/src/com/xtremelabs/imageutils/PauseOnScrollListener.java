@@ -0,0 +1,79 @@
+/*
+ * Copyright 2013 Xtreme Labs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xtremelabs.imageutils;
+
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
+
+/**
+ * Pauses an {@link AbstractImageLoader} while a list is flinging, and resumes it once the list settles. Views that scroll past during a fling are bound and rebound before their images could arrive, so their
+ * downloads and decodes are held rather than wasted. See {@link AbstractImageLoader#pause()}.<br>
+ * <br>
+ * <b>Instructions:</b><br>
+ * Pass an instance of this class to the list's setOnScrollListener method. If the list already has an OnScrollListener, pass it in to the constructor and it will still be called.
+ */
+public class PauseOnScrollListener implements OnScrollListener {
+	private final AbstractImageLoader mImageLoader;
+	private final boolean mPauseOnTouchScroll;
+	private final OnScrollListener mOnScrollListener;
+
+	public PauseOnScrollListener(AbstractImageLoader imageLoader) {
+		this(imageLoader, false, null);
+	}
+
+	/**
+	 * @param pauseOnTouchScroll
+	 *            If true, the loader is also paused while the user is dragging the list.
+	 * @param onScrollListener
+	 *            Receives all scroll events after the loader has been paused or resumed. May be null.
+	 */
+	public PauseOnScrollListener(AbstractImageLoader imageLoader, boolean pauseOnTouchScroll, OnScrollListener onScrollListener) {
+		mImageLoader = imageLoader;
+		mPauseOnTouchScroll = pauseOnTouchScroll;
+		mOnScrollListener = onScrollListener;
+	}
+
+	@Override
+	public void onScrollStateChanged(AbsListView view, int scrollState) {
+		switch (scrollState) {
+		case SCROLL_STATE_FLING:
+			mImageLoader.pause();
+			break;
+		case SCROLL_STATE_TOUCH_SCROLL:
+			if (mPauseOnTouchScroll) {
+				mImageLoader.pause();
+			} else {
+				mImageLoader.resume();
+			}
+			break;
+		default:
+			mImageLoader.resume();
+			break;
+		}
+
+		if (mOnScrollListener != null) {
+			mOnScrollListener.onScrollStateChanged(view, scrollState);
+		}
+	}
+
+	@Override
+	public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+		if (mOnScrollListener != null) {
+			mOnScrollListener.onScroll(view, firstVisibleItem, visibleItemCount, totalItemCount);
+		}
+	}
+}
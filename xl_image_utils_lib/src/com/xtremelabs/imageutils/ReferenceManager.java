@@ -18,12 +18,36 @@ package com.xtremelabs.imageutils;
 
 import java.util.List;
 
+import android.graphics.Bitmap;
+
 interface ReferenceManager {
 
 	void getBitmap(Object key, ImageRequest imageRequest, ImageManagerListener imageManagerListener);
 
+	/**
+	 * Makes several requests at once. The lists must be the same size.
+	 */
+	void getBitmaps(Object key, List<ImageRequest> imageRequests, List<ImageManagerListener> imageManagerListeners);
+
 	List<ImageManagerListener> removeListenersForKey(Object key);
 
 	void cancelRequest(ImageManagerListener imageManagerListener);
 
+	/**
+	 * The listener is notified with a null bitmap once the image is on disk.
+	 */
+	void precacheImageToDisk(Object key, ImageRequest imageRequest, ImageManagerListener imageManagerListener);
+
+	/**
+	 * Cancels a precache request, abandoning the work it was waiting on if nothing else needs it. Requests that have already completed are ignored.
+	 */
+	void withdrawPrecacheRequest(ImageManagerListener imageManagerListener);
+
+	Bitmap getBitmapFromMemory(MemoryLookupKey memoryLookupKey);
+
+	/**
+	 * Requests for images that are not visible are demoted to precache priority until they are visible again.
+	 */
+	void setRequestVisible(ImageManagerListener imageManagerListener, boolean visible);
+
 }
@@ -18,9 +18,7 @@ package com.xtremelabs.imageutils;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.NoSuchElementException;
 import java.util.Set;
 
 import android.graphics.Bitmap;
@@ -31,7 +29,10 @@ class SizeEstimatingMemoryLRUCacher implements ImageMemoryCacherInterface {
 	private long mSize = 0;
 
 	private final HashMap<DecodeSignature, Bitmap> mCache = new HashMap<DecodeSignature, Bitmap>();
-	private final LinkedList<DecodeSignature> mEvictionQueue = new LinkedList<DecodeSignature>();
+	/*
+	 * Most recently used at the front. Moving a hit to the front does not allocate.
+	 */
+	private final IndexedDeque<DecodeSignature, DecodeSignature> mEvictionQueue = new IndexedDeque<DecodeSignature, DecodeSignature>();
 
 	@Override
 	public synchronized Bitmap getBitmap(DecodeSignature decodeSignature) {
@@ -82,23 +83,20 @@ class SizeEstimatingMemoryLRUCacher implements ImageMemoryCacherInterface {
 	}
 
 	private synchronized void onEntryHit(DecodeSignature decodeSignature) {
-		if (mEvictionQueue.contains(decodeSignature)) {
-			mEvictionQueue.remove(decodeSignature);
-			mEvictionQueue.add(decodeSignature);
-		} else {
-			mEvictionQueue.add(decodeSignature);
+		if (!mEvictionQueue.bump(decodeSignature)) {
+			mEvictionQueue.pushFront(decodeSignature, decodeSignature);
 			performEvictions();
 		}
 	}
 
 	private synchronized void performEvictions() {
 		while (mSize > mMaximumSizeInBytes) {
-			try {
-				DecodeSignature decodeSignature = mEvictionQueue.removeFirst();
+			DecodeSignature decodeSignature = mEvictionQueue.pollLast();
+			if (decodeSignature == null) {
+				mSize = 0;
+			} else {
 				Bitmap bitmap = mCache.remove(decodeSignature);
 				mSize -= getBitmapSize(bitmap);
-			} catch (NoSuchElementException e) {
-				mSize = 0;
 			}
 		}
 	}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2013 Xtreme Labs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xtremelabs.imageutils;
+
+import java.util.LinkedList;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Gathers results on their way to the UI thread and delivers them in one batch per frame, so that a burst of completed decodes does not post a message (and a layout pass) for each image.
+ * 
+ * Each frame delivers results until its time budget is spent. Whatever is left over rolls in to the next frame. At least one result is delivered per frame, so a small budget slows delivery down but never stalls it.
+ * 
+ * Choreographer is not available on all of the platform versions we support, so frames are approximated by intervals of {@link #FRAME_INTERVAL_MILLIS} on the uptime clock.
+ */
+class UiDeliveryBatcher {
+	static final long FRAME_INTERVAL_MILLIS = 16;
+	static final long DEFAULT_FRAME_BUDGET_MILLIS = 8;
+
+	private final Handler mUiThreadHandler;
+	private final LinkedList<Runnable> mPendingDeliveries = new LinkedList<Runnable>();
+	private boolean mFrameScheduled = false;
+	private volatile long mFrameBudgetMillis = DEFAULT_FRAME_BUDGET_MILLIS;
+
+	UiDeliveryBatcher(Looper looper) {
+		mUiThreadHandler = new Handler(looper);
+	}
+
+	/**
+	 * Queues the delivery to run on the UI thread at the start of the next frame that has budget left for it.
+	 */
+	public void post(Runnable delivery) {
+		boolean scheduleFrame;
+		synchronized (this) {
+			mPendingDeliveries.add(delivery);
+			scheduleFrame = !mFrameScheduled;
+			mFrameScheduled = true;
+		}
+
+		if (scheduleFrame) {
+			scheduleFrame(getMillisUntilNextFrame());
+		}
+	}
+
+	/**
+	 * Sets how long each frame may spend delivering results. Results that do not fit are delivered in the frames that follow.
+	 */
+	public void setFrameBudget(long frameBudgetMillis) {
+		if (frameBudgetMillis < 0) {
+			throw new IllegalArgumentException("The frame budget cannot be negative.");
+		}
+		mFrameBudgetMillis = frameBudgetMillis;
+	}
+
+	public long getFrameBudget() {
+		return mFrameBudgetMillis;
+	}
+
+	synchronized int getNumPendingDeliveries() {
+		return mPendingDeliveries.size();
+	}
+
+	/**
+	 * Delivers pending results until the frame budget is spent.
+	 * 
+	 * @return True if results are left over for the next frame.
+	 */
+	boolean deliverFrame() {
+		long deadline = SystemClock.uptimeMillis() + mFrameBudgetMillis;
+		do {
+			Runnable delivery;
+			synchronized (this) {
+				delivery = mPendingDeliveries.poll();
+				if (delivery == null) {
+					mFrameScheduled = false;
+					return false;
+				}
+			}
+			delivery.run();
+		} while (SystemClock.uptimeMillis() < deadline);
+
+		synchronized (this) {
+			if (mPendingDeliveries.isEmpty()) {
+				mFrameScheduled = false;
+				return false;
+			}
+		}
+		return true;
+	}
+
+	void scheduleFrame(long delayMillis) {
+		mUiThreadHandler.postDelayed(mFrameRunnable, delayMillis);
+	}
+
+	private static long getMillisUntilNextFrame() {
+		return FRAME_INTERVAL_MILLIS - SystemClock.uptimeMillis() % FRAME_INTERVAL_MILLIS;
+	}
+
+	private final Runnable mFrameRunnable = new Runnable() {
+		@Override
+		public void run() {
+			if (deliverFrame()) {
+				scheduleFrame(getMillisUntilNextFrame());
+			}
+		}
+	};
+}
@@ -16,23 +16,53 @@
 
 package com.xtremelabs.imageutils;
 
-import android.graphics.Point;
 import android.view.ViewGroup;
 import android.view.ViewGroup.LayoutParams;
 import android.widget.ImageView;
 
+/**
+ * Works out the size an ImageView displays its image at. A view that has been laid out reports the size of its content area. Otherwise the size is read from its LayoutParams, which is only possible for exact sizes
+ * and for MATCH_PARENT inside an exactly sized parent.
+ * 
+ * The laid out size of a WRAP_CONTENT dimension is the size of the view's current drawable, such as a placeholder or the image of a recycled row, so it is never used.
+ */
 class ViewDimensionsUtil {
-	public static Point getImageViewDimensions(ImageView imageView) {
-		Point dimensions = new Point();
-		dimensions.x = getDimensions(imageView, true);
-		dimensions.y = getDimensions(imageView, false);
-		if (dimensions.x <= 0) {
-			dimensions.x = -1;
+	/**
+	 * @return The width the view is laid out to, or -1 if it is not known.
+	 */
+	public static int getImageViewWidth(ImageView imageView) {
+		if (isMeasured(imageView) && !isWrapContent(imageView, true)) {
+			return imageView.getWidth() - imageView.getPaddingLeft() - imageView.getPaddingRight();
 		}
-		if (dimensions.y <= 0) {
-			dimensions.y = -1;
+		int width = getDimensions(imageView, true);
+		return width <= 0 ? -1 : width;
+	}
+
+	/**
+	 * @return The height the view is laid out to, or -1 if it is not known.
+	 */
+	public static int getImageViewHeight(ImageView imageView) {
+		if (isMeasured(imageView) && !isWrapContent(imageView, false)) {
+			return imageView.getHeight() - imageView.getPaddingTop() - imageView.getPaddingBottom();
 		}
-		return dimensions;
+		int height = getDimensions(imageView, false);
+		return height <= 0 ? -1 : height;
+	}
+
+	/**
+	 * @return True if the view has been laid out, and is not waiting to be laid out again.
+	 */
+	public static boolean isMeasured(ImageView imageView) {
+		return !imageView.isLayoutRequested() && imageView.getWidth() - imageView.getPaddingLeft() - imageView.getPaddingRight() > 0
+				&& imageView.getHeight() - imageView.getPaddingTop() - imageView.getPaddingBottom() > 0;
+	}
+
+	/**
+	 * @return True if the dimension's LayoutParams are WRAP_CONTENT.
+	 */
+	public static boolean isWrapContent(ImageView imageView, boolean isWidth) {
+		LayoutParams params = imageView.getLayoutParams();
+		return params != null && (isWidth ? params.width : params.height) == LayoutParams.WRAP_CONTENT;
 	}
 
 	private static int getDimensions(ImageView imageView, boolean isWidth) {
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2013 Xtreme Labs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xtremelabs.imageutils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import android.graphics.Rect;
+import android.view.ViewTreeObserver;
+import android.widget.ImageView;
+
+/**
+ * Watches ImageViews for moving on or off screen. A view counts as visible while it and all of its ancestors are shown and some part of it is within the window.
+ * 
+ * OnAttachStateChangeListener is not available on all of the platform versions we support, so visibility is rechecked whenever the window scrolls or lays out. A view that is detached from its window is no longer
+ * shown, so detachment is picked up by the layout pass that removes the view.
+ * 
+ * Must only be used from the UI thread.
+ */
+class ViewVisibilityTracker {
+	private final Map<ImageView, Boolean> mTrackedViews = new HashMap<ImageView, Boolean>();
+	private final List<ViewTreeObserver> mObservers = new ArrayList<ViewTreeObserver>();
+	private final List<ImageView> mChangedViews = new ArrayList<ImageView>();
+	private final Rect mVisibleRect = new Rect();
+	private final VisibilityListener mVisibilityListener;
+
+	private final ViewTreeObserver.OnScrollChangedListener mOnScrollChangedListener = new ViewTreeObserver.OnScrollChangedListener() {
+		@Override
+		public void onScrollChanged() {
+			updateVisibility();
+		}
+	};
+
+	private final ViewTreeObserver.OnGlobalLayoutListener mOnGlobalLayoutListener = new ViewTreeObserver.OnGlobalLayoutListener() {
+		@Override
+		public void onGlobalLayout() {
+			updateVisibility();
+		}
+	};
+
+	ViewVisibilityTracker(VisibilityListener visibilityListener) {
+		mVisibilityListener = visibilityListener;
+	}
+
+	/**
+	 * Views are assumed to be visible when they are first tracked. Tracking a view that is already tracked keeps its last known visibility.
+	 */
+	public void track(ImageView view) {
+		if (!mTrackedViews.containsKey(view)) {
+			mTrackedViews.put(view, Boolean.TRUE);
+		}
+		registerObserver(view.getViewTreeObserver());
+	}
+
+	public void untrack(ImageView view) {
+		mTrackedViews.remove(view);
+	}
+
+	/**
+	 * @return The last known visibility of the view. Views that are not tracked are reported as visible.
+	 */
+	public boolean isVisible(ImageView view) {
+		Boolean visible = mTrackedViews.get(view);
+		return visible == null || visible;
+	}
+
+	/**
+	 * Stops tracking all views and unregisters from their windows.
+	 */
+	public void clear() {
+		mTrackedViews.clear();
+		for (ViewTreeObserver observer : mObservers) {
+			if (observer.isAlive()) {
+				observer.removeOnScrollChangedListener(mOnScrollChangedListener);
+				observer.removeGlobalOnLayoutListener(mOnGlobalLayoutListener);
+			}
+		}
+		mObservers.clear();
+	}
+
+	int getNumTrackedViews() {
+		return mTrackedViews.size();
+	}
+
+	/*
+	 * A view that is not attached hands out a temporary observer, whose listeners are merged in to the window's observer when the view is attached. The temporary observer is no longer alive after that.
+	 */
+	private void registerObserver(ViewTreeObserver observer) {
+		Iterator<ViewTreeObserver> iterator = mObservers.iterator();
+		while (iterator.hasNext()) {
+			ViewTreeObserver registeredObserver = iterator.next();
+			if (registeredObserver == observer) {
+				return;
+			} else if (!registeredObserver.isAlive()) {
+				iterator.remove();
+			}
+		}
+
+		observer.addOnScrollChangedListener(mOnScrollChangedListener);
+		observer.addOnGlobalLayoutListener(mOnGlobalLayoutListener);
+		mObservers.add(observer);
+	}
+
+	void updateVisibility() {
+		for (Map.Entry<ImageView, Boolean> entry : mTrackedViews.entrySet()) {
+			ImageView view = entry.getKey();
+			boolean visible = view.isShown() && view.getGlobalVisibleRect(mVisibleRect);
+			if (visible != entry.getValue()) {
+				entry.setValue(visible);
+				mChangedViews.add(view);
+			}
+		}
+
+		// The listener may untrack views, so it is only called once the tracked views have all been checked.
+		for (int i = 0; i < mChangedViews.size(); i++) {
+			ImageView view = mChangedViews.get(i);
+			mVisibilityListener.onVisibilityChanged(view, isVisible(view));
+		}
+		mChangedViews.clear();
+	}
+
+	interface VisibilityListener {
+		void onVisibilityChanged(ImageView view, boolean visible);
+	}
+}